@@ -3,6 +3,7 @@ package uk.ac.ebi.pride.cluster.exporter.pipeline.exporter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.Constants;
 
 
 @SuppressWarnings("static-access")
@@ -20,6 +21,40 @@ public class CliOptions {
 
         INCLUDE_POGO_EXPORT("include_pogo_export"),
 
+        PSM_PAGE_SIZE("psm_page_size"),
+
+        FETCH_THREADS("fetch_threads"),
+
+        PIPELINED_FETCH("pipelined_fetch"),
+
+        PREFETCH_PAGES("prefetch_pages"),
+
+        MODIFICATION_CACHE_SIZE("modification_cache_size"),
+
+        PSM_MEMORY_BUDGET("psm_memory_budget"),
+
+        SPILL_DIRECTORY("spill_directory"),
+
+        SNAPSHOT("snapshot"),
+
+        FROM_SNAPSHOT("from_snapshot"),
+
+        THREADS("threads"),
+
+        BLOCK_GZIP("block_gzip"),
+
+        RENDER_THREADS("render_threads"),
+
+        CLUSTERING_FILES("clustering_files"),
+
+        INGEST_THREADS("ingest_threads"),
+
+        QUALITY_SPECTRUM_COUNT("quality_spectrum_count"),
+
+        QUALITY_PROJECT_COUNT("quality_project_count"),
+
+        QUALITY_MAX_RATIO("quality_max_ratio"),
+
         // ACTIONS
         HELP("help");
 
@@ -39,6 +74,13 @@ public class CliOptions {
         }
     }
 
+    /** How the quality thresholds are used, the same for all the thresholds */
+    private static final String QUALITY_THRESHOLD_USAGE = "The quality is always decided locally for the clusters of -" +
+            OPTIONS.CLUSTERING_FILES.getValue() + ". With the database or -" + OPTIONS.FROM_SNAPSHOT.getValue() +
+            ", any threshold classifies the loaded clusters again and only the clusters of -" + OPTIONS.QUALITY.getValue() +
+            " are exported. The database is read with its own quality, a snapshot of the low quality clusters can be " +
+            "exported again with any thresholds";
+
     private static final Options options = new Options();
 
     static {
@@ -74,6 +116,114 @@ public class CliOptions {
                 .create(OPTIONS.INCLUDE_POGO_EXPORT.getValue());
         options.addOption(include_pogo_export);
 
+        Option psm_page_size = OptionBuilder
+                .hasArg()
+                .withDescription("Number of clustered PSMs read from the database by chunk (default " + Constants.PSM_READ_STEP + ")")
+                .create(OPTIONS.PSM_PAGE_SIZE.getValue());
+        options.addOption(psm_page_size);
+
+        Option fetch_threads = OptionBuilder
+                .hasArg()
+                .withDescription("Number of concurrent database connections used to read the clustered PSMs, " +
+                        "every connection reads its own range of clusters (default 1, at most the size of the connection pool)")
+                .create(OPTIONS.FETCH_THREADS.getValue());
+        options.addOption(fetch_threads);
+
+        Option pipelined_fetch = OptionBuilder
+                .withDescription("Prefetch the next pages of clustered PSMs on dedicated threads while the current page is transformed")
+                .create(OPTIONS.PIPELINED_FETCH.getValue());
+        options.addOption(pipelined_fetch);
+
+        Option prefetch_pages = OptionBuilder
+                .hasArg()
+                .withDescription("Maximum number of prefetched pages waiting to be transformed in pipelined mode (default " + Constants.PSM_PREFETCH_PAGES + ")")
+                .create(OPTIONS.PREFETCH_PAGES.getValue());
+        options.addOption(prefetch_pages);
+
+        Option modification_cache_size = OptionBuilder
+                .hasArg()
+                .withDescription("Maximum number of anchored (sequence, modifications) pairs kept in memory, 0 disables the cache (default " + Constants.MODIFICATION_CACHE_SIZE + ")")
+                .create(OPTIONS.MODIFICATION_CACHE_SIZE.getValue());
+        options.addOption(modification_cache_size);
+
+        Option psm_memory_budget = OptionBuilder
+                .hasArg()
+                .withDescription("Memory in MB for the ranked PSMs, when it is exceeded the PSMs are spilled to disk in sorted runs, and a snapshot is read in segments of this size (default 0, no limit)")
+                .create(OPTIONS.PSM_MEMORY_BUDGET.getValue());
+        options.addOption(psm_memory_budget);
+
+        Option spill_directory = OptionBuilder
+                .hasArg()
+                .withDescription("Directory for the spilled PSMs (default the temporary directory of the system)")
+                .create(OPTIONS.SPILL_DIRECTORY.getValue());
+        options.addOption(spill_directory);
+
+        Option snapshot = OptionBuilder
+                .hasArg()
+                .withDescription("Write a binary snapshot of the ranked PSMs to the given file, it can be exported again with -" + OPTIONS.FROM_SNAPSHOT.getValue())
+                .create(OPTIONS.SNAPSHOT.getValue());
+        options.addOption(snapshot);
+
+        Option from_snapshot = OptionBuilder
+                .hasArg()
+                .withDescription("Read the ranked PSMs from a binary snapshot instead of the database")
+                .create(OPTIONS.FROM_SNAPSHOT.getValue());
+        options.addOption(from_snapshot);
+
+        Option threads = OptionBuilder
+                .hasArg()
+                .withDescription("Number of threads rendering the lines and copying them to the species files, all the files " +
+                        "are written in a single pass (default 1)")
+                .create(OPTIONS.THREADS.getValue());
+        options.addOption(threads);
+
+        Option block_gzip = OptionBuilder
+                .withDescription("Write the files as block gzip (BGZF, .gz) with an index of the offsets of every peptide (.gz.idx)")
+                .create(OPTIONS.BLOCK_GZIP.getValue());
+        options.addOption(block_gzip);
+
+        Option render_threads = OptionBuilder
+                .hasArg()
+                .withDescription("Number of threads rendering the lines of a file, the lines are written in the same order " +
+                        "(default 1, the species files use the largest of -threads and -render_threads)")
+                .create(OPTIONS.RENDER_THREADS.getValue());
+        options.addOption(render_threads);
+
+        Option clustering_files = OptionBuilder
+                .hasArg()
+                .withDescription("Read the clusters from .clustering files instead of the database, comma separated files " +
+                        "or directories with .clustering files")
+                .create(OPTIONS.CLUSTERING_FILES.getValue());
+        options.addOption(clustering_files);
+
+        Option ingest_threads = OptionBuilder
+                .hasArg()
+                .withDescription("Number of threads reading the clustering files, the clusters are ranked in the order " +
+                        "of the files (default 1)")
+                .create(OPTIONS.INGEST_THREADS.getValue());
+        options.addOption(ingest_threads);
+
+        Option quality_spectrum_count = OptionBuilder
+                .hasArg()
+                .withDescription("Minimum number of spectra of a medium or high quality cluster (default " + Constants.QUALITY_SPECTRUM_COUNT + "). " +
+                        QUALITY_THRESHOLD_USAGE)
+                .create(OPTIONS.QUALITY_SPECTRUM_COUNT.getValue());
+        options.addOption(quality_spectrum_count);
+
+        Option quality_project_count = OptionBuilder
+                .hasArg()
+                .withDescription("Minimum number of projects of a high quality cluster (default " + Constants.QUALITY_PROJECT_COUNT + "). " +
+                        QUALITY_THRESHOLD_USAGE)
+                .create(OPTIONS.QUALITY_PROJECT_COUNT.getValue());
+        options.addOption(quality_project_count);
+
+        Option quality_max_ratio = OptionBuilder
+                .hasArg()
+                .withDescription("Minimum max peptide ratio of a medium or high quality cluster (default " + Constants.QUALITY_MAX_RATIO + "). " +
+                        QUALITY_THRESHOLD_USAGE)
+                .create(OPTIONS.QUALITY_MAX_RATIO.getValue());
+        options.addOption(quality_max_ratio);
+
         // ACTIONS
         Option help = new Option(
                 OPTIONS.HELP.toString(),
@@ -9,9 +9,11 @@ import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Specie;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.pogo.PoGoTranslationCache;
 import uk.ac.ebi.pride.cluster.exporter.pipeline.services.ClusterRepositoryServices;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.services.ClusteringFileIngester;
 import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.PropertyUtils;
-import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.SummaryFactory;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.SpeciesFanOutWriter;
 import uk.ac.ebi.pride.spectracluster.repo.dao.cluster.IClusterReadDao;
 import uk.ac.ebi.pride.spectracluster.repo.model.ClusterQuality;
 
@@ -71,6 +73,80 @@ public class ClusteringFileExporter {
                 ConfigurationService.getService().setIncludePogoExport();
             }
 
+            if (commandLine.hasOption(CliOptions.OPTIONS.PSM_PAGE_SIZE.getValue())) {
+                ConfigurationService.getService().setPsmPageSize(Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.PSM_PAGE_SIZE.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.FETCH_THREADS.getValue())) {
+                ConfigurationService.getService().setFetchThreads(Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.FETCH_THREADS.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.PIPELINED_FETCH.getValue())) {
+                ConfigurationService.getService().setPipelinedFetch();
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.PREFETCH_PAGES.getValue())) {
+                ConfigurationService.getService().setPrefetchPages(Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.PREFETCH_PAGES.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.MODIFICATION_CACHE_SIZE.getValue())) {
+                ConfigurationService.getService().setModificationCacheSize(Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.MODIFICATION_CACHE_SIZE.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.PSM_MEMORY_BUDGET.getValue())) {
+                ConfigurationService.getService().setPsmMemoryBudget(Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.PSM_MEMORY_BUDGET.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.SPILL_DIRECTORY.getValue())) {
+                ConfigurationService.getService().setSpillDirectory(commandLine.getOptionValue(CliOptions.OPTIONS.SPILL_DIRECTORY.getValue()));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.SNAPSHOT.getValue())) {
+                ConfigurationService.getService().setSnapshot(commandLine.getOptionValue(CliOptions.OPTIONS.SNAPSHOT.getValue()));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.FROM_SNAPSHOT.getValue())) {
+                ConfigurationService.getService().setFromSnapshot(commandLine.getOptionValue(CliOptions.OPTIONS.FROM_SNAPSHOT.getValue()));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.THREADS.getValue())) {
+                ConfigurationService.getService().setThreads(Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.THREADS.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.BLOCK_GZIP.getValue())) {
+                ConfigurationService.getService().setBlockGzip();
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.RENDER_THREADS.getValue())) {
+                ConfigurationService.getService().setRenderThreads(Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.RENDER_THREADS.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.CLUSTERING_FILES.getValue())) {
+                ConfigurationService.getService().setClusteringFiles(commandLine.getOptionValue(CliOptions.OPTIONS.CLUSTERING_FILES.getValue()));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.INGEST_THREADS.getValue())) {
+                ConfigurationService.getService().setIngestThreads(Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.INGEST_THREADS.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.QUALITY_SPECTRUM_COUNT.getValue())) {
+                ConfigurationService.getService().setQualitySpectrumCount(Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.QUALITY_SPECTRUM_COUNT.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.QUALITY_PROJECT_COUNT.getValue())) {
+                ConfigurationService.getService().setQualityProjectCount(Integer.parseInt(commandLine.getOptionValue(CliOptions.OPTIONS.QUALITY_PROJECT_COUNT.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.QUALITY_MAX_RATIO.getValue())) {
+                ConfigurationService.getService().setQualityMaxRatio(Float.parseFloat(commandLine.getOptionValue(CliOptions.OPTIONS.QUALITY_MAX_RATIO.getValue())));
+            }
+
+            if (commandLine.hasOption(CliOptions.OPTIONS.QUALITY_SPECTRUM_COUNT.getValue())
+                    || commandLine.hasOption(CliOptions.OPTIONS.QUALITY_PROJECT_COUNT.getValue())
+                    || commandLine.hasOption(CliOptions.OPTIONS.QUALITY_MAX_RATIO.getValue())) {
+                ConfigurationService.getService().setLocalQuality();
+            }
+
             if (!file.exists())
                 logger.info("Output .tsv file must be will be re-write with new data");
 
@@ -115,16 +191,33 @@ public class ClusteringFileExporter {
 
         ClusterRepositoryServices service = new ClusterRepositoryServices(clusterReaderDao);
 
-        service.buildPeptidePSMReportLists(quality);
+        String fromSnapshot = ConfigurationService.getService().getFromSnapshot();
+        String clusteringFiles = ConfigurationService.getService().getClusteringFiles();
+        if (fromSnapshot != null) {
+            service.loadSnapshot(new File(fromSnapshot), quality);
+        } else if (clusteringFiles != null) {
+            service.readClusteringFiles(ClusteringFileIngester.listClusteringFiles(clusteringFiles), quality);
+        } else {
+            service.buildPeptidePSMReportLists(quality);
+        }
+
+        String snapshot = ConfigurationService.getService().getSnapshot();
+        if (snapshot != null) {
+            service.writeSnapshot(new File(snapshot));
+        }
 
         logger.info("Number of HighQuality Clusters: ");
 
-        SummaryFactory.printFile(service, null, path, properties, version);
-
-        for(Specie specie: species.values()){
-            SummaryFactory.printFile(service, specie, path, properties, version);
+        try {
+            // The file of all the species and the file of every species are written in a single pass
+            new SpeciesFanOutWriter(path, true, species.values(), properties, version).write(service);
+        } finally {
+            service.closeSegments();
         }
 
+        if (ConfigurationService.getService().isIncludePogoExport())
+            logger.info(PoGoTranslationCache.getInstance().toString());
+
         logger.info("All projects where exported!!!!");
     }
 
@@ -1,5 +1,7 @@
 package uk.ac.ebi.pride.cluster.exporter.pipeline.exporter;
 
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.Constants;
+
 /**
  * @author Manuel Bernal Llinares
  *         Project: cluster-file-exporter
@@ -14,6 +16,24 @@ public class ConfigurationService {
 
     private boolean filterOutMultitaxonomies = false;
     private boolean includePogoExport = false;
+    private int psmPageSize = Constants.PSM_READ_STEP;
+    private int fetchThreads = 1;
+    private boolean pipelinedFetch = false;
+    private int prefetchPages = Constants.PSM_PREFETCH_PAGES;
+    private int modificationCacheSize = Constants.MODIFICATION_CACHE_SIZE;
+    private int psmMemoryBudget = 0;
+    private String spillDirectory = System.getProperty("java.io.tmpdir");
+    private String snapshot = null;
+    private String fromSnapshot = null;
+    private int threads = 1;
+    private boolean blockGzip = false;
+    private int renderThreads = 1;
+    private String clusteringFiles = null;
+    private int ingestThreads = 1;
+    private int qualitySpectrumCount = Constants.QUALITY_SPECTRUM_COUNT;
+    private int qualityProjectCount = Constants.QUALITY_PROJECT_COUNT;
+    private float qualityMaxRatio = Constants.QUALITY_MAX_RATIO;
+    private boolean localQuality = false;
 
     protected ConfigurationService() {}
 
@@ -45,4 +65,193 @@ public class ConfigurationService {
     public boolean isIncludePogoExport() {
         return includePogoExport;
     }
+
+    public void setPsmPageSize(int psmPageSize) {
+        this.psmPageSize = psmPageSize;
+    }
+
+    public int getPsmPageSize() {
+        return psmPageSize;
+    }
+
+    public void setFetchThreads(int fetchThreads) {
+        this.fetchThreads = fetchThreads;
+    }
+
+    public int getFetchThreads() {
+        return fetchThreads;
+    }
+
+    public void setPipelinedFetch() {
+        pipelinedFetch = true;
+    }
+
+    public void unsetPipelinedFetch() {
+        pipelinedFetch = false;
+    }
+
+    public boolean isPipelinedFetch() {
+        return pipelinedFetch;
+    }
+
+    public void setPrefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+    }
+
+    public int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    public void setModificationCacheSize(int modificationCacheSize) {
+        this.modificationCacheSize = modificationCacheSize;
+    }
+
+    public int getModificationCacheSize() {
+        return modificationCacheSize;
+    }
+
+    public void setPsmMemoryBudget(int psmMemoryBudget) {
+        this.psmMemoryBudget = psmMemoryBudget;
+    }
+
+    /**
+     * @return memory in MB for the ranked PSMs, 0 if all the PSMs are kept in memory
+     */
+    public int getPsmMemoryBudget() {
+        return psmMemoryBudget;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSnapshot(String snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return the file to write the snapshot of the ranked PSMs, null if no snapshot is written
+     */
+    public String getSnapshot() {
+        return snapshot;
+    }
+
+    public void setFromSnapshot(String fromSnapshot) {
+        this.fromSnapshot = fromSnapshot;
+    }
+
+    /**
+     * @return the snapshot to read the ranked PSMs from, null if they are read from the database
+     */
+    public String getFromSnapshot() {
+        return fromSnapshot;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return number of threads rendering the lines and copying them to the species files
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setBlockGzip() {
+        blockGzip = true;
+    }
+
+    public void unsetBlockGzip() {
+        blockGzip = false;
+    }
+
+    /**
+     * @return true to write the files as block gzip with a peptide index
+     */
+    public boolean isBlockGzip() {
+        return blockGzip;
+    }
+
+    public void setRenderThreads(int renderThreads) {
+        this.renderThreads = renderThreads;
+    }
+
+    /**
+     * @return number of threads rendering the lines of a file
+     */
+    public int getRenderThreads() {
+        return renderThreads;
+    }
+
+    public void setClusteringFiles(String clusteringFiles) {
+        this.clusteringFiles = clusteringFiles;
+    }
+
+    /**
+     * @return the clustering files or directories to read the clusters from, null if they are read from the database
+     */
+    public String getClusteringFiles() {
+        return clusteringFiles;
+    }
+
+    public void setIngestThreads(int ingestThreads) {
+        this.ingestThreads = ingestThreads;
+    }
+
+    /**
+     * @return number of threads reading the clustering files and summarising the mzTab PSMs
+     */
+    public int getIngestThreads() {
+        return ingestThreads;
+    }
+
+    public void setQualitySpectrumCount(int qualitySpectrumCount) {
+        this.qualitySpectrumCount = qualitySpectrumCount;
+    }
+
+    /**
+     * @return minimum number of spectra of a medium or high quality cluster, when the quality is decided locally
+     */
+    public int getQualitySpectrumCount() {
+        return qualitySpectrumCount;
+    }
+
+    public void setQualityProjectCount(int qualityProjectCount) {
+        this.qualityProjectCount = qualityProjectCount;
+    }
+
+    /**
+     * @return minimum number of projects of a high quality cluster, when the quality is decided locally
+     */
+    public int getQualityProjectCount() {
+        return qualityProjectCount;
+    }
+
+    public void setQualityMaxRatio(float qualityMaxRatio) {
+        this.qualityMaxRatio = qualityMaxRatio;
+    }
+
+    /**
+     * @return minimum max peptide ratio of a medium or high quality cluster, when the quality is decided locally
+     */
+    public float getQualityMaxRatio() {
+        return qualityMaxRatio;
+    }
+
+    public void setLocalQuality() {
+        this.localQuality = true;
+    }
+
+    /**
+     * @return true if the quality of the loaded clusters (database or snapshot) is decided again locally, with the
+     * thresholds of the configuration
+     */
+    public boolean isLocalQuality() {
+        return localQuality;
+    }
 }
@@ -0,0 +1,163 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.pogo;
+
+import uk.ac.ebi.pride.cluster.exporter.pipeline.pogo.visitors.PoGoEntryVisitorForClusteredPsmReport;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusteredPSMStore;
+import uk.ac.ebi.pride.utilities.pridemod.ModReader;
+import uk.ac.ebi.pride.utilities.pridemod.model.PRIDEModPTM;
+import uk.ac.ebi.pride.utilities.pridemod.model.PTM;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches of the translation of the peptides to the PoGo format:
+ *
+ * - the short name of the PTMs by (accession, residue), resolved with the PRIDE modifications and the
+ *   anchor modifications of {@link ModReader}
+ * - the translated peptide (sequence with the short names of its PTMs) of every PeptideForm of a
+ *   {@link ClusteredPSMStore}, shared by all the cluster evidences of the PeptideForm. The peptides of a
+ *   store are looked up once, see {@link #getTranslatedPeptides}, and then read without locking.
+ *
+ * Both caches can be used concurrently and count their hits and misses.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class PoGoTranslationCache {
+
+    private static final PoGoTranslationCache instance = new PoGoTranslationCache();
+
+    // Cached value of the PTMs whose short name is null
+    private static final String NULL_SHORT_NAME = new String("null");
+
+    private final ConcurrentMap<String, String> shortNames = new ConcurrentHashMap<String, String>();
+    private final LongAdder shortNameHits = new LongAdder();
+    private final LongAdder shortNameMisses = new LongAdder();
+
+    // Translated peptides by store, the stores that are no longer used are released
+    private final Map<ClusteredPSMStore, TranslatedPeptides> peptides =
+            Collections.synchronizedMap(new WeakHashMap<ClusteredPSMStore, TranslatedPeptides>());
+    private final LongAdder peptideHits = new LongAdder();
+    private final LongAdder peptideMisses = new LongAdder();
+
+    protected PoGoTranslationCache() {}
+
+    public static PoGoTranslationCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Short name of a PTM: the short name of the PRIDE modification if it is biologically relevant,
+     * else the short name of the anchor modification if there is only one, else the accession
+     * @param accession the accession of the PTM
+     * @param residue the modified residue
+     */
+    public String getShortName(String accession, char residue) {
+        String key = accession + '|' + residue;
+        String shortName = shortNames.get(key);
+        if (shortName != null) {
+            shortNameHits.increment();
+            return (shortName == NULL_SHORT_NAME) ? null : shortName;
+        }
+
+        shortNameMisses.increment();
+        String aminoAcid = String.valueOf(residue);
+        shortName = accession;
+        PRIDEModPTM prideModPTM = ModReader.getInstance().getPRIDEModByAccessionAndAmminoAcid(accession, aminoAcid);
+        if ((prideModPTM != null) && prideModPTM.isBiologicalRelevant()) {
+            shortName = prideModPTM.getShortName();
+        } else {
+            // Modifications are from Anchore modification.
+            List<PTM> ptm = ModReader.getInstance().getAnchorModification(accession, aminoAcid);
+            if (ptm != null && ptm.size() == 1)
+                shortName = ptm.get(0).getShortName();
+        }
+        shortNames.putIfAbsent(key, (shortName == null) ? NULL_SHORT_NAME : shortName);
+        return shortName;
+    }
+
+    /**
+     * Translated peptides of the PeptideForms of a store, the store is looked up once and its peptides are
+     * then read without locking
+     * @param store the clustered PSMs
+     */
+    public TranslatedPeptides getTranslatedPeptides(ClusteredPSMStore store) {
+        synchronized (peptides) {
+            TranslatedPeptides storePeptides = peptides.get(store);
+            if (storePeptides == null) {
+                storePeptides = new TranslatedPeptides(store);
+                peptides.put(store, storePeptides);
+            }
+            return storePeptides;
+        }
+    }
+
+    public long getShortNameHits() {
+        return shortNameHits.sum();
+    }
+
+    public long getShortNameMisses() {
+        return shortNameMisses.sum();
+    }
+
+    public long getPeptideHits() {
+        return peptideHits.sum();
+    }
+
+    public long getPeptideMisses() {
+        return peptideMisses.sum();
+    }
+
+    private static String hitRate(long hits, long misses) {
+        return (hits + misses == 0) ? "-" : String.format("%.1f%%", 100.0 * hits / (hits + misses));
+    }
+
+    @Override
+    public String toString() {
+        return "PoGo PTM short name cache: " + shortNames.size() + " entries, " + getShortNameHits() + " hits, "
+                + getShortNameMisses() + " misses (hit rate " + hitRate(getShortNameHits(), getShortNameMisses()) + "); "
+                + "PoGo peptide cache: " + getPeptideHits() + " hits, " + getPeptideMisses() + " misses (hit rate "
+                + hitRate(getPeptideHits(), getPeptideMisses()) + ")";
+    }
+
+    /**
+     * Translated peptides of the PeptideForms of a store, they can be read concurrently
+     */
+    public class TranslatedPeptides {
+
+        private final ClusteredPSMStore store;
+        private final AtomicReferenceArray<String> formPeptides;
+
+        private TranslatedPeptides(ClusteredPSMStore store) {
+            this.store = store;
+            this.formPeptides = new AtomicReferenceArray<String>(store.getEndPeptideForm() - store.getFirstPeptideForm());
+        }
+
+        /**
+         * Translated peptide of a PeptideForm, see {@link PoGoEntryVisitorForClusteredPsmReport#translateSequence}
+         * @param peptideForm the PeptideForm
+         * @param clusterId the cluster of the PSM being exported, used in the messages of the translation
+         */
+        public String get(int peptideForm, Long clusterId) {
+            int index = peptideForm - store.getFirstPeptideForm();
+            String peptide = formPeptides.get(index);
+            if (peptide != null) {
+                peptideHits.increment();
+                return peptide;
+            }
+
+            // Two threads can translate the same PeptideForm at the same time, the result is the same
+            peptideMisses.increment();
+            peptide = PoGoEntryVisitorForClusteredPsmReport.translateSequence(clusterId, store.getSequence(peptideForm),
+                    store.getModifications(peptideForm));
+            formPeptides.set(index, peptide);
+            return peptide;
+        }
+    }
+}
@@ -3,13 +3,11 @@ package uk.ac.ebi.pride.cluster.exporter.pipeline.pogo.visitors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.pogo.PoGoTranslationCache;
 import uk.ac.ebi.pride.proteogenomics.pogo.model.PoGoEntry;
 import uk.ac.ebi.pride.proteogenomics.pogo.model.PoGoEntryVisitor;
 import uk.ac.ebi.pride.proteogenomics.pogo.model.PoGoEntryVisitorException;
 import uk.ac.ebi.pride.spectracluster.repo.model.ClusteredPSMReport;
-import uk.ac.ebi.pride.utilities.pridemod.ModReader;
-import uk.ac.ebi.pride.utilities.pridemod.model.PRIDEModPTM;
-import uk.ac.ebi.pride.utilities.pridemod.model.PTM;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -28,54 +26,56 @@ import java.util.Map;
 public class PoGoEntryVisitorForClusteredPsmReport implements PoGoEntryVisitor {
     private static final Logger logger = LoggerFactory.getLogger(PoGoEntryVisitorForClusteredPsmReport.class);
 
-    private ClusteredPSMReport clusteredPSMReport = null;
+    private Long clusterId = null;
+    private String sequence = null;
+    private List<ModificationProvider> modifications = null;
+    private int clusterNumberPSMs = 0;
 
-    private String translateSequence() {
+    private String translatedSequence = null;
+
+    /**
+     * Translate a peptide to the PoGo format: the short names of the modifications are embedded, by
+     * position, in the sequence. The short names are resolved by {@link PoGoTranslationCache}
+     * @param clusterId the cluster of the peptide, used in the messages
+     * @param sequence the sequence, not null
+     * @param modifications the modifications of the peptide
+     * @return the translated sequence
+     */
+    public static String translateSequence(Long clusterId, String sequence, List<ModificationProvider> modifications) {
         StringBuilder translatedSequence = new StringBuilder("---NO_TRANSLATION---");
         Map<Integer, List<String>> modificationsMap = new HashMap<>();
         // Translate the modifications into their short names and sort them by position
-        if (clusteredPSMReport.getModifications() != null) {
+        if (modifications != null) {
             for (ModificationProvider modification
-                    : clusteredPSMReport.getModifications()
+                    : modifications
                     ) {
-                String clusterId = clusteredPSMReport.getClusterId() == null ? "-null_cluster_ID-" : clusteredPSMReport.getClusterId().toString();
+                String clusterIdString = clusterId == null ? "-null_cluster_ID-" : clusterId.toString();
                 String modificationAccession = "null";
                 if (modification.getAccession() == null) {
                     logger.error("Modification Accession is 'null' for peptide '{}', cluster ID '{}'",
-                            clusteredPSMReport.getSequence(),
-                            clusterId);
+                            sequence,
+                            clusterIdString);
                 } else {
                     modificationAccession = modification.getAccession();
                 }
                 if (modification.getMainPosition() == null) {
                     logger.error("Main position is 'null', modification'{}', for peptide '{}', cluster ID '{}'",
-                            clusteredPSMReport.getSequence(),
+                            sequence,
                             modificationAccession,
-                            clusterId);
+                            clusterIdString);
                     continue;
                 }
                 int modificationMainPosition = modification.getMainPosition();
                 if ((modificationMainPosition < 1)
-                        || (modificationMainPosition > clusteredPSMReport.getSequence().length())) {
+                        || (modificationMainPosition > sequence.length())) {
                     // TODO - These kind of modifications are not handled by PoGo, but they may be biologically relevant
                     logger.warn("EXCLUDING MODIFICAION '{}', for peptide '{}', main position '{}'",
                             modificationAccession,
-                            clusteredPSMReport.getSequence(),
+                            sequence,
                             modificationMainPosition);
                 } else {
-
-                    PRIDEModPTM prideModPTM = ModReader.getInstance().getPRIDEModByAccessionAndAmminoAcid(modificationAccession, String.valueOf(clusteredPSMReport.getSequence().charAt(modification.getMainPosition() - 1)));
-                    String modificationShortName = modificationAccession;
-                    if ((prideModPTM != null) && prideModPTM.isBiologicalRelevant()) {
-                        modificationShortName = prideModPTM.getShortName();
-                    }else{
-                        // Modifications are from Anchore modification.
-                        List<PTM> ptm = ModReader.getInstance().getAnchorModification(modificationAccession, String.valueOf(clusteredPSMReport.getSequence().charAt(modification.getMainPosition() - 1)));
-                        if(ptm != null && ptm.size() == 1){
-                            modificationShortName = ptm.get(0).getShortName();
-                        }
-
-                    }
+                    String modificationShortName = PoGoTranslationCache.getInstance()
+                            .getShortName(modificationAccession, sequence.charAt(modificationMainPosition - 1));
                     if (modificationsMap.get(modificationMainPosition) == null) {
                         modificationsMap.put(modificationMainPosition, new ArrayList<>());
                     }
@@ -84,43 +84,66 @@ public class PoGoEntryVisitorForClusteredPsmReport implements PoGoEntryVisitor {
             }
         }
         // Embed modifications by position in the sequence
-        if (clusteredPSMReport.getSequence().length() > 0) {
-            translatedSequence = new StringBuilder();
+        if (sequence.length() > 0) {
+            translatedSequence = new StringBuilder(sequence.length() + 16 * modificationsMap.size());
         }
-        if ((clusteredPSMReport.getSequence() != null) &&
-                clusteredPSMReport.getSequence().length() > 0) {
-            int position = 1;
-            for (char character : clusteredPSMReport.getSequence().toCharArray()) {
-                translatedSequence.append(character);
-                if (modificationsMap.get(position) != null) {
-                    translatedSequence.append(String.format("(%s)", String.join(",", modificationsMap.get(position))));
+        if ((sequence != null) &&
+                sequence.length() > 0) {
+            for (int position = 1; position <= sequence.length(); position++) {
+                translatedSequence.append(sequence.charAt(position - 1));
+                List<String> shortNames = modificationsMap.get(position);
+                if (shortNames != null) {
+                    translatedSequence.append('(');
+                    for (int i = 0; i < shortNames.size(); i++) {
+                        if (i > 0)
+                            translatedSequence.append(',');
+                        translatedSequence.append(shortNames.get(i));
+                    }
+                    translatedSequence.append(')');
                 }
-                position++;
             }
         }
         return translatedSequence.toString();
     }
 
     public PoGoEntryVisitorForClusteredPsmReport(ClusteredPSMReport clusteredPSMReport) {
-        this.clusteredPSMReport = clusteredPSMReport;
+        this(clusteredPSMReport.getClusterId(), clusteredPSMReport.getSequence(),
+                clusteredPSMReport.getModifications(), clusteredPSMReport.getClusterNumberPSMs());
+    }
+
+    public PoGoEntryVisitorForClusteredPsmReport(Long clusterId, String sequence, List<ModificationProvider> modifications, int clusterNumberPSMs) {
+        this.clusterId = clusterId;
+        this.sequence = sequence;
+        this.modifications = modifications;
+        this.clusterNumberPSMs = clusterNumberPSMs;
+    }
+
+    /**
+     * Use a peptide already translated, see {@link PoGoTranslationCache#getTranslatedPeptides}
+     * @param translatedSequence the translated sequence of the peptide
+     * @return this visitor
+     */
+    public PoGoEntryVisitorForClusteredPsmReport withTranslatedSequence(String translatedSequence) {
+        this.translatedSequence = translatedSequence;
+        return this;
     }
 
     @Override
     public PoGoEntry visit(PoGoEntry poGoEntry) {
-        if (clusteredPSMReport != null) {
+        if (sequence != null) {
             poGoEntry.setExperiment("---no_cluster_id_available---");
-            if (clusteredPSMReport.getClusterId() == null) {
+            if (clusterId == null) {
                 String msg = String.format("CLUSTER ID IS NULL, Sequence (%s)",
-                        clusteredPSMReport.getSequence());
+                        sequence);
                 throw new PoGoEntryVisitorException(msg);
             }
             poGoEntry.setExperiment(String.format("<a href='https://www.ebi.ac.uk/pride/cluster/#/id/%s'>Cluster ID %s</a>",
-                    clusteredPSMReport.getClusterId().toString(),
-                    clusteredPSMReport.getClusterId().toString()));
-            poGoEntry.setPeptide(translateSequence());
-            poGoEntry.setPsm(clusteredPSMReport.getClusterNumberPSMs());
+                    clusterId.toString(),
+                    clusterId.toString()));
+            poGoEntry.setPeptide((translatedSequence != null) ? translatedSequence : translateSequence(clusterId, sequence, modifications));
+            poGoEntry.setPsm(clusterNumberPSMs);
             // TODO - This parameter will be left as zero right now, in the future we need to work out a way to leave as it is right now, or compute its value
-            poGoEntry.setQuant(new Double((clusteredPSMReport.getClusterNumberPSMs())));
+            poGoEntry.setQuant(new Double((clusterNumberPSMs)));
         }
         return poGoEntry;
     }
@@ -0,0 +1,110 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.quality;
+
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterQuality;
+
+import java.util.Arrays;
+
+/**
+ * The numbers of a set of clusters used to decide their quality, in primitive arrays: the total
+ * number of spectra, the number of projects and the max peptide ratio of every cluster. The table
+ * is filled while the clusters are loaded and kept with their PSMs (in the snapshots too), so the
+ * loaded clusters can be classified again with any thresholds, without the database, see
+ * {@link ClusterSummaryQualityDecider#decideQualities}.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusterQualityTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] clusterIds = new long[INITIAL_CAPACITY];
+    private int[] numberOfSpectra = new int[INITIAL_CAPACITY];
+    private int[] numberOfProjects = new int[INITIAL_CAPACITY];
+    private float[] maxPeptideRatios = new float[INITIAL_CAPACITY];
+
+    private int size = 0;
+
+    /**
+     * Add a cluster
+     * @param clusterId the cluster ID
+     * @param spectra total number of spectra
+     * @param projects number of projects
+     * @param maxPeptideRatio max peptide ratio
+     */
+    public void add(long clusterId, int spectra, int projects, float maxPeptideRatio) {
+        ensureCapacity(size + 1);
+        clusterIds[size] = clusterId;
+        numberOfSpectra[size] = spectra;
+        numberOfProjects[size] = projects;
+        maxPeptideRatios[size] = maxPeptideRatio;
+        size++;
+    }
+
+    /**
+     * The quality of every cluster, in the order of the table
+     * @param decider the thresholds of the quality
+     */
+    public ClusterQuality[] decideQualities(ClusterSummaryQualityDecider decider) {
+        ClusterQuality[] qualities = new ClusterQuality[size];
+        decider.decideQualities(numberOfSpectra, numberOfProjects, maxPeptideRatios, qualities, 0, size);
+        return qualities;
+    }
+
+    /**
+     * The IDs of the clusters with a minimum quality, in the order of the table
+     * @param decider the thresholds of the quality
+     * @param quality the minimum quality
+     */
+    public long[] getClusterIds(ClusterSummaryQualityDecider decider, ClusterQuality quality) {
+        ClusterQuality[] qualities = decideQualities(decider);
+        long[] ids = new long[size];
+        int numberIds = 0;
+        for (int i = 0; i < size; i++) {
+            if (qualities[i].compareTo(quality) >= 0)
+                ids[numberIds++] = clusterIds[i];
+        }
+        return Arrays.copyOf(ids, numberIds);
+    }
+
+    /**
+     * The number of clusters of every quality, by the ordinal of the quality
+     * @param decider the thresholds of the quality
+     */
+    public int[] countQualities(ClusterSummaryQualityDecider decider) {
+        int[] counts = new int[ClusterQuality.values().length];
+        for (ClusterQuality quality : decideQualities(decider))
+            counts[quality.ordinal()]++;
+        return counts;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getClusterId(int cluster) {
+        return clusterIds[cluster];
+    }
+
+    public int getNumberOfSpectra(int cluster) {
+        return numberOfSpectra[cluster];
+    }
+
+    public int getNumberOfProjects(int cluster) {
+        return numberOfProjects[cluster];
+    }
+
+    public float getMaxPeptideRatio(int cluster) {
+        return maxPeptideRatios[cluster];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= clusterIds.length)
+            return;
+        int newCapacity = Math.max(capacity, clusterIds.length * 2);
+        clusterIds = Arrays.copyOf(clusterIds, newCapacity);
+        numberOfSpectra = Arrays.copyOf(numberOfSpectra, newCapacity);
+        numberOfProjects = Arrays.copyOf(numberOfProjects, newCapacity);
+        maxPeptideRatios = Arrays.copyOf(maxPeptideRatios, newCapacity);
+    }
+}
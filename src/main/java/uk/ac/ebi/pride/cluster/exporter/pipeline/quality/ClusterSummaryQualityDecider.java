@@ -25,10 +25,26 @@ public class ClusterSummaryQualityDecider implements IClusterQualityDecider<Clus
 
     @Override
     public ClusterQuality decideQuality(ClusterSummary cluster) {
+        return decideQuality(cluster.getTotalNumberOfSpectra(), cluster.getNumberOfProjects(), cluster.getMaxPeptideRatio());
+    }
+
+    /**
+     * Decide the quality of a batch of clusters given as primitive arrays, the quality of every
+     * cluster is the one of {@link #decideQuality(ClusterSummary)}
+     * @param numberOfSpectra total number of spectra of every cluster
+     * @param numberOfProjects number of projects of every cluster
+     * @param maxPeptideRatios max peptide ratio of every cluster
+     * @param qualities receives the quality of every cluster
+     * @param from first cluster
+     * @param to end cluster, exclusive
+     */
+    public void decideQualities(int[] numberOfSpectra, int[] numberOfProjects, float[] maxPeptideRatios,
+                                ClusterQuality[] qualities, int from, int to) {
+        for (int i = from; i < to; i++)
+            qualities[i] = decideQuality(numberOfSpectra[i], numberOfProjects[i], maxPeptideRatios[i]);
+    }
 
-        int numberOfSpectra = cluster.getTotalNumberOfSpectra();
-        int numberOfProjects = cluster.getNumberOfProjects();
-        float maxPeptideRatio = cluster.getMaxPeptideRatio();
+    private ClusterQuality decideQuality(int numberOfSpectra, int numberOfProjects, float maxPeptideRatio) {
 
         boolean belowSpectrumCountThreshold = numberOfSpectra < spectrumCountThreshold;
         boolean belowProjectCountThreshold = numberOfProjects < projectCountThreshold;
@@ -46,4 +62,16 @@ public class ClusterSummaryQualityDecider implements IClusterQualityDecider<Clus
 
         return ClusterQuality.LOW;
     }
+
+    public int getSpectrumCountThreshold() {
+        return spectrumCountThreshold;
+    }
+
+    public int getProjectCountThreshold() {
+        return projectCountThreshold;
+    }
+
+    public float getMaxPeptideRatioThreshold() {
+        return maxPeptideRatioThreshold;
+    }
 }
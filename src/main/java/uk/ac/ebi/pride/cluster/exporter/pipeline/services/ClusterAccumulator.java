@@ -0,0 +1,189 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.services;
+
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusteredPSMReport;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Accumulate the pages of clustered PSMs into clusters and hand every cluster to the next stage as soon
+ * as it is complete (sealed). The pages are sorted by cluster ID, so only the first and the last cluster
+ * of a page can continue in other pages:
+ *
+ * - the clusters inside a page are complete and sealed straight away
+ * - the fragments of the first and last cluster of a page are appended to the pending clusters, the
+ *   fragments are only merged and deduplicated once, when the cluster is sealed
+ *
+ * When the pages come from a single cursor in cluster ID order, a pending cluster is sealed as soon as
+ * a higher cluster ID is seen. With concurrent cursors the pending clusters are sealed by {@link #finish()}.
+ *
+ * Sealing before {@link #finish()} is only correct if the pages are in global cluster ID order, nothing is
+ * merged again once sealed. The order is enforced rather than assumed: {@link ClusteredPSMCursor} fails on a
+ * page out of order, the shards are checked against their neighbours as soon as they are read, see
+ * {@link ShardedPSMFetcher.ShardOrderCheck}, and in ordered mode a page starting below the last cluster
+ * added fails here as well.
+ *
+ * The pages can be added concurrently, the sealed clusters are handed to the sink from the thread
+ * that adds the page.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusterAccumulator {
+
+    private final boolean ordered;
+
+    private final BiConsumer<Long, List<ClusteredPSMReport>> sink;
+
+    // Fragments of the clusters that can continue in other pages
+    private final Map<Long, List<List<ClusteredPSMReport>>> pending = new HashMap<Long, List<List<ClusteredPSMReport>>>();
+
+    // Highest cluster ID added in ordered mode
+    private long lastClusterId = Long.MIN_VALUE;
+
+    private long numberSealedClusters = 0;
+
+    /**
+     * @param ordered true if the pages come from a single cursor in cluster ID order
+     * @param sink receives the sealed clusters, the PSMs of a cluster are given once
+     */
+    public ClusterAccumulator(boolean ordered, BiConsumer<Long, List<ClusteredPSMReport>> sink) {
+        this.ordered = ordered;
+        this.sink = sink;
+    }
+
+    /**
+     * Add a page of clustered PSMs sorted by cluster ID
+     * @param page the PSMs
+     * @throws IllegalStateException in ordered mode, if the page starts below the last cluster added
+     * @return the number of clusters in the page
+     */
+    public int add(List<ClusteredPSMReport> page) {
+        if (page.isEmpty())
+            return 0;
+
+        if (ordered) {
+            synchronized (pending) {
+                long firstClusterId = page.get(0).getClusterId();
+                if (firstClusterId < lastClusterId)
+                    throw new IllegalStateException("Page starting at cluster " + firstClusterId + " added after cluster "
+                            + lastClusterId + ", the clusters would be sealed twice");
+                lastClusterId = page.get(page.size() - 1).getClusterId();
+            }
+        }
+
+        // Runs of PSMs of the same cluster
+        List<Integer> runStarts = new ArrayList<Integer>();
+        for (int i = 0; i < page.size(); i++) {
+            if (i == 0 || !page.get(i).getClusterId().equals(page.get(i - 1).getClusterId()))
+                runStarts.add(i);
+        }
+        runStarts.add(page.size());
+        int numberRuns = runStarts.size() - 1;
+
+        for (int run = 1; run < numberRuns - 1; run++) {
+            List<ClusteredPSMReport> psms = new ArrayList<ClusteredPSMReport>(page.subList(runStarts.get(run), runStarts.get(run + 1)));
+            seal(psms.get(0).getClusterId(), psms);
+        }
+
+        List<Map.Entry<Long, List<ClusteredPSMReport>>> sealed = new ArrayList<Map.Entry<Long, List<ClusteredPSMReport>>>();
+        synchronized (pending) {
+            append(page.subList(runStarts.get(0), runStarts.get(1)));
+            if (numberRuns > 1)
+                append(page.subList(runStarts.get(numberRuns - 1), page.size()));
+
+            if (ordered) {
+                // Only the last cluster of the page can continue in the next pages
+                long lastClusterId = page.get(page.size() - 1).getClusterId();
+                Iterator<Map.Entry<Long, List<List<ClusteredPSMReport>>>> iterator = pending.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<Long, List<List<ClusteredPSMReport>>> entry = iterator.next();
+                    if (entry.getKey() < lastClusterId) {
+                        sealed.add(new AbstractMap.SimpleEntry<Long, List<ClusteredPSMReport>>(entry.getKey(), merge(entry.getValue())));
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Long, List<ClusteredPSMReport>> cluster : sealed)
+            seal(cluster.getKey(), cluster.getValue());
+
+        return numberRuns;
+    }
+
+    private void append(List<ClusteredPSMReport> fragment) {
+        Long clusterId = fragment.get(0).getClusterId();
+        List<List<ClusteredPSMReport>> fragments = pending.get(clusterId);
+        if (fragments == null) {
+            fragments = new ArrayList<List<ClusteredPSMReport>>(2);
+            pending.put(clusterId, fragments);
+        }
+        fragments.add(new ArrayList<ClusteredPSMReport>(fragment));
+    }
+
+    /**
+     * Seal all the pending clusters, it must be called once all the pages have been added
+     */
+    public void finish() {
+        List<Long> clusterIds;
+        synchronized (pending) {
+            clusterIds = new ArrayList<Long>(pending.keySet());
+        }
+        Collections.sort(clusterIds);
+        for (Long clusterId : clusterIds) {
+            List<List<ClusteredPSMReport>> fragments;
+            synchronized (pending) {
+                fragments = pending.remove(clusterId);
+            }
+            seal(clusterId, merge(fragments));
+        }
+    }
+
+    /**
+     * Merge the fragments of a cluster. A cluster read in a single fragment is kept as it is, otherwise
+     * the PSMs are sorted and the duplicated ones removed, keeping the first one read.
+     */
+    private static List<ClusteredPSMReport> merge(List<List<ClusteredPSMReport>> fragments) {
+        if (fragments.size() == 1)
+            return fragments.get(0);
+
+        int size = 0;
+        for (List<ClusteredPSMReport> fragment : fragments)
+            size += fragment.size();
+        List<ClusteredPSMReport> psms = new ArrayList<ClusteredPSMReport>(size);
+        for (List<ClusteredPSMReport> fragment : fragments)
+            psms.addAll(fragment);
+
+        Collections.sort(psms);
+        int distinct = 0;
+        for (int i = 0; i < psms.size(); i++) {
+            if (distinct == 0 || psms.get(distinct - 1).compareTo(psms.get(i)) != 0)
+                psms.set(distinct++, psms.get(i));
+        }
+        return new ArrayList<ClusteredPSMReport>(psms.subList(0, distinct));
+    }
+
+    private void seal(Long clusterId, List<ClusteredPSMReport> psms) {
+        synchronized (this) {
+            numberSealedClusters++;
+        }
+        sink.accept(clusterId, psms);
+    }
+
+    public synchronized long getNumberSealedClusters() {
+        return numberSealedClusters;
+    }
+
+    public int getNumberPendingClusters() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+}
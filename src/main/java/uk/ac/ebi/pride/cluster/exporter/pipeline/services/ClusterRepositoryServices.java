@@ -2,17 +2,28 @@ package uk.ac.ebi.pride.cluster.exporter.pipeline.services;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.exporter.ConfigurationService;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.ClusterQualityTable;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.ClusterSummaryQualityDecider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.AssayIndex;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusterFilteredSegments;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusterRankEngine;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusteredPSMSnapshot;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusteredPSMStore;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusteredPSMStoreBuilder;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ExternalPSMSegments;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.SnapshotPSMSegments;
 import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.Constants;
-import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.ModificationMapper;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.ModificationAnchorCache;
 import uk.ac.ebi.pride.spectracluster.repo.dao.cluster.IClusterReadDao;
 import uk.ac.ebi.pride.spectracluster.repo.model.*;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.Long;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 
 
@@ -33,10 +44,16 @@ public class ClusterRepositoryServices {
     private IClusterReadDao clusterReaderDao;
 
     /**
-     * This lists contains all PSMs grouped by cluster IDs, the idea is been able to recompute and correct the rank of
-     * each peptideform in the list.
+     * The ranked PSMs grouped by PeptideForm, in a columnar representation. A single store
+     * when the PSMs are kept in memory, or the segments of the PSMs spilled to disk.
      */
-    private Map<PeptideForm, List<ClusteredPSMReport>> peptideReportMap;
+    private Iterable<ClusteredPSMStore> psmSegments;
+
+    /**
+     * The numbers of the clusters of the ranked PSMs used to decide their quality, filled while the
+     * clusters are loaded
+     */
+    private ClusterQualityTable qualityTable;
 
     /**
      * Constructor to overwrite the clusterReaderDao object. The modFetcher provide a way to
@@ -46,7 +63,8 @@ public class ClusterRepositoryServices {
      */
     public ClusterRepositoryServices(IClusterReadDao clusterReaderDao) {
         this.clusterReaderDao = clusterReaderDao;
-        peptideReportMap = new ConcurrentHashMap<PeptideForm, List<ClusteredPSMReport>>();
+        psmSegments = new ClusteredPSMStoreBuilder(new AssayIndex(Collections.<AssayReport>emptyList())).buildSegments();
+        qualityTable = new ClusterQualityTable();
     }
 
     /**
@@ -135,95 +153,249 @@ public class ClusterRepositoryServices {
     }
 
 
+    /**
+     * The quality decider with the thresholds of the configuration
+     */
+    public static ClusterSummaryQualityDecider createQualityDecider(){
+        ConfigurationService configuration = ConfigurationService.getService();
+        return new ClusterSummaryQualityDecider(configuration.getQualitySpectrumCount(), configuration.getQualityProjectCount(),
+                configuration.getQualityMaxRatio());
+    }
+
     /**
      * Get The Cluster details List including the Cluster information such as
-     * Peptides, Assays, etc.
+     * Peptides, Assays, etc. The clustered PSMs are streamed from the database in
+     * bounded chunks, see {@link ClusteredPSMCursor}, or read by concurrent shards when
+     * more than one fetch thread is configured, see {@link ShardedPSMFetcher}. In pipelined mode
+     * the next pages are prefetched while the current one is transformed, see {@link PipelinedPSMFetcher}.
+     *
+     * The clusters are read with the quality of the database. When the quality is decided locally
+     * ({@link ConfigurationService#isLocalQuality()}) the loaded clusters are classified again with the thresholds
+     * of the configuration, see {@link #retainLocalQuality(ClusterQuality)}.
      *
      */
     public  void buildPeptidePSMReportLists(ClusterQuality quality){
 
-        ConcurrentHashMap<Long, List<ClusteredPSMReport>> clusterReportMap = new ConcurrentHashMap<Long, List<ClusteredPSMReport>>();
+        AssayIndex assayIndex = new AssayIndex(clusterReaderDao.readFullAssaySet());
+        logger.debug("Number of Assays in Release: " + assayIndex.getNumberAssays());
 
-        List<AssayReport> assays = clusterReaderDao.readFullAssaySet();
-        Map<java.lang.Long, AssayReport> assayMap = new HashMap<java.lang.Long, AssayReport>();
-        if(assays != null){
-            for(AssayReport assayReport: assays)
-                assayMap.put(assayReport.getId(), assayReport);
+        int pageSize = ConfigurationService.getService().getPsmPageSize();
+        int fetchThreads = ConfigurationService.getService().getFetchThreads();
+
+        ModificationAnchorCache modificationCache = new ModificationAnchorCache(ConfigurationService.getService().getModificationCacheSize());
+
+        // The clusters are ranked as soon as they are sealed, the ranked PSMs are moved to the columnar store and the PSM objects released
+        ClusteredPSMStoreBuilder builder = createStoreBuilder(assayIndex);
+        ClusterRankEngine rankEngine = new ClusterRankEngine(builder);
+        ClusterQualityTable table = new ClusterQualityTable();
+        ClusterAccumulator accumulator = new ClusterAccumulator(fetchThreads <= 1, (clusterId, psms) -> {
+            // The numbers of the cluster are in every PSM
+            ClusteredPSMReport psm = psms.get(0);
+            synchronized (rankEngine) {
+                table.add(clusterId, psm.getClusterNumberSpectra(), psm.getClusterNumberProjects(), psm.getClusterMaxPeptideRatio());
+                rankEngine.rank(clusterId, psms);
+            }
+        });
+
+        Consumer<List<ClusteredPSMReport>> aggregation = psmReportList -> {
+            long time = System.currentTimeMillis();
+
+            int numberClusters = processClusteredPSMs(psmReportList, assayIndex, modificationCache, accumulator);
+
+            logger.debug("Number of Clusters: " + numberClusters);
+            logger.debug("Milliseconds Time: " + (System.currentTimeMillis() - time) + " for " + psmReportList.size());
+        };
+
+        if(ConfigurationService.getService().isPipelinedFetch()){
+            List<ClusteredPSMCursor> cursors = (fetchThreads > 1) ?
+                    ShardedPSMFetcher.shard(clusterReaderDao, quality, pageSize, fetchThreads) :
+                    Collections.singletonList(new ClusteredPSMCursor(clusterReaderDao, quality, pageSize));
+            logger.debug("Reading Clustered PSMs with " + cursors.size() + " prefetch threads");
+            new PipelinedPSMFetcher(cursors, ConfigurationService.getService().getPrefetchPages()).fetch(aggregation);
+        }else if(fetchThreads > 1){
+            ShardedPSMFetcher fetcher = new ShardedPSMFetcher(clusterReaderDao, quality, pageSize, fetchThreads);
+            logger.debug("Reading Clustered PSMs with " + fetcher.getNumberShards() + " concurrent shards");
+            fetcher.fetch(aggregation);
+        }else{
+            ClusteredPSMCursor cursor = new ClusteredPSMCursor(clusterReaderDao, quality, pageSize);
+
+            logger.debug("Number of Clustered PSMs in Release: " + cursor.getNumberClusteredPSMs());
+
+            while(cursor.hasNext()){
+                aggregation.accept(cursor.next());
+                logger.debug("Read " + cursor.getNumberReadPSMs() + "/" + cursor.getNumberClusteredPSMs() + " up to cluster " + cursor.getLastClusterId());
+            }
         }
 
+        logger.debug("Sealing " + accumulator.getNumberPendingClusters() + " pending clusters");
+        accumulator.finish();
 
-        java.lang.Long numberCLusteredPSMs = clusterReaderDao.getNumberClusteredPSMs(quality);
-        int nPage = (int) (numberCLusteredPSMs/Constants.CLUSTER_READ_STEP) + 2;
+        logger.info(modificationCache.toString());
+        logger.debug("Number of Clusters: " + rankEngine.getNumberClusters());
 
-        for(int i = 1; i < nPage; i++){
+        closeSegments();
+        psmSegments = builder.buildSegments();
+        qualityTable = table;
 
-            long time = System.currentTimeMillis();
+        logger.debug("Number of PSMs spilled runs: " + builder.getNumberRuns());
+
+        retainLocalQuality(quality);
+    }
 
-            List<ClusteredPSMReport> psmReportList = clusterReaderDao.getClusteredPSMsReport(i, Constants.CLUSTER_READ_STEP, numberCLusteredPSMs, quality).getPageItems();
+    /**
+     * Read the clusters from .clustering files instead of the database, see {@link ClusteringFileIngester}.
+     * The quality of the clusters is decided locally, with the thresholds of the configuration, and the clusters
+     * are ranked as the clusters of the database.
+     * The files are read in parallel when more than one ingest thread is configured.
+     * @param files the clustering files
+     * @param quality minimum quality of the clusters
+     */
+    public void readClusteringFiles(List<File> files, ClusterQuality quality) throws IOException {
 
-            psmReportList = psmReportList.parallelStream().map(psm -> {
-                List<ModificationProvider> modifications = ModificationMapper.asModifications(psm.getModifications(), psm.getSequence());
-                if(ModificationMapper.checkWrongAnnotation(modifications, psm.getSequence()))
-                    psm.addWrongAnnotation(Constants.PTM_WRONG_ANNOTATED);
-                psm.setModifications(modifications);
-                psm.setAssay(assayMap.get(psm.getAssayID()));
-                return psm;
-            }).collect(Collectors.toList());
+        AssayIndex assayIndex = new AssayIndex(Collections.<AssayReport>emptyList());
+        ModificationAnchorCache modificationCache = new ModificationAnchorCache(ConfigurationService.getService().getModificationCacheSize());
 
-            // This groups the data using the clusterId and return a map ClusterID -> PSMReport
-            Map<Long, List<ClusteredPSMReport>> map = psmReportList.parallelStream().collect(Collectors.groupingBy(a -> a.getClusterId()));
+        ClusteredPSMStoreBuilder builder = createStoreBuilder(assayIndex);
+        ClusterSummaryQualityDecider qualityDecider = createQualityDecider();
+        ClusteringFileIngester ingester = new ClusteringFileIngester(assayIndex, modificationCache, qualityDecider, quality, builder);
 
-            map.entrySet().parallelStream().forEach(e -> clusterReportMap.merge(e.getKey(), e.getValue(), (v1, v2) -> {
-                Set<ClusteredPSMReport> set = new TreeSet<>(v1);
-                set.addAll(v2);
-                return new ArrayList<>(set);
-            }));
+        int ingestThreads = ConfigurationService.getService().getIngestThreads();
+        long time = System.currentTimeMillis();
+        logger.debug("Reading " + files.size() + " clustering files with " + ingestThreads + " threads");
+        ingester.read(files, ingestThreads);
+        logger.debug("Read " + ingester.getNumberClusters() + " clusters in " + (System.currentTimeMillis() - time) + " milliseconds, ranked "
+                + ingester.getNumberRankedClusters() + " with " + ingester.getNumberPSMs() + " PSMs");
 
-            logger.debug("Number of Peptide: " + map.size());
-            logger.debug("Milliseconds Time: " + (System.currentTimeMillis() - time) + " for " + psmReportList.size());
-            break;
-        }
+        logger.info(modificationCache.toString());
+        logger.debug("Number of Assays in clustering files: " + assayIndex.getNumberAssays());
+
+        closeSegments();
+        psmSegments = builder.buildSegments();
+        qualityTable = ingester.getQualityTable();
+
+        logger.debug("Number of PSMs spilled runs: " + builder.getNumberRuns());
+    }
+
+    /**
+     * Builder of the columnar store, the PSMs are spilled to disk when a memory budget is configured
+     */
+    private static ClusteredPSMStoreBuilder createStoreBuilder(AssayIndex assayIndex){
+        int memoryBudget = ConfigurationService.getService().getPsmMemoryBudget();
+        if(memoryBudget <= 0)
+            return new ClusteredPSMStoreBuilder(assayIndex);
+
+        int spillRows = getBudgetRows(memoryBudget);
+        File spillDirectory = new File(ConfigurationService.getService().getSpillDirectory());
+        logger.info("Spilling clustered PSMs to " + spillDirectory.getAbsolutePath() + " every " + spillRows + " PSMs");
+        return new ClusteredPSMStoreBuilder(assayIndex, spillDirectory, spillRows);
+    }
 
-        clusterReportMap.entrySet().parallelStream().forEach(
-                (cluster) -> {
-
-                    Map<PeptideForm, List<ClusteredPSMReport>> clustered = cluster.getValue().parallelStream().collect(Collectors.groupingBy(psm -> psm.getPeptideForm()));
-
-                    clustered = clustered.entrySet().stream()
-                            .sorted(Comparator.<Map.Entry<PeptideForm, List<ClusteredPSMReport>>>comparingInt(e->e.getValue().size()).reversed())
-                            .collect(Collectors.toMap(
-                                    Map.Entry::getKey,
-                                    Map.Entry::getValue,
-                                    (a,b) -> {throw new AssertionError();},
-                                    LinkedHashMap::new
-                            ));
-
-                    Integer sum = clustered.values().stream().mapToInt(List::size).sum();
-                    int rank = 0;
-                    int currentSize = -1;
-                    for(Map.Entry peptideFormEntry: clustered.entrySet()){
-                        List<ClusteredPSMReport> psms = (List<ClusteredPSMReport>) peptideFormEntry.getValue();
-                        for(ClusteredPSMReport psm: psms){
-                            if(currentSize != psms.size()){
-                                rank++;
-                                currentSize = psms.size();
-                            }
-                            psm.setRank(rank);
-                            psm.setPsmRatio(((float)psms.size()/(float)sum));
-                        }
-
-                    }
-                }
-        );
-
-        peptideReportMap = clusterReportMap.entrySet().parallelStream()
-                .flatMap(e -> e.getValue().stream())
-                .collect(Collectors.toList())
-                .parallelStream().collect(Collectors.groupingBy(psm -> psm.getPeptideForm()));
-
-    }
-
-    public Map<PeptideForm, List<ClusteredPSMReport>> getPeptideReportMap() {
-        return peptideReportMap;
+    /**
+     * Number of PSMs that fit in a memory budget
+     * @param memoryBudget the budget in MB
+     */
+    private static int getBudgetRows(int memoryBudget){
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget * 1024L * 1024L / Constants.PSM_ROW_BYTES));
+    }
+
+    /**
+     * Write a snapshot of the ranked PSMs, so the files can be exported again without the database
+     * @param file the snapshot file
+     */
+    public void writeSnapshot(File file) throws IOException {
+        logger.info("Writing snapshot of the clustered PSMs to " + file.getAbsolutePath());
+        ClusteredPSMSnapshot.write(file, psmSegments, qualityTable);
+    }
+
+    /**
+     * Read the ranked PSMs from a snapshot instead of the database, the PSMs are read in segments
+     * that fit in the memory budget, if any. When the quality is decided locally the clusters of the
+     * snapshot are classified again, see {@link #retainLocalQuality(ClusterQuality)}.
+     * @param file the snapshot file
+     * @param quality minimum quality of the clusters decided locally
+     */
+    public void loadSnapshot(File file, ClusterQuality quality) throws IOException {
+        logger.info("Reading snapshot of the clustered PSMs from " + file.getAbsolutePath());
+        closeSegments();
+        int memoryBudget = ConfigurationService.getService().getPsmMemoryBudget();
+        int segmentRows = (memoryBudget <= 0) ? Integer.MAX_VALUE : getBudgetRows(memoryBudget);
+        SnapshotPSMSegments segments = ClusteredPSMSnapshot.read(file, segmentRows);
+        psmSegments = segments;
+        qualityTable = segments.getQualityTable();
+
+        retainLocalQuality(quality);
+    }
+
+    /**
+     * Keep the loaded clusters of a quality decided locally, with the thresholds of the configuration, if
+     * the quality is decided locally. The clusters are classified from the quality table of the loaded
+     * clusters, in a single batch, and the database is not read again.
+     * @param quality minimum quality of the clusters
+     */
+    private void retainLocalQuality(ClusterQuality quality){
+        if(!ConfigurationService.getService().isLocalQuality())
+            return;
+
+        ClusterSummaryQualityDecider qualityDecider = createQualityDecider();
+        long[] clusterIds = qualityTable.getClusterIds(qualityDecider, quality);
+        Arrays.sort(clusterIds);
+        logger.debug("Number of " + quality + " Clusters with thresholds (" + qualityDecider.getSpectrumCountThreshold() + ", "
+                + qualityDecider.getProjectCountThreshold() + ", " + qualityDecider.getMaxPeptideRatioThreshold() + "): "
+                + clusterIds.length + "/" + qualityTable.size());
+
+        if(psmSegments instanceof ExternalPSMSegments || psmSegments instanceof SnapshotPSMSegments)
+            psmSegments = new ClusterFilteredSegments(psmSegments, clusterIds);
+        else
+            psmSegments = Collections.singletonList(getPSMStore().retainClusters(clusterIds));
+    }
+
+    /**
+     * Delete the spilled PSMs, if any
+     */
+    public void closeSegments(){
+        if(psmSegments instanceof ExternalPSMSegments)
+            ((ExternalPSMSegments) psmSegments).close();
+        else if(psmSegments instanceof ClusterFilteredSegments)
+            ((ClusterFilteredSegments) psmSegments).close();
+    }
+
+    /**
+     * Anchor the modifications of a chunk of PSMs, join them with their assays and add them to
+     * the clusters read so far.
+     * @param psmReportList chunk of clustered PSMs
+     * @param assayIndex assays of the release
+     * @param modificationCache cache of anchored modifications, shared by all the fetch threads
+     * @param accumulator clusters read so far, shared by all the fetch threads
+     * @return the number of clusters in the chunk
+     */
+    private static int processClusteredPSMs(List<ClusteredPSMReport> psmReportList, AssayIndex assayIndex, ModificationAnchorCache modificationCache,
+                                            ClusterAccumulator accumulator){
+
+        psmReportList.parallelStream().forEach(psm -> {
+            ModificationAnchorCache.AnchoredModifications anchored = modificationCache.anchor(psm.getModifications(), psm.getSequence());
+            if(anchored.isWrongAnnotation())
+                psm.addWrongAnnotation(Constants.PTM_WRONG_ANNOTATED);
+            psm.setModifications(anchored.getModifications());
+            psm.setAssay(assayIndex.getAssay(psm.getAssayID()));
+        });
+
+        return accumulator.add(psmReportList);
+    }
+
+    /**
+     * The segments of ranked PSMs, every segment contains all the PSMs of a range of PeptideForms
+     */
+    public Iterable<ClusteredPSMStore> getPSMSegments() {
+        return psmSegments;
+    }
+
+    /**
+     * The store of ranked PSMs, only available if the PSMs have not been spilled to disk or read from a snapshot
+     */
+    public ClusteredPSMStore getPSMStore() {
+        if(psmSegments instanceof ExternalPSMSegments || psmSegments instanceof SnapshotPSMSegments
+                || psmSegments instanceof ClusterFilteredSegments)
+            throw new IllegalStateException("The clustered PSMs are read in segments, use getPSMSegments()");
+        return psmSegments.iterator().next();
     }
 }
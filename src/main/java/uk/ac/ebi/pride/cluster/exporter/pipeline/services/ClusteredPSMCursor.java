@@ -0,0 +1,161 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.services;
+
+import uk.ac.ebi.pride.spectracluster.repo.dao.cluster.IClusterReadDao;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterQuality;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusteredPSMReport;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over all the clustered PSMs of a release. The PSMs are read in bounded chunks of
+ * pageSize rows, every chunk is ordered by cluster ID and the highest cluster ID seen so far
+ * is kept as the position of the cursor, so consumers can tell which clusters are already complete.
+ *
+ * Contract of the DAO: {@link IClusterReadDao#getClusteredPSMsReport} must page the clustered PSMs of a
+ * quality in cluster ID order, with a total order inside a cluster (e.g. ORDER BY cluster ID, PSM ID), over
+ * a release that does not change while it is read. Then every row is read exactly once, page n+1 never
+ * starts below the last cluster of page n, and only the first and last cluster of a page can continue in
+ * the neighbouring pages. The cursor, the shards of {@link ShardedPSMFetcher} and the sealing of the
+ * clusters by {@link ClusterAccumulator} rely on this order.
+ *
+ * NOTE: this is page-number paging with every page sorted once read, not a keyset cursor, as the DAO only
+ * reads the PSMs by page number. The order of the DAO is checked rather than assumed: a page that starts
+ * below the highest cluster ID read so far is a hard failure (IllegalStateException). A DAO that pages
+ * without a total order could still skip or repeat rows between pages, which can not be detected here.
+ *
+ * The cursor keeps reading until the last page of the release, only one chunk is held in memory
+ * at any time.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusteredPSMCursor implements Iterator<List<ClusteredPSMReport>> {
+
+    private static final Comparator<ClusteredPSMReport> CLUSTER_ORDER = Comparator.comparing(ClusteredPSMReport::getClusterId);
+
+    private final IClusterReadDao clusterReaderDao;
+
+    private final ClusterQuality quality;
+
+    private final int pageSize;
+
+    private final long numberClusteredPSMs;
+
+    private final int lastPage;
+
+    private int currentPage;
+
+    private long firstClusterId = Long.MIN_VALUE;
+
+    private long lastClusterId = Long.MIN_VALUE;
+
+    private long numberReadPSMs = 0;
+
+    private boolean exhausted = false;
+
+    /**
+     * Cursor over the full set of clustered PSMs for the given quality.
+     * @param clusterReaderDao DAO to read the PSMs
+     * @param quality quality of the clusters to be read
+     * @param pageSize number of PSMs read by chunk
+     */
+    public ClusteredPSMCursor(IClusterReadDao clusterReaderDao, ClusterQuality quality, int pageSize) {
+        this(clusterReaderDao, quality, pageSize, clusterReaderDao.getNumberClusteredPSMs(quality));
+    }
+
+    private ClusteredPSMCursor(IClusterReadDao clusterReaderDao, ClusterQuality quality, int pageSize, long numberClusteredPSMs) {
+        this(clusterReaderDao, quality, pageSize, numberClusteredPSMs, 1, numberOfPages(numberClusteredPSMs, pageSize));
+    }
+
+    /**
+     * Cursor over a contiguous range of pages [firstPage, lastPage] of the clustered PSMs.
+     * @param clusterReaderDao DAO to read the PSMs
+     * @param quality quality of the clusters to be read
+     * @param pageSize number of PSMs read by chunk
+     * @param numberClusteredPSMs total number of clustered PSMs for the quality
+     * @param firstPage first page to be read (starting from 1)
+     * @param lastPage last page to be read, inclusive
+     */
+    public ClusteredPSMCursor(IClusterReadDao clusterReaderDao, ClusterQuality quality, int pageSize,
+                              long numberClusteredPSMs, int firstPage, int lastPage) {
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+        this.clusterReaderDao = clusterReaderDao;
+        this.quality = quality;
+        this.pageSize = pageSize;
+        this.numberClusteredPSMs = numberClusteredPSMs;
+        this.currentPage = firstPage;
+        this.lastPage = lastPage;
+    }
+
+    /**
+     * Number of pages needed to read all the clustered PSMs
+     * @param numberClusteredPSMs total number of PSMs
+     * @param pageSize PSMs by page
+     * @return the number of pages
+     */
+    public static int numberOfPages(long numberClusteredPSMs, int pageSize) {
+        return (int) ((numberClusteredPSMs + pageSize - 1) / pageSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !exhausted && currentPage <= lastPage;
+    }
+
+    @Override
+    public List<ClusteredPSMReport> next() {
+        if (!hasNext())
+            throw new NoSuchElementException("No more clustered PSMs after page " + (currentPage - 1));
+
+        List<ClusteredPSMReport> page = clusterReaderDao.getClusteredPSMsReport(currentPage, pageSize, numberClusteredPSMs, quality).getPageItems();
+        currentPage++;
+
+        if (page == null || page.isEmpty()) {
+            exhausted = true;
+            return Collections.emptyList();
+        }
+
+        page.sort(CLUSTER_ORDER);
+
+        long pageFirstClusterId = page.get(0).getClusterId();
+        if (pageFirstClusterId < lastClusterId)
+            throw new IllegalStateException("Page " + (currentPage - 1) + " starts at cluster " + pageFirstClusterId
+                    + " below the cursor position " + lastClusterId + ", the clustered PSMs are not paged in cluster ID order");
+
+        if (numberReadPSMs == 0)
+            firstClusterId = pageFirstClusterId;
+        lastClusterId = Math.max(lastClusterId, page.get(page.size() - 1).getClusterId());
+        numberReadPSMs += page.size();
+
+        return page;
+    }
+
+    /**
+     * The cluster ID of the first PSM read, Long.MIN_VALUE if nothing has been read
+     * @return cluster ID
+     */
+    public long getFirstClusterId() {
+        return firstClusterId;
+    }
+
+    /**
+     * The highest cluster ID read so far
+     * @return cluster ID
+     */
+    public long getLastClusterId() {
+        return lastClusterId;
+    }
+
+    public long getNumberReadPSMs() {
+        return numberReadPSMs;
+    }
+
+    public long getNumberClusteredPSMs() {
+        return numberClusteredPSMs;
+    }
+}
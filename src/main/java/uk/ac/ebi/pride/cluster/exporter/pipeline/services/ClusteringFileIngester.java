@@ -0,0 +1,557 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.services;
+
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.archive.dataprovider.param.CvParamProvider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Modification;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.ClusterQualityTable;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.IClusterQualityDecider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.AssayIndex;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusterRankEngine;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusteredPSMStoreBuilder;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.RankedPSMBlock;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.ClusterSummariser;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.Constants;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.ModificationAnchorCache;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.OrderedChunkRenderer;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.io.ClusteringFileReader;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.io.IClusterSourceListener;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.ICluster;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.IModification;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.IPeptideSpectrumMatch;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.ISpectrumReference;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterDetail;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterQuality;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterSummary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read the clusters of .clustering result files instead of the database, so the release files can be
+ * exported without access to the database. The clusters are streamed by the {@link ClusteringFileReader}
+ * and every cluster is:
+ *
+ * - summarised and its quality decided locally, see {@link ClusterSummariser}. The clusters
+ *   below the requested quality are skipped
+ * - converted to clustered PSMs, one by peptide identification of every (unique) spectrum, with the
+ *   modifications anchored as the PSMs read from the database
+ * - ranked by a {@link ClusterRankEngine}, and its numbers added to the {@link ClusterQualityTable} of the
+ *   ranked clusters
+ *
+ * The clusters are converted and ranked by blocks, every block is a partial aggregate ({@link RankedPSMBlock})
+ * with its own PeptideForms, clusters and assays, and the blocks are merged into the
+ * {@link ClusteredPSMStoreBuilder} in the order of the input.
+ *
+ * The .clustering files do not contain the assays of the spectra. The spectra of a project (first field
+ * of the spectrum ID) and a list of species are grouped in an assay with a local ID, that is added to the
+ * {@link AssayIndex} when it is merged. The cluster IDs are the IDs of the files when they are numbers, or
+ * the position of the cluster in the input when they are not (e.g. UUIDs). The same scheme is used for all
+ * the clusters, the files that mix numeric and non numeric IDs are rejected, as the positions could be
+ * the IDs of other clusters.
+ *
+ * The files can be read in parallel, see {@link #read(List, int)}: the blocks are summarised, converted and
+ * ranked on a fork-join pool, the workers only share the (thread safe) modification cache, and the ranked
+ * blocks are merged in the order of the input by a single thread, without locks.
+ *
+ * NOTE: the ingester is not thread safe.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusteringFileIngester {
+
+    /** Extension of the clustering files */
+    public static final String EXTENSION = ".clustering";
+
+    /** Marks the end of a file in the queue of its blocks */
+    private static final ForkJoinTask<ConvertedBlock> END_OF_FILE = ForkJoinTask.adapt(() -> (ConvertedBlock) null);
+
+    private final AssayIndex assayIndex;
+    private final ModificationAnchorCache modificationCache;
+    private final IClusterQualityDecider<ClusterSummary> qualityDecider;
+    private final ClusterQuality quality;
+    private final ClusteredPSMStoreBuilder builder;
+
+    // Local assay IDs by project and species
+    private final Map<String, Long> assayIds = new HashMap<String, Long>();
+
+    // Numbers of the ranked clusters
+    private final ClusterQualityTable qualityTable = new ClusterQualityTable();
+
+    // True if the cluster IDs are the IDs of the files, decided by the first ranked cluster
+    private Boolean numericClusterIds;
+
+    private long numberClusters = 0;
+    private long numberRankedClusters = 0;
+    private long numberPSMs = 0;
+
+    /**
+     * @param assayIndex the index that receives the assays found in the files
+     * @param modificationCache cache of anchored modifications
+     * @param qualityDecider decides the quality of the clusters
+     * @param quality minimum quality of the clusters
+     * @param builder receives the ranked PSMs of the clusters
+     */
+    public ClusteringFileIngester(AssayIndex assayIndex, ModificationAnchorCache modificationCache,
+                                  IClusterQualityDecider<ClusterSummary> qualityDecider, ClusterQuality quality,
+                                  ClusteredPSMStoreBuilder builder) {
+        this.assayIndex = assayIndex;
+        this.modificationCache = modificationCache;
+        this.qualityDecider = qualityDecider;
+        this.quality = quality;
+        this.builder = builder;
+    }
+
+    /**
+     * The clustering files of a list of paths, the directories are replaced by their .clustering files
+     * @param paths comma separated files and directories
+     * @return the files, the files of a directory are sorted by name
+     */
+    public static List<File> listClusteringFiles(String paths) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (String path : paths.split(",")) {
+            File file = new File(path.trim());
+            if (file.isDirectory()) {
+                File[] clusteringFiles = file.listFiles((directory, name) -> name.endsWith(EXTENSION));
+                if (clusteringFiles != null) {
+                    Arrays.sort(clusteringFiles);
+                    files.addAll(Arrays.asList(clusteringFiles));
+                }
+            } else if (file.isFile()) {
+                files.add(file);
+            } else {
+                throw new IOException("The clustering file " + file.getAbsolutePath() + " does not exist");
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Read and rank the clusters of a file, the clusters are converted and ranked by blocks as they are read
+     * @param file the .clustering file
+     */
+    public void read(File file) throws IOException {
+        List<ICluster> block = new ArrayList<ICluster>();
+        long[] position = new long[1];
+        IClusterSourceListener listener = cluster -> {
+            block.add(cluster);
+            if (block.size() == Constants.CLUSTER_BLOCK_SIZE) {
+                merge(convert(block, position[0]));
+                position[0] += block.size();
+                block.clear();
+            }
+        };
+
+        try {
+            new ClusteringFileReader(file).readClustersIteratively(Collections.singletonList(listener));
+            if (!block.isEmpty()) {
+                merge(convert(block, position[0]));
+                position[0] += block.size();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (Exception e) {
+            throw new IOException("Error reading the clustering file " + file.getAbsolutePath(), e);
+        }
+        numberClusters += position[0];
+    }
+
+    /**
+     * Read and rank the clusters of a list of files. With more than one thread up to threads files are
+     * parsed at the same time, each one by its own reader thread, and the clusters are cut in blocks of
+     * {@link Constants#CLUSTER_BLOCK_SIZE} clusters that are summarised, converted and ranked on a fork-join
+     * pool, a single file included. The ranked blocks are merged by the calling thread in the order of the
+     * files and of the clusters, so the ranked PSMs (and the assay and cluster IDs) are the same as with a
+     * single thread.
+     *
+     * A reader waits when {@link Constants#CLUSTER_BLOCKS_BY_READER} of its blocks are converted or waiting
+     * to be merged, so the memory is bounded by blocks of clusters and not by the size of the files.
+     * @param files the .clustering files
+     * @param threads number of threads, 1 to read the files one by one in the calling thread
+     */
+    public void read(List<File> files, int threads) throws IOException {
+        if (threads <= 1) {
+            for (File file : files)
+                read(file);
+            return;
+        }
+
+        ForkJoinPool forkJoinPool = OrderedChunkRenderer.pool(threads);
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService readers = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())), runnable -> {
+            Thread thread = new Thread(runnable, "clustering-reader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        List<FileBlocks> fileBlocks = new ArrayList<FileBlocks>();
+        try {
+            // The readers take the files in order, so the file being merged always has a reader
+            for (File file : files) {
+                FileBlocks blocks = new FileBlocks(file);
+                fileBlocks.add(blocks);
+                readers.submit(() -> readBlocks(blocks, forkJoinPool));
+            }
+
+            for (FileBlocks blocks : fileBlocks) {
+                for (ForkJoinTask<ConvertedBlock> block = blocks.queue.take(); block != END_OF_FILE; block = blocks.queue.take())
+                    merge(block.join());
+                if (blocks.error != null)
+                    throw new IOException("Error reading the clustering file " + blocks.file.getAbsolutePath(), blocks.error);
+                numberClusters += blocks.numberClusters;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading the clustering files", e);
+        } finally {
+            readers.shutdownNow();
+            for (FileBlocks blocks : fileBlocks) {
+                for (ForkJoinTask<ConvertedBlock> block : blocks.queue)
+                    block.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Parse a file and submit its blocks of clusters to the pool, it runs on a reader thread. The reader
+     * waits while the queue of the file is full, the end of the file (or the failure) is queued last.
+     */
+    private void readBlocks(FileBlocks blocks, ForkJoinPool forkJoinPool) {
+        List<ICluster> block = new ArrayList<ICluster>();
+        IClusterSourceListener listener = cluster -> {
+            block.add(cluster);
+            if (block.size() == Constants.CLUSTER_BLOCK_SIZE) {
+                List<ICluster> clusters = new ArrayList<ICluster>(block);
+                long position = blocks.numberClusters;
+                blocks.put(forkJoinPool.submit(() -> convert(clusters, position)));
+                blocks.numberClusters += block.size();
+                block.clear();
+            }
+        };
+
+        try {
+            new ClusteringFileReader(blocks.file).readClustersIteratively(Collections.singletonList(listener));
+            if (!block.isEmpty()) {
+                long position = blocks.numberClusters;
+                blocks.put(forkJoinPool.submit(() -> convert(block, position)));
+                blocks.numberClusters += block.size();
+            }
+        } catch (Exception e) {
+            if (Thread.currentThread().isInterrupted())
+                return;
+            blocks.error = e;
+        }
+        blocks.put(END_OF_FILE);
+    }
+
+    /**
+     * Summarise, convert and rank a block of clusters, it only uses thread safe state and the state of the block
+     * @param clusters the clusters of the block
+     * @param position position of the first cluster of the block in its file
+     * @return the clusters of the block above the requested quality, ranked
+     */
+    private ConvertedBlock convert(List<ICluster> clusters, long position) {
+        ConvertedBlock block = new ConvertedBlock(position);
+        ClusterSummariser summariser = new ClusterSummariser();
+        ClusterRankEngine rankEngine = new ClusterRankEngine(block.ranked);
+        List<ClusteringFilePSM> psms = new ArrayList<ClusteringFilePSM>();
+        for (int i = 0; i < clusters.size(); i++) {
+            ICluster cluster = clusters.get(i);
+            ClusterDetail summary = summariser.summarise(cluster, qualityDecider);
+            if (summary.getQuality().compareTo(quality) < 0)
+                continue;
+
+            psms.clear();
+            for (ISpectrumReference spectrum : summariser.getUniqueSpectra()) {
+                String spectrumId = spectrum.getSpectrumId();
+                String projectAccession = (spectrumId == null) ? null : spectrumId.split(";")[0];
+                long assayCode = block.assayCode(projectAccession, spectrum.getSpecies());
+                for (IPeptideSpectrumMatch psm : new LinkedHashSet<IPeptideSpectrumMatch>(spectrum.getPSMs())) {
+                    ModificationAnchorCache.AnchoredModifications anchored =
+                            modificationCache.anchor(modifications(psm), psm.getSequence());
+                    psms.add(new ClusteringFilePSM(psm.getSequence(), anchored.getModifications(), assayCode));
+                }
+            }
+            rankEngine.rank(block.addCluster(cluster.getId(), i, summary), psms, new ClusterPSMFields(summary));
+        }
+        return block;
+    }
+
+    /**
+     * Resolve the clusters and the assays of a ranked block and append it to the builder, the blocks are
+     * merged in the order of the input
+     */
+    private void merge(ConvertedBlock block) {
+        long[] clusterIds = new long[block.size()];
+        for (int cluster = 0; cluster < clusterIds.length; cluster++)
+            clusterIds[cluster] = clusterId(block.clusterIds.get(cluster), numberClusters + block.position + block.positions[cluster] + 1);
+        long[] assayIds = new long[block.assays.size()];
+        for (int assay = 0; assay < assayIds.length; assay++)
+            assayIds[assay] = assayId(block.assays.get(assay));
+
+        builder.add(block.ranked, clusterIds, assayIds);
+        for (int cluster = 0; cluster < clusterIds.length; cluster++)
+            qualityTable.add(clusterIds[cluster], block.totalNumberSpectra[cluster], block.numberProjects[cluster], block.maxPeptideRatio[cluster]);
+        numberRankedClusters += clusterIds.length;
+        numberPSMs += block.ranked.size();
+    }
+
+    /**
+     * Cluster ID of a cluster, the ID of the file if the IDs are numbers, else the position of the cluster
+     * @param ordinal position of the cluster in the input, from 1
+     * @throws UncheckedIOException if the scheme of the ID is not the scheme of the first cluster
+     */
+    private long clusterId(String id, long ordinal) {
+        boolean number = id != null && !id.isEmpty() && id.length() < 19;
+        for (int i = 0; number && i < id.length(); i++)
+            number = Character.isDigit(id.charAt(i));
+
+        if (numericClusterIds == null)
+            numericClusterIds = number;
+        else if (numericClusterIds != number)
+            throw new UncheckedIOException(new IOException("The clustering files mix numeric and non numeric cluster IDs, "
+                    + "the ID of the first cluster is " + (numericClusterIds ? "numeric" : "non numeric") + " and the ID " + id + " is not"));
+        return number ? Long.parseLong(id) : ordinal;
+    }
+
+    /**
+     * Local assay of a project and a list of species, added to the index the first time it is found
+     */
+    private Long assayId(String[] projectAndSpecies) {
+        String projectAccession = projectAndSpecies[0];
+        String species = projectAndSpecies[1];
+        String key = projectAccession + "\t" + species;
+
+        Long assayId = assayIds.get(key);
+        if (assayId == null) {
+            assayId = (long) assayIds.size() + 1;
+            assayIds.put(key, assayId);
+            assayIndex.addAssay(assayId, projectAccession, species);
+        }
+        return assayId;
+    }
+
+    /**
+     * Modifications of a PSM, in the format of the modifications read from the database
+     */
+    private static List<ModificationProvider> modifications(IPeptideSpectrumMatch psm) {
+        List<ModificationProvider> modifications = new ArrayList<ModificationProvider>();
+        if (psm.getModifications() != null) {
+            for (IModification clusteringModification : psm.getModifications()) {
+                Modification modification = new Modification();
+                modification.setAccession(clusteringModification.getAccession());
+                modification.setMainPosition(clusteringModification.getPosition());
+                Map<Integer, CvParamProvider> positionMap = new HashMap<Integer, CvParamProvider>();
+                positionMap.put(clusteringModification.getPosition(), null);
+                modification.setPositionMap(positionMap);
+                modifications.add(modification);
+            }
+        }
+        return modifications;
+    }
+
+    public long getNumberClusters() {
+        return numberClusters;
+    }
+
+    public long getNumberRankedClusters() {
+        return numberRankedClusters;
+    }
+
+    public long getNumberPSMs() {
+        return numberPSMs;
+    }
+
+    /**
+     * The numbers of the ranked clusters, used to decide their quality again
+     */
+    public ClusterQualityTable getQualityTable() {
+        return qualityTable;
+    }
+
+    /**
+     * A PSM read from a clustering file
+     */
+    private static class ClusteringFilePSM {
+
+        private final String sequence;
+        private final List<ModificationProvider> modifications;
+        // Local code of the assay in the block, resolved when the block is merged
+        private final long assayCode;
+
+        ClusteringFilePSM(String sequence, List<ModificationProvider> modifications, long assayCode) {
+            this.sequence = sequence;
+            this.modifications = modifications;
+            this.assayCode = assayCode;
+        }
+    }
+
+    /**
+     * The clusters of a block above the requested quality, ranked with local cluster and assay codes,
+     * with the numbers used to decide their quality
+     */
+    private static class ConvertedBlock {
+
+        private final long position;
+        private final RankedPSMBlock ranked = new RankedPSMBlock();
+
+        // Clusters by local code
+        private final List<String> clusterIds = new ArrayList<String>();
+        private long[] positions = new long[16];
+        private int[] totalNumberSpectra = new int[16];
+        private int[] numberProjects = new int[16];
+        private float[] maxPeptideRatio = new float[16];
+
+        // (project, species) of the assays by local code
+        private final List<String[]> assays = new ArrayList<String[]>();
+        private final Map<String, Integer> assayCodes = new HashMap<String, Integer>();
+
+        ConvertedBlock(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Add a cluster
+         * @param positionInBlock position of the cluster in the block
+         * @return the local code of the cluster
+         */
+        int addCluster(String id, int positionInBlock, ClusterSummary summary) {
+            int code = clusterIds.size();
+            if (code == positions.length) {
+                positions = Arrays.copyOf(positions, code * 2);
+                totalNumberSpectra = Arrays.copyOf(totalNumberSpectra, code * 2);
+                numberProjects = Arrays.copyOf(numberProjects, code * 2);
+                maxPeptideRatio = Arrays.copyOf(maxPeptideRatio, code * 2);
+            }
+            clusterIds.add(id);
+            positions[code] = positionInBlock;
+            totalNumberSpectra[code] = summary.getTotalNumberOfSpectra();
+            numberProjects[code] = summary.getNumberOfProjects();
+            maxPeptideRatio[code] = summary.getMaxPeptideRatio();
+            return code;
+        }
+
+        /**
+         * Local code of the assay of a project and a list of species, in the order they are found
+         */
+        long assayCode(String projectAccession, String species) {
+            String key = projectAccession + "\t" + species;
+            Integer code = assayCodes.get(key);
+            if (code == null) {
+                code = assays.size();
+                assayCodes.put(key, code);
+                assays.add(new String[]{projectAccession, species});
+            }
+            return code;
+        }
+
+        int size() {
+            return clusterIds.size();
+        }
+    }
+
+    /**
+     * The blocks of clusters of a file, queued by its reader in the order of the file
+     */
+    private static class FileBlocks {
+
+        private final File file;
+        private final BlockingQueue<ForkJoinTask<ConvertedBlock>> queue =
+                new ArrayBlockingQueue<ForkJoinTask<ConvertedBlock>>(Constants.CLUSTER_BLOCKS_BY_READER);
+        // Written by the reader before the end of the file is queued
+        private volatile long numberClusters = 0;
+        private volatile Exception error;
+
+        FileBlocks(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Queue a block, the reader is stopped if it is interrupted while waiting
+         */
+        void put(ForkJoinTask<ConvertedBlock> block) {
+            try {
+                queue.put(block);
+            } catch (InterruptedException e) {
+                block.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Reading of the clustering file " + file.getAbsolutePath() + " interrupted");
+            }
+        }
+    }
+
+    /**
+     * Fields of the PSMs of a cluster, the numbers of the cluster are taken from its summary. Every PSM
+     * is a spectrum and the delta m/z is not known.
+     */
+    private static class ClusterPSMFields implements ClusterRankEngine.PSMFields<ClusteringFilePSM> {
+
+        private final int clusterNumberSpectra;
+        private final int clusterNumberProjects;
+        private final int clusterNumberPSMs;
+
+        ClusterPSMFields(ClusterSummary summary) {
+            this.clusterNumberSpectra = summary.getNumberOfSpectra();
+            this.clusterNumberProjects = summary.getNumberOfProjects();
+            this.clusterNumberPSMs = summary.getNumberOfPSMs();
+        }
+
+        @Override
+        public String getSequence(ClusteringFilePSM psm) {
+            return psm.sequence;
+        }
+
+        @Override
+        public List<ModificationProvider> getModifications(ClusteringFilePSM psm) {
+            return psm.modifications;
+        }
+
+        @Override
+        public Long getAssayId(ClusteringFilePSM psm) {
+            return psm.assayCode;
+        }
+
+        @Override
+        public Float getDeltaMZ(ClusteringFilePSM psm) {
+            return null;
+        }
+
+        @Override
+        public int getNumberOfSpectra(ClusteringFilePSM psm) {
+            return 1;
+        }
+
+        @Override
+        public int getClusterNumberSpectra(ClusteringFilePSM psm) {
+            return clusterNumberSpectra;
+        }
+
+        @Override
+        public int getClusterNumberProjects(ClusteringFilePSM psm) {
+            return clusterNumberProjects;
+        }
+
+        @Override
+        public int getClusterNumberPSMs(ClusteringFilePSM psm) {
+            return clusterNumberPSMs;
+        }
+    }
+}
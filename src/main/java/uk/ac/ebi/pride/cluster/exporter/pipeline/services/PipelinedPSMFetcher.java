@@ -0,0 +1,176 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusteredPSMReport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Overlap the database fetch with the transformation of the clustered PSMs. The cursors are read on
+ * dedicated fetch threads that prefetch the next pages into a bounded queue, while the calling thread
+ * transforms the current page. When the queue is full the fetch threads wait, so at most
+ * queueCapacity pages are held in memory besides the ones being read and transformed.
+ *
+ * The time spent working and waiting by every stage is recorded to find out which side of the
+ * pipeline is the bottleneck.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class PipelinedPSMFetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelinedPSMFetcher.class);
+
+    /** Marks the end of a cursor in the queue */
+    private static final List<ClusteredPSMReport> END_OF_CURSOR = new ArrayList<ClusteredPSMReport>(0);
+
+    private final List<ClusteredPSMCursor> cursors;
+
+    private final BlockingQueue<List<ClusteredPSMReport>> queue;
+
+    private final AtomicLong fetchBusyNanos = new AtomicLong();
+    private final AtomicLong fetchBlockedNanos = new AtomicLong();
+    private long transformBusyNanos = 0;
+    private long transformIdleNanos = 0;
+    private long elapsedNanos = 0;
+    private long numberPages = 0;
+
+    /**
+     * @param cursors cursors to be read, each one on its own fetch thread
+     * @param queueCapacity maximum number of pages waiting to be transformed
+     */
+    public PipelinedPSMFetcher(List<ClusteredPSMCursor> cursors, int queueCapacity) {
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("The queue capacity must be positive: " + queueCapacity);
+        this.cursors = cursors;
+        this.queue = new ArrayBlockingQueue<List<ClusteredPSMReport>>(queueCapacity);
+    }
+
+    /**
+     * Read all the cursors and transform every page in the calling thread. The first failure of
+     * a fetch thread stops the pipeline: the other fetch threads are interrupted, the pages left
+     * in the queue are dropped and the failure is propagated.
+     * @param transformation consumer of the pages
+     */
+    public void fetch(Consumer<List<ClusteredPSMReport>> transformation) {
+        if (cursors.isEmpty())
+            return;
+
+        AtomicReference<Throwable> fetchError = new AtomicReference<Throwable>();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(cursors.size(), runnable -> {
+            Thread thread = new Thread(runnable, "psm-prefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.nanoTime();
+        try {
+            ShardedPSMFetcher.ShardOrderCheck orderCheck = new ShardedPSMFetcher.ShardOrderCheck(cursors);
+            for (int i = 0; i < cursors.size(); i++) {
+                int cursor = i;
+                executor.submit(() -> prefetch(cursor, orderCheck, fetchError));
+            }
+
+            int openCursors = cursors.size();
+            while (openCursors > 0 && fetchError.get() == null) {
+                long waitStart = System.nanoTime();
+                List<ClusteredPSMReport> page = queue.take();
+                long workStart = System.nanoTime();
+                transformIdleNanos += workStart - waitStart;
+
+                if (page == END_OF_CURSOR) {
+                    openCursors--;
+                    continue;
+                }
+
+                transformation.accept(page);
+                transformBusyNanos += System.nanoTime() - workStart;
+                numberPages++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while transforming the clustered PSMs", e);
+        } finally {
+            executor.shutdownNow();
+            queue.clear();
+            elapsedNanos = System.nanoTime() - start;
+        }
+
+        logUtilisation();
+
+        if (fetchError.get() != null)
+            throw new IllegalStateException("Error prefetching clustered PSMs", fetchError.get());
+    }
+
+    /**
+     * Read a cursor into the queue, the cursor is checked against the cursors already read once it is read
+     */
+    private void prefetch(int cursorIndex, ShardedPSMFetcher.ShardOrderCheck orderCheck, AtomicReference<Throwable> fetchError) {
+        ClusteredPSMCursor cursor = cursors.get(cursorIndex);
+        try {
+            while (cursor.hasNext()) {
+                long fetchStart = System.nanoTime();
+                List<ClusteredPSMReport> page = cursor.next();
+                long putStart = System.nanoTime();
+                fetchBusyNanos.addAndGet(putStart - fetchStart);
+
+                if (!page.isEmpty())
+                    queue.put(page);
+                fetchBlockedNanos.addAndGet(System.nanoTime() - putStart);
+            }
+            orderCheck.read(cursorIndex);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Throwable e) {
+            fetchError.compareAndSet(null, e);
+        }
+
+        try {
+            queue.put(END_OF_CURSOR);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void logUtilisation() {
+        long fetchCapacity = elapsedNanos * cursors.size();
+        logger.info("Pipelined fetch: " + numberPages + " pages in " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms");
+        logger.info("  fetch     busy " + percentage(fetchBusyNanos.get(), fetchCapacity) + "%, blocked on full queue "
+                + percentage(fetchBlockedNanos.get(), fetchCapacity) + "% (" + cursors.size() + " threads)");
+        logger.info("  transform busy " + percentage(transformBusyNanos, elapsedNanos) + "%, waiting for pages "
+                + percentage(transformIdleNanos, elapsedNanos) + "%");
+    }
+
+    private static long percentage(long part, long total) {
+        return (total == 0) ? 0 : Math.round(100.0 * part / total);
+    }
+
+    /**
+     * Fraction of the wall clock time that the fetch threads spent reading from the database
+     * @return utilisation between 0 and 1
+     */
+    public double getFetchUtilisation() {
+        return (elapsedNanos == 0) ? 0 : (double) fetchBusyNanos.get() / (elapsedNanos * cursors.size());
+    }
+
+    /**
+     * Fraction of the wall clock time that the calling thread spent transforming pages
+     * @return utilisation between 0 and 1
+     */
+    public double getTransformUtilisation() {
+        return (elapsedNanos == 0) ? 0 : (double) transformBusyNanos / elapsedNanos;
+    }
+}
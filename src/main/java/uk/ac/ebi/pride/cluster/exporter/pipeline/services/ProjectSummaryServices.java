@@ -0,0 +1,82 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.pride.archive.repo.assay.Assay;
+import uk.ac.ebi.pride.archive.repo.project.Project;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.AssaySummaryCache;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.MzTabPSMReader;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.utils.PSMSummaryPipeline;
+import uk.ac.ebi.pride.spectracluster.repo.model.AssayDetail;
+import uk.ac.ebi.pride.spectracluster.repo.model.PSMDetail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Summarise the assays of the archive projects and the PSMs of their mzTab files, when the projects are
+ * clustered again. The summary of every assay is cached by (project, assay), see {@link AssaySummaryCache},
+ * and the PSM section of the mzTab file of the assay is read incrementally and summarised in parallel
+ * batches, see {@link MzTabPSMReader} and {@link PSMSummaryPipeline}.
+ *
+ * The services can be shared by the threads summarising different projects.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ProjectSummaryServices {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProjectSummaryServices.class);
+
+    private final AssaySummaryCache assaySummaryCache;
+    private final PSMSummaryPipeline psmSummaryPipeline;
+
+    /**
+     * Services with an empty cache and the pipeline of the configuration
+     */
+    public ProjectSummaryServices() {
+        this(new AssaySummaryCache(), new PSMSummaryPipeline());
+    }
+
+    /**
+     * @param assaySummaryCache cache of the assay summaries
+     * @param psmSummaryPipeline pipeline summarising the PSMs
+     */
+    public ProjectSummaryServices(AssaySummaryCache assaySummaryCache, PSMSummaryPipeline psmSummaryPipeline) {
+        this.assaySummaryCache = assaySummaryCache;
+        this.psmSummaryPipeline = psmSummaryPipeline;
+    }
+
+    /**
+     * Summarise an assay and the PSMs of its mzTab file
+     * @param project the project of the assay
+     * @param assay the assay
+     * @param assayId assay id is the primary key assigned at the data store level
+     * @param mzTabFile the mzTab file of the assay
+     * @param psmConsumer receives the summaries of the PSMs by batch, in the order of the file
+     * @return the summary of the assay, shared with the cache, it must not be modified
+     */
+    public AssayDetail summariseAssay(Project project, Assay assay, Long assayId, File mzTabFile,
+                                      Consumer<List<PSMDetail>> psmConsumer) throws IOException {
+        AssayDetail assaySummary = assaySummaryCache.getAssaySummary(project, assay);
+
+        long time = System.currentTimeMillis();
+        try (MzTabPSMReader reader = new MzTabPSMReader(mzTabFile)) {
+            long numberPSMs = psmSummaryPipeline.summarise(reader, project.getAccession(), assayId, assay.getAccession(),
+                    reader.getNumberOfMsRuns(), psmConsumer);
+            logger.debug("Summarised " + numberPSMs + " PSMs of " + project.getAccession() + " " + assay.getAccession()
+                    + " in " + (System.currentTimeMillis() - time) + " milliseconds");
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return assaySummary;
+    }
+
+    public AssaySummaryCache getAssaySummaryCache() {
+        return assaySummaryCache;
+    }
+}
@@ -0,0 +1,184 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.pride.spectracluster.repo.dao.cluster.IClusterReadDao;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterQuality;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusteredPSMReport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Read the clustered PSMs of a release concurrently. The pages of the release are split into
+ * contiguous shards, every shard is read by its own thread (and its own connection of the pool)
+ * and the chunks are handed to a shared aggregation stage, that must be thread safe.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ShardedPSMFetcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedPSMFetcher.class);
+
+    private final List<ClusteredPSMCursor> shards;
+
+    /**
+     * Split the clustered PSMs of the given quality into numberShards shards.
+     * @param clusterReaderDao DAO to read the PSMs
+     * @param quality quality of the clusters to be read
+     * @param pageSize number of PSMs read by chunk
+     * @param numberShards number of shards, the number of concurrent connections to the database
+     */
+    public ShardedPSMFetcher(IClusterReadDao clusterReaderDao, ClusterQuality quality, int pageSize, int numberShards) {
+        this.shards = shard(clusterReaderDao, quality, pageSize, numberShards);
+    }
+
+    /**
+     * Split the pages of the release in contiguous ranges, as the pages are ordered by cluster ID
+     * every shard covers a range of cluster IDs.
+     * @param clusterReaderDao DAO to read the PSMs
+     * @param quality quality of the clusters to be read
+     * @param pageSize number of PSMs read by chunk
+     * @param numberShards maximum number of shards
+     * @return a cursor by shard
+     */
+    public static List<ClusteredPSMCursor> shard(IClusterReadDao clusterReaderDao, ClusterQuality quality, int pageSize, int numberShards) {
+        if (numberShards <= 0)
+            throw new IllegalArgumentException("The number of shards must be positive: " + numberShards);
+
+        long numberClusteredPSMs = clusterReaderDao.getNumberClusteredPSMs(quality);
+        int numberPages = ClusteredPSMCursor.numberOfPages(numberClusteredPSMs, pageSize);
+        int pagesByShard = Math.max(1, (numberPages + numberShards - 1) / numberShards);
+
+        List<ClusteredPSMCursor> shards = new ArrayList<ClusteredPSMCursor>();
+        for (int firstPage = 1; firstPage <= numberPages; firstPage += pagesByShard) {
+            int lastPage = Math.min(numberPages, firstPage + pagesByShard - 1);
+            shards.add(new ClusteredPSMCursor(clusterReaderDao, quality, pageSize, numberClusteredPSMs, firstPage, lastPage));
+        }
+
+        logger.debug("Clustered PSMs: " + numberClusteredPSMs + " split in " + shards.size() + " shards of " + pagesByShard + " pages");
+        return shards;
+    }
+
+    /**
+     * Read all the shards concurrently and give every chunk to the aggregation stage. The method returns
+     * when all the shards have been read. The first failure of a shard is propagated as soon as it happens,
+     * the other shards are interrupted.
+     * @param aggregation thread safe consumer of the chunks
+     */
+    public void fetch(Consumer<List<ClusteredPSMReport>> aggregation) {
+        if (shards.isEmpty())
+            return;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(shards.size(), runnable -> {
+            Thread thread = new Thread(runnable, "psm-shard-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+            for (int i = 0; i < shards.size(); i++) {
+                ClusteredPSMCursor shard = shards.get(i);
+                int index = i;
+                completionService.submit(() -> {
+                    while (shard.hasNext()) {
+                        aggregation.accept(shard.next());
+                    }
+                    logger.debug(Thread.currentThread().getName() + " done, " + shard.getNumberReadPSMs() + " PSMs up to cluster " + shard.getLastClusterId());
+                    return index;
+                });
+            }
+
+            // The shards are waited for in completion order, so a failure (or an overlap with the shards
+            // already read) is seen before the slower shards end
+            ShardOrderCheck orderCheck = new ShardOrderCheck(shards);
+            for (int i = 0; i < shards.size(); i++)
+                orderCheck.read(completionService.take().get());
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading the clustered PSMs", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error reading a shard of clustered PSMs", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public int getNumberShards() {
+        return shards.size();
+    }
+
+    /**
+     * Check that the shards cover consecutive ranges of cluster IDs, as they are read. Every cursor checks
+     * the order of its own pages, the clusters inside a page are sealed straight away so a shard starting
+     * below the end of the previous one means that some clusters have been split.
+     *
+     * A shard is checked against the nearest shards with PSMs on each side as soon as it and the shards
+     * between them have been read, so every pair of consecutive shards is checked once both are read and
+     * not after the whole release. The shards can be marked as read from any thread.
+     */
+    public static class ShardOrderCheck {
+
+        private final List<ClusteredPSMCursor> shards;
+        private final boolean[] read;
+
+        /**
+         * @param shards the cursors in the order of their pages
+         */
+        public ShardOrderCheck(List<ClusteredPSMCursor> shards) {
+            this.shards = shards;
+            this.read = new boolean[shards.size()];
+        }
+
+        /**
+         * Mark a shard as read and check it against the shards read around it
+         * @param shard position of the shard
+         * @throws IllegalStateException if a shard starts below the last cluster of a previous shard
+         */
+        public synchronized void read(int shard) {
+            read[shard] = true;
+
+            // Nearest shards with PSMs, only known if the empty shards between are read
+            int previous = shard - 1;
+            while (previous >= 0 && read[previous] && isEmpty(previous))
+                previous--;
+            int next = shard + 1;
+            while (next < read.length && read[next] && isEmpty(next))
+                next++;
+            boolean hasPrevious = previous >= 0 && read[previous];
+            boolean hasNext = next < read.length && read[next];
+
+            if (!isEmpty(shard)) {
+                if (hasPrevious)
+                    check(previous, shard);
+                if (hasNext)
+                    check(shard, next);
+            } else if (hasPrevious && hasNext) {
+                check(previous, next);
+            }
+        }
+
+        private boolean isEmpty(int shard) {
+            return shards.get(shard).getNumberReadPSMs() == 0;
+        }
+
+        private void check(int previous, int next) {
+            long lastClusterId = shards.get(previous).getLastClusterId();
+            long firstClusterId = shards.get(next).getFirstClusterId();
+            if (firstClusterId < lastClusterId)
+                throw new IllegalStateException("Shard starting at cluster " + firstClusterId + " overlaps the previous shards up to cluster "
+                        + lastClusterId + ", the clustered PSMs are not paged in cluster ID order");
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import uk.ac.ebi.pride.spectracluster.repo.model.AssayReport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Index of the assays of a release, built once before the clustered PSMs are read (or grown while they
+ * are read, see {@link #addAssay(long, String, String)}). Every assay gets a dense slot and the
+ * information needed by the exporter is pre-parsed by slot:
+ *
+ * - the project accession, encoded in the project dictionary
+ * - the taxonomy list as provided by the assay, encoded in the taxonomy list dictionary
+ * - the taxonomy identifiers of the list, encoded in the taxonomy dictionary
+ * - the multitaxonomy flag
+ *
+ * The slots of the assays of every taxonomy are kept in a BitSet, so filtering a PSM by species or
+ * by multitaxonomy is a lookup and the taxonomy identifiers are matched exactly (9606 does not match
+ * an assay of 19606).
+ *
+ * The assay IDs are mapped to slots with an open addressing table of primitive longs.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class AssayIndex {
+
+    /** Slot of the assays not present in the index */
+    public static final int NO_SLOT = -1;
+
+    private static final int[] NO_TAXONOMIES = new int[0];
+
+    // Open addressing table assay ID -> slot, NO_SLOT marks the empty entries
+    private long[] keys;
+    private int[] keySlots;
+    private int mask;
+
+    // Assays by slot
+    private int numberAssays = 0;
+    private long[] assayIds;
+    private AssayReport[] assays;
+    private int[] projectCode;
+    private int[] taxonomyListCode;
+    private int[][] taxonomyIds;
+    private final BitSet multitaxonomy;
+
+    private final StringDictionary projects = new StringDictionary();
+    private final StringDictionary taxonomies = new StringDictionary();
+    private final StringDictionary taxonomyLists = new StringDictionary();
+
+    // Slots of the assays by taxonomy code
+    private final List<BitSet> slotsByTaxonomy = new ArrayList<BitSet>();
+
+    /**
+     * @param assayReports the assays of the release, null is handled as an empty release
+     */
+    public AssayIndex(Collection<AssayReport> assayReports) {
+        this((assayReports == null) ? 0 : assayReports.size());
+        if (assayReports != null) {
+            for (AssayReport assay : assayReports) {
+                if (assay != null && assay.getId() != null)
+                    add(assay.getId(), assay.getProjectAccession(), assay.getTaxonomyId(), assay);
+            }
+        }
+    }
+
+    /**
+     * Index of assays given by slot, the assay reports are not available, see {@link ClusteredPSMSnapshot}
+     * @param assayIds the assay IDs by slot
+     * @param projectAccessions the project accessions by slot
+     * @param taxonomyIds the comma separated taxonomies by slot
+     */
+    AssayIndex(long[] assayIds, String[] projectAccessions, String[] taxonomyIds) {
+        this(assayIds.length);
+        for (int i = 0; i < assayIds.length; i++)
+            add(assayIds[i], projectAccessions[i], taxonomyIds[i], null);
+    }
+
+    private AssayIndex(int capacity) {
+        createTable(capacity);
+
+        assayIds = new long[capacity];
+        assays = new AssayReport[capacity];
+        projectCode = new int[capacity];
+        taxonomyListCode = new int[capacity];
+        taxonomyIds = new int[capacity][];
+        multitaxonomy = new BitSet(capacity);
+    }
+
+    /**
+     * Add an assay known only by its project and taxonomies, after the index was built. It is used when
+     * the assays are discovered while the clustered PSMs are read (e.g. from .clustering files), the
+     * assay must be added before its PSMs. Repeated assay IDs are ignored.
+     * @param assayId the assay ID
+     * @param projectAccession the project accession
+     * @param taxonomyId the comma separated taxonomies
+     */
+    public void addAssay(long assayId, String projectAccession, String taxonomyId) {
+        add(assayId, projectAccession, taxonomyId, null);
+    }
+
+    /**
+     * Add an assay in the next slot, repeated assay IDs are ignored
+     */
+    private void add(long assayId, String projectAccession, String taxonomyId, AssayReport assay) {
+        if (slot(assayId) != NO_SLOT)
+            return;
+        if (numberAssays == assayIds.length)
+            grow();
+        int slot = numberAssays++;
+        put(assayId, slot);
+
+        assayIds[slot] = assayId;
+        assays[slot] = assay;
+        projectCode[slot] = projects.encode(projectAccession);
+        taxonomyListCode[slot] = taxonomyLists.encode(taxonomyId);
+
+        int[] ids = NO_TAXONOMIES;
+        if (taxonomyId != null) {
+            String[] taxonomyArr = taxonomyId.split(",");
+            ids = new int[taxonomyArr.length];
+            for (int i = 0; i < taxonomyArr.length; i++) {
+                ids[i] = taxonomies.encode(taxonomyArr[i]);
+                if (ids[i] == slotsByTaxonomy.size())
+                    slotsByTaxonomy.add(new BitSet());
+                slotsByTaxonomy.get(ids[i]).set(slot);
+            }
+        }
+        taxonomyIds[slot] = ids;
+        multitaxonomy.set(slot, ids.length > 1);
+    }
+
+    private void createTable(int capacity) {
+        int tableSize = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+        keys = new long[tableSize];
+        keySlots = new int[tableSize];
+        Arrays.fill(keySlots, NO_SLOT);
+        mask = tableSize - 1;
+    }
+
+    /**
+     * Double the capacity of the slots, the table is rebuilt so it stays at most half full
+     */
+    private void grow() {
+        int capacity = Math.max(16, assayIds.length * 2);
+        assayIds = Arrays.copyOf(assayIds, capacity);
+        assays = Arrays.copyOf(assays, capacity);
+        projectCode = Arrays.copyOf(projectCode, capacity);
+        taxonomyListCode = Arrays.copyOf(taxonomyListCode, capacity);
+        taxonomyIds = Arrays.copyOf(taxonomyIds, capacity);
+
+        createTable(capacity);
+        for (int slot = 0; slot < numberAssays; slot++)
+            put(assayIds[slot], slot);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void put(long assayId, int slot) {
+        int position = hash(assayId) & mask;
+        while (keySlots[position] != NO_SLOT)
+            position = (position + 1) & mask;
+        keys[position] = assayId;
+        keySlots[position] = slot;
+    }
+
+    /**
+     * Slot of an assay
+     * @param assayId the assay ID
+     * @return the slot or NO_SLOT if the assay is not in the index
+     */
+    public int slot(long assayId) {
+        int position = hash(assayId) & mask;
+        while (keySlots[position] != NO_SLOT) {
+            if (keys[position] == assayId)
+                return keySlots[position];
+            position = (position + 1) & mask;
+        }
+        return NO_SLOT;
+    }
+
+    public int getNumberAssays() {
+        return numberAssays;
+    }
+
+    public long getAssayId(int slot) {
+        return assayIds[slot];
+    }
+
+    public String getProjectAccession(int slot) {
+        return projects.decode(getProjectCode(slot));
+    }
+
+    /**
+     * Comma separated taxonomies of an assay, as provided by the assay
+     */
+    public String getTaxonomyId(int slot) {
+        return taxonomyLists.decode(getTaxonomyListCode(slot));
+    }
+
+    /**
+     * The assay of an ID
+     * @param assayId the assay ID, can be null
+     * @return the assay or null if it is not in the index
+     */
+    public AssayReport getAssay(Long assayId) {
+        int slot = (assayId == null) ? NO_SLOT : slot(assayId);
+        return (slot == NO_SLOT) ? null : assays[slot];
+    }
+
+    public int getProjectCode(int slot) {
+        return (slot == NO_SLOT) ? StringDictionary.NULL_CODE : projectCode[slot];
+    }
+
+    public int getTaxonomyListCode(int slot) {
+        return (slot == NO_SLOT) ? StringDictionary.NULL_CODE : taxonomyListCode[slot];
+    }
+
+    /**
+     * Taxonomy codes of an assay
+     * @param slot the assay slot
+     * @return codes of the taxonomy dictionary, empty if the taxonomies are not known
+     */
+    public int[] getTaxonomyIds(int slot) {
+        return (slot == NO_SLOT) ? NO_TAXONOMIES : taxonomyIds[slot];
+    }
+
+    /**
+     * True if the assay has more than one taxonomy
+     */
+    public boolean isMultitaxonomy(int slot) {
+        return slot != NO_SLOT && multitaxonomy.get(slot);
+    }
+
+    /**
+     * Slots of the assays that contain a taxonomy, the taxonomy must match one of the identifiers of
+     * the assays exactly.
+     * @param taxonomy the taxonomy identifier
+     * @return the slots, empty if no assay contains the taxonomy. It must not be modified.
+     */
+    public BitSet getSlots(String taxonomy) {
+        int code = taxonomies.lookup(taxonomy);
+        return (code == StringDictionary.NULL_CODE) ? new BitSet() : slotsByTaxonomy.get(code);
+    }
+
+    public StringDictionary getProjects() {
+        return projects;
+    }
+
+    public StringDictionary getTaxonomies() {
+        return taxonomies;
+    }
+
+    public StringDictionary getTaxonomyLists() {
+        return taxonomyLists;
+    }
+}
@@ -0,0 +1,54 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Segments of clustered PSMs restricted to a set of clusters, see {@link ClusteredPSMStore#retainClusters(long[])}.
+ * Every segment is filtered when it is handed out, so the segments read from disk (see {@link ExternalPSMSegments}
+ * and {@link SnapshotPSMSegments}) are not copied as a whole. Closing the filtered segments closes the
+ * spilled segments, if any.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusterFilteredSegments implements Iterable<ClusteredPSMStore>, Closeable {
+
+    private final Iterable<ClusteredPSMStore> segments;
+    private final long[] clusterIds;
+
+    /**
+     * @param segments the segments of the release
+     * @param clusterIds the clusters to keep, sorted
+     */
+    public ClusterFilteredSegments(Iterable<ClusteredPSMStore> segments, long[] clusterIds) {
+        this.segments = segments;
+        this.clusterIds = clusterIds;
+    }
+
+    @Override
+    public Iterator<ClusteredPSMStore> iterator() {
+        Iterator<ClusteredPSMStore> iterator = segments.iterator();
+        return new Iterator<ClusteredPSMStore>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public ClusteredPSMStore next() {
+                return iterator.next().retainClusters(clusterIds);
+            }
+        };
+    }
+
+    public int getNumberClusters() {
+        return clusterIds.length;
+    }
+
+    @Override
+    public void close() {
+        if (segments instanceof ExternalPSMSegments)
+            ((ExternalPSMSegments) segments).close();
+    }
+}
@@ -0,0 +1,205 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusteredPSMReport;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rank the PeptideForms of every cluster and append the ranked PSMs to a {@link ClusteredPSMStoreBuilder},
+ * or to a {@link RankedPSMBlock} ranked apart by a worker. The clusters are given one by one, in any order,
+ * and for every cluster:
+ *
+ * - the PeptideForm of every PSM is registered in the PeptideForm index of the builder (or of the block)
+ * - the PSMs of every PeptideForm are counted
+ * - the PeptideForms are ranked by number of PSMs, the PeptideForms with the same number of PSMs get
+ *   the same rank (dense rank, 1 is the PeptideForm with more PSMs)
+ * - the PSM ratio of every PeptideForm is its number of PSMs divided by the PSMs of the cluster
+ *
+ * The work arrays are reused between clusters, so no map is allocated by cluster.
+ *
+ * NOTE: the engine is not thread safe.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusterRankEngine {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Fields of a clustered PSM used for ranking, so the PSMs can be read from any source
+     */
+    public interface PSMFields<T> {
+        String getSequence(T psm);
+        List<ModificationProvider> getModifications(T psm);
+        /** The assay ID, null if it is not known */
+        Long getAssayId(T psm);
+        /** The delta m/z, null if it is not known */
+        Float getDeltaMZ(T psm);
+        int getNumberOfSpectra(T psm);
+        int getClusterNumberSpectra(T psm);
+        int getClusterNumberProjects(T psm);
+        int getClusterNumberPSMs(T psm);
+    }
+
+    /**
+     * Receives the ranked PSMs, see {@link ClusteredPSMStoreBuilder} and {@link RankedPSMBlock}
+     */
+    public interface RankedPSMSink {
+        /** ID of a PeptideForm, a new ID is assigned if the PeptideForm has not been seen before */
+        int peptideFormId(String sequence, List<ModificationProvider> modifications);
+        /** Append a ranked PSM of a PeptideForm, the assay is {@link ClusteredPSMStoreBuilder#UNKNOWN_ASSAY} if it is not known */
+        void add(int form, long cluster, long assay, float psmRank, float ratio, float delta,
+                 int spectra, int clusterSpectra, int clusterProjects, int clusterPSMs);
+    }
+
+    /** Fields of the clustered PSMs read from the database */
+    private static final PSMFields<ClusteredPSMReport> CLUSTERED_PSM_REPORT_FIELDS = new PSMFields<ClusteredPSMReport>() {
+        @Override
+        public String getSequence(ClusteredPSMReport psm) {
+            return psm.getSequence();
+        }
+
+        @Override
+        public List<ModificationProvider> getModifications(ClusteredPSMReport psm) {
+            return psm.getModifications();
+        }
+
+        @Override
+        public Long getAssayId(ClusteredPSMReport psm) {
+            return psm.getAssayID();
+        }
+
+        @Override
+        public Float getDeltaMZ(ClusteredPSMReport psm) {
+            return psm.getDeltaMZ();
+        }
+
+        @Override
+        public int getNumberOfSpectra(ClusteredPSMReport psm) {
+            return psm.getNumberOfSpectra();
+        }
+
+        @Override
+        public int getClusterNumberSpectra(ClusteredPSMReport psm) {
+            return psm.getClusterNumberSpectra();
+        }
+
+        @Override
+        public int getClusterNumberProjects(ClusteredPSMReport psm) {
+            return psm.getClusterNumberProjects();
+        }
+
+        @Override
+        public int getClusterNumberPSMs(ClusteredPSMReport psm) {
+            return psm.getClusterNumberPSMs();
+        }
+    };
+
+    private final RankedPSMSink builder;
+
+    // PeptideForm of every PSM of the current cluster
+    private int[] psmForm = new int[INITIAL_CAPACITY];
+
+    // Number of PSMs and rank by PeptideForm ID, only the PeptideForms of the current cluster are set
+    private int[] formCount = new int[INITIAL_CAPACITY];
+    private int[] formRank = new int[INITIAL_CAPACITY];
+
+    // PeptideForms of the current cluster packed as (count << 32 | form)
+    private long[] clusterForms = new long[INITIAL_CAPACITY];
+
+    private long numberClusters = 0;
+
+    /**
+     * @param builder the builder (or the block) that receives the ranked PSMs
+     */
+    public ClusterRankEngine(RankedPSMSink builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * Rank the PSMs of a cluster and append them to the builder
+     * @param clusterId the cluster ID
+     * @param psms the PSMs of the cluster, with anchored modifications
+     */
+    public void rank(long clusterId, List<ClusteredPSMReport> psms) {
+        rank(clusterId, psms, CLUSTERED_PSM_REPORT_FIELDS);
+    }
+
+    /**
+     * Rank the PSMs of a cluster and append them to the builder
+     * @param clusterId the cluster ID
+     * @param psms the PSMs of the cluster, with anchored modifications
+     * @param fields the fields of the PSMs
+     */
+    public <T> void rank(long clusterId, List<T> psms, PSMFields<T> fields) {
+        int numberPSMs = psms.size();
+        if (numberPSMs == 0)
+            return;
+        if (numberPSMs > psmForm.length)
+            psmForm = new int[Math.max(numberPSMs, psmForm.length * 2)];
+
+        // Count the PSMs of every PeptideForm
+        int numberForms = 0;
+        for (int i = 0; i < numberPSMs; i++) {
+            T psm = psms.get(i);
+            int form = builder.peptideFormId(fields.getSequence(psm), fields.getModifications(psm));
+            ensureFormCapacity(form + 1);
+            if (formCount[form] == 0) {
+                if (numberForms == clusterForms.length)
+                    clusterForms = Arrays.copyOf(clusterForms, numberForms * 2);
+                clusterForms[numberForms++] = form;
+            }
+            formCount[form]++;
+            psmForm[i] = form;
+        }
+
+        // Dense rank by number of PSMs, the PeptideForms are sorted by count
+        for (int i = 0; i < numberForms; i++) {
+            int form = (int) clusterForms[i];
+            clusterForms[i] = ((long) formCount[form] << 32) | form;
+        }
+        Arrays.sort(clusterForms, 0, numberForms);
+        int rank = 0;
+        int currentCount = -1;
+        for (int i = numberForms - 1; i >= 0; i--) {
+            int count = (int) (clusterForms[i] >>> 32);
+            if (count != currentCount) {
+                rank++;
+                currentCount = count;
+            }
+            formRank[(int) clusterForms[i]] = rank;
+        }
+
+        for (int i = 0; i < numberPSMs; i++) {
+            T psm = psms.get(i);
+            int form = psmForm[i];
+            Long assay = fields.getAssayId(psm);
+            Float delta = fields.getDeltaMZ(psm);
+            builder.add(form, clusterId, (assay == null) ? ClusteredPSMStoreBuilder.UNKNOWN_ASSAY : assay,
+                    formRank[form], ((float) formCount[form] / (float) numberPSMs), (delta == null) ? Float.NaN : delta,
+                    fields.getNumberOfSpectra(psm), fields.getClusterNumberSpectra(psm), fields.getClusterNumberProjects(psm),
+                    fields.getClusterNumberPSMs(psm));
+        }
+
+        // Clean the counts of the cluster
+        for (int i = 0; i < numberForms; i++)
+            formCount[(int) clusterForms[i]] = 0;
+
+        numberClusters++;
+    }
+
+    private void ensureFormCapacity(int capacity) {
+        if (capacity <= formCount.length)
+            return;
+        int newCapacity = Math.max(capacity, formCount.length * 2);
+        formCount = Arrays.copyOf(formCount, newCapacity);
+        formRank = Arrays.copyOf(formRank, newCapacity);
+    }
+
+    public long getNumberClusters() {
+        return numberClusters;
+    }
+}
@@ -0,0 +1,418 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.archive.dataprovider.param.CvParamProvider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.ClusterQualityTable;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Modification;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the ranked clustered PSMs of a release, so the files can be exported again
+ * without reading the database. The snapshot contains:
+ *
+ * - a header: magic number, format version, number of PeptideForms, number of PSMs, number of clusters and
+ *   position of the metadata
+ * - the columns of the store, one after the other: PeptideForm offsets, cluster ID, assay slot, rank,
+ *   PSM ratio, delta m/z, number of spectra and the cluster counts
+ * - the {@link ClusterQualityTable} of the clusters: ID, total number of spectra, number of projects and max
+ *   peptide ratio of every cluster, so the quality of the clusters can be decided again once the snapshot is read
+ * - the metadata: the assays by slot, the sequence dictionary and the sequence and modifications of
+ *   every PeptideForm
+ *
+ * The snapshot is read back as {@link SnapshotPSMSegments}, the columns stay in the memory mapped file and
+ * only the rows of the segment being exported are copied to the heap. A snapshot can not hold more than
+ * Integer.MAX_VALUE PSMs.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusteredPSMSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusteredPSMSnapshot.class);
+
+    private static final long MAGIC = 0x5052494445505346L; // PRIDEPSF
+
+    /** Version of the format, it must be increased every time the format changes */
+    public static final int VERSION = 2;
+
+    private static final int HEADER_BYTES = 8 + 4 + 4 + 4 + 4 + 8;
+
+    /** Size of a cluster of the quality table: ID, spectra, projects and max peptide ratio */
+    private static final int CLUSTER_BYTES = 8 + 4 + 4 + 4;
+
+    /** Temporary columns of the writer: PeptideForm offsets and the nine columns of the rows */
+    private static final int NUMBER_COLUMNS = 10;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Maximum size of a mapped region */
+    private static final int MAPPED_REGION_BYTES = 1 << 30;
+
+    private ClusteredPSMSnapshot() {
+    }
+
+    /**
+     * Write the segments of a release to a snapshot. The segments are iterated once: every column is
+     * written to a temporary file next to the snapshot, with the metadata of the first segment, and the
+     * temporary files are appended to the snapshot in the order of the format.
+     * @param file the snapshot file
+     * @param segments the segments of the release
+     * @param qualityTable the numbers of the clusters of the segments
+     */
+    public static void write(File file, Iterable<ClusteredPSMStore> segments, ClusterQualityTable qualityTable) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File[] columnFiles = new File[NUMBER_COLUMNS];
+        DataOutputStream[] columns = new DataOutputStream[NUMBER_COLUMNS];
+        File metadataFile = null;
+
+        try {
+            for (int column = 0; column < NUMBER_COLUMNS; column++) {
+                columnFiles[column] = File.createTempFile(file.getName() + ".column" + column + ".", ".tmp", directory);
+                columns[column] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(columnFiles[column]), BUFFER_SIZE));
+            }
+            metadataFile = File.createTempFile(file.getName() + ".metadata.", ".tmp", directory);
+
+            int numberForms = 0;
+            long numberRows = 0;
+            try (DataOutputStream metadata = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(metadataFile), BUFFER_SIZE))) {
+                boolean first = true;
+                for (ClusteredPSMStore store : segments) {
+                    // The metadata is shared by all the segments
+                    if (first) {
+                        numberForms = store.getNumberPeptideForms();
+                        writeMetadata(metadata, store);
+                        first = false;
+                    }
+                    writeColumns(columns, store, numberRows);
+                    numberRows += store.getNumberPSMs();
+                    if (numberRows > Integer.MAX_VALUE)
+                        throw new IOException("The snapshot " + file.getAbsolutePath() + " can not hold more than " + Integer.MAX_VALUE + " PSMs");
+                }
+                if (first) {
+                    // Empty release: no assays, sequences or PeptideForms
+                    metadata.writeInt(0);
+                    metadata.writeInt(0);
+                    metadata.writeInt(0);
+                }
+            }
+            columns[0].writeInt((int) numberRows);
+            for (int column = 0; column < NUMBER_COLUMNS; column++) {
+                columns[column].close();
+                columns[column] = null;
+            }
+
+            int numberClusters = qualityTable.size();
+            long metadataPosition = HEADER_BYTES + 4L * (numberForms + 1) + 40L * numberRows + (long) CLUSTER_BYTES * numberClusters;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+                out.writeLong(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(numberForms);
+                out.writeInt((int) numberRows);
+                out.writeInt(numberClusters);
+                out.writeLong(metadataPosition);
+                for (File columnFile : columnFiles)
+                    Files.copy(columnFile.toPath(), out);
+                for (int cluster = 0; cluster < numberClusters; cluster++) {
+                    out.writeLong(qualityTable.getClusterId(cluster));
+                    out.writeInt(qualityTable.getNumberOfSpectra(cluster));
+                    out.writeInt(qualityTable.getNumberOfProjects(cluster));
+                    out.writeFloat(qualityTable.getMaxPeptideRatio(cluster));
+                }
+                Files.copy(metadataFile.toPath(), out);
+            }
+
+            logger.info("Snapshot of " + numberRows + " PSMs, " + numberForms + " PeptideForms and " + numberClusters
+                    + " clusters written to " + file.getAbsolutePath());
+        } finally {
+            for (int column = 0; column < NUMBER_COLUMNS; column++) {
+                if (columns[column] != null)
+                    closeQuietly(columns[column]);
+                delete(columnFiles[column]);
+            }
+            delete(metadataFile);
+        }
+    }
+
+    /**
+     * Append the rows of a segment to the temporary files of the columns, the first column holds the
+     * PeptideForm offsets
+     * @param firstRow row of the snapshot of the first row of the segment
+     */
+    private static void writeColumns(DataOutputStream[] columns, ClusteredPSMStore store, long firstRow) throws IOException {
+        for (int form = store.getFirstPeptideForm(); form < store.getEndPeptideForm(); form++)
+            columns[0].writeInt((int) (firstRow + store.getFirstRow(form)));
+
+        for (int row = 0; row < store.getNumberPSMs(); row++) {
+            Float deltaMZ = store.getDeltaMZ(row);
+            columns[1].writeLong(store.getClusterId(row));
+            columns[2].writeInt(store.getAssaySlot(row));
+            columns[3].writeFloat(store.getRank(row));
+            columns[4].writeFloat(store.getPsmRatio(row));
+            columns[5].writeFloat((deltaMZ == null) ? Float.NaN : deltaMZ);
+            columns[6].writeInt(store.getNumberOfSpectra(row));
+            columns[7].writeInt(store.getClusterNumberSpectra(row));
+            columns[8].writeInt(store.getClusterNumberProjects(row));
+            columns[9].writeInt(store.getClusterNumberPSMs(row));
+        }
+    }
+
+    private static void closeQuietly(DataOutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.warn("Error closing a temporary column of the snapshot", e);
+        }
+    }
+
+    private static void delete(File file) {
+        if (file != null && file.exists() && !file.delete())
+            logger.warn("The temporary file " + file.getAbsolutePath() + " could not be deleted");
+    }
+
+    private static void writeMetadata(DataOutputStream out, ClusteredPSMStore store) throws IOException {
+        AssayIndex assays = store.getAssayIndex();
+        out.writeInt(assays.getNumberAssays());
+        for (int slot = 0; slot < assays.getNumberAssays(); slot++) {
+            out.writeLong(assays.getAssayId(slot));
+            writeString(out, assays.getProjectAccession(slot));
+            writeString(out, assays.getTaxonomyId(slot));
+        }
+
+        StringDictionary sequences = store.getSequences();
+        out.writeInt(sequences.size());
+        for (int code = 0; code < sequences.size(); code++)
+            out.writeUTF(sequences.decode(code));
+
+        out.writeInt(store.getNumberPeptideForms());
+        for (int form = 0; form < store.getNumberPeptideForms(); form++) {
+            out.writeInt(store.getSequenceId(form));
+            writeModifications(out, store.getModifications(form));
+        }
+    }
+
+    private static void writeModifications(DataOutputStream out, List<ModificationProvider> modifications) throws IOException {
+        if (modifications == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(modifications.size());
+        for (ModificationProvider modification : modifications) {
+            writeString(out, modification.getAccession());
+            writeString(out, modification.getName());
+            out.writeBoolean(modification.getMainPosition() != null);
+            if (modification.getMainPosition() != null)
+                out.writeInt(modification.getMainPosition());
+            writeCvParam(out, modification.getNeutralLoss());
+
+            Map<Integer, CvParamProvider> positionMap = modification.getPositionMap();
+            out.writeInt((positionMap == null) ? -1 : positionMap.size());
+            if (positionMap != null) {
+                for (Map.Entry<Integer, CvParamProvider> position : positionMap.entrySet()) {
+                    out.writeInt(position.getKey());
+                    writeCvParam(out, position.getValue());
+                }
+            }
+        }
+    }
+
+    private static void writeCvParam(DataOutputStream out, CvParamProvider cvParam) throws IOException {
+        out.writeBoolean(cvParam != null);
+        if (cvParam != null) {
+            writeString(out, cvParam.getCvLabel());
+            writeString(out, cvParam.getAccession());
+            writeString(out, cvParam.getName());
+            writeString(out, cvParam.getValue());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    /**
+     * Read a snapshot as segments of PSMs
+     * @param file the snapshot file
+     * @param segmentRows minimum number of rows of a segment, Integer.MAX_VALUE to read the snapshot as a single store
+     * @return the segments, backed by the memory mapped columns of the snapshot, with the quality table of the clusters
+     * @throws IOException if the file can not be read or it is not a snapshot of the current version
+     */
+    public static SnapshotPSMSegments read(File file, int segmentRows) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) ;
+            ((Buffer) header).flip();
+            if (header.remaining() < HEADER_BYTES || header.getLong() != MAGIC)
+                throw new IOException("The file " + file.getAbsolutePath() + " is not a snapshot of clustered PSMs");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("Snapshot version " + version + " is not supported, the current version is " + VERSION);
+            int numberForms = header.getInt();
+            int numberRows = header.getInt();
+            int numberClusters = header.getInt();
+            long metadataPosition = header.getLong();
+            if (numberForms < 0 || numberRows < 0 || numberClusters < 0)
+                throw new IOException("Corrupted snapshot " + file.getAbsolutePath() + ", the number of PSMs, PeptideForms or clusters is negative");
+
+            int[] formOffsets = new int[numberForms + 1];
+            long position = readInts(channel, HEADER_BYTES, formOffsets);
+            if (formOffsets[numberForms] != numberRows)
+                throw new IOException("Corrupted snapshot " + file.getAbsolutePath() + ", the PeptideForms do not contain all the PSMs");
+
+            // The quality table is just before the metadata
+            long qualityTablePosition = metadataPosition - (long) CLUSTER_BYTES * numberClusters;
+            channel.position(qualityTablePosition);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+
+            ClusterQualityTable qualityTable = new ClusterQualityTable();
+            for (int cluster = 0; cluster < numberClusters; cluster++)
+                qualityTable.add(in.readLong(), in.readInt(), in.readInt(), in.readFloat());
+
+            int numberAssays = in.readInt();
+            long[] assayIds = new long[numberAssays];
+            String[] projectAccessions = new String[numberAssays];
+            String[] taxonomyIds = new String[numberAssays];
+            for (int slot = 0; slot < numberAssays; slot++) {
+                assayIds[slot] = in.readLong();
+                projectAccessions[slot] = readString(in);
+                taxonomyIds[slot] = readString(in);
+            }
+            AssayIndex assays = new AssayIndex(assayIds, projectAccessions, taxonomyIds);
+
+            StringDictionary sequences = new StringDictionary();
+            int numberSequences = in.readInt();
+            for (int code = 0; code < numberSequences; code++)
+                sequences.encode(in.readUTF());
+
+            if (in.readInt() != numberForms)
+                throw new IOException("Corrupted snapshot " + file.getAbsolutePath() + ", the number of PeptideForms does not match");
+            int[] formSequence = new int[numberForms];
+            List<List<ModificationProvider>> formModifications = new ArrayList<List<ModificationProvider>>(numberForms);
+            for (int form = 0; form < numberForms; form++) {
+                formSequence[form] = in.readInt();
+                formModifications.add(readModifications(in));
+            }
+
+            // The mapped columns stay valid once the file is closed
+            SnapshotPSMSegments segments = new SnapshotPSMSegments(sequences, formSequence, formModifications, formOffsets, assays,
+                    qualityTable, channel, position, segmentRows);
+            if (segments.getEnd() != qualityTablePosition)
+                throw new IOException("Corrupted snapshot " + file.getAbsolutePath() + ", the quality table is not after the columns");
+
+            logger.info("Snapshot of " + numberRows + " PSMs, " + numberForms + " PeptideForms and " + numberClusters
+                    + " clusters read from " + file.getAbsolutePath());
+
+            return segments;
+        }
+    }
+
+    private static List<ModificationProvider> readModifications(DataInputStream in) throws IOException {
+        int numberModifications = in.readInt();
+        if (numberModifications < 0)
+            return null;
+        List<ModificationProvider> modifications = new ArrayList<ModificationProvider>(numberModifications);
+        for (int i = 0; i < numberModifications; i++) {
+            Modification modification = new Modification();
+            modification.setAccession(readString(in));
+            modification.setName(readString(in));
+            if (in.readBoolean())
+                modification.setMainPosition(in.readInt());
+            modification.setNeutralLoss(readCvParam(in));
+
+            int numberPositions = in.readInt();
+            if (numberPositions >= 0) {
+                Map<Integer, CvParamProvider> positionMap = new LinkedHashMap<Integer, CvParamProvider>();
+                for (int j = 0; j < numberPositions; j++)
+                    positionMap.put(in.readInt(), readCvParam(in));
+                modification.setPositionMap(positionMap);
+            }
+            modifications.add(modification);
+        }
+        return modifications;
+    }
+
+    private static CvParamProvider readCvParam(DataInputStream in) throws IOException {
+        if (!in.readBoolean())
+            return null;
+        return new SnapshotCvParam(readString(in), readString(in), readString(in), readString(in));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    private static long readInts(FileChannel channel, long position, int[] values) throws IOException {
+        int regionValues = MAPPED_REGION_BYTES / 4;
+        for (int offset = 0; offset < values.length; offset += regionValues) {
+            int length = Math.min(regionValues, values.length - offset);
+            map(channel, position, 4L * length).asIntBuffer().get(values, offset, length);
+            position += 4L * length;
+        }
+        return position;
+    }
+
+    /**
+     * CV parameter read from a snapshot
+     */
+    private static class SnapshotCvParam implements CvParamProvider {
+
+        private final String cvLabel;
+        private final String accession;
+        private final String name;
+        private final String value;
+
+        SnapshotCvParam(String cvLabel, String accession, String name, String value) {
+            this.cvLabel = cvLabel;
+            this.accession = accession;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public String getCvLabel() {
+            return cvLabel;
+        }
+
+        @Override
+        public String getAccession() {
+            return accession;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+    }
+}
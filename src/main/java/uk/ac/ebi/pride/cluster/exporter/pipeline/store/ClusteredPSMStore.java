@@ -0,0 +1,308 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar in-memory store of the ranked clustered PSMs of a release. Every PSM is a row of
+ * parallel primitive arrays, the rows are grouped by PeptideForm (sequence + modifications) and
+ * sorted by cluster ID inside every PeptideForm:
+ *
+ * - PeptideForm f owns the rows [getFirstRow(f), getEndRow(f))
+ * - the sequence of every PeptideForm is encoded in the sequence dictionary
+ * - the assay of every PSM is stored as its slot in the {@link AssayIndex}, that provides the project
+ *   and the pre-parsed taxonomies of the assay
+ * - a missing delta m/z is stored as NaN, a missing assay as {@link AssayIndex#NO_SLOT}
+ *
+ * A store can also be a segment of a release spilled to disk or read from a snapshot, see {@link ExternalPSMSegments}
+ * and {@link SnapshotPSMSegments}. A segment contains the rows of the PeptideForms
+ * [getFirstPeptideForm(), getEndPeptideForm()), the PeptideForm IDs and dictionaries are shared by all the
+ * segments of the release.
+ *
+ * The store is immutable once built, see {@link ClusteredPSMStoreBuilder}, and can be read
+ * concurrently.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusteredPSMStore {
+
+    // Peptide Forms
+    private final StringDictionary sequences;
+    private final int[] formSequence;
+    private final List<List<ModificationProvider>> formModifications;
+    private final int firstForm;
+    private final int[] formOffsets;
+
+    private final AssayIndex assays;
+
+    // Clustered PSMs
+    private final long[] clusterId;
+    private final int[] assaySlot;
+    private final float[] rank;
+    private final float[] psmRatio;
+    private final float[] deltaMZ;
+    private final int[] numberOfSpectra;
+    private final int[] clusterNumberSpectra;
+    private final int[] clusterNumberProjects;
+    private final int[] clusterNumberPSMs;
+
+    // Built on first use
+    private volatile TaxonomyFormIndex taxonomyFormIndex;
+    private volatile EvidenceView evidenceView;
+
+    ClusteredPSMStore(StringDictionary sequences, int[] formSequence, List<List<ModificationProvider>> formModifications,
+                      int firstForm, int[] formOffsets,
+                      AssayIndex assays, long[] clusterId, int[] assaySlot, float[] rank, float[] psmRatio, float[] deltaMZ,
+                      int[] numberOfSpectra, int[] clusterNumberSpectra, int[] clusterNumberProjects, int[] clusterNumberPSMs) {
+        this.sequences = sequences;
+        this.formSequence = formSequence;
+        this.formModifications = formModifications;
+        this.firstForm = firstForm;
+        this.formOffsets = formOffsets;
+        this.assays = assays;
+        this.clusterId = clusterId;
+        this.assaySlot = assaySlot;
+        this.rank = rank;
+        this.psmRatio = psmRatio;
+        this.deltaMZ = deltaMZ;
+        this.numberOfSpectra = numberOfSpectra;
+        this.clusterNumberSpectra = clusterNumberSpectra;
+        this.clusterNumberProjects = clusterNumberProjects;
+        this.clusterNumberPSMs = clusterNumberPSMs;
+    }
+
+    /**
+     * Number of PeptideForms of the release, see {@link #getFirstPeptideForm()} and {@link #getEndPeptideForm()}
+     * for the PeptideForms with rows in this store
+     */
+    public int getNumberPeptideForms() {
+        return formSequence.length;
+    }
+
+    public int getFirstPeptideForm() {
+        return firstForm;
+    }
+
+    public int getEndPeptideForm() {
+        return firstForm + formOffsets.length - 1;
+    }
+
+    public int getNumberPSMs() {
+        return clusterId.length;
+    }
+
+    public int getFirstRow(int peptideForm) {
+        return formOffsets[peptideForm - firstForm];
+    }
+
+    public int getEndRow(int peptideForm) {
+        return formOffsets[peptideForm - firstForm + 1];
+    }
+
+    public int getSequenceId(int peptideForm) {
+        return formSequence[peptideForm];
+    }
+
+    public String getSequence(int peptideForm) {
+        return sequences.decode(formSequence[peptideForm]);
+    }
+
+    public List<ModificationProvider> getModifications(int peptideForm) {
+        return formModifications.get(peptideForm);
+    }
+
+    public long getClusterId(int row) {
+        return clusterId[row];
+    }
+
+    public int getAssaySlot(int row) {
+        return assaySlot[row];
+    }
+
+    public int getProjectCode(int row) {
+        return assays.getProjectCode(assaySlot[row]);
+    }
+
+    /**
+     * Project accession of the assay of a PSM
+     * @param row the PSM
+     * @return project accession or null if the assay is not known
+     */
+    public String getProjectAccession(int row) {
+        return assays.getProjects().decode(getProjectCode(row));
+    }
+
+    public int getTaxonomyListCode(int row) {
+        return assays.getTaxonomyListCode(assaySlot[row]);
+    }
+
+    /**
+     * Comma separated taxonomy identifiers of the assay of a PSM, as provided by the assay
+     * @param row the PSM
+     * @return the taxonomies or null if they are not known
+     */
+    public String getTaxonomyId(int row) {
+        return assays.getTaxonomyLists().decode(getTaxonomyListCode(row));
+    }
+
+    /**
+     * Taxonomy codes of the assay of a PSM
+     * @param row the PSM
+     * @return codes of the taxonomy dictionary, empty if the taxonomies are not known
+     */
+    public int[] getTaxonomyIds(int row) {
+        return assays.getTaxonomyIds(assaySlot[row]);
+    }
+
+    /**
+     * True if the assay of the PSM has more than one taxonomy
+     */
+    public boolean isMultitaxonomy(int row) {
+        return assays.isMultitaxonomy(assaySlot[row]);
+    }
+
+    public float getRank(int row) {
+        return rank[row];
+    }
+
+    public float getPsmRatio(int row) {
+        return psmRatio[row];
+    }
+
+    /**
+     * Delta m/z of the PSM
+     * @param row the PSM
+     * @return delta m/z or null if it is not available
+     */
+    public Float getDeltaMZ(int row) {
+        return Float.isNaN(deltaMZ[row]) ? null : deltaMZ[row];
+    }
+
+    public int getNumberOfSpectra(int row) {
+        return numberOfSpectra[row];
+    }
+
+    public int getClusterNumberSpectra(int row) {
+        return clusterNumberSpectra[row];
+    }
+
+    public int getClusterNumberProjects(int row) {
+        return clusterNumberProjects[row];
+    }
+
+    public int getClusterNumberPSMs(int row) {
+        return clusterNumberPSMs[row];
+    }
+
+    public StringDictionary getSequences() {
+        return sequences;
+    }
+
+    public AssayIndex getAssayIndex() {
+        return assays;
+    }
+
+    public StringDictionary getProjects() {
+        return assays.getProjects();
+    }
+
+    public StringDictionary getTaxonomies() {
+        return assays.getTaxonomies();
+    }
+
+    /**
+     * The rows of a set of clusters, e.g. the clusters of a quality decided locally. The PeptideForms of the
+     * store are kept, with no rows if none of their clusters is kept, and the dictionaries are shared.
+     * @param clusterIds the clusters to keep, sorted
+     * @return a store with the rows of the clusters, this store if all its rows are kept
+     */
+    public ClusteredPSMStore retainClusters(long[] clusterIds) {
+        int numberForms = formOffsets.length - 1;
+        int[] retainedOffsets = new int[numberForms + 1];
+        int[] rows = new int[clusterId.length];
+        int size = 0;
+
+        // The rows of a PeptideForm are sorted by cluster, a cluster is searched once by PeptideForm
+        for (int form = 0; form < numberForms; form++) {
+            long currentCluster = 0;
+            boolean retained = false;
+            for (int row = formOffsets[form]; row < formOffsets[form + 1]; row++) {
+                if (row == formOffsets[form] || clusterId[row] != currentCluster) {
+                    currentCluster = clusterId[row];
+                    retained = Arrays.binarySearch(clusterIds, currentCluster) >= 0;
+                }
+                if (retained)
+                    rows[size++] = row;
+            }
+            retainedOffsets[form + 1] = size;
+        }
+        if (size == clusterId.length)
+            return this;
+
+        return new ClusteredPSMStore(sequences, formSequence, formModifications, firstForm, retainedOffsets, assays,
+                select(clusterId, rows, size), select(assaySlot, rows, size), select(rank, rows, size),
+                select(psmRatio, rows, size), select(deltaMZ, rows, size), select(numberOfSpectra, rows, size),
+                select(clusterNumberSpectra, rows, size), select(clusterNumberProjects, rows, size),
+                select(clusterNumberPSMs, rows, size));
+    }
+
+    private static long[] select(long[] values, int[] rows, int size) {
+        long[] selected = new long[size];
+        for (int i = 0; i < size; i++)
+            selected[i] = values[rows[i]];
+        return selected;
+    }
+
+    private static int[] select(int[] values, int[] rows, int size) {
+        int[] selected = new int[size];
+        for (int i = 0; i < size; i++)
+            selected[i] = values[rows[i]];
+        return selected;
+    }
+
+    private static float[] select(float[] values, int[] rows, int size) {
+        float[] selected = new float[size];
+        for (int i = 0; i < size; i++)
+            selected[i] = values[rows[i]];
+        return selected;
+    }
+
+    /**
+     * Inverted index taxonomy -> PeptideForms of the store, it is built the first time it is requested
+     */
+    public TaxonomyFormIndex getTaxonomyFormIndex() {
+        TaxonomyFormIndex index = taxonomyFormIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = taxonomyFormIndex;
+                if (index == null) {
+                    index = new TaxonomyFormIndex(this);
+                    taxonomyFormIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Cluster evidences of the PeptideForms of the store for a filter, the view of the last filter is kept
+     * @param maxRank maximum rank
+     * @param minPsmRatio minimum PSM ratio (exclusive)
+     */
+    public EvidenceView getEvidenceView(float maxRank, float minPsmRatio) {
+        EvidenceView view = evidenceView;
+        if (view == null || !view.hasFilter(maxRank, minPsmRatio)) {
+            synchronized (this) {
+                view = evidenceView;
+                if (view == null || !view.hasFilter(maxRank, minPsmRatio)) {
+                    view = new EvidenceView(this, maxRank, minPsmRatio);
+                    evidenceView = view;
+                }
+            }
+        }
+        return view;
+    }
+}
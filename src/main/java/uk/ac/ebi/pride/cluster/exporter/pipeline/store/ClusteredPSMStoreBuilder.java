@@ -0,0 +1,402 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.archive.dataprovider.param.CvParamProvider;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusteredPSMReport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builder of the {@link ClusteredPSMStore}. The ranked PSMs are appended one by one, the PeptideForm
+ * of every PSM is identified by its sequence and modifications, and the rows are grouped by PeptideForm
+ * and sorted by cluster ID when the store is built.
+ *
+ * Sequences are dictionary encoded while the PSMs are appended, the assay of every PSM is stored
+ * as its slot in the {@link AssayIndex}.
+ *
+ * When a spill directory is given, the rows are written to disk in sorted runs every time the builder
+ * holds spillRows rows, and the release is built as {@link ExternalPSMSegments} instead of a single
+ * in-memory store.
+ *
+ * The clusters ranked apart by several workers are appended as {@link RankedPSMBlock}s, see
+ * {@link #add(RankedPSMBlock, long[], long[])}.
+ *
+ * NOTE: the builder is not thread safe.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusteredPSMStoreBuilder implements ClusterRankEngine.RankedPSMSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusteredPSMStoreBuilder.class);
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    static final long UNKNOWN_ASSAY = Long.MIN_VALUE;
+
+    private static final Comparator<Integer> POSITION_ORDER = Comparator.nullsFirst(Comparator.<Integer>naturalOrder());
+
+    private static final Comparator<Map.Entry<Integer, String>> MODIFICATION_POSITION_ORDER =
+            Comparator.comparing((Map.Entry<Integer, String> position) -> position.getKey(), POSITION_ORDER)
+                    .thenComparing(Map.Entry::getValue);
+
+    private final AssayIndex assays;
+
+    // Spilled runs, no run is spilled if the spill directory is null
+    private final File spillDirectory;
+    private final int spillRows;
+    private final List<File> runs = new ArrayList<File>();
+
+    // Dictionaries of sequences and PeptideForms
+    private final StringDictionary sequences = new StringDictionary();
+    private final Map<String, Integer> formIds = new HashMap<String, Integer>();
+    private int[] formSequence = new int[INITIAL_CAPACITY];
+    private final List<List<ModificationProvider>> formModifications = new ArrayList<List<ModificationProvider>>();
+
+    // Rows
+    private int size = 0;
+    private int[] peptideForm = new int[INITIAL_CAPACITY];
+    private long[] clusterId = new long[INITIAL_CAPACITY];
+    private int[] assaySlot = new int[INITIAL_CAPACITY];
+    private float[] rank = new float[INITIAL_CAPACITY];
+    private float[] psmRatio = new float[INITIAL_CAPACITY];
+    private float[] deltaMZ = new float[INITIAL_CAPACITY];
+    private int[] numberOfSpectra = new int[INITIAL_CAPACITY];
+    private int[] clusterNumberSpectra = new int[INITIAL_CAPACITY];
+    private int[] clusterNumberProjects = new int[INITIAL_CAPACITY];
+    private int[] clusterNumberPSMs = new int[INITIAL_CAPACITY];
+
+    /**
+     * @param assays the index of the assays of the release
+     */
+    public ClusteredPSMStoreBuilder(AssayIndex assays) {
+        this(assays, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param assays the index of the assays of the release
+     * @param spillDirectory directory for the spilled runs, null to keep all the rows in memory
+     * @param spillRows maximum number of rows kept in memory before spilling a run
+     */
+    public ClusteredPSMStoreBuilder(AssayIndex assays, File spillDirectory, int spillRows) {
+        if (spillRows <= 0)
+            throw new IllegalArgumentException("The number of rows before spilling must be positive: " + spillRows);
+        this.assays = assays;
+        this.spillDirectory = spillDirectory;
+        this.spillRows = spillRows;
+    }
+
+    /**
+     * Append a ranked PSM, the modifications of the PSM must be already anchored.
+     * @param psm the clustered PSM
+     */
+    public void add(ClusteredPSMReport psm) {
+        Long assay = psm.getAssayID();
+        Float delta = psm.getDeltaMZ();
+
+        add(psm.getSequence(), psm.getModifications(), psm.getClusterId(),
+                (assay == null) ? UNKNOWN_ASSAY : assay,
+                psm.getRank(), psm.getPsmRatio(), (delta == null) ? Float.NaN : delta,
+                psm.getNumberOfSpectra(), psm.getClusterNumberSpectra(), psm.getClusterNumberProjects(), psm.getClusterNumberPSMs());
+    }
+
+    /**
+     * Append a ranked PSM
+     */
+    public void add(String sequence, List<ModificationProvider> modifications, long cluster, long assay,
+                    float psmRank, float ratio, float delta,
+                    int spectra, int clusterSpectra, int clusterProjects, int clusterPSMs) {
+        add(peptideFormId(sequence, modifications), cluster, assay, psmRank, ratio, delta,
+                spectra, clusterSpectra, clusterProjects, clusterPSMs);
+    }
+
+    /**
+     * Append the ranked PSMs of a block, in the order of the block. The PeptideForms of the block are
+     * registered in the order they were found in the block.
+     * @param block the ranked PSMs of some clusters
+     * @param clusterIds the cluster ID of every cluster code of the block
+     * @param assayIds the assay ID of every assay code of the block
+     */
+    public void add(RankedPSMBlock block, long[] clusterIds, long[] assayIds) {
+        int[] forms = new int[block.getNumberPeptideForms()];
+        for (int form = 0; form < forms.length; form++)
+            forms[form] = peptideFormId(block.getKey(form), block.getSequence(form), block.getModifications(form));
+
+        for (int row = 0; row < block.size(); row++) {
+            long assay = block.assay[row];
+            add(forms[block.peptideForm[row]], clusterIds[(int) block.cluster[row]],
+                    (assay == UNKNOWN_ASSAY) ? UNKNOWN_ASSAY : assayIds[(int) assay],
+                    block.rank[row], block.psmRatio[row], block.deltaMZ[row], block.numberOfSpectra[row],
+                    block.clusterNumberSpectra[row], block.clusterNumberProjects[row], block.clusterNumberPSMs[row]);
+        }
+    }
+
+    /**
+     * Append a ranked PSM of a PeptideForm already registered with {@link #peptideFormId(String, List)}
+     */
+    @Override
+    public void add(int form, long cluster, long assay, float psmRank, float ratio, float delta,
+                    int spectra, int clusterSpectra, int clusterProjects, int clusterPSMs) {
+        if (spillDirectory != null && size >= spillRows)
+            spill();
+        ensureCapacity(size + 1);
+
+        peptideForm[size] = form;
+        clusterId[size] = cluster;
+        assaySlot[size] = (assay == UNKNOWN_ASSAY) ? AssayIndex.NO_SLOT : assays.slot(assay);
+        rank[size] = psmRank;
+        psmRatio[size] = ratio;
+        deltaMZ[size] = delta;
+        numberOfSpectra[size] = spectra;
+        clusterNumberSpectra[size] = clusterSpectra;
+        clusterNumberProjects[size] = clusterProjects;
+        clusterNumberPSMs[size] = clusterPSMs;
+        size++;
+    }
+
+    /**
+     * ID of a PeptideForm, a new ID is assigned if the PeptideForm has not been seen before. The modifications
+     * of the first PSM of a PeptideForm are the ones kept in the store.
+     */
+    @Override
+    public int peptideFormId(String sequence, List<ModificationProvider> modifications) {
+        return peptideFormId(peptideFormKey(sequence, modifications), sequence, modifications);
+    }
+
+    /**
+     * ID of a PeptideForm whose key is known, see {@link #peptideFormKey(String, List)}
+     */
+    private int peptideFormId(String key, String sequence, List<ModificationProvider> modifications) {
+        Integer id = formIds.get(key);
+        if (id == null) {
+            id = formModifications.size();
+            formIds.put(key, id);
+            formModifications.add(modifications);
+            if (id == formSequence.length)
+                formSequence = Arrays.copyOf(formSequence, id * 2);
+            formSequence[id] = sequences.encode(sequence);
+        }
+        return id;
+    }
+
+    /**
+     * Key of a PeptideForm: the sequence and every modification, with its positions, accession, main position,
+     * name and neutral loss, sorted by position, so the same modifications given in a different order are the
+     * same PeptideForm. As in the equality of the modifications, a modification at several positions is not the
+     * same as one modification by position, and a modification given twice is kept twice.
+     */
+    static String peptideFormKey(String sequence, List<ModificationProvider> modifications) {
+        if (modifications == null || modifications.isEmpty())
+            return sequence + "|null";
+
+        // (first position, "positions-accession/main position/name/neutral loss") of every modification
+        List<Map.Entry<Integer, String>> positions = new ArrayList<Map.Entry<Integer, String>>(modifications.size());
+        for (ModificationProvider modification : modifications) {
+            Map<Integer, CvParamProvider> positionMap = modification.getPositionMap();
+            List<Integer> modificationPositions = (positionMap == null) ? Collections.<Integer>emptyList()
+                    : new ArrayList<Integer>(positionMap.keySet());
+            modificationPositions.sort(POSITION_ORDER);
+            StringBuilder entry = new StringBuilder();
+            for (int i = 0; i < modificationPositions.size(); i++) {
+                if (i > 0)
+                    entry.append(';');
+                entry.append(modificationPositions.get(i));
+                CvParamProvider param = positionMap.get(modificationPositions.get(i));
+                if (param != null)
+                    appendParam(entry.append(':'), param);
+            }
+            entry.append('-').append(modification.getAccession())
+                    .append('/').append(modification.getMainPosition())
+                    .append('/').append(modification.getName()).append('/');
+            appendParam(entry, modification.getNeutralLoss());
+            positions.add(new AbstractMap.SimpleEntry<Integer, String>(
+                    modificationPositions.isEmpty() ? null : modificationPositions.get(0), entry.toString()));
+        }
+        positions.sort(MODIFICATION_POSITION_ORDER);
+
+        StringBuilder key = new StringBuilder().append(sequence).append('|');
+        for (int i = 0; i < positions.size(); i++) {
+            if (i > 0)
+                key.append(',');
+            key.append(positions.get(i).getValue());
+        }
+        return key.toString();
+    }
+
+    private static void appendParam(StringBuilder key, CvParamProvider param) {
+        if (param == null)
+            key.append("null");
+        else
+            key.append(param.getCvLabel()).append(':').append(param.getAccession()).append('=').append(param.getValue());
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= clusterId.length)
+            return;
+        int newCapacity = Math.max(capacity, clusterId.length + (clusterId.length >> 1));
+        peptideForm = Arrays.copyOf(peptideForm, newCapacity);
+        clusterId = Arrays.copyOf(clusterId, newCapacity);
+        assaySlot = Arrays.copyOf(assaySlot, newCapacity);
+        rank = Arrays.copyOf(rank, newCapacity);
+        psmRatio = Arrays.copyOf(psmRatio, newCapacity);
+        deltaMZ = Arrays.copyOf(deltaMZ, newCapacity);
+        numberOfSpectra = Arrays.copyOf(numberOfSpectra, newCapacity);
+        clusterNumberSpectra = Arrays.copyOf(clusterNumberSpectra, newCapacity);
+        clusterNumberProjects = Arrays.copyOf(clusterNumberProjects, newCapacity);
+        clusterNumberPSMs = Arrays.copyOf(clusterNumberPSMs, newCapacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNumberRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Sort the rows in memory and write them to a new run
+     */
+    private void spill() {
+        int[] order = sortRows(new int[formModifications.size() + 1]);
+        try {
+            File run = File.createTempFile("clustered-psms-", ".run", spillDirectory);
+            run.deleteOnExit();
+            ExternalPSMSegments.writeRun(run, order, peptideForm, clusterId, assaySlot, rank, psmRatio, deltaMZ,
+                    numberOfSpectra, clusterNumberSpectra, clusterNumberProjects, clusterNumberPSMs);
+            runs.add(run);
+            logger.debug("Spilled run " + runs.size() + " of " + size + " PSMs (" + ((long) size * ExternalPSMSegments.RECORD_BYTES) + " bytes) to " + run.getAbsolutePath());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error spilling clustered PSMs to " + spillDirectory, e);
+        }
+        size = 0;
+    }
+
+    /**
+     * Group the rows by PeptideForm, sort them by cluster ID and build the segments of the release. If no
+     * run has been spilled the release is a single in-memory store. The builder should not be used after
+     * this call.
+     * @return the segments
+     */
+    public Iterable<ClusteredPSMStore> buildSegments() {
+        if (runs.isEmpty())
+            return Collections.singletonList(build());
+
+        if (size > 0)
+            spill();
+        int numberForms = formModifications.size();
+        logger.debug("Clustered PSMs spilled in " + runs.size() + " runs");
+        return new ExternalPSMSegments(sequences, Arrays.copyOf(formSequence, numberForms), formModifications, assays,
+                new ArrayList<File>(runs), spillRows);
+    }
+
+    /**
+     * Group the rows by PeptideForm, sort them by cluster ID and build the store. The builder
+     * should not be used after this call.
+     * @return the store
+     */
+    public ClusteredPSMStore build() {
+        if (!runs.isEmpty())
+            throw new IllegalStateException("The clustered PSMs have been spilled to disk, the segments must be built");
+
+        int numberForms = formModifications.size();
+        int[] formOffsets = new int[numberForms + 1];
+        int[] order = sortRows(formOffsets);
+        peptideForm = null;
+
+        return new ClusteredPSMStore(sequences, Arrays.copyOf(formSequence, numberForms), formModifications, 0, formOffsets,
+                assays, permute(clusterId, order), permute(assaySlot, order),
+                permute(rank, order), permute(psmRatio, order), permute(deltaMZ, order),
+                permute(numberOfSpectra, order), permute(clusterNumberSpectra, order), permute(clusterNumberProjects, order), permute(clusterNumberPSMs, order));
+    }
+
+    /**
+     * Sort the rows in memory by PeptideForm and cluster ID
+     * @param formOffsets filled with the first row of every PeptideForm, it must have a position by PeptideForm plus one
+     * @return the rows in order
+     */
+    private int[] sortRows(int[] formOffsets) {
+        int numberForms = formOffsets.length - 1;
+
+        // Counting sort of the rows by PeptideForm, stable so rows appended by cluster stay sorted
+        for (int row = 0; row < size; row++)
+            formOffsets[peptideForm[row] + 1]++;
+        for (int form = 0; form < numberForms; form++)
+            formOffsets[form + 1] += formOffsets[form];
+
+        int[] order = new int[size];
+        int[] next = Arrays.copyOf(formOffsets, numberForms);
+        for (int row = 0; row < size; row++)
+            order[next[peptideForm[row]]++] = row;
+
+        for (int form = 0; form < numberForms; form++)
+            sortByKey(order, formOffsets[form], formOffsets[form + 1], clusterId);
+        return order;
+    }
+
+    /**
+     * Sort the positions [from, to) of index by the value of key, the sort is skipped when the
+     * range is already sorted
+     */
+    static void sortByKey(int[] index, int from, int to, long[] key) {
+        boolean sorted = true;
+        for (int i = from + 1; i < to && sorted; i++)
+            sorted = key[index[i - 1]] <= key[index[i]];
+        if (sorted)
+            return;
+
+        if (to - from < 32) {
+            for (int i = from + 1; i < to; i++) {
+                int current = index[i];
+                int j = i - 1;
+                while (j >= from && key[index[j]] > key[current]) {
+                    index[j + 1] = index[j];
+                    j--;
+                }
+                index[j + 1] = current;
+            }
+            return;
+        }
+
+        // Sort (key, index) pairs of the range, the index breaks the ties so the sort is stable
+        long[][] pairs = new long[to - from][];
+        for (int i = from; i < to; i++)
+            pairs[i - from] = new long[]{key[index[i]], index[i]};
+        Arrays.sort(pairs, (a, b) -> (a[0] != b[0]) ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        for (int i = from; i < to; i++)
+            index[i] = (int) pairs[i - from][1];
+    }
+
+    private int[] permute(int[] values, int[] order) {
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++)
+            result[i] = values[order[i]];
+        return result;
+    }
+
+    private long[] permute(long[] values, int[] order) {
+        long[] result = new long[order.length];
+        for (int i = 0; i < order.length; i++)
+            result[i] = values[order[i]];
+        return result;
+    }
+
+    private float[] permute(float[] values, int[] order) {
+        float[] result = new float[order.length];
+        for (int i = 0; i < order.length; i++)
+            result[i] = values[order[i]];
+        return result;
+    }
+}
@@ -0,0 +1,221 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import java.util.Arrays;
+
+/**
+ * Cluster evidences of every PeptideForm of a {@link ClusteredPSMStore}, for a rank and PSM ratio filter.
+ * The evidences of a PeptideForm are the PSMs that pass the filter, keeping one PSM by cluster (the
+ * first one of the cluster). The view is computed once and shared by all the sections of the files:
+ *
+ * - the evidence rows of every PeptideForm, sorted by cluster ID
+ * - the best rank, the best PSM ratio and the number of spectra of the evidences
+ * - the taxonomies and projects of the evidences, as sorted and distinct positions of the taxonomy and
+ *   project dictionaries (see {@link StringDictionary#sortedPosition(int)})
+ * - if any PSM passing the filter, duplicated clusters included, comes from a multitaxonomy assay
+ *
+ * All the lists are stored as compressed rows indexed by PeptideForm.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class EvidenceView {
+
+    private final ClusteredPSMStore store;
+    private final float maxRank;
+    private final float minPsmRatio;
+
+    private final int firstForm;
+
+    // Evidences of the form f are evidenceRows[evidenceOffsets[f - firstForm], evidenceOffsets[f - firstForm + 1])
+    private final int[] evidenceOffsets;
+    private int[] evidenceRows;
+
+    private final float[] bestRank;
+    private final float[] bestRatio;
+    private final int[] numberSpectra;
+
+    private final int[] taxonomyOffsets;
+    private int[] taxonomyPositions;
+    private final int[] projectOffsets;
+    private int[] projectPositions;
+
+    private final boolean[] multitaxonomyEvidence;
+
+    /**
+     * Compute the evidences of all the PeptideForms of a store
+     * @param store the clustered PSMs
+     * @param maxRank maximum rank
+     * @param minPsmRatio minimum PSM ratio (exclusive)
+     */
+    EvidenceView(ClusteredPSMStore store, float maxRank, float minPsmRatio) {
+        this.store = store;
+        this.maxRank = maxRank;
+        this.minPsmRatio = minPsmRatio;
+        this.firstForm = store.getFirstPeptideForm();
+
+        int numberForms = store.getEndPeptideForm() - firstForm;
+        evidenceOffsets = new int[numberForms + 1];
+        evidenceRows = new int[Math.max(16, store.getNumberPSMs() / 4)];
+        bestRank = new float[numberForms];
+        bestRatio = new float[numberForms];
+        numberSpectra = new int[numberForms];
+        taxonomyOffsets = new int[numberForms + 1];
+        taxonomyPositions = new int[Math.max(16, numberForms)];
+        projectOffsets = new int[numberForms + 1];
+        projectPositions = new int[Math.max(16, numberForms)];
+        multitaxonomyEvidence = new boolean[numberForms];
+
+        StringDictionary taxonomies = store.getTaxonomies();
+        StringDictionary projects = store.getProjects();
+        int numberEvidences = 0;
+        int numberTaxonomies = 0;
+        int numberProjects = 0;
+
+        for (int form = 0; form < numberForms; form++) {
+            float formBestRank = Float.MAX_VALUE;
+            float formBestRatio = Float.MIN_VALUE;
+            int formSpectra = 0;
+            int firstEvidence = numberEvidences;
+
+            for (int row = store.getFirstRow(firstForm + form); row < store.getEndRow(firstForm + form); row++) {
+                if (!accepts(row))
+                    continue;
+                float rank = store.getRank(row);
+                float psmRatio = store.getPsmRatio(row);
+                if (store.isMultitaxonomy(row))
+                    multitaxonomyEvidence[form] = true;
+                if (numberEvidences > firstEvidence && store.getClusterId(evidenceRows[numberEvidences - 1]) == store.getClusterId(row))
+                    continue;
+
+                if (numberEvidences == evidenceRows.length)
+                    evidenceRows = Arrays.copyOf(evidenceRows, numberEvidences * 2);
+                evidenceRows[numberEvidences++] = row;
+
+                formBestRank = (rank < formBestRank) ? rank : formBestRank;
+                formBestRatio = (psmRatio > formBestRatio) ? psmRatio : formBestRatio;
+                formSpectra += store.getNumberOfSpectra(row);
+
+                for (int taxonomy : store.getTaxonomyIds(row)) {
+                    if (numberTaxonomies == taxonomyPositions.length)
+                        taxonomyPositions = Arrays.copyOf(taxonomyPositions, numberTaxonomies * 2);
+                    taxonomyPositions[numberTaxonomies++] = taxonomies.sortedPosition(taxonomy);
+                }
+                int project = store.getProjectCode(row);
+                if (project != StringDictionary.NULL_CODE) {
+                    if (numberProjects == projectPositions.length)
+                        projectPositions = Arrays.copyOf(projectPositions, numberProjects * 2);
+                    projectPositions[numberProjects++] = projects.sortedPosition(project);
+                }
+            }
+
+            evidenceOffsets[form + 1] = numberEvidences;
+            bestRank[form] = formBestRank;
+            bestRatio[form] = formBestRatio;
+            numberSpectra[form] = formSpectra;
+            numberTaxonomies = taxonomyOffsets[form] + sortDistinct(taxonomyPositions, taxonomyOffsets[form], numberTaxonomies);
+            taxonomyOffsets[form + 1] = numberTaxonomies;
+            numberProjects = projectOffsets[form] + sortDistinct(projectPositions, projectOffsets[form], numberProjects);
+            projectOffsets[form + 1] = numberProjects;
+        }
+    }
+
+    /**
+     * Sort the values [from, to) of the array and remove the duplicates
+     * @return the number of distinct values, stored from the position from
+     */
+    private static int sortDistinct(int[] values, int from, int to) {
+        Arrays.sort(values, from, to);
+        int distinct = 0;
+        for (int i = from; i < to; i++) {
+            if (distinct == 0 || values[from + distinct - 1] != values[i])
+                values[from + distinct++] = values[i];
+        }
+        return distinct;
+    }
+
+    /**
+     * True if a PSM passes the rank and PSM ratio filter of the view
+     * @param row the PSM
+     */
+    public boolean accepts(int row) {
+        return store.getRank(row) <= maxRank && store.getPsmRatio(row) > minPsmRatio;
+    }
+
+    /**
+     * True if the view was computed with the given filter
+     */
+    public boolean hasFilter(float maxRank, float minPsmRatio) {
+        return Float.compare(this.maxRank, maxRank) == 0 && Float.compare(this.minPsmRatio, minPsmRatio) == 0;
+    }
+
+    public ClusteredPSMStore getStore() {
+        return store;
+    }
+
+    public int getNumberEvidences(int peptideForm) {
+        return evidenceOffsets[peptideForm - firstForm + 1] - evidenceOffsets[peptideForm - firstForm];
+    }
+
+    /**
+     * Row of an evidence
+     * @param peptideForm the PeptideForm
+     * @param evidence the evidence, from 0 to getNumberEvidences(peptideForm)
+     */
+    public int getEvidenceRow(int peptideForm, int evidence) {
+        return evidenceRows[evidenceOffsets[peptideForm - firstForm] + evidence];
+    }
+
+    /**
+     * Best rank of the evidences, Float.MAX_VALUE if the PeptideForm has no evidences
+     */
+    public float getBestRank(int peptideForm) {
+        return bestRank[peptideForm - firstForm];
+    }
+
+    /**
+     * Best PSM ratio of the evidences, Float.MIN_VALUE if the PeptideForm has no evidences
+     */
+    public float getBestRatio(int peptideForm) {
+        return bestRatio[peptideForm - firstForm];
+    }
+
+    /**
+     * Number of spectra of the evidences
+     */
+    public int getNumberSpectra(int peptideForm) {
+        return numberSpectra[peptideForm - firstForm];
+    }
+
+    public int getNumberTaxonomies(int peptideForm) {
+        return taxonomyOffsets[peptideForm - firstForm + 1] - taxonomyOffsets[peptideForm - firstForm];
+    }
+
+    /**
+     * Sorted position in the taxonomy dictionary of a taxonomy of the evidences, the taxonomies are sorted
+     * @param peptideForm the PeptideForm
+     * @param taxonomy the taxonomy, from 0 to getNumberTaxonomies(peptideForm)
+     */
+    public int getTaxonomyPosition(int peptideForm, int taxonomy) {
+        return taxonomyPositions[taxonomyOffsets[peptideForm - firstForm] + taxonomy];
+    }
+
+    public int getNumberProjects(int peptideForm) {
+        return projectOffsets[peptideForm - firstForm + 1] - projectOffsets[peptideForm - firstForm];
+    }
+
+    /**
+     * Sorted position in the project dictionary of a project of the evidences, the projects are sorted
+     * @param peptideForm the PeptideForm
+     * @param project the project, from 0 to getNumberProjects(peptideForm)
+     */
+    public int getProjectPosition(int peptideForm, int project) {
+        return projectPositions[projectOffsets[peptideForm - firstForm] + project];
+    }
+
+    /**
+     * True if any PSM passing the filter comes from a multitaxonomy assay
+     */
+    public boolean hasMultitaxonomyEvidence(int peptideForm) {
+        return multitaxonomyEvidence[peptideForm - firstForm];
+    }
+}
@@ -0,0 +1,264 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Clustered PSMs of a release spilled to disk in sorted runs. Every run is a file of fixed size
+ * records sorted by (PeptideForm, cluster ID), see {@link #writeRun}. The runs are merged (k-way merge)
+ * every time the segments are iterated, and the merged rows are handed out as {@link ClusteredPSMStore}
+ * segments of about segmentRows rows. The rows of a PeptideForm are never split between segments.
+ *
+ * The PeptideForm index, the dictionaries and the assay index stay in memory and are shared by all the
+ * segments, only the PSMs are kept on disk.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ExternalPSMSegments implements Iterable<ClusteredPSMStore>, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExternalPSMSegments.class);
+
+    /** Size of a record: form, cluster ID, assay slot, rank, ratio, delta m/z and four counts */
+    static final int RECORD_BYTES = 4 + 8 + 4 + 4 + 4 + 4 + 4 * 4;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final StringDictionary sequences;
+    private final int[] formSequence;
+    private final List<List<ModificationProvider>> formModifications;
+    private final AssayIndex assays;
+
+    private final List<File> runs;
+    private final int segmentRows;
+
+    ExternalPSMSegments(StringDictionary sequences, int[] formSequence, List<List<ModificationProvider>> formModifications,
+                        AssayIndex assays, List<File> runs, int segmentRows) {
+        this.sequences = sequences;
+        this.formSequence = formSequence;
+        this.formModifications = formModifications;
+        this.assays = assays;
+        this.runs = runs;
+        this.segmentRows = Math.max(1, segmentRows);
+    }
+
+    /**
+     * Write the rows of a run in the given order
+     */
+    static void writeRun(File file, int[] order, int[] peptideForm, long[] clusterId, int[] assaySlot,
+                         float[] rank, float[] psmRatio, float[] deltaMZ,
+                         int[] numberOfSpectra, int[] clusterNumberSpectra, int[] clusterNumberProjects, int[] clusterNumberPSMs) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE))) {
+            for (int row : order) {
+                out.writeInt(peptideForm[row]);
+                out.writeLong(clusterId[row]);
+                out.writeInt(assaySlot[row]);
+                out.writeFloat(rank[row]);
+                out.writeFloat(psmRatio[row]);
+                out.writeFloat(deltaMZ[row]);
+                out.writeInt(numberOfSpectra[row]);
+                out.writeInt(clusterNumberSpectra[row]);
+                out.writeInt(clusterNumberProjects[row]);
+                out.writeInt(clusterNumberPSMs[row]);
+            }
+        }
+    }
+
+    public int getNumberRuns() {
+        return runs.size();
+    }
+
+    @Override
+    public Iterator<ClusteredPSMStore> iterator() {
+        try {
+            return new SegmentIterator();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening the spilled clustered PSMs", e);
+        }
+    }
+
+    /**
+     * Delete the runs
+     */
+    @Override
+    public void close() {
+        for (File run : runs) {
+            if (!run.delete())
+                logger.warn("The spilled run " + run.getAbsolutePath() + " could not be deleted");
+        }
+    }
+
+    /**
+     * Reader of a run, it holds the current record
+     */
+    private static class RunReader {
+
+        private final int index;
+        private final DataInputStream in;
+
+        int form;
+        long clusterId;
+        int assaySlot;
+        float rank;
+        float psmRatio;
+        float deltaMZ;
+        int numberOfSpectra;
+        int clusterNumberSpectra;
+        int clusterNumberProjects;
+        int clusterNumberPSMs;
+
+        RunReader(int index, File file) throws IOException {
+            this.index = index;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * Read the next record
+         * @return false at the end of the run
+         */
+        boolean next() throws IOException {
+            try {
+                form = in.readInt();
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+            clusterId = in.readLong();
+            assaySlot = in.readInt();
+            rank = in.readFloat();
+            psmRatio = in.readFloat();
+            deltaMZ = in.readFloat();
+            numberOfSpectra = in.readInt();
+            clusterNumberSpectra = in.readInt();
+            clusterNumberProjects = in.readInt();
+            clusterNumberPSMs = in.readInt();
+            return true;
+        }
+
+        /**
+         * Order of the merge, the runs were written in order so ties keep the order of the rows
+         */
+        int compareTo(RunReader other) {
+            if (form != other.form)
+                return Integer.compare(form, other.form);
+            if (clusterId != other.clusterId)
+                return Long.compare(clusterId, other.clusterId);
+            return Integer.compare(index, other.index);
+        }
+    }
+
+    /**
+     * Merge the runs and cut the merged rows in segments
+     */
+    private class SegmentIterator implements Iterator<ClusteredPSMStore> {
+
+        private final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()), RunReader::compareTo);
+
+        // First PeptideForm of the next segment
+        private int nextForm = 0;
+
+        SegmentIterator() throws IOException {
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader reader = new RunReader(i, runs.get(i));
+                if (reader.next())
+                    queue.add(reader);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public ClusteredPSMStore next() {
+            if (queue.isEmpty())
+                throw new NoSuchElementException();
+            try {
+                return readSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading the spilled clustered PSMs", e);
+            }
+        }
+
+        private ClusteredPSMStore readSegment() throws IOException {
+            int capacity = Math.min(segmentRows, 1024);
+            int[] form = new int[capacity];
+            long[] clusterId = new long[capacity];
+            int[] assaySlot = new int[capacity];
+            float[] rank = new float[capacity];
+            float[] psmRatio = new float[capacity];
+            float[] deltaMZ = new float[capacity];
+            int[] numberOfSpectra = new int[capacity];
+            int[] clusterNumberSpectra = new int[capacity];
+            int[] clusterNumberProjects = new int[capacity];
+            int[] clusterNumberPSMs = new int[capacity];
+
+            // The segment is closed at the first PeptideForm boundary after segmentRows rows
+            int size = 0;
+            while (!queue.isEmpty() && (size < segmentRows || queue.peek().form == form[size - 1])) {
+                RunReader reader = queue.poll();
+                if (size == form.length) {
+                    int newCapacity = size * 2;
+                    form = Arrays.copyOf(form, newCapacity);
+                    clusterId = Arrays.copyOf(clusterId, newCapacity);
+                    assaySlot = Arrays.copyOf(assaySlot, newCapacity);
+                    rank = Arrays.copyOf(rank, newCapacity);
+                    psmRatio = Arrays.copyOf(psmRatio, newCapacity);
+                    deltaMZ = Arrays.copyOf(deltaMZ, newCapacity);
+                    numberOfSpectra = Arrays.copyOf(numberOfSpectra, newCapacity);
+                    clusterNumberSpectra = Arrays.copyOf(clusterNumberSpectra, newCapacity);
+                    clusterNumberProjects = Arrays.copyOf(clusterNumberProjects, newCapacity);
+                    clusterNumberPSMs = Arrays.copyOf(clusterNumberPSMs, newCapacity);
+                }
+                form[size] = reader.form;
+                clusterId[size] = reader.clusterId;
+                assaySlot[size] = reader.assaySlot;
+                rank[size] = reader.rank;
+                psmRatio[size] = reader.psmRatio;
+                deltaMZ[size] = reader.deltaMZ;
+                numberOfSpectra[size] = reader.numberOfSpectra;
+                clusterNumberSpectra[size] = reader.clusterNumberSpectra;
+                clusterNumberProjects[size] = reader.clusterNumberProjects;
+                clusterNumberPSMs[size] = reader.clusterNumberPSMs;
+                size++;
+                if (reader.next())
+                    queue.add(reader);
+            }
+
+            // Offsets of the PeptideForms of the segment, the next segment starts after the last one
+            int firstForm = nextForm;
+            int endForm = queue.isEmpty() ? formSequence.length : queue.peek().form;
+            nextForm = endForm;
+            int[] formOffsets = new int[endForm - firstForm + 1];
+            for (int row = 0; row < size; row++)
+                formOffsets[form[row] - firstForm + 1]++;
+            for (int i = 0; i < endForm - firstForm; i++)
+                formOffsets[i + 1] += formOffsets[i];
+
+            return new ClusteredPSMStore(sequences, formSequence, formModifications, firstForm, formOffsets, assays,
+                    Arrays.copyOf(clusterId, size), Arrays.copyOf(assaySlot, size),
+                    Arrays.copyOf(rank, size), Arrays.copyOf(psmRatio, size), Arrays.copyOf(deltaMZ, size),
+                    Arrays.copyOf(numberOfSpectra, size), Arrays.copyOf(clusterNumberSpectra, size),
+                    Arrays.copyOf(clusterNumberProjects, size), Arrays.copyOf(clusterNumberPSMs, size));
+        }
+    }
+}
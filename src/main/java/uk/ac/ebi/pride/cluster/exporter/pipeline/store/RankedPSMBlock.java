@@ -0,0 +1,121 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ranked PSMs of a block of clusters, ranked by a worker apart from the rest of the release with its own
+ * {@link ClusterRankEngine}. The block has its own PeptideForm index, and the clusters and the assays of its
+ * PSMs are local codes given by the worker, so the blocks of several workers are ranked without sharing
+ * anything. The blocks are then appended to the {@link ClusteredPSMStoreBuilder} in order by a single
+ * thread, that resolves the codes, see {@link ClusteredPSMStoreBuilder#add(RankedPSMBlock, long[], long[])}.
+ *
+ * NOTE: the block is not thread safe.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class RankedPSMBlock implements ClusterRankEngine.RankedPSMSink {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // PeptideForms of the block, in the order they were found
+    private final Map<String, Integer> formIds = new HashMap<String, Integer>();
+    private final List<String> formKeys = new ArrayList<String>();
+    private final List<String> formSequences = new ArrayList<String>();
+    private final List<List<ModificationProvider>> formModifications = new ArrayList<List<ModificationProvider>>();
+
+    // Rows, the clusters and the assays are local codes
+    private int size = 0;
+    int[] peptideForm = new int[INITIAL_CAPACITY];
+    long[] cluster = new long[INITIAL_CAPACITY];
+    long[] assay = new long[INITIAL_CAPACITY];
+    float[] rank = new float[INITIAL_CAPACITY];
+    float[] psmRatio = new float[INITIAL_CAPACITY];
+    float[] deltaMZ = new float[INITIAL_CAPACITY];
+    int[] numberOfSpectra = new int[INITIAL_CAPACITY];
+    int[] clusterNumberSpectra = new int[INITIAL_CAPACITY];
+    int[] clusterNumberProjects = new int[INITIAL_CAPACITY];
+    int[] clusterNumberPSMs = new int[INITIAL_CAPACITY];
+
+    @Override
+    public int peptideFormId(String sequence, List<ModificationProvider> modifications) {
+        String key = ClusteredPSMStoreBuilder.peptideFormKey(sequence, modifications);
+        Integer id = formIds.get(key);
+        if (id == null) {
+            id = formKeys.size();
+            formIds.put(key, id);
+            formKeys.add(key);
+            formSequences.add(sequence);
+            formModifications.add(modifications);
+        }
+        return id;
+    }
+
+    /**
+     * Append a ranked PSM
+     * @param cluster the local code of the cluster
+     * @param assay the local code of the assay, or {@link ClusteredPSMStoreBuilder#UNKNOWN_ASSAY}
+     */
+    @Override
+    public void add(int form, long cluster, long assay, float psmRank, float ratio, float delta,
+                    int spectra, int clusterSpectra, int clusterProjects, int clusterPSMs) {
+        ensureCapacity(size + 1);
+
+        this.peptideForm[size] = form;
+        this.cluster[size] = cluster;
+        this.assay[size] = assay;
+        this.rank[size] = psmRank;
+        this.psmRatio[size] = ratio;
+        this.deltaMZ[size] = delta;
+        this.numberOfSpectra[size] = spectra;
+        this.clusterNumberSpectra[size] = clusterSpectra;
+        this.clusterNumberProjects[size] = clusterProjects;
+        this.clusterNumberPSMs[size] = clusterPSMs;
+        size++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= cluster.length)
+            return;
+        int newCapacity = Math.max(capacity, cluster.length + (cluster.length >> 1));
+        peptideForm = Arrays.copyOf(peptideForm, newCapacity);
+        cluster = Arrays.copyOf(cluster, newCapacity);
+        assay = Arrays.copyOf(assay, newCapacity);
+        rank = Arrays.copyOf(rank, newCapacity);
+        psmRatio = Arrays.copyOf(psmRatio, newCapacity);
+        deltaMZ = Arrays.copyOf(deltaMZ, newCapacity);
+        numberOfSpectra = Arrays.copyOf(numberOfSpectra, newCapacity);
+        clusterNumberSpectra = Arrays.copyOf(clusterNumberSpectra, newCapacity);
+        clusterNumberProjects = Arrays.copyOf(clusterNumberProjects, newCapacity);
+        clusterNumberPSMs = Arrays.copyOf(clusterNumberPSMs, newCapacity);
+    }
+
+    /**
+     * Number of ranked PSMs
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getNumberPeptideForms() {
+        return formKeys.size();
+    }
+
+    String getKey(int form) {
+        return formKeys.get(form);
+    }
+
+    String getSequence(int form) {
+        return formSequences.get(form);
+    }
+
+    List<ModificationProvider> getModifications(int form) {
+        return formModifications.get(form);
+    }
+}
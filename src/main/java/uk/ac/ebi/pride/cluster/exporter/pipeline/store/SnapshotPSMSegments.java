@@ -0,0 +1,212 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.ClusterQualityTable;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Clustered PSMs of a release read from a snapshot, see {@link ClusteredPSMSnapshot}. The columns stay in
+ * the memory mapped snapshot and are handed out as {@link ClusteredPSMStore} segments of about segmentRows
+ * rows, only the rows of the segment being read are copied to the heap. The rows of a PeptideForm are never
+ * split between segments.
+ *
+ * The PeptideForm index, the dictionaries and the assay index stay in memory and are shared by all the
+ * segments, as in {@link ExternalPSMSegments}. The quality table of the clusters is read with the snapshot.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class SnapshotPSMSegments implements Iterable<ClusteredPSMStore> {
+
+    /** Maximum size of a mapped region */
+    private static final int MAPPED_REGION_BYTES = 1 << 30;
+
+    private final StringDictionary sequences;
+    private final int[] formSequence;
+    private final List<List<ModificationProvider>> formModifications;
+    private final int[] formOffsets;
+    private final AssayIndex assays;
+    private final ClusterQualityTable qualityTable;
+
+    private final MappedColumn clusterId;
+    private final MappedColumn assaySlot;
+    private final MappedColumn rank;
+    private final MappedColumn psmRatio;
+    private final MappedColumn deltaMZ;
+    private final MappedColumn numberOfSpectra;
+    private final MappedColumn clusterNumberSpectra;
+    private final MappedColumn clusterNumberProjects;
+    private final MappedColumn clusterNumberPSMs;
+
+    private final int segmentRows;
+
+    /**
+     * Map the columns of a snapshot, the columns are one after the other from the given position
+     * @param channel the snapshot, it can be closed once the columns are mapped
+     * @param position position of the first column
+     * @param formOffsets first row of every PeptideForm of the release, and the number of rows at the end
+     * @param qualityTable the numbers of the clusters of the snapshot
+     * @param segmentRows minimum number of rows of a segment, the last one can be smaller
+     */
+    SnapshotPSMSegments(StringDictionary sequences, int[] formSequence, List<List<ModificationProvider>> formModifications,
+                        int[] formOffsets, AssayIndex assays, ClusterQualityTable qualityTable,
+                        FileChannel channel, long position, int segmentRows) throws IOException {
+        this.sequences = sequences;
+        this.formSequence = formSequence;
+        this.formModifications = formModifications;
+        this.formOffsets = formOffsets;
+        this.assays = assays;
+        this.qualityTable = qualityTable;
+        this.segmentRows = Math.max(1, segmentRows);
+
+        int numberRows = formOffsets[formOffsets.length - 1];
+        clusterId = new MappedColumn(channel, position, numberRows, 8);
+        assaySlot = new MappedColumn(channel, clusterId.getEnd(), numberRows, 4);
+        rank = new MappedColumn(channel, assaySlot.getEnd(), numberRows, 4);
+        psmRatio = new MappedColumn(channel, rank.getEnd(), numberRows, 4);
+        deltaMZ = new MappedColumn(channel, psmRatio.getEnd(), numberRows, 4);
+        numberOfSpectra = new MappedColumn(channel, deltaMZ.getEnd(), numberRows, 4);
+        clusterNumberSpectra = new MappedColumn(channel, numberOfSpectra.getEnd(), numberRows, 4);
+        clusterNumberProjects = new MappedColumn(channel, clusterNumberSpectra.getEnd(), numberRows, 4);
+        clusterNumberPSMs = new MappedColumn(channel, clusterNumberProjects.getEnd(), numberRows, 4);
+    }
+
+    /**
+     * Position of the end of the columns in the snapshot
+     */
+    long getEnd() {
+        return clusterNumberPSMs.getEnd();
+    }
+
+    public int getNumberPSMs() {
+        return formOffsets[formOffsets.length - 1];
+    }
+
+    public ClusterQualityTable getQualityTable() {
+        return qualityTable;
+    }
+
+    @Override
+    public Iterator<ClusteredPSMStore> iterator() {
+        return new SegmentIterator();
+    }
+
+    /**
+     * Cut the PeptideForms in segments
+     */
+    private class SegmentIterator implements Iterator<ClusteredPSMStore> {
+
+        // First PeptideForm of the next segment
+        private int nextForm = 0;
+
+        @Override
+        public boolean hasNext() {
+            return nextForm < formSequence.length;
+        }
+
+        @Override
+        public ClusteredPSMStore next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            // The segment is closed at the first PeptideForm boundary after segmentRows rows
+            int firstForm = nextForm;
+            int endForm = firstForm;
+            int firstRow = formOffsets[firstForm];
+            while (endForm < formSequence.length && formOffsets[endForm] - firstRow < segmentRows)
+                endForm++;
+            nextForm = endForm;
+
+            int endRow = formOffsets[endForm];
+            int[] segmentOffsets = new int[endForm - firstForm + 1];
+            for (int form = firstForm; form <= endForm; form++)
+                segmentOffsets[form - firstForm] = formOffsets[form] - firstRow;
+
+            return new ClusteredPSMStore(sequences, formSequence, formModifications, firstForm, segmentOffsets, assays,
+                    clusterId.getLongs(firstRow, endRow), assaySlot.getInts(firstRow, endRow),
+                    rank.getFloats(firstRow, endRow), psmRatio.getFloats(firstRow, endRow), deltaMZ.getFloats(firstRow, endRow),
+                    numberOfSpectra.getInts(firstRow, endRow), clusterNumberSpectra.getInts(firstRow, endRow),
+                    clusterNumberProjects.getInts(firstRow, endRow), clusterNumberPSMs.getInts(firstRow, endRow));
+        }
+    }
+
+    /**
+     * Column of fixed size values mapped in regions of at most {@link #MAPPED_REGION_BYTES}. The regions are
+     * only read through duplicates, so the column can be read concurrently.
+     */
+    private static class MappedColumn {
+
+        private final int valueBytes;
+        private final int regionValues;
+        private final ByteBuffer[] regions;
+        private final long end;
+
+        MappedColumn(FileChannel channel, long position, int numberValues, int valueBytes) throws IOException {
+            this.valueBytes = valueBytes;
+            this.regionValues = MAPPED_REGION_BYTES / valueBytes;
+            this.regions = new ByteBuffer[(int) ((numberValues + (long) regionValues - 1) / regionValues)];
+            for (int region = 0; region < regions.length; region++) {
+                int length = Math.min(regionValues, numberValues - region * regionValues);
+                regions[region] = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) valueBytes * length);
+                position += (long) valueBytes * length;
+            }
+            this.end = position;
+        }
+
+        long getEnd() {
+            return end;
+        }
+
+        /**
+         * Region of the value from, positioned at the value and limited to the values before to
+         */
+        private ByteBuffer slice(int from, int to) {
+            ByteBuffer region = regions[from / regionValues].duplicate();
+            int offset = from % regionValues;
+            // Through Buffer, ByteBuffer overrides these methods since Java 9
+            ((Buffer) region).position(offset * valueBytes);
+            ((Buffer) region).limit((int) Math.min(region.capacity(), ((long) offset + to - from) * valueBytes));
+            return region;
+        }
+
+        long[] getLongs(int from, int to) {
+            long[] values = new long[to - from];
+            for (int row = from; row < to; ) {
+                ByteBuffer region = slice(row, to);
+                int length = region.remaining() / valueBytes;
+                region.asLongBuffer().get(values, row - from, length);
+                row += length;
+            }
+            return values;
+        }
+
+        int[] getInts(int from, int to) {
+            int[] values = new int[to - from];
+            for (int row = from; row < to; ) {
+                ByteBuffer region = slice(row, to);
+                int length = region.remaining() / valueBytes;
+                region.asIntBuffer().get(values, row - from, length);
+                row += length;
+            }
+            return values;
+        }
+
+        float[] getFloats(int from, int to) {
+            float[] values = new float[to - from];
+            for (int row = from; row < to; ) {
+                ByteBuffer region = slice(row, to);
+                int length = region.remaining() / valueBytes;
+                region.asFloatBuffer().get(values, row - from, length);
+                row += length;
+            }
+            return values;
+        }
+    }
+}
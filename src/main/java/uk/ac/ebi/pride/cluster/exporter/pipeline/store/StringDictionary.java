@@ -0,0 +1,129 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary that assigns a dense int code to every distinct String (peptide sequences, project
+ * accessions, taxonomy identifiers, etc.), codes are assigned in order of arrival starting from 0.
+ *
+ * The dictionary also provides the position of every code in the lexicographic order of the
+ * Strings, so sets of codes can be sorted and printed in the same order as a TreeSet of Strings
+ * without decoding them.
+ *
+ * Encoding is thread safe, decoding is lock free.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class StringDictionary {
+
+    /** Code used for null values, it is never decoded */
+    public static final int NULL_CODE = -1;
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+
+    private volatile String[] values = new String[16];
+
+    private volatile int size = 0;
+
+    // Lexicographic position by code and code by position, rebuilt when new values have been encoded
+    private volatile int[] sortedCodes = new int[0];
+    private volatile int[] sortedPositions = new int[0];
+
+    /**
+     * Code of a value, a new code is assigned if the value has not been seen before
+     * @param value the String to encode
+     * @return the code or NULL_CODE for null values
+     */
+    public int encode(String value) {
+        if (value == null)
+            return NULL_CODE;
+        Integer code = codes.get(value);
+        if (code != null)
+            return code;
+        synchronized (this) {
+            code = codes.get(value);
+            if (code == null) {
+                code = size;
+                if (code == values.length)
+                    values = Arrays.copyOf(values, code * 2);
+                values[code] = value;
+                size = code + 1;
+                codes.put(value, code);
+            }
+        }
+        return code;
+    }
+
+    /**
+     * Code of a value without adding it to the dictionary
+     * @param value the String
+     * @return the code or NULL_CODE if the value is not in the dictionary
+     */
+    public int lookup(String value) {
+        Integer code = (value == null) ? null : codes.get(value);
+        return (code == null) ? NULL_CODE : code;
+    }
+
+    /**
+     * The String of a code
+     * @param code the code
+     * @return the String or null for NULL_CODE
+     */
+    public String decode(int code) {
+        return (code == NULL_CODE) ? null : values[code];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Position of a code in the lexicographic order of all the Strings of the dictionary
+     * @param code the code
+     * @return the position
+     */
+    public int sortedPosition(int code) {
+        int[] positions = sortedPositions;
+        if (positions.length != size)
+            positions = sort();
+        return positions[code];
+    }
+
+    /**
+     * Code of the String at a given position of the lexicographic order
+     * @param position the position
+     * @return the code
+     */
+    public int codeAt(int position) {
+        if (sortedPositions.length != size)
+            sort();
+        return sortedCodes[position];
+    }
+
+    private synchronized int[] sort() {
+        int currentSize = size;
+        if (sortedPositions.length == currentSize)
+            return sortedPositions;
+
+        List<Integer> order = new ArrayList<Integer>(currentSize);
+        for (int code = 0; code < currentSize; code++)
+            order.add(code);
+        String[] currentValues = values;
+        Collections.sort(order, (a, b) -> currentValues[a].compareTo(currentValues[b]));
+
+        int[] codesByPosition = new int[currentSize];
+        int[] positions = new int[currentSize];
+        for (int position = 0; position < currentSize; position++) {
+            codesByPosition[position] = order.get(position);
+            positions[order.get(position)] = position;
+        }
+        sortedCodes = codesByPosition;
+        sortedPositions = positions;
+        return positions;
+    }
+}
@@ -0,0 +1,122 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import java.util.Arrays;
+
+/**
+ * Inverted index taxonomy -> PeptideForms of a {@link ClusteredPSMStore}. A PeptideForm belongs to a
+ * taxonomy if any of its PSMs comes from an assay of the taxonomy (exact match of the taxonomy
+ * identifiers, see {@link AssayIndex#getSlots(String)}).
+ *
+ * The PeptideForms of every taxonomy are kept sorted in a single array (compressed rows), so a species
+ * file only visits its own PeptideForms. Two lists are kept by taxonomy: all the PeptideForms, and the
+ * PeptideForms with at least one PSM from an assay of a single taxonomy (used when the multitaxonomy
+ * assays are excluded). The lists of all the species are stored after the lists of the taxonomies.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class TaxonomyFormIndex {
+
+    private static final int[] NO_FORMS = new int[0];
+
+    private final StringDictionary taxonomies;
+
+    // Forms of the taxonomy code t are forms[offsets[t], offsets[t + 1]), the last list is all the species
+    private final int[] offsets;
+    private final int[] forms;
+
+    // Same lists ignoring the PSMs of multitaxonomy assays
+    private final int[] singleTaxonomyOffsets;
+    private final int[] singleTaxonomyForms;
+
+    /**
+     * Build the index of a store, all the PSMs of the store are read once
+     */
+    TaxonomyFormIndex(ClusteredPSMStore store) {
+        this.taxonomies = store.getTaxonomies();
+        int allSpecies = taxonomies.size();
+
+        offsets = new int[allSpecies + 2];
+        singleTaxonomyOffsets = new int[allSpecies + 2];
+        int[] lastForm = new int[allSpecies + 1];
+        int[] lastSingleTaxonomyForm = new int[allSpecies + 1];
+
+        // Count the PeptideForms of every list
+        Arrays.fill(lastForm, -1);
+        Arrays.fill(lastSingleTaxonomyForm, -1);
+        visit(store, lastForm, lastSingleTaxonomyForm, offsets, singleTaxonomyOffsets, null, null);
+        for (int i = 0; i <= allSpecies; i++) {
+            offsets[i + 1] += offsets[i];
+            singleTaxonomyOffsets[i + 1] += singleTaxonomyOffsets[i];
+        }
+        forms = new int[offsets[allSpecies + 1]];
+        singleTaxonomyForms = new int[singleTaxonomyOffsets[allSpecies + 1]];
+
+        // Fill the lists, the PeptideForms are visited in order so every list is sorted
+        Arrays.fill(lastForm, -1);
+        Arrays.fill(lastSingleTaxonomyForm, -1);
+        int[] positions = Arrays.copyOf(offsets, allSpecies + 1);
+        int[] singleTaxonomyPositions = Arrays.copyOf(singleTaxonomyOffsets, allSpecies + 1);
+        visit(store, lastForm, lastSingleTaxonomyForm, positions, singleTaxonomyPositions, forms, singleTaxonomyForms);
+    }
+
+    /**
+     * Visit the (list, PeptideForm) pairs of the store once. When the lists are null the pairs are counted
+     * in counts[list + 1], otherwise the PeptideForm is stored in the next position of the list.
+     */
+    private static void visit(ClusteredPSMStore store, int[] lastForm, int[] lastSingleTaxonomyForm,
+                              int[] positions, int[] singleTaxonomyPositions, int[] forms, int[] singleTaxonomyForms) {
+        int allSpecies = lastForm.length - 1;
+        int shift = (forms == null) ? 1 : 0;
+        for (int form = store.getFirstPeptideForm(); form < store.getEndPeptideForm(); form++) {
+            for (int row = store.getFirstRow(form); row < store.getEndRow(form); row++) {
+                boolean singleTaxonomy = !store.isMultitaxonomy(row);
+                for (int taxonomy : store.getTaxonomyIds(row))
+                    add(taxonomy, form, singleTaxonomy, shift, lastForm, lastSingleTaxonomyForm, positions, singleTaxonomyPositions, forms, singleTaxonomyForms);
+                add(allSpecies, form, singleTaxonomy, shift, lastForm, lastSingleTaxonomyForm, positions, singleTaxonomyPositions, forms, singleTaxonomyForms);
+            }
+        }
+    }
+
+    private static void add(int list, int form, boolean singleTaxonomy, int shift, int[] lastForm, int[] lastSingleTaxonomyForm,
+                            int[] positions, int[] singleTaxonomyPositions, int[] forms, int[] singleTaxonomyForms) {
+        if (lastForm[list] != form) {
+            lastForm[list] = form;
+            if (forms == null)
+                positions[list + shift]++;
+            else
+                forms[positions[list]++] = form;
+        }
+        if (singleTaxonomy && lastSingleTaxonomyForm[list] != form) {
+            lastSingleTaxonomyForm[list] = form;
+            if (singleTaxonomyForms == null)
+                singleTaxonomyPositions[list + shift]++;
+            else
+                singleTaxonomyForms[singleTaxonomyPositions[list]++] = form;
+        }
+    }
+
+    /**
+     * PeptideForms of a taxonomy, sorted by PeptideForm ID
+     * @param taxonomy the taxonomy identifier, null for all the species
+     * @param excludeMultitaxonomy true to ignore the PSMs of multitaxonomy assays
+     * @return the PeptideForms, empty if the taxonomy is not in the release
+     */
+    public int[] getPeptideForms(String taxonomy, boolean excludeMultitaxonomy) {
+        int list = (taxonomy == null) ? taxonomies.size() : taxonomies.lookup(taxonomy);
+        if (list == StringDictionary.NULL_CODE)
+            return NO_FORMS;
+        return excludeMultitaxonomy ?
+                Arrays.copyOfRange(singleTaxonomyForms, singleTaxonomyOffsets[list], singleTaxonomyOffsets[list + 1]) :
+                Arrays.copyOfRange(forms, offsets[list], offsets[list + 1]);
+    }
+
+    /**
+     * Number of PeptideForms of a taxonomy
+     * @param taxonomy the taxonomy identifier, null for all the species
+     */
+    public int getNumberPeptideForms(String taxonomy) {
+        int list = (taxonomy == null) ? taxonomies.size() : taxonomies.lookup(taxonomy);
+        return (list == StringDictionary.NULL_CODE) ? 0 : offsets[list + 1] - offsets[list];
+    }
+}
@@ -0,0 +1,68 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import uk.ac.ebi.pride.archive.repo.assay.Assay;
+import uk.ac.ebi.pride.archive.repo.project.Project;
+import uk.ac.ebi.pride.spectracluster.repo.model.AssayDetail;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the assay summaries by (project, assay) accessions, so the assays of a project are
+ * summarised once when the project is summarised again. The cache can be used concurrently, the
+ * summaries are shared and must not be modified.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class AssaySummaryCache {
+
+    private final ConcurrentMap<String, AssayDetail> summaries = new ConcurrentHashMap<String, AssayDetail>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The summary of an assay, see {@link SummaryFactory#summariseAssay}
+     * @param project the project of the assay
+     * @param assay the assay
+     */
+    public AssayDetail getAssaySummary(Project project, Assay assay) {
+        String key = project.getAccession() + "\t" + assay.getAccession();
+        AssayDetail summary = summaries.get(key);
+        if (summary != null) {
+            hits.incrementAndGet();
+            return summary;
+        }
+
+        misses.incrementAndGet();
+        summary = SummaryFactory.summariseAssay(project, assay);
+        AssayDetail previous = summaries.putIfAbsent(key, summary);
+        return (previous == null) ? summary : previous;
+    }
+
+    /**
+     * Remove the summaries of the assays, e.g. when the projects have been updated
+     */
+    public void clear() {
+        summaries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return summaries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "Assay summary cache: " + size() + " entries, " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+}
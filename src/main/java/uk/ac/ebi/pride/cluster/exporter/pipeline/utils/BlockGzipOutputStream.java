@@ -0,0 +1,232 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that writes block gzip (BGZF) files, the format of bgzip and samtools. The data is cut
+ * in blocks of {@link #BLOCK_SIZE} bytes and every block is written as an independent gzip member, so
+ * the file can be read by any gzip reader and a block can be decompressed on its own.
+ *
+ * The blocks are compressed in parallel by a pool of threads shared by all the streams, and written in
+ * order. At most a few blocks by compression thread are kept in memory.
+ *
+ * A position in the uncompressed data can be translated to a BGZF virtual offset, (compressed offset
+ * of the block << 16 | offset in the block), once the stream is closed, see {@link #getVirtualOffset(long)}.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class BlockGzipOutputStream extends OutputStream {
+
+    /** Uncompressed bytes by block, all the blocks but the last one are full */
+    public static final int BLOCK_SIZE = 0xff00;
+
+    private static final int MAX_BLOCK_BYTES = 1 << 16;
+
+    // Header of a block: gzip member with the extra field BC that contains the size of the block - 1
+    private static final byte[] BLOCK_HEADER = {
+            0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0};
+    private static final int BLOCK_HEADER_BYTES = BLOCK_HEADER.length + 2;
+    private static final int BLOCK_FOOTER_BYTES = 8;
+
+    // Empty block at the end of the file
+    private static final byte[] EOF_BLOCK = {
+            0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    private static final int COMPRESSION_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ExecutorService compressors = Executors.newFixedThreadPool(COMPRESSION_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "bgzf-compressor-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ThreadLocal<Deflater> deflaters =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final OutputStream out;
+
+    private final int maxPendingBlocks = 2 * COMPRESSION_THREADS;
+    private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<Future<byte[]>>();
+
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockSize = 0;
+
+    // Uncompressed bytes written
+    private long position = 0;
+
+    // Compressed offset of every block written
+    private long[] blockOffsets = new long[1024];
+    private int numberBlocks = 0;
+    private long compressedPosition = 0;
+
+    private boolean closed = false;
+
+    /**
+     * @param out the output of the compressed blocks, it is closed with the stream
+     */
+    public BlockGzipOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockSize++] = (byte) b;
+        position++;
+        if (blockSize == BLOCK_SIZE)
+            submitBlock();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int length = Math.min(len, BLOCK_SIZE - blockSize);
+            System.arraycopy(b, off, block, blockSize, length);
+            blockSize += length;
+            position += length;
+            off += length;
+            len -= length;
+            if (blockSize == BLOCK_SIZE)
+                submitBlock();
+        }
+    }
+
+    /**
+     * Number of uncompressed bytes written
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = block;
+        int size = blockSize;
+        pendingBlocks.add(compressors.submit(() -> compress(data, size)));
+        block = new byte[BLOCK_SIZE];
+        blockSize = 0;
+        writeBlocks(false);
+    }
+
+    /**
+     * Write the compressed blocks in order
+     * @param all true to wait for all the blocks, false to write only the blocks already compressed
+     */
+    private void writeBlocks(boolean all) throws IOException {
+        while (!pendingBlocks.isEmpty()
+                && (all || pendingBlocks.size() > maxPendingBlocks || pendingBlocks.peek().isDone())) {
+            byte[] compressed;
+            try {
+                compressed = pendingBlocks.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing a block", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Error compressing a block", e.getCause());
+            }
+            writeBlock(compressed);
+        }
+    }
+
+    private void writeBlock(byte[] compressed) throws IOException {
+        if (numberBlocks == blockOffsets.length)
+            blockOffsets = Arrays.copyOf(blockOffsets, numberBlocks * 2);
+        blockOffsets[numberBlocks++] = compressedPosition;
+        out.write(compressed);
+        compressedPosition += compressed.length;
+    }
+
+    /**
+     * Compress a block as a gzip member
+     */
+    private static byte[] compress(byte[] data, int size) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data, 0, size);
+        deflater.finish();
+
+        byte[] compressed = new byte[MAX_BLOCK_BYTES];
+        int length = BLOCK_HEADER_BYTES;
+        while (!deflater.finished()) {
+            if (length == MAX_BLOCK_BYTES - BLOCK_FOOTER_BYTES)
+                throw new IllegalStateException("Compressed block larger than " + MAX_BLOCK_BYTES + " bytes");
+            length += deflater.deflate(compressed, length, MAX_BLOCK_BYTES - BLOCK_FOOTER_BYTES - length);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, size);
+
+        System.arraycopy(BLOCK_HEADER, 0, compressed, 0, BLOCK_HEADER.length);
+        int blockBytes = length + BLOCK_FOOTER_BYTES;
+        writeShort(compressed, BLOCK_HEADER.length, blockBytes - 1);
+        writeInt(compressed, length, (int) crc.getValue());
+        writeInt(compressed, length + 4, size);
+        return Arrays.copyOf(compressed, blockBytes);
+    }
+
+    private static void writeShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        writeShort(buffer, offset, value);
+        writeShort(buffer, offset + 2, value >>> 16);
+    }
+
+    /**
+     * Write the blocks already compressed, the current block is not cut so the blocks keep their size
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBlocks(false);
+        out.flush();
+    }
+
+    /**
+     * Write the last block and the end of file block
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (blockSize > 0) {
+                byte[] data = block;
+                int size = blockSize;
+                pendingBlocks.add(compressors.submit(() -> compress(data, size)));
+            }
+            writeBlocks(true);
+            if (numberBlocks == blockOffsets.length)
+                blockOffsets = Arrays.copyOf(blockOffsets, numberBlocks + 1);
+            blockOffsets[numberBlocks] = compressedPosition;
+            out.write(EOF_BLOCK);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Virtual offset of a position of the uncompressed data, the stream must be closed
+     * @param uncompressedPosition the position, at most getPosition()
+     * @return the BGZF virtual offset
+     */
+    public long getVirtualOffset(long uncompressedPosition) {
+        if (!closed)
+            throw new IllegalStateException("The virtual offsets are known once the stream is closed");
+        int blockNumber = (int) (uncompressedPosition / BLOCK_SIZE);
+        return (blockOffsets[blockNumber] << 16) | (uncompressedPosition % BLOCK_SIZE);
+    }
+}
@@ -0,0 +1,216 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.IClusterQualityDecider;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.ICluster;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.IModification;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.IPeptideSpectrumMatch;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.ISpectrumReference;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterDetail;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterSummary;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusteredSpectrumDetail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Summarise the clusters of a clustering file in a single pass over their spectra. The duplicated
+ * spectra are removed, the charges are averaged and the projects, species, PSMs and PTMs of the
+ * spectra (with and without the most common peptide) are counted in the same loop, and every PSM is
+ * read once. The summary is the same as the one of {@link SummaryFactory#summariseCluster}.
+ *
+ * The work sets are reused between clusters, so a summariser allocates little more than the summary.
+ * The consensus spectrum can be encoded as text or compact base64, see {@link ConsensusSpectrumCodec}.
+ *
+ * NOTE: the summariser is not thread safe, a summariser must be used by thread.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusterSummariser {
+
+    private final boolean compactConsensus;
+
+    // Unique spectra of the last cluster
+    private final List<ISpectrumReference> uniqueSpectra = new ArrayList<ISpectrumReference>();
+
+    private final Set<String> spectrumIds = new HashSet<String>();
+    private final Set<String> projects = new HashSet<String>();
+    private final Set<String> totalProjects = new HashSet<String>();
+    private final Set<String> species = new HashSet<String>();
+    private final Set<String> totalSpecies = new HashSet<String>();
+    private final Set<String> ptms = new HashSet<String>();
+    private final Set<String> totalPtms = new HashSet<String>();
+    private final Set<IPeptideSpectrumMatch> uniquePsms = new HashSet<IPeptideSpectrumMatch>();
+    private final List<String> spectrumPtms = new ArrayList<String>();
+
+    /**
+     * Summariser with the consensus spectrum as text
+     */
+    public ClusterSummariser() {
+        this(false);
+    }
+
+    /**
+     * @param compactConsensus true to encode the consensus spectrum in base64, see {@link ConsensusSpectrumCodec#toBase64}
+     */
+    public ClusterSummariser(boolean compactConsensus) {
+        this.compactConsensus = compactConsensus;
+    }
+
+    /**
+     * Summarise a cluster and decide its quality
+     * @param cluster the cluster
+     * @param clusterQualityDecider decides the quality of the summary
+     */
+    public ClusterDetail summarise(ICluster cluster, IClusterQualityDecider<ClusterSummary> clusterQualityDecider) {
+        ClusterDetail clusterSummary = new ClusterDetail();
+
+        clusterSummary.setUUID(cluster.getId());
+        clusterSummary.setAveragePrecursorMz(cluster.getAvPrecursorMz());
+
+        if (compactConsensus) {
+            clusterSummary.setConsensusSpectrumMz(ConsensusSpectrumCodec.toBase64(cluster.getConsensusMzValues()));
+            clusterSummary.setConsensusSpectrumIntensity(ConsensusSpectrumCodec.toBase64(cluster.getConsensusIntensValues()));
+        } else {
+            clusterSummary.setConsensusSpectrumMz(ConsensusSpectrumCodec.toText(cluster.getConsensusMzValues(), Constants.COMMA));
+            clusterSummary.setConsensusSpectrumIntensity(ConsensusSpectrumCodec.toText(cluster.getConsensusIntensValues(), Constants.COMMA));
+        }
+
+        clusterSummary.setMaxPeptideRatio(cluster.getMaxRatio());
+
+        clear();
+        String maxSequence = cluster.getMaxSequence();
+        int chargeSum = 0;
+        boolean unknownCharge = false;
+        int numberOfSpectra = 0;
+        int numberOfPsms = 0;
+
+        for (ISpectrumReference spectrumReference : cluster.getSpectrumReferences()) {
+            // remove duplicated spectra
+            String spectrumId = spectrumReference.getSpectrumId();
+            if (!spectrumIds.add(spectrumId))
+                continue;
+            uniqueSpectra.add(spectrumReference);
+
+            int charge = spectrumReference.getCharge();
+            if (charge <= 0)
+                unknownCharge = true;
+            chargeSum += charge;
+
+            ClusteredSpectrumDetail clusteredSpectrumSummary = new ClusteredSpectrumDetail();
+            clusteredSpectrumSummary.setReferenceId(spectrumId);
+            clusteredSpectrumSummary.setSimilarityScore(spectrumReference.getSimilarityScore());
+            clusterSummary.addClusteredSpectrumDetail(clusteredSpectrumSummary);
+
+            // PSMs and PTMs of the spectrum, every PSM is read once
+            List<IPeptideSpectrumMatch> psms = spectrumReference.getPSMs();
+            boolean hasMaxSequence = false;
+            spectrumPtms.clear();
+            for (IPeptideSpectrumMatch psm : psms) {
+                if (!hasMaxSequence && psm.getSequence().equalsIgnoreCase(maxSequence))
+                    hasMaxSequence = true;
+                for (IModification modification : psm.getModifications())
+                    spectrumPtms.add(modification.getAccession());
+            }
+            totalPtms.addAll(spectrumPtms);
+
+            String projectAccession = projectAccession(spectrumId);
+            String spec = spectrumReference.getSpecies();
+            totalProjects.add(projectAccession);
+            addSpecies(totalSpecies, spec);
+
+            if (hasMaxSequence) {
+                // the spectra are unique
+                numberOfSpectra++;
+                projects.add(projectAccession);
+                addSpecies(species, spec);
+                ptms.addAll(spectrumPtms);
+
+                if (psms.size() == 1) {
+                    numberOfPsms++;
+                } else {
+                    uniquePsms.clear();
+                    uniquePsms.addAll(psms);
+                    numberOfPsms += uniquePsms.size();
+                }
+            }
+        }
+
+        // as SummaryFactory#calculateAveragePrecursorCharge
+        clusterSummary.setAveragePrecursorCharge(unknownCharge ? 0 : chargeSum / uniqueSpectra.size());
+
+        clusterSummary.setNumberOfSpectra(numberOfSpectra);
+        clusterSummary.setTotalNumberOfSpectra(cluster.getSpecCount());
+
+        clusterSummary.setNumberOfPSMs(numberOfPsms);
+        clusterSummary.setTotalNumberOfPSMs(cluster.getPsmCount());
+
+        clusterSummary.setNumberOfProjects(projects.size());
+        clusterSummary.setTotalNumberOfProjects(totalProjects.size());
+
+        clusterSummary.setNumberOfSpecies(species.size());
+        clusterSummary.setTotalNumberOfSpecies(totalSpecies.size());
+
+        clusterSummary.setNumberOfModifications(ptms.size());
+        clusterSummary.setTotalNumberOfModifications(totalPtms.size());
+
+        // cluster quality
+        clusterSummary.setQuality(clusterQualityDecider.decideQuality(clusterSummary));
+
+        return clusterSummary;
+    }
+
+    /**
+     * The spectra of the last cluster summarised, without duplicates, see {@link UniqueSpectrumFunction}.
+     * The list is reused by the next cluster.
+     */
+    public List<ISpectrumReference> getUniqueSpectra() {
+        return Collections.unmodifiableList(uniqueSpectra);
+    }
+
+    private void clear() {
+        uniqueSpectra.clear();
+        spectrumIds.clear();
+        projects.clear();
+        totalProjects.clear();
+        species.clear();
+        totalSpecies.clear();
+        ptms.clear();
+        totalPtms.clear();
+    }
+
+    /**
+     * Project of a spectrum, the first field of its ID
+     */
+    private static String projectAccession(String spectrumId) {
+        int separator = spectrumId.indexOf(';');
+        return (separator < 0) ? spectrumId : spectrumId.substring(0, separator);
+    }
+
+    /**
+     * Add the species of a comma separated list, as String#split the trailing empty species are ignored
+     */
+    private static void addSpecies(Set<String> set, String species) {
+        if (species == null)
+            return;
+        if (species.isEmpty()) {
+            set.add(species);
+            return;
+        }
+
+        int end = species.length();
+        while (end > 0 && species.charAt(end - 1) == ',')
+            end--;
+        int from = 0;
+        while (from < end) {
+            int comma = species.indexOf(',', from);
+            if (comma < 0 || comma > end)
+                comma = end;
+            set.add((from == 0 && comma == species.length()) ? species : species.substring(from, comma));
+            from = comma + 1;
+        }
+    }
+}
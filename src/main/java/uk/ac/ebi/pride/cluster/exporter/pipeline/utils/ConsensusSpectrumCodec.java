@@ -0,0 +1,69 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Encodings of the m/z and intensity values of a consensus spectrum:
+ *
+ * - text: the values joined by commas, as stored in the cluster database
+ * - compact: the values as little-endian 32 bit floats encoded in base64, a fixed size by value
+ *   (4 bytes, about 5.3 characters) that keeps the precision of the floats and is decoded without parsing
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ConsensusSpectrumCodec {
+
+    private ConsensusSpectrumCodec() {}
+
+    /**
+     * The values joined by a delimiter
+     * @param values the values, not empty
+     * @param delimiter the delimiter
+     */
+    public static String toText(List<Float> values, String delimiter) {
+        if (values.isEmpty()) {
+            throw new IllegalStateException("List of float number cannot be empty");
+        }
+
+        StringBuilder text = new StringBuilder(values.size() * 10);
+        for (Float value : values) {
+            if (text.length() > 0)
+                text.append(delimiter);
+            text.append(value);
+        }
+        return text.toString();
+    }
+
+    /**
+     * The values as little-endian floats encoded in base64
+     * @param values the values, not empty
+     */
+    public static String toBase64(List<Float> values) {
+        if (values.isEmpty()) {
+            throw new IllegalStateException("List of float number cannot be empty");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(values.size() * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (Float value : values)
+            buffer.putFloat(value);
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    /**
+     * Decode the values encoded by {@link #toBase64(List)}
+     * @param base64 the encoded values
+     */
+    public static float[] fromBase64(String base64) {
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(base64)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() % Float.BYTES != 0)
+            throw new IllegalArgumentException("The encoded values are not a list of floats: " + buffer.remaining() + " bytes");
+
+        float[] values = new float[buffer.remaining() / Float.BYTES];
+        buffer.asFloatBuffer().get(values);
+        return values;
+    }
+}
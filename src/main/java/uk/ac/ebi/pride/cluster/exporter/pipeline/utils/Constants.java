@@ -17,6 +17,32 @@ public final class Constants {
 
     public static final int CLUSTER_READ_STEP = 10000000;
 
+    public static final int PSM_READ_STEP = 250000;
+
+    public static final int PSM_PREFETCH_PAGES = 2;
+
+    public static final int MODIFICATION_CACHE_SIZE = 500000;
+
+    /** PeptideForms by chunk rendered in parallel */
+    public static final int RENDER_CHUNK_SIZE = 1024;
+
+    /** PSMs by batch summarised in parallel */
+    public static final int PSM_SUMMARY_BATCH_SIZE = 1000;
+
+    /** Memory used by a ranked PSM in the columnar store */
+    public static final int PSM_ROW_BYTES = 44;
+
+    /** Clusters of a clustering file converted by task when the files are read in parallel */
+    public static final int CLUSTER_BLOCK_SIZE = 1000;
+
+    /** Blocks of clusters being converted by file reader when the files are read in parallel */
+    public static final int CLUSTER_BLOCKS_BY_READER = 2;
+
+    /** Default thresholds of the quality of the clusters decided locally, as in the cluster release */
+    public static final int QUALITY_SPECTRUM_COUNT = 10;
+    public static final int QUALITY_PROJECT_COUNT = 2;
+    public static final float QUALITY_MAX_RATIO = 0.7f;
+
     public static final String PTM_WRONG_ANNOTATED = "Wrong PTM annotations";
 
 
@@ -0,0 +1,167 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.archive.dataprovider.param.CvParamProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of anchored modifications. The same (sequence, modifications) pairs are repeated by
+ * thousands of PSMs of a release, the anchoring and the wrong annotation check are done once by
+ * pair and the PSMs share the resulting immutable list.
+ *
+ * The cache is split in stripes, every stripe is an LRU map guarded by its own lock, so the
+ * fetch threads can use it concurrently.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ModificationAnchorCache {
+
+    private static final int NUMBER_STRIPES = 16;
+
+    /**
+     * Anchored modifications of a (sequence, modifications) pair
+     */
+    public static class AnchoredModifications {
+
+        private final List<ModificationProvider> modifications;
+
+        private final boolean wrongAnnotation;
+
+        AnchoredModifications(List<ModificationProvider> modifications, boolean wrongAnnotation) {
+            this.modifications = (modifications == null) ? null : Collections.unmodifiableList(modifications);
+            this.wrongAnnotation = wrongAnnotation;
+        }
+
+        /**
+         * @return the anchored modifications, the list is shared and can not be modified
+         */
+        public List<ModificationProvider> getModifications() {
+            return modifications;
+        }
+
+        public boolean isWrongAnnotation() {
+            return wrongAnnotation;
+        }
+    }
+
+    private final List<Map<String, AnchoredModifications>> stripes;
+
+    private final int stripeSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maximumSize maximum number of pairs in the cache, 0 or less disables the cache
+     */
+    public ModificationAnchorCache(int maximumSize) {
+        stripeSize = (maximumSize <= 0) ? 0 : Math.max(1, maximumSize / NUMBER_STRIPES);
+        stripes = new ArrayList<Map<String, AnchoredModifications>>(NUMBER_STRIPES);
+        for (int i = 0; i < NUMBER_STRIPES; i++) {
+            stripes.add(new LinkedHashMap<String, AnchoredModifications>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, AnchoredModifications> eldest) {
+                    if (size() > stripeSize) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            });
+        }
+    }
+
+    /**
+     * Anchor the modifications of a peptide and check if they are wrongly annotated, see
+     * {@link ModificationMapper#asModifications(List, String)} and {@link ModificationMapper#checkWrongAnnotation(List, String)}
+     * @param repoMods modifications as read from the database
+     * @param sequence sequence of the peptide
+     * @return the anchored modifications
+     */
+    public AnchoredModifications anchor(List<ModificationProvider> repoMods, String sequence) {
+        String key = key(repoMods, sequence);
+        Map<String, AnchoredModifications> stripe = stripes.get((key.hashCode() & Integer.MAX_VALUE) % NUMBER_STRIPES);
+
+        AnchoredModifications anchored;
+        synchronized (stripe) {
+            anchored = stripe.get(key);
+        }
+        if (anchored != null) {
+            hits.incrementAndGet();
+            return anchored;
+        }
+
+        // The anchoring is done outside the lock, two threads can anchor the same pair at the same time
+        misses.incrementAndGet();
+        List<ModificationProvider> modifications = ModificationMapper.asModifications(repoMods, sequence);
+        anchored = new AnchoredModifications(modifications, ModificationMapper.checkWrongAnnotation(modifications, sequence));
+        if (stripeSize > 0) {
+            synchronized (stripe) {
+                stripe.put(key, anchored);
+            }
+        }
+        return anchored;
+    }
+
+    /**
+     * Canonical key of a (sequence, modifications) pair, it contains every field of the modifications
+     * used for anchoring them. The order of the modifications is kept and the positions of every
+     * modification are sorted.
+     */
+    static String key(List<ModificationProvider> repoMods, String sequence) {
+        StringBuilder key = new StringBuilder(sequence);
+        if (repoMods == null)
+            return key.append("|null").toString();
+
+        for (ModificationProvider mod : repoMods) {
+            key.append('|').append(mod.getAccession())
+                    .append(';').append(mod.getName())
+                    .append(';').append(mod.getMainPosition());
+            CvParamProvider neutralLoss = mod.getNeutralLoss();
+            if (neutralLoss != null)
+                key.append(';').append(neutralLoss.getAccession()).append('=').append(neutralLoss.getValue());
+            if (mod.getPositionMap() != null) {
+                for (Integer position : new TreeSet<Integer>(mod.getPositionMap().keySet()))
+                    key.append(',').append(position);
+            }
+        }
+        return key.toString();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<String, AnchoredModifications> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "Modification cache: " + size() + " entries, " + hits.get() + " hits, "
+                + misses.get() + " misses, " + evictions.get() + " evictions";
+    }
+}
@@ -0,0 +1,149 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import uk.ac.ebi.pride.jmztab.model.Metadata;
+import uk.ac.ebi.pride.jmztab.model.PSM;
+import uk.ac.ebi.pride.jmztab.utils.errors.MZTabErrorList;
+import uk.ac.ebi.pride.jmztab.utils.errors.MZTabException;
+import uk.ac.ebi.pride.jmztab.utils.parser.MTDLineParser;
+import uk.ac.ebi.pride.jmztab.utils.parser.PSHLineParser;
+import uk.ac.ebi.pride.jmztab.utils.parser.PSMLineParser;
+import uk.ac.ebi.pride.jmztab.utils.parser.PositionMapping;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read the PSM section of an mzTab file incrementally. The metadata and the PSM header are parsed when the
+ * reader is opened, with the line parsers of jmzTab, and every PSM line is parsed when it is requested, so
+ * only the current PSM is in memory (the jmzTab file parser keeps all the sections of the file). The other
+ * sections are skipped, the reading stops at the end of the PSM section.
+ *
+ * NOTE: the reader is not thread safe, the PSMs are read by a single thread, see {@link PSMSummaryPipeline}.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class MzTabPSMReader implements Iterator<PSM>, Closeable {
+
+    private static final String METADATA_PREFIX = "MTD";
+    private static final String PSM_HEADER_PREFIX = "PSH";
+    private static final String PSM_PREFIX = "PSM";
+    private static final String COMMENT_PREFIX = "COM";
+
+    private final File file;
+    private final BufferedReader reader;
+    private final MZTabErrorList errorList = new MZTabErrorList();
+    private final Metadata metadata;
+
+    // Null if the file has no PSM section
+    private final PSMLineParser psmParser;
+
+    // Next PSM line, null at the end of the PSM section
+    private String nextLine;
+    private int lineNumber = 0;
+
+    /**
+     * Open an mzTab file and read its metadata and PSM header
+     * @param file the mzTab file
+     * @throws IOException if the file can not be read or its metadata or PSM header are not valid
+     */
+    public MzTabPSMReader(File file) throws IOException {
+        this.file = file;
+        this.reader = new BufferedReader(new FileReader(file));
+        try {
+            MTDLineParser metadataParser = new MTDLineParser();
+            String line = readLine();
+            while (line != null && (line.isEmpty() || line.startsWith(METADATA_PREFIX) || line.startsWith(COMMENT_PREFIX))) {
+                if (line.startsWith(METADATA_PREFIX))
+                    metadataParser.parse(lineNumber, line, errorList);
+                line = readLine();
+            }
+            metadataParser.refineNormalMetadata();
+            metadata = metadataParser.getMetadata();
+
+            // Protein and peptide sections
+            while (line != null && !line.startsWith(PSM_HEADER_PREFIX))
+                line = readLine();
+
+            if (line == null) {
+                psmParser = null;
+            } else {
+                PSHLineParser headerParser = new PSHLineParser(metadata);
+                headerParser.parse(lineNumber, line, errorList);
+                psmParser = new PSMLineParser(headerParser.getFactory(), new PositionMapping(headerParser.getFactory(), line), metadata, errorList);
+                nextLine = nextPSMLine();
+            }
+        } catch (MZTabException e) {
+            reader.close();
+            throw new IOException("Error parsing line " + lineNumber + " of the mzTab file " + file.getAbsolutePath(), e);
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The metadata of the file
+     */
+    public Metadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Number of MS runs of the file, see {@link PSMSummariser#summarise}
+     */
+    public int getNumberOfMsRuns() {
+        return metadata.getMsRunMap().size();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextLine != null;
+    }
+
+    @Override
+    public PSM next() {
+        if (nextLine == null)
+            throw new NoSuchElementException();
+        try {
+            psmParser.parse(lineNumber, nextLine, errorList);
+            PSM psm = psmParser.getRecord();
+            nextLine = nextPSMLine();
+            return psm;
+        } catch (MZTabException e) {
+            throw new UncheckedIOException(new IOException("Error parsing line " + lineNumber + " of the mzTab file " + file.getAbsolutePath(), e));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading the mzTab file " + file.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        nextLine = null;
+        reader.close();
+    }
+
+    /**
+     * The next line of the PSM section, the comments and the empty lines are skipped
+     * @return the line, null at the end of the section
+     */
+    private String nextPSMLine() throws IOException {
+        String line = readLine();
+        while (line != null && (line.isEmpty() || line.startsWith(COMMENT_PREFIX)))
+            line = readLine();
+        return (line != null && line.startsWith(PSM_PREFIX)) ? line : null;
+    }
+
+    private String readLine() throws IOException {
+        String line = reader.readLine();
+        if (line != null)
+            lineNumber++;
+        return line;
+    }
+}
@@ -0,0 +1,108 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import uk.ac.ebi.pride.cluster.exporter.pipeline.exporter.ConfigurationService;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Render the entries of a file in parallel, keeping the order of the file. The entries are cut in
+ * contiguous chunks, every chunk is rendered on a fork-join pool and the rendered chunks are written
+ * by the calling thread in the order of the chunks, so the output does not depend on the number of threads.
+ *
+ * The rendering of a chunk must only read shared data. At most a few chunks by thread are rendered
+ * ahead of the chunk being written. With a single thread the chunks are rendered and written by the
+ * calling thread.
+ *
+ * The pools are shared by all the renderers with the same number of threads, by default the number of
+ * render threads of the configuration ({@link ConfigurationService#getRenderThreads()}).
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class OrderedChunkRenderer {
+
+    /**
+     * Render the entries [from, to) of a chunk, it is called from the threads of the pool
+     */
+    public interface ChunkEncoder<T> {
+        T encode(int from, int to);
+    }
+
+    /**
+     * Write a rendered chunk, it is called from the calling thread in the order of the chunks
+     */
+    public interface ChunkWriter<T> {
+        void write(T chunk) throws IOException;
+    }
+
+    // Pools by number of threads, the threads of a ForkJoinPool are daemon threads
+    private static final ConcurrentMap<Integer, ForkJoinPool> pools = new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+    private final int chunkSize;
+    private final int threads;
+
+    /**
+     * Renderer with the chunk size and the number of threads of the configuration
+     */
+    public OrderedChunkRenderer() {
+        this(Constants.RENDER_CHUNK_SIZE, ConfigurationService.getService().getRenderThreads());
+    }
+
+    /**
+     * @param chunkSize number of entries by chunk
+     * @param threads number of render threads, 1 to render in the calling thread
+     */
+    public OrderedChunkRenderer(int chunkSize, int threads) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+        if (threads <= 0)
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        this.chunkSize = chunkSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Render and write the entries [0, numberEntries)
+     * @param numberEntries number of entries
+     * @param encoder renders a chunk of entries
+     * @param writer writes the rendered chunks in order
+     */
+    public <T> void render(int numberEntries, ChunkEncoder<T> encoder, ChunkWriter<T> writer) throws IOException {
+        if (threads == 1 || numberEntries <= chunkSize) {
+            for (int from = 0; from < numberEntries; from += chunkSize)
+                writer.write(encoder.encode(from, Math.min(numberEntries, from + chunkSize)));
+            return;
+        }
+
+        ForkJoinPool forkJoinPool = pool(threads);
+        int maxPendingChunks = 2 * threads;
+        ArrayDeque<ForkJoinTask<T>> pendingChunks = new ArrayDeque<ForkJoinTask<T>>();
+        try {
+            int from = 0;
+            while (from < numberEntries || !pendingChunks.isEmpty()) {
+                while (from < numberEntries && pendingChunks.size() < maxPendingChunks) {
+                    int chunkFrom = from;
+                    int chunkTo = Math.min(numberEntries, from + chunkSize);
+                    pendingChunks.add(forkJoinPool.submit(() -> encoder.encode(chunkFrom, chunkTo)));
+                    from = chunkTo;
+                }
+                writer.write(pendingChunks.poll().join());
+            }
+        } finally {
+            for (ForkJoinTask<T> chunk : pendingChunks)
+                chunk.cancel(false);
+        }
+    }
+
+    /**
+     * The shared pool with a number of threads
+     */
+    public static ForkJoinPool pool(int threads) {
+        return pools.computeIfAbsent(threads, ForkJoinPool::new);
+    }
+}
@@ -0,0 +1,120 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import uk.ac.ebi.pride.jmztab.model.Modification;
+import uk.ac.ebi.pride.jmztab.model.PSM;
+import uk.ac.ebi.pride.jmztab.model.Param;
+import uk.ac.ebi.pride.jmztab.model.SplitList;
+import uk.ac.ebi.pride.spectracluster.repo.model.PSMDetail;
+
+import java.util.Collections;
+
+/**
+ * Summarise the PSMs read from mzTab files. The archive PSM ID, the search engines and the search
+ * engine scores are built in a single StringBuilder reused by all the PSMs of the summariser.
+ *
+ * NOTE: the summariser is not thread safe, a summariser must be used by thread, see {@link #getThreadSummariser()}.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class PSMSummariser {
+
+    // Summariser of every thread, the summarisers only keep their work buffer
+    private static final ThreadLocal<PSMSummariser> summarisers = ThreadLocal.withInitial(PSMSummariser::new);
+
+    private final StringBuilder builder = new StringBuilder(128);
+
+    /**
+     * The summariser of the current thread, its buffer is reused by all the PSMs summarised by the thread
+     */
+    public static PSMSummariser getThreadSummariser() {
+        return summarisers.get();
+    }
+
+    /**
+     * Create a new summary on PSM
+     * <p/>
+     * NOTE: spectrum id is not set, this needs to be added before persisted into the database
+     *
+     * @param psm     PSM generated by mzTab reader
+     * @param projectAccession accession of the project of the PSM
+     * @param assayId assay id is the primary key assigned at the data store level
+     * @param assayAccession accession of the assay of the PSM
+     * @param numOfMsRun number of MS runs of the mzTab file, the number of search engine scores
+     */
+    public PSMDetail summarise(PSM psm, String projectAccession, Long assayId, String assayAccession, int numOfMsRun) {
+        PSMDetail psmSummary = new PSMDetail();
+
+        psmSummary.setAssayId(assayId);
+
+        // archive psm id
+        builder.setLength(0);
+        builder.append(projectAccession).append('_')
+                .append(assayAccession).append('_')
+                .append(psm.getPSM_ID()).append('_')
+                .append(psm.getAccession()).append('_')
+                .append(PeptideUtils.cleanPeptideSequence(psm.getSequence()));
+        psmSummary.setArchivePSMId(builder.toString());
+
+        // peptide sequence
+        psmSummary.setSequence(psm.getSequence());
+
+        // modification
+        SplitList<Modification> modifications = psm.getModifications();
+        if (modifications != null && !modifications.isEmpty()) {
+            Collections.sort(modifications, ModificationComparator.getInstance());
+            psmSummary.setModifications(modifications.toString());
+        }
+
+        // search engine
+        builder.setLength(0);
+        SplitList<Param> searchEngines = psm.getSearchEngine();
+        if (searchEngines != null) {
+            for (Param param : searchEngines)
+                builder.append(param.getName()).append(Constants.COMMA);
+        }
+        if (builder.length() > 1)
+            psmSummary.setSearchEngine(builder.substring(0, builder.length() - 1));
+
+        //search engine scores
+        builder.setLength(0);
+        for (int i = 0; i < numOfMsRun; i++) {
+            Double searchEngineScore = psm.getSearchEngineScore(i + 1);
+            if (searchEngineScore != null)
+                builder.append(searchEngineScore).append(Constants.COMMA);
+        }
+        if (builder.length() > 1)
+            psmSummary.setSearchEngineScores(builder.substring(0, builder.length() - 1));
+
+        // search database
+        psmSummary.setSearchDatabase(psm.getDatabase());
+
+        // protein accession
+        psmSummary.setProteinAccession(psm.getAccession());
+
+        // start position
+        Integer start = psm.getStart();
+        if (start != null)
+            psmSummary.setStartPosition(start);
+
+        // stop position
+        Integer end = psm.getEnd();
+        if (end != null)
+            psmSummary.setStopPosition(end);
+
+        // pre amino acid
+        psmSummary.setPreAminoAcid(psm.getPre());
+
+        // post amino acid
+        psmSummary.setPostAminoAcid(psm.getPost());
+
+        // delta mass
+        Double calcMassToCharge = psm.getCalcMassToCharge();
+        Double expMassToCharge = psm.getExpMassToCharge();
+        if (calcMassToCharge != null && calcMassToCharge > 0 && expMassToCharge != null && expMassToCharge > 0) {
+            psmSummary.setDeltaMZ((float) (calcMassToCharge - expMassToCharge));
+        }
+
+        return psmSummary;
+    }
+}
@@ -0,0 +1,109 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import uk.ac.ebi.pride.cluster.exporter.pipeline.exporter.ConfigurationService;
+import uk.ac.ebi.pride.jmztab.model.PSM;
+import uk.ac.ebi.pride.spectracluster.repo.model.PSMDetail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Summarise the PSMs of an mzTab PSM section as they are read, e.g. by a {@link MzTabPSMReader}. The PSMs
+ * are taken from an iterator in batches, so the section is never held in memory, every batch is summarised on a fork-join pool
+ * with the {@link PSMSummariser} of the worker thread, and the summaries are handed to the consumer by
+ * the calling thread in the order of the PSMs.
+ *
+ * At most a few batches by thread are summarised ahead of the batch being consumed. With a single
+ * thread the PSMs are read, summarised and consumed by the calling thread. The pools are shared with
+ * the {@link OrderedChunkRenderer}.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class PSMSummaryPipeline {
+
+    private final int batchSize;
+    private final int threads;
+
+    /**
+     * Pipeline with the batch size of the constants and the ingest threads of the configuration
+     */
+    public PSMSummaryPipeline() {
+        this(Constants.PSM_SUMMARY_BATCH_SIZE, ConfigurationService.getService().getIngestThreads());
+    }
+
+    /**
+     * @param batchSize number of PSMs by batch
+     * @param threads number of threads, 1 to summarise the PSMs in the calling thread
+     */
+    public PSMSummaryPipeline(int batchSize, int threads) {
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("The batch size must be positive: " + batchSize);
+        if (threads <= 0)
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        this.batchSize = batchSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Summarise the PSMs of an assay, see {@link PSMSummariser#summarise}
+     * @param psms the PSMs, read by the calling thread
+     * @param projectAccession accession of the project
+     * @param assayId assay id is the primary key assigned at the data store level
+     * @param assayAccession accession of the assay
+     * @param numOfMsRun number of MS runs of the mzTab file
+     * @param consumer receives the summaries by batch, in the order of the PSMs
+     * @return the number of PSMs summarised
+     */
+    public long summarise(Iterator<PSM> psms, String projectAccession, Long assayId, String assayAccession, int numOfMsRun,
+                          Consumer<List<PSMDetail>> consumer) {
+        long numberPSMs = 0;
+        if (threads == 1) {
+            while (psms.hasNext()) {
+                List<PSM> batch = nextBatch(psms);
+                consumer.accept(summarise(batch, projectAccession, assayId, assayAccession, numOfMsRun));
+                numberPSMs += batch.size();
+            }
+            return numberPSMs;
+        }
+
+        ForkJoinPool forkJoinPool = OrderedChunkRenderer.pool(threads);
+        int maxPendingBatches = 2 * threads;
+        ArrayDeque<ForkJoinTask<List<PSMDetail>>> pendingBatches = new ArrayDeque<ForkJoinTask<List<PSMDetail>>>();
+        try {
+            while (psms.hasNext() || !pendingBatches.isEmpty()) {
+                while (psms.hasNext() && pendingBatches.size() < maxPendingBatches) {
+                    List<PSM> batch = nextBatch(psms);
+                    pendingBatches.add(forkJoinPool.submit(() -> summarise(batch, projectAccession, assayId, assayAccession, numOfMsRun)));
+                }
+                List<PSMDetail> summaries = pendingBatches.poll().join();
+                consumer.accept(summaries);
+                numberPSMs += summaries.size();
+            }
+        } finally {
+            for (ForkJoinTask<List<PSMDetail>> batch : pendingBatches)
+                batch.cancel(false);
+        }
+        return numberPSMs;
+    }
+
+    private List<PSM> nextBatch(Iterator<PSM> psms) {
+        List<PSM> batch = new ArrayList<PSM>(batchSize);
+        while (batch.size() < batchSize && psms.hasNext())
+            batch.add(psms.next());
+        return batch;
+    }
+
+    private static List<PSMDetail> summarise(List<PSM> batch, String projectAccession, Long assayId, String assayAccession, int numOfMsRun) {
+        PSMSummariser summariser = PSMSummariser.getThreadSummariser();
+        List<PSMDetail> summaries = new ArrayList<PSMDetail>(batch.size());
+        for (PSM psm : batch)
+            summaries.add(summariser.summarise(psm, projectAccession, assayId, assayAccession, numOfMsRun));
+        return summaries;
+    }
+}
@@ -0,0 +1,114 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.StringDictionary;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Sidecar index of a block gzip file: the BGZF virtual offset of the entries of every peptide
+ * sequence, so a reader can seek to the entries of a peptide without decompressing the whole file
+ * (e.g. htsjdk BlockCompressedInputStream.seek). The index is a tab separated file sorted by sequence:
+ *
+ * sequence    section    virtual_offset
+ *
+ * where the section is PEP for the line of the Peptide section and CPE for the first line of the
+ * Cluster Peptide section of a PeptideForm. A sequence has an entry by PeptideForm (modifications).
+ *
+ * The positions are collected in the uncompressed data and translated to virtual offsets when the
+ * compressed file is closed.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class PeptideBlockIndex {
+
+    /** Extension of the index, appended to the name of the compressed file */
+    public static final String EXTENSION = ".idx";
+
+    public static final byte PEPTIDE_SECTION = 0;
+    public static final byte CLUSTER_PEPTIDE_SECTION = 1;
+
+    private static final String[] SECTION_NAMES = {"PEP", "CPE"};
+
+    private final StringDictionary sequences;
+
+    private int size = 0;
+    private int[] sequenceCodes = new int[1024];
+    private byte[] sections = new byte[1024];
+    private long[] positions = new long[1024];
+
+    /**
+     * @param sequences the dictionary of the sequences of the release
+     */
+    public PeptideBlockIndex(StringDictionary sequences) {
+        this.sequences = sequences;
+    }
+
+    /**
+     * Add an entry
+     * @param sequenceCode code of the sequence in the dictionary
+     * @param section PEPTIDE_SECTION or CLUSTER_PEPTIDE_SECTION
+     * @param position position of the entry in the uncompressed file
+     */
+    public void add(int sequenceCode, byte section, long position) {
+        if (size == positions.length) {
+            sequenceCodes = Arrays.copyOf(sequenceCodes, size * 2);
+            sections = Arrays.copyOf(sections, size * 2);
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        sequenceCodes[size] = sequenceCode;
+        sections[size] = section;
+        positions[size] = position;
+        size++;
+    }
+
+    /**
+     * Move the positions of the entries of a section, used when a section is written apart and
+     * appended to the file
+     * @param section the section
+     * @param offset the offset added to the positions
+     */
+    public void shift(byte section, long offset) {
+        for (int i = 0; i < size; i++) {
+            if (sections[i] == section)
+                positions[i] += offset;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Write the index of a closed compressed file
+     * @param file the index file
+     * @param compressed the compressed file the positions refer to
+     */
+    public void write(File file, BlockGzipOutputStream compressed) throws IOException {
+        // Entries sorted by sequence, the entries of a sequence keep the order they were added
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++)
+            order[i] = ((long) sequences.sortedPosition(sequenceCodes[i]) << 32) | i;
+        Arrays.sort(order);
+
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            writer.print("#sequence\tsection\tvirtual_offset\n");
+            for (long key : order) {
+                int i = (int) key;
+                writer.print(sequences.decode(sequenceCodes[i]));
+                writer.print('\t');
+                writer.print(SECTION_NAMES[sections[i]]);
+                writer.print('\t');
+                writer.print(compressed.getVirtualOffset(positions[i]));
+                writer.print('\n');
+            }
+            if (writer.checkError())
+                throw new IOException("Error writing the index " + file.getAbsolutePath());
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
 
+import java.util.regex.Pattern;
+
 /**
  * Utility method for formatting peptide sequences
  *
@@ -10,12 +12,14 @@ public class PeptideUtils {
 
     public static final String NO_PEPTIDE_REGEX = "[^ABCDEFGHIJKLMNPQRSTUVWXYZ]";
 
+    private static final Pattern NO_PEPTIDE_PATTERN = Pattern.compile(NO_PEPTIDE_REGEX);
+
     public static String cleanPeptideSequence(String peptideSequence) {
         String res = null;
 
         if (peptideSequence != null) {
             res = peptideSequence.toUpperCase();
-            res = res.replaceAll(NO_PEPTIDE_REGEX, "");
+            res = NO_PEPTIDE_PATTERN.matcher(res).replaceAll("");
         }
 
         return res;
@@ -0,0 +1,295 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.pride.proteogenomics.pogo.model.PoGoEntry;
+import uk.ac.ebi.pride.proteogenomics.pogo.model.PoGoEntryFactory;
+import uk.ac.ebi.pride.proteogenomics.pogo.model.export.PoGoExporterException;
+import uk.ac.ebi.pride.proteogenomics.pogo.model.export.PoGoExporterFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractSequentialList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming writer of a PoGo dataset. The entries are spooled to a temporary file next to the PoGo file as
+ * soon as they are created, so the dataset is never held in memory. When the writer is closed the dataset is
+ * exported with the PoGo tabular exporter, as a list that reads the entries back from the spool while the
+ * exporter reads it, so the format of the file is the one of the exporter. The exporter takes a list, the
+ * list is read in one pass whether the exporter iterates it or gets the entries by index in order, see
+ * {@link SpooledEntries}.
+ *
+ * As with the PoGo tabular exporter, the errors are logged and do not stop the export of the cluster
+ * files: if the spool cannot be written the entries are discarded.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class PoGoFileWriter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PoGoFileWriter.class);
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String pogoFilePath;
+    private File spoolFile;
+    private DataOutputStream spool;
+    private int numberEntries = 0;
+
+    /**
+     * Create the spool of a PoGo dataset
+     * @param pogoFilePath destination file
+     */
+    public PoGoFileWriter(String pogoFilePath) {
+        this.pogoFilePath = pogoFilePath;
+        try {
+            File directory = new File(pogoFilePath).getAbsoluteFile().getParentFile();
+            spoolFile = File.createTempFile("pogo-entries-", ".spool", directory);
+            spoolFile.deleteOnExit();
+            spool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile), BUFFER_SIZE));
+        } catch (IOException e) {
+            logger.error("exportPogoData - ERROR - destination file '{}', ERROR ---> '{}'", pogoFilePath, e.getMessage());
+            discard();
+        }
+    }
+
+    /**
+     * Write an entry
+     */
+    public void write(PoGoEntry poGoEntry) {
+        if (spool == null)
+            return;
+        try {
+            writeString(spool, poGoEntry.getExperiment());
+            writeString(spool, poGoEntry.getPeptide());
+            Integer psm = poGoEntry.getPsm();
+            spool.writeBoolean(psm != null);
+            if (psm != null)
+                spool.writeInt(psm);
+            Double quant = poGoEntry.getQuant();
+            spool.writeBoolean(quant != null);
+            if (quant != null)
+                spool.writeDouble(quant);
+            numberEntries++;
+        } catch (IOException e) {
+            logger.error("exportPogoData - ERROR - destination file '{}', ERROR ---> '{}'", pogoFilePath, e.getMessage());
+            discard();
+        }
+    }
+
+    public long getNumberEntries() {
+        return numberEntries;
+    }
+
+    /**
+     * Export the spooled entries to the PoGo file and delete the spool, the errors are logged
+     */
+    @Override
+    public void close() {
+        if (spool == null)
+            return;
+        try {
+            spool.close();
+            spool = null;
+            try (SpooledEntries entries = new SpooledEntries(spoolFile, numberEntries)) {
+                PoGoExporterFactory.getTabularFileExporter(pogoFilePath).export(entries);
+            }
+            logger.debug("exportPogoData - DONE, #{} entries, destination file '{}'", numberEntries, pogoFilePath);
+        } catch (IOException | UncheckedIOException | PoGoExporterException e) {
+            logger.error("exportPogoData - ERROR - destination file '{}', ERROR ---> '{}'", pogoFilePath, e.getMessage());
+        } finally {
+            discard();
+        }
+    }
+
+    private void discard() {
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                logger.debug("Error closing the PoGo spool " + spoolFile + ": " + e.getMessage());
+            }
+            spool = null;
+        }
+        if (spoolFile != null && !spoolFile.delete())
+            logger.debug("The PoGo spool " + spoolFile + " could not be deleted");
+        spoolFile = null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Read only list of the spooled entries, the entries are read from the spool every time the list is
+     * iterated, so only the entry being exported is held in memory. The spool can only be read forwards:
+     * {@link #get(int)} reads on from the previous entry got by index, so the entries got in index order are
+     * read in a single pass with a single stream, an entry before the previous one is read again from the
+     * start of the spool. The streams still open are closed with the list.
+     */
+    private static class SpooledEntries extends AbstractSequentialList<PoGoEntry> implements Closeable {
+
+        private final File spoolFile;
+        private final int size;
+
+        // Iterators opened on the spool, and the one of the entries got by index
+        private final List<SpoolIterator> iterators = new ArrayList<SpoolIterator>();
+        private SpoolIterator cursor;
+
+        SpooledEntries(File spoolFile, int size) {
+            this.spoolFile = spoolFile;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public ListIterator<PoGoEntry> listIterator(int index) {
+            if (index < 0 || index > size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            SpoolIterator iterator = new SpoolIterator();
+            iterators.add(iterator);
+            iterator.skip(index);
+            return iterator;
+        }
+
+        @Override
+        public PoGoEntry get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            if (cursor == null || cursor.nextIndex() > index) {
+                if (cursor != null)
+                    cursor.close();
+                cursor = new SpoolIterator();
+                iterators.add(cursor);
+            }
+            cursor.skip(index);
+            return cursor.next();
+        }
+
+        @Override
+        public void close() {
+            for (SpoolIterator iterator : iterators)
+                iterator.close();
+            iterators.clear();
+            cursor = null;
+        }
+
+        private class SpoolIterator implements ListIterator<PoGoEntry> {
+
+            private DataInputStream in;
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public PoGoEntry next() {
+                if (!hasNext())
+                    throw new NoSuchElementException("No more PoGo entries after " + position);
+                try {
+                    if (in == null)
+                        in = new DataInputStream(new BufferedInputStream(new FileInputStream(spoolFile), BUFFER_SIZE));
+                    String experiment = readString(in);
+                    String peptide = readString(in);
+                    Integer psm = in.readBoolean() ? in.readInt() : null;
+                    Double quant = in.readBoolean() ? in.readDouble() : null;
+                    if (++position == size)
+                        close();
+                    return PoGoEntryFactory.createPoGoEntryWithStrategy(poGoEntry -> {
+                        poGoEntry.setExperiment(experiment);
+                        poGoEntry.setPeptide(peptide);
+                        if (psm != null)
+                            poGoEntry.setPsm(psm);
+                        if (quant != null)
+                            poGoEntry.setQuant(quant);
+                        return poGoEntry;
+                    });
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error reading the PoGo spool " + spoolFile, e);
+                }
+            }
+
+            /**
+             * Read the entries before the given index
+             */
+            void skip(int index) {
+                while (position < index)
+                    next();
+            }
+
+            /**
+             * Close the stream, the iterator has no more entries
+             */
+            void close() {
+                position = size;
+                if (in == null)
+                    return;
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.debug("Error closing the PoGo spool " + spoolFile + ": " + e.getMessage());
+                }
+                in = null;
+            }
+
+            @Override
+            public boolean hasPrevious() {
+                return false;
+            }
+
+            @Override
+            public PoGoEntry previous() {
+                throw new UnsupportedOperationException("The spooled PoGo entries can only be read forwards");
+            }
+
+            @Override
+            public int nextIndex() {
+                return position;
+            }
+
+            @Override
+            public int previousIndex() {
+                return position - 1;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("The spooled PoGo entries are read only");
+            }
+
+            @Override
+            public void set(PoGoEntry poGoEntry) {
+                throw new UnsupportedOperationException("The spooled PoGo entries are read only");
+            }
+
+            @Override
+            public void add(PoGoEntry poGoEntry) {
+                throw new UnsupportedOperationException("The spooled PoGo entries are read only");
+            }
+        }
+    }
+}
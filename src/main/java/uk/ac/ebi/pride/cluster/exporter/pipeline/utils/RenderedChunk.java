@@ -0,0 +1,72 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import java.util.Arrays;
+
+/**
+ * Lines of a chunk of entries rendered by {@link OrderedChunkRenderer}, with the bounds of every entry.
+ * An entry can be empty (no lines).
+ *
+ * @author agent
+ * @version $Id$
+ */
+class RenderedChunk {
+
+    private final int from;
+    private final TsvLineEncoder lines = new TsvLineEncoder();
+
+    private int size = 0;
+    private int[] ends;
+
+    /**
+     * @param from the first entry of the chunk
+     * @param capacity expected number of entries
+     */
+    RenderedChunk(int from, int capacity) {
+        this.from = from;
+        this.ends = new int[Math.max(1, capacity)];
+    }
+
+    /**
+     * The encoder of the lines, the lines of the current entry are appended to it
+     */
+    TsvLineEncoder getLines() {
+        return lines;
+    }
+
+    /**
+     * End the current entry
+     */
+    void endEntry() {
+        if (size == ends.length)
+            ends = Arrays.copyOf(ends, size * 2);
+        ends[size++] = lines.size();
+    }
+
+    /**
+     * First entry of the chunk
+     */
+    int getFrom() {
+        return from;
+    }
+
+    /**
+     * Number of entries
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Offset of the first byte of an entry in the lines
+     */
+    int getStart(int entry) {
+        return (entry == 0) ? 0 : ends[entry - 1];
+    }
+
+    /**
+     * Offset after the last byte of an entry in the lines
+     */
+    int getEnd(int entry) {
+        return ends[entry];
+    }
+}
@@ -0,0 +1,528 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.exporter.ConfigurationService;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Specie;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.pogo.PoGoTranslationCache;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.services.ClusterRepositoryServices;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.AssayIndex;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusteredPSMStore;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.EvidenceView;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.StringDictionary;
+import uk.ac.ebi.pride.proteogenomics.pogo.model.PoGoEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write the file of all the species and the file of every species in a single pass over the ranked PSMs.
+ * The entries of a PeptideForm do not depend on the species, so every PeptideForm is:
+ *
+ * - routed to the files of the species of its PSMs, using the taxonomies of the assays
+ * - rendered once, the Peptide (PEP) and Cluster Peptide (CPE) lines are encoded in a buffer
+ * - copied to every file it was routed to
+ *
+ * The PeptideForms are routed and rendered by chunks in parallel, see {@link OrderedChunkRenderer}, and
+ * copied to the files in order. The rendered chunks are copied to the files concurrently, every file by a
+ * single task at a time, on the same pool, so the number of threads bounds both the rendering and the copies.
+ *
+ * The PEP section is written straight to the files, the CPE section of every file is spooled to a
+ * temporary file and appended to the file when all the PeptideForms have been written. The PoGo entries
+ * are created once and streamed to the PoGo datasets of the species.
+ *
+ * The files are the same as the ones written by {@link SummaryFactory#printFile} for every species,
+ * including the block gzip output and its index.
+ *
+ * The failure of a file does not stop the other files, the failed file is deleted. When all the files have
+ * been written a summary with the time spent writing every file and its bytes is logged, and an exception is
+ * thrown if any file failed.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class SpeciesFanOutWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpeciesFanOutWriter.class);
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Properties properties;
+    private final String version;
+    private final boolean includePogoExport;
+    private final int threads;
+    private final OrderedChunkRenderer renderer;
+
+    // The file of all the species (if requested) is the first one
+    private final List<FileSink> sinks = new ArrayList<FileSink>();
+
+    /**
+     * Writer with the threads of the configuration, the largest of the threads and the render threads
+     * @param path the directory of the files
+     * @param includeAll true to write the file of all the species
+     * @param species the species with their own file
+     * @param properties The properties to be use to generate the files
+     * @param version the version of cluster
+     */
+    public SpeciesFanOutWriter(String path, boolean includeAll, Collection<Specie> species, Properties properties, String version) {
+        this(path, includeAll, species, properties, version,
+                Math.max(ConfigurationService.getService().getThreads(), ConfigurationService.getService().getRenderThreads()));
+    }
+
+    /**
+     * @param path the directory of the files
+     * @param includeAll true to write the file of all the species
+     * @param species the species with their own file
+     * @param properties The properties to be use to generate the files
+     * @param version the version of cluster
+     * @param threads number of threads rendering the chunks and copying them to the files, 1 to do all the
+     *                work in the calling thread
+     */
+    public SpeciesFanOutWriter(String path, boolean includeAll, Collection<Specie> species, Properties properties,
+                               String version, int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        this.properties = properties;
+        this.version = version;
+        this.includePogoExport = ConfigurationService.getService().isIncludePogoExport();
+        this.threads = threads;
+        this.renderer = new OrderedChunkRenderer(Constants.RENDER_CHUNK_SIZE, threads);
+        if (includeAll)
+            sinks.add(new FileSink(null, SummaryFactory.filePath(path, null, properties)));
+        for (Specie specie : species)
+            sinks.add(new FileSink(specie, SummaryFactory.filePath(path, specie, properties)));
+    }
+
+    /**
+     * Write the files of the ranked PSMs of a service
+     * @param service the service that provides the ranked PSMs
+     * @throws IOException if any of the files could not be written, the other files are written
+     */
+    public void write(ClusterRepositoryServices service) throws IOException {
+        File spoolDirectory = new File(ConfigurationService.getService().getSpillDirectory());
+        try {
+            for (FileSink sink : sinks)
+                sink.open(spoolDirectory);
+
+            long numberPeptideForms = 0;
+            for (ClusteredPSMStore store : service.getPSMSegments())
+                numberPeptideForms += write(store);
+            logger.info("Written " + numberPeptideForms + " PeptideForms to " + sinks.size() + " files");
+
+            for (FileSink sink : sinks)
+                sink.finish();
+        } finally {
+            for (FileSink sink : sinks)
+                sink.close();
+        }
+
+        int numberFailures = printSummary();
+        if (numberFailures > 0)
+            throw new IOException(numberFailures + " of " + sinks.size() + " files could not be written, see the log for details");
+    }
+
+    /**
+     * Write the PeptideForms of a segment of PSMs, the PeptideForms are routed and rendered by chunks in
+     * parallel and written in order
+     * @return the number of PeptideForms written to any file
+     */
+    private long write(ClusteredPSMStore store) throws IOException {
+        EvidenceView evidences = SummaryFactory.evidenceView(store, properties);
+        PoGoTranslationCache.TranslatedPeptides peptides = PoGoTranslationCache.getInstance().getTranslatedPeptides(store);
+        int[][] sinksByTaxonomy = sinksByTaxonomy(store.getTaxonomies());
+        int firstForm = store.getFirstPeptideForm();
+
+        long[] numberPeptideForms = new long[1];
+        renderer.render(store.getEndPeptideForm() - firstForm,
+                (from, to) -> render(store, evidences, sinksByTaxonomy, firstForm + from, firstForm + to),
+                chunk -> {
+                    // The PoGo entries of a PeptideForm are created once for all its files
+                    if (includePogoExport)
+                        chunk.addPoGoEntries(evidences, peptides);
+                    copy(store, chunk);
+                    numberPeptideForms[0] += chunk.size();
+                });
+        return numberPeptideForms[0];
+    }
+
+    /**
+     * Copy a chunk to its files, every file by its own task when there are several threads
+     */
+    private void copy(ClusteredPSMStore store, RoutedChunk chunk) {
+        BitSet chunkSinks = new BitSet(sinks.size());
+        for (int i = 0; i < chunk.size(); i++)
+            chunkSinks.or(chunk.routed[i]);
+
+        if (threads == 1 || chunkSinks.cardinality() <= 1) {
+            for (int sink = chunkSinks.nextSetBit(0); sink >= 0; sink = chunkSinks.nextSetBit(sink + 1))
+                sinks.get(sink).write(store, chunk, sink);
+            return;
+        }
+
+        ForkJoinPool pool = OrderedChunkRenderer.pool(threads);
+        List<ForkJoinTask<?>> copies = new ArrayList<ForkJoinTask<?>>(chunkSinks.cardinality());
+        for (int sink = chunkSinks.nextSetBit(0); sink >= 0; sink = chunkSinks.nextSetBit(sink + 1)) {
+            FileSink fileSink = sinks.get(sink);
+            int sinkIndex = sink;
+            copies.add(pool.submit(() -> fileSink.write(store, chunk, sinkIndex)));
+        }
+        for (ForkJoinTask<?> copy : copies)
+            copy.join();
+    }
+
+    /**
+     * Log the time spent writing every file and its bytes
+     * @return the number of files that failed
+     */
+    private int printSummary() {
+        int numberFailures = 0;
+        long totalBytes = 0;
+        logger.info("Files written:");
+        for (FileSink sink : sinks) {
+            long bytes = sink.getBytes();
+            totalBytes += bytes;
+            if (sink.error != null)
+                numberFailures++;
+            logger.info(((sink.error == null) ? "  OK     " : "  FAILED ") + SummaryFactory.outputPath(sink.file.getPath())
+                    + " " + TimeUnit.NANOSECONDS.toMillis(sink.nanos) + " ms, " + bytes + " bytes");
+        }
+        logger.info(sinks.size() + " files, " + numberFailures + " failed, " + totalBytes + " bytes");
+        return numberFailures;
+    }
+
+    /**
+     * Route and render the PeptideForms [fromForm, toForm), the PeptideForms without files are skipped
+     */
+    private RoutedChunk render(ClusteredPSMStore store, EvidenceView evidences, int[][] sinksByTaxonomy, int fromForm, int toForm) {
+        RoutedChunk chunk = new RoutedChunk(fromForm, toForm - fromForm);
+        BitSet routed = new BitSet(sinks.size());
+        BitSet pogoRouted = new BitSet(sinks.size());
+        for (int peptideForm = fromForm; peptideForm < toForm; peptideForm++) {
+            route(store, peptideForm, sinksByTaxonomy, routed, pogoRouted);
+            if (routed.isEmpty())
+                continue;
+            SummaryFactory.encodePeptideEntry(chunk.peptideEntries.getLines(), evidences, peptideForm, properties);
+            SummaryFactory.encodeClusterPeptideEntry(chunk.clusterPeptideEntries.getLines(), evidences, peptideForm, properties);
+            chunk.add(peptideForm, routed, pogoRouted);
+        }
+        return chunk;
+    }
+
+    /**
+     * Files of every taxonomy code, a species is matched if its taxonomy is one of the taxonomies of the assay
+     */
+    private int[][] sinksByTaxonomy(StringDictionary taxonomies) {
+        int[][] sinksByTaxonomy = new int[taxonomies.size()][];
+        int[] sizes = new int[taxonomies.size()];
+        for (FileSink sink : sinks) {
+            int code = (sink.specie == null) ? StringDictionary.NULL_CODE : taxonomies.lookup(sink.specie.getTaxonomy());
+            if (code != StringDictionary.NULL_CODE)
+                sizes[code]++;
+        }
+        for (int code = 0; code < sizes.length; code++) {
+            sinksByTaxonomy[code] = new int[sizes[code]];
+            sizes[code] = 0;
+        }
+        for (int i = 0; i < sinks.size(); i++) {
+            Specie specie = sinks.get(i).specie;
+            int code = (specie == null) ? StringDictionary.NULL_CODE : taxonomies.lookup(specie.getTaxonomy());
+            if (code != StringDictionary.NULL_CODE)
+                sinksByTaxonomy[code][sizes[code]++] = i;
+        }
+        return sinksByTaxonomy;
+    }
+
+    /**
+     * Files of a PeptideForm, the file of all the species receives every PeptideForm with PSMs
+     */
+    private void route(ClusteredPSMStore store, int peptideForm, int[][] sinksByTaxonomy, BitSet routed, BitSet pogoRouted) {
+        routed.clear();
+        pogoRouted.clear();
+        for (int row = store.getFirstRow(peptideForm); row < store.getEndRow(peptideForm); row++) {
+            boolean multitaxonomy = SummaryFactory.isMultitaxonomyClusteredPsmReport(store, row);
+            for (int i = 0; i < sinks.size() && sinks.get(i).specie == null; i++) {
+                routed.set(i);
+                if (!multitaxonomy)
+                    pogoRouted.set(i);
+            }
+            if (store.getAssaySlot(row) == AssayIndex.NO_SLOT)
+                continue;
+            for (int taxonomy : store.getTaxonomyIds(row)) {
+                for (int sink : sinksByTaxonomy[taxonomy]) {
+                    routed.set(sink);
+                    if (!multitaxonomy)
+                        pogoRouted.set(sink);
+                }
+            }
+        }
+    }
+
+    /**
+     * The output of a file: the file, the spool of its CPE section and its PoGo dataset. A file is written by
+     * a single thread at a time, the first error is kept and the file is not written any more.
+     */
+    private class FileSink {
+
+        private final Specie specie;
+        private final File file;
+        private final String pogoFilePath;
+
+        private PrintStream out;
+        private File clusterPeptideFile;
+        private OutputStream clusterPeptideSpool;
+        private long clusterPeptideSpoolPosition = 0;
+
+        // Block gzip output and the index of the peptides
+        private BlockGzipOutputStream compressed;
+        private PeptideBlockIndex index;
+
+        private PoGoFileWriter poGoFile;
+
+        // Time spent writing the file and the first error
+        private long nanos = 0;
+        private Exception error;
+
+        FileSink(Specie specie, String filePath) {
+            this.specie = specie;
+            this.file = new File(filePath);
+            this.pogoFilePath = FilenameUtils.removeExtension(filePath) + ".pogo";
+        }
+
+        /**
+         * Open the file and the spool, and write the header and the header of the PEP section
+         */
+        void open(File spoolDirectory) {
+            long start = System.nanoTime();
+            try {
+                if (ConfigurationService.getService().isBlockGzip()) {
+                    compressed = new BlockGzipOutputStream(new FileOutputStream(SummaryFactory.outputPath(file.getPath())));
+                    out = new PrintStream(compressed);
+                } else {
+                    out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+                }
+                if (includePogoExport)
+                    poGoFile = new PoGoFileWriter(pogoFilePath);
+                clusterPeptideFile = File.createTempFile("cluster-peptides-", ".spool", spoolDirectory);
+                clusterPeptideSpool = new BufferedOutputStream(new FileOutputStream(clusterPeptideFile), BUFFER_SIZE);
+
+                SummaryFactory.printHeaderFile(out, properties, version, specie);
+                SummaryFactory.printPeptideHeader(out, properties);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+            nanos += System.nanoTime() - start;
+        }
+
+        /**
+         * Write the PEP entries and spool the CPE entries of the PeptideForms of a chunk routed to the file
+         * @param sink the position of the file in the sinks
+         */
+        void write(ClusteredPSMStore store, RoutedChunk chunk, int sink) {
+            if (error != null)
+                return;
+            long start = System.nanoTime();
+            try {
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (chunk.routed[i].get(sink))
+                        write(store, chunk.peptideForms[i], chunk.peptideEntries, chunk.clusterPeptideEntries, i);
+                    if (poGoFile != null && chunk.pogoRouted[i].get(sink)) {
+                        for (PoGoEntry poGoEntry : chunk.poGoEntries[i])
+                            poGoFile.write(poGoEntry);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+            nanos += System.nanoTime() - start;
+        }
+
+        /**
+         * Write the PEP entry and spool the CPE entries of a PeptideForm
+         * @param entry the entry of the PeptideForm in the rendered chunks
+         */
+        private void write(ClusteredPSMStore store, int peptideForm, RenderedChunk peptideEntries, RenderedChunk clusterPeptideEntries,
+                           int entry) throws IOException {
+            int peptideLength = peptideEntries.getEnd(entry) - peptideEntries.getStart(entry);
+            int clusterPeptideLength = clusterPeptideEntries.getEnd(entry) - clusterPeptideEntries.getStart(entry);
+            if (compressed != null) {
+                if (index == null)
+                    index = new PeptideBlockIndex(store.getSequences());
+                if (peptideLength > 0)
+                    index.add(store.getSequenceId(peptideForm), PeptideBlockIndex.PEPTIDE_SECTION, compressed.getPosition());
+                if (clusterPeptideLength > 0)
+                    index.add(store.getSequenceId(peptideForm), PeptideBlockIndex.CLUSTER_PEPTIDE_SECTION, clusterPeptideSpoolPosition);
+            }
+            peptideEntries.getLines().writeTo(out, peptideEntries.getStart(entry), peptideEntries.getEnd(entry));
+            clusterPeptideEntries.getLines().writeTo(clusterPeptideSpool, clusterPeptideEntries.getStart(entry), clusterPeptideEntries.getEnd(entry));
+            clusterPeptideSpoolPosition += clusterPeptideLength;
+        }
+
+        /**
+         * Close the PEP section and append the spooled CPE section
+         */
+        void finish() {
+            if (error != null)
+                return;
+            long start = System.nanoTime();
+            try {
+                out.println();
+                SummaryFactory.printClusterPeptideHeader(out, properties);
+
+                clusterPeptideSpool.close();
+                clusterPeptideSpool = null;
+                out.flush();
+                if (index != null)
+                    index.shift(PeptideBlockIndex.CLUSTER_PEPTIDE_SECTION, compressed.getPosition());
+                try (InputStream in = new BufferedInputStream(new FileInputStream(clusterPeptideFile), BUFFER_SIZE)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) >= 0)
+                        out.write(buffer, 0, read);
+                }
+
+                out.println();
+                out.close();
+                if (out.checkError())
+                    throw new IOException("Error writing the file " + SummaryFactory.outputPath(file.getPath()));
+
+                if (compressed != null) {
+                    if (index == null)
+                        index = new PeptideBlockIndex(new StringDictionary());
+                    index.write(new File(SummaryFactory.outputPath(file.getPath()) + PeptideBlockIndex.EXTENSION), compressed);
+                }
+                if (poGoFile != null) {
+                    poGoFile.close();
+                    poGoFile = null;
+                }
+                logger.info("Written file " + SummaryFactory.outputPath(file.getPath()));
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+            nanos += System.nanoTime() - start;
+        }
+
+        /**
+         * Keep the error, close the file and delete what was written
+         */
+        private void fail(Exception e) {
+            logger.error("Error writing the file " + SummaryFactory.outputPath(file.getPath()), e);
+            error = e;
+            close();
+            for (File output : getOutputs()) {
+                if (output.exists() && !output.delete())
+                    logger.warn("The incomplete file " + output.getAbsolutePath() + " could not be deleted");
+            }
+        }
+
+        /**
+         * Bytes of the file, its index and its PoGo dataset
+         */
+        long getBytes() {
+            long bytes = 0;
+            for (File output : getOutputs())
+                bytes += output.length();
+            return bytes;
+        }
+
+        private File[] getOutputs() {
+            String outputPath = SummaryFactory.outputPath(file.getPath());
+            return new File[]{new File(outputPath), new File(outputPath + PeptideBlockIndex.EXTENSION), new File(pogoFilePath)};
+        }
+
+        /**
+         * Close the file and delete the spool
+         */
+        void close() {
+            if (clusterPeptideSpool != null) {
+                try {
+                    clusterPeptideSpool.close();
+                } catch (IOException e) {
+                    logger.warn("Error closing the spool " + clusterPeptideFile.getAbsolutePath());
+                }
+                clusterPeptideSpool = null;
+            }
+            if (out != null)
+                out.close();
+            if (poGoFile != null) {
+                poGoFile.close();
+                poGoFile = null;
+            }
+            if (clusterPeptideFile != null && clusterPeptideFile.exists() && !clusterPeptideFile.delete())
+                logger.warn("The spool " + clusterPeptideFile.getAbsolutePath() + " could not be deleted");
+        }
+    }
+
+    /**
+     * The PeptideForms of a chunk that are written to any file, with their entries and their files
+     */
+    private static class RoutedChunk {
+
+        private int size = 0;
+        private int[] peptideForms;
+        private BitSet[] routed;
+        private BitSet[] pogoRouted;
+        private List<PoGoEntry>[] poGoEntries;
+        private final RenderedChunk peptideEntries;
+        private final RenderedChunk clusterPeptideEntries;
+
+        RoutedChunk(int fromForm, int capacity) {
+            peptideForms = new int[Math.max(1, capacity)];
+            routed = new BitSet[peptideForms.length];
+            pogoRouted = new BitSet[peptideForms.length];
+            peptideEntries = new RenderedChunk(fromForm, capacity);
+            clusterPeptideEntries = new RenderedChunk(fromForm, capacity);
+        }
+
+        /**
+         * Add a PeptideForm whose entries have just been encoded
+         */
+        void add(int peptideForm, BitSet routedSinks, BitSet pogoRoutedSinks) {
+            if (size == peptideForms.length) {
+                peptideForms = Arrays.copyOf(peptideForms, size * 2);
+                routed = Arrays.copyOf(routed, size * 2);
+                pogoRouted = Arrays.copyOf(pogoRouted, size * 2);
+            }
+            peptideForms[size] = peptideForm;
+            routed[size] = (BitSet) routedSinks.clone();
+            pogoRouted[size] = (BitSet) pogoRoutedSinks.clone();
+            size++;
+            peptideEntries.endEntry();
+            clusterPeptideEntries.endEntry();
+        }
+
+        /**
+         * Create the PoGo entries of the PeptideForms with PoGo files
+         */
+        @SuppressWarnings("unchecked")
+        void addPoGoEntries(EvidenceView evidences, PoGoTranslationCache.TranslatedPeptides peptides) {
+            poGoEntries = new List[size];
+            for (int i = 0; i < size; i++) {
+                List<PoGoEntry> entries = new ArrayList<PoGoEntry>();
+                if (!pogoRouted[i].isEmpty())
+                    SummaryFactory.addPoGoEntries(entries::add, evidences, peptides, peptideForms[i]);
+                poGoEntries[i] = entries;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
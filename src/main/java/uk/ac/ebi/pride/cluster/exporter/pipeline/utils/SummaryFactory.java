@@ -13,31 +13,29 @@ import uk.ac.ebi.pride.archive.repo.project.Project;
 import uk.ac.ebi.pride.archive.repo.project.ProjectTag;
 import uk.ac.ebi.pride.cluster.exporter.pipeline.exporter.ConfigurationService;
 import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Specie;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.pogo.PoGoTranslationCache;
 import uk.ac.ebi.pride.cluster.exporter.pipeline.pogo.visitors.PoGoEntryVisitorForClusteredPsmReport;
 import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.IClusterQualityDecider;
 import uk.ac.ebi.pride.cluster.exporter.pipeline.services.ClusterRepositoryServices;
-import uk.ac.ebi.pride.jmztab.model.Modification;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusteredPSMStore;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.EvidenceView;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.StringDictionary;
 import uk.ac.ebi.pride.jmztab.model.PSM;
-import uk.ac.ebi.pride.jmztab.model.Param;
-import uk.ac.ebi.pride.jmztab.model.SplitList;
 import uk.ac.ebi.pride.proteogenomics.pogo.model.PoGoEntry;
 import uk.ac.ebi.pride.proteogenomics.pogo.model.PoGoEntryFactory;
-import uk.ac.ebi.pride.proteogenomics.pogo.model.export.PoGoExporterException;
-import uk.ac.ebi.pride.proteogenomics.pogo.model.export.PoGoExporterFactory;
 import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.ICluster;
-import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.IModification;
-import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.IPeptideSpectrumMatch;
 import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.ISpectrumReference;
 import uk.ac.ebi.pride.spectracluster.repo.model.*;
 import uk.ac.ebi.pride.spectracluster.spectrum.ISpectrum;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 /**
  * Factory methods for converting external objects to data source friendly version
@@ -48,10 +46,11 @@ import java.util.stream.Collectors;
 public final class SummaryFactory {
     private static final Logger logger = LoggerFactory.getLogger(SummaryFactory.class);
 
-    private static final String TAB_SEP = "\t";
-
     private static final String NULL_VALUE = "NULL";
-    private static final String END_LINE = "\n";
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+
+    private static final String BLOCK_GZIP_EXTENSION = ".gz";
 
     /**
      * Print in the current file the header for the file including a general description
@@ -61,7 +60,7 @@ public final class SummaryFactory {
      * @param version the version of cluster
      * @param specie specie to filter the data.
      */
-    private static void printHeaderFile(PrintStream stream, Properties properties, String version, Specie specie) {
+    static void printHeaderFile(PrintStream stream, Properties properties, String version, Specie specie) {
 
         String specieString = (specie != null)? specie.getName(): "ALL";
 
@@ -96,133 +95,191 @@ public final class SummaryFactory {
         stream.println(properties.getProperty("cluster.peptide.field.header"));
     }
 
+    /**
+     * Cluster evidences of the PeptideForms of a store, for the rank and score filters of the properties.
+     * The evidences are computed once by store and shared by all the sections of the files.
+     * @param store the clustered PSMs
+     * @param properties the properties containing the filters
+     */
+    public static EvidenceView evidenceView(ClusteredPSMStore store, Properties properties) {
+        float filter = Float.parseFloat(properties.getProperty("peptide.rank.filter"));
+        float filterScore = Float.parseFloat(properties.getProperty("peptide.score.filter"));
+        return store.getEvidenceView(filter, filterScore);
+    }
+
     /**
      * This function print a Peptide entry on the Peptide Section including its information
      * @param stream the output file
-     * @param peptideReport the peptideReport
+     * @param evidences the cluster evidences of the PeptideForms, see {@link #evidenceView}
+     * @param peptideForm the PeptideForm to be printed
      * @param properties the properties containing the header of the file
      */
-    public static void printPeptideEntry(PrintStream stream, Map.Entry<PeptideForm, List<ClusteredPSMReport>> peptideReport, Properties properties) {
-
-        PeptideForm peptide = peptideReport.getKey();
-        float filter = Float.parseFloat(properties.getProperty("peptide.rank.filter"));
-        float filterScore = Float.parseFloat(properties.getProperty("peptide.score.filter"));
+    public static void printPeptideEntry(PrintStream stream, EvidenceView evidences, int peptideForm, Properties properties) {
+        TsvLineEncoder encoder = TsvLineEncoder.forCurrentThread();
+        encodePeptideEntry(encoder, evidences, peptideForm, properties);
+        encoder.writeTo(stream);
+    }
 
-        TreeSet<ClusteredPSMReport> collect = peptideReport.getValue().parallelStream()
-                .map(c -> (ClusteredPSMReport) c)
-                .filter(c -> c.getRank() <= filter)
-                .filter(c -> c.getPsmRatio() > filterScore)
-                .collect(Collectors.toCollection(
-                        () -> new TreeSet<ClusteredPSMReport>((p1, p2) -> p1.getClusterId().compareTo(p2.getClusterId()))
-                ));
-
-        float bestRank  = Float.MAX_VALUE;
-        float bestRatio = Float.MIN_VALUE;
-        int numSpectra  = 0;
-        boolean wrongAnnotated = false;
-
-        Set<String> taxonomies = new TreeSet<>();
-        Set<String> projects   = new TreeSet<>();
-
-        for(ClusteredPSMReport object: collect){
-            bestRank = (object.getRank() < bestRank)? object.getRank():bestRank;
-            bestRatio = (object.getPsmRatio() > bestRatio)? object.getPsmRatio():bestRatio;
-            numSpectra += object.getNumberOfSpectra();
-            if(object.getAssay() != null && object.getAssay().getTaxonomyId() != null){
-                String[] taxonomyArr = object.getAssay().getTaxonomyId().split(",");
-                taxonomies.addAll(Arrays.asList(taxonomyArr));
-            }
-            projects.add(object.getAssay().getProjectAccession());
-        }
+    /**
+     * Encode a Peptide entry of the Peptide Section, nothing is encoded if the entry is filtered out
+     * @param encoder the encoder of the output file
+     * @param evidences the cluster evidences of the PeptideForms
+     * @param peptideForm the PeptideForm to be printed
+     * @param properties the properties containing the header of the file
+     */
+    public static void encodePeptideEntry(TsvLineEncoder encoder, EvidenceView evidences, int peptideForm, Properties properties) {
 
+        ClusteredPSMStore store = evidences.getStore();
+        int numberEvidences = evidences.getNumberEvidences(peptideForm);
 
-        if(collect != null && !collect.isEmpty()){
+        if(numberEvidences > 0){
             // This is the real injection point for the multitaxonomy filter
             if (ConfigurationService.getService().isFilterOutMultitaxonomies()
-                    && taxonomies.size() > 1) {
+                    && evidences.getNumberTaxonomies(peptideForm) > 1) {
                 // TODO - This filter should also be applied before calling this method, as it is not its responsibility to filter the data, but just printing it
             } else {
-                logger.debug("Peptide -> " + peptide.getSequence() + " clusters number -> " + collect.size());
-                stream.print(properties.getProperty("peptide.start.header") + TAB_SEP);
-                stream.print(peptide.getSequence() + TAB_SEP);
-                stream.print(printValue(summariseMoficiation(peptide.getModifications())) + TAB_SEP);
-                stream.print(printValue(bestRank) + TAB_SEP);
-                stream.print(printFloat(bestRatio) + TAB_SEP);
-                stream.print(printValue(numSpectra) + TAB_SEP);
-                stream.print(printValue(projects.size() + TAB_SEP));
-                stream.print(printValue(collect.size()) + TAB_SEP);
-                stream.print(printValue(summariseStringValues(taxonomies)) + TAB_SEP);
-                stream.print(printValue(summariseStringValues(projects) + END_LINE));
+                if (logger.isDebugEnabled())
+                    logger.debug("Peptide -> " + store.getSequence(peptideForm) + " clusters number -> " + numberEvidences);
+                encoder.append(properties.getProperty("peptide.start.header")).tab();
+                encoder.append(store.getSequence(peptideForm)).tab();
+                encoder.append(printValue(summariseMoficiation(store.getModifications(peptideForm)))).tab();
+                encoder.appendFloat(evidences.getBestRank(peptideForm)).tab();
+                encoder.appendFixed2(evidences.getBestRatio(peptideForm)).tab();
+                encoder.append(evidences.getNumberSpectra(peptideForm)).tab();
+                encoder.append(evidences.getNumberProjects(peptideForm)).tab();
+                encoder.append(numberEvidences).tab();
+                encodeTaxonomies(encoder, evidences, peptideForm).tab();
+                encodeProjects(encoder, evidences, peptideForm).endLine();
             }
         }
     }
 
 
-    public static void printClusterPeptideEntry(PrintStream stream, Map.Entry<PeptideForm, List<ClusteredPSMReport>> peptideReport, Properties properties) {
+    /**
+     * Print the Cluster Peptide entries of a PeptideForm, one line by cluster evidence
+     * @param stream the output file
+     * @param evidences the cluster evidences of the PeptideForms, see {@link #evidenceView}
+     * @param peptideForm the PeptideForm to be printed
+     * @param properties the properties containing the header of the file
+     */
+    public static void printClusterPeptideEntry(PrintStream stream, EvidenceView evidences, int peptideForm, Properties properties) {
+        TsvLineEncoder encoder = TsvLineEncoder.forCurrentThread();
+        encodeClusterPeptideEntry(encoder, evidences, peptideForm, properties);
+        encoder.writeTo(stream);
+    }
 
-        float filter = Float.parseFloat(properties.getProperty("peptide.rank.filter"));
-        float filterScore = Float.parseFloat(properties.getProperty("peptide.score.filter"));
-        AtomicBoolean filterMultitaxonomy = new AtomicBoolean(false);
-        TreeSet<ClusteredPSMReport> collect = peptideReport.getValue().parallelStream()
-                .map(c -> (ClusteredPSMReport) c)
-                .filter(c -> c.getRank() <= filter)
-                .filter(c -> c.getPsmRatio() > filterScore)
-                .filter(c -> {
-                    if (isMultitaxonomyClusteredPsmReport(c)) {
-                        filterMultitaxonomy.set(true);
-                        // Filter it out of the output dataset
-                        return false;
-                    }
-                    // Filter it in, in the output dataset
-                    return true;
-                })
-                .collect(Collectors.toCollection(
-                        () -> new TreeSet<ClusteredPSMReport>((p1, p2) -> p1.getClusterId().compareTo(p2.getClusterId()))
-                ));
-
-        if (filterMultitaxonomy.get()) {
-            // TODO - to be honest, this filter should be implemented outside this method, and applied before calling it, as this method's sole responsibility should be printing the entry
-            String sequence = "---N/A---";
-            if ((collect != null) && (!collect.isEmpty()) && (collect.first() != null) && (collect.first().getSequence() != null)) {
-                sequence = collect.first().getSequence();
-            }
-        } else {
-            for(ClusteredPSMReport object: collect){
-                if(object.getClusterId().toString().equalsIgnoreCase("3247970") || object.getSequence().equalsIgnoreCase("TVLDQQQTPSR")){
-                    System.out.println("The wrong cluster id");
-                }
-                logger.debug("Peptide -> " + object.getSequence() + " Cluster ID -> " + object.getClusterId() + " Rank-> " + object.getRank());
-                stream.print(properties.getProperty("cluster.peptide.start.header")+TAB_SEP);
-                stream.print(object.getClusterId() + TAB_SEP);
-                stream.print(object.getSequence() + TAB_SEP);
-                stream.print(printValue(summariseMoficiation(object.getModifications())) + TAB_SEP);
-                stream.print(printValue(object.getRank()) + TAB_SEP);
-                stream.print(printFloat(object.getPsmRatio()) + TAB_SEP);
-                stream.print(printFloat(object.getDeltaMZ()) + TAB_SEP);
-                stream.print(printValue(object.getClusterNumberSpectra()) + TAB_SEP);
-                stream.print(printValue(object.getClusterNumberProjects() + TAB_SEP));
-                stream.print(printValue(printValue(object.getAssay().getTaxonomyId())) + TAB_SEP);
-                stream.print(printValue(printValue(object.getAssay().getProjectAccession()) + END_LINE));
+    /**
+     * Encode the Cluster Peptide entries of a PeptideForm, one line by cluster evidence
+     * @param encoder the encoder of the output file
+     * @param evidences the cluster evidences of the PeptideForms
+     * @param peptideForm the PeptideForm to be printed
+     * @param properties the properties containing the header of the file
+     */
+    public static void encodeClusterPeptideEntry(TsvLineEncoder encoder, EvidenceView evidences, int peptideForm, Properties properties) {
+
+        // TODO - to be honest, this filter should be implemented outside this method, and applied before calling it, as this method's sole responsibility should be printing the entry
+        if (evidences.hasMultitaxonomyEvidence(peptideForm))
+            return;
+
+        ClusteredPSMStore store = evidences.getStore();
+        String header = properties.getProperty("cluster.peptide.start.header");
+        String sequence = store.getSequence(peptideForm);
+        String modifications = printValue(summariseMoficiation(store.getModifications(peptideForm)));
+
+        for(int evidence = 0; evidence < evidences.getNumberEvidences(peptideForm); evidence++){
+            int row = evidences.getEvidenceRow(peptideForm, evidence);
+            if (logger.isDebugEnabled())
+                logger.debug("Peptide -> " + sequence + " Cluster ID -> " + store.getClusterId(row) + " Rank-> " + store.getRank(row));
+            encoder.append(header).tab();
+            encoder.append(store.getClusterId(row)).tab();
+            encoder.append(sequence).tab();
+            encoder.append(modifications).tab();
+            encoder.appendFloat(store.getRank(row)).tab();
+            encoder.appendFixed2(store.getPsmRatio(row)).tab();
+            encodeFloat(encoder, store.getDeltaMZ(row)).tab();
+            encoder.append(store.getClusterNumberSpectra(row)).tab();
+            encoder.append(store.getClusterNumberProjects(row)).tab();
+            encoder.append(printValue(store.getTaxonomyId(row))).tab();
+            encoder.append(printValue(store.getProjectAccession(row))).endLine();
+        }
+    }
+
+    /**
+     * Create the PoGo entries of a PeptideForm, one by cluster. The PSMs from multitaxonomy assays are
+     * filtered out before keeping the first PSM of every cluster, so a cluster is exported from its first
+     * PSM passing the filter of the evidences and not coming from a multitaxonomy assay. The evidences of
+     * the view are not used, as they keep the first PSM of the cluster whatever its assay.
+     * The peptide is translated once by PeptideForm, see {@link PoGoTranslationCache}
+     * @param poGoEntries receives the entries, sorted by cluster ID
+     * @param evidences the cluster evidences of the PeptideForms, for the rank and PSM ratio filter
+     * @param peptides the translated peptides of the store of the evidences
+     * @param peptideForm the PeptideForm
+     */
+    static void addPoGoEntries(Consumer<PoGoEntry> poGoEntries, EvidenceView evidences,
+                               PoGoTranslationCache.TranslatedPeptides peptides, int peptideForm) {
+        ClusteredPSMStore store = evidences.getStore();
+        int lastRow = -1;
+        for (int row = store.getFirstRow(peptideForm); row < store.getEndRow(peptideForm); row++) {
+            if (evidences.accepts(row) && !isMultitaxonomyClusteredPsmReport(store, row)
+                    && (lastRow < 0 || store.getClusterId(lastRow) != store.getClusterId(row))) {
+                lastRow = row;
+                Long clusterId = store.getClusterId(row);
+                PoGoEntryVisitorForClusteredPsmReport visitor = new PoGoEntryVisitorForClusteredPsmReport(clusterId,
+                        store.getSequence(peptideForm), store.getModifications(peptideForm), store.getClusterNumberPSMs(row));
+                if (store.getSequence(peptideForm) != null)
+                    visitor.withTranslatedSequence(peptides.get(peptideForm, clusterId));
+                poGoEntries.accept(PoGoEntryFactory.createPoGoEntryWithStrategy(visitor));
             }
         }
     }
 
-    private static boolean filterClusteredPsmReport(ClusteredPSMReport clusteredPSMReport, Specie specie) {
-        return specie == null || (clusteredPSMReport.getAssay() != null && clusteredPSMReport.getAssay().getTaxonomyId() != null && clusteredPSMReport.getAssay().getTaxonomyId().contains(specie.getTaxonomy()));
+    /**
+     * PeptideForms of a species, a PeptideForm belongs to the species if one of its PSMs comes from an assay
+     * of the species (the taxonomy must match one of the taxonomies of the assay exactly)
+     * @param store the clustered PSMs
+     * @param specie the species, null for all the species
+     * @param excludeMultitaxonomy true to ignore the PSMs of multitaxonomy assays
+     * @return the PeptideForms, sorted
+     */
+    private static int[] specieForms(ClusteredPSMStore store, Specie specie, boolean excludeMultitaxonomy) {
+        if (specie != null && specie.getTaxonomy() == null)
+            return new int[0];
+        return store.getTaxonomyFormIndex().getPeptideForms((specie == null) ? null : specie.getTaxonomy(), excludeMultitaxonomy);
     }
 
     /**
-     * Implements a filtering criteria for when a clustered PSM report has multiple taxonomies and the filter for
+     * Implements a filtering criteria for when a clustered PSM has multiple taxonomies and the filter for
      * multitaxonomy entries is on
      *
-     * @param clusteredPSMReport clustered PSM report to test against the filter
-     * @return true when the given report matches the criteria, false otherwise
+     * @param store the clustered PSMs
+     * @param row clustered PSM to test against the filter
+     * @return true when the given PSM matches the criteria, false otherwise
      */
-    private static boolean isMultitaxonomyClusteredPsmReport(ClusteredPSMReport clusteredPSMReport) {
-        return (clusteredPSMReport != null)
-                && (clusteredPSMReport.getAssay() != null)
-                && (clusteredPSMReport.getAssay().getTaxonomyId() != null)
-                && (clusteredPSMReport.getAssay().getTaxonomyId().split(",").length > 1);
+    static boolean isMultitaxonomyClusteredPsmReport(ClusteredPSMStore store, int row) {
+        return store.isMultitaxonomy(row);
+    }
+
+    /**
+     * Path of the file of a species
+     * @param path the output directory
+     * @param specie the species, null for the file of all the species
+     * @param properties the properties containing the title of the files
+     */
+    static String filePath(String path, Specie specie, Properties properties) {
+        return (specie == null) ?
+                path + File.separator + properties.getProperty("file.name.title") + "_ALL.tsv"
+                :
+                path + File.separator + properties.getProperty("file.name.title") + "_" + specie.getTaxonomy()
+                        + "_" + specie.getName().replace(' ', '_') + ".tsv";
+    }
+
+    /**
+     * Path of the output of a file, the file is written with the extension .gz when the output is
+     * block gzip compressed
+     * @param filePath the path of the file
+     */
+    static String outputPath(String filePath) {
+        return ConfigurationService.getService().isBlockGzip() ? filePath + BLOCK_GZIP_EXTENSION : filePath;
     }
 
     /**
@@ -233,124 +290,141 @@ public final class SummaryFactory {
      * @param path the path where the file will be located
      * @param properties The properties to be use to generate the file
      */
-    public static void printFile(ClusterRepositoryServices service, Specie specie, String path, Properties properties, String version) throws FileNotFoundException {
+    public static void printFile(ClusterRepositoryServices service, Specie specie, String path, Properties properties, String version) throws IOException {
 
-        String filePath =
-                (specie == null) ?
-                        path + File.separator + properties.getProperty("file.name.title") + "_ALL.tsv"
-                        :
-                        path + File.separator + properties.getProperty("file.name.title") + "_" + specie.getTaxonomy()
-                                + "_" + specie.getName().replace(' ', '_') + ".tsv";
+        String filePath = filePath(path, specie, properties);
 
         String pogoFilePath = FilenameUtils.removeExtension(filePath) + ".pogo";
 
         if(service != null){
 
-            PrintStream peptideReport = new PrintStream(new File(filePath));
+            // Every section reads all the segments of PSMs, a single store if the PSMs are in memory
+            Iterable<ClusteredPSMStore> segments = service.getPSMSegments();
+
+            // Block gzip output, with the index of the peptides
+            BlockGzipOutputStream compressed = null;
+            PeptideBlockIndex index = null;
+            boolean written = false;
+            try (OutputStream file = new FileOutputStream(outputPath(filePath))) {
+                OutputStream output;
+                if (ConfigurationService.getService().isBlockGzip()) {
+                    compressed = new BlockGzipOutputStream(file);
+                    output = compressed;
+                } else {
+                    output = new BufferedOutputStream(file, OUTPUT_BUFFER_SIZE);
+                }
+                try (PrintStream peptideReport = new PrintStream(output)) {
 
-            printHeaderFile(peptideReport, properties, version, specie);
+                    printHeaderFile(peptideReport, properties, version, specie);
 
-            SummaryFactory.printPeptideHeader(peptideReport, properties);
+                    SummaryFactory.printPeptideHeader(peptideReport, properties);
 
-            service.getPeptideReportMap().entrySet().stream()
-                    .filter((a) -> {
-                        List<ClusteredPSMReport> clusters = a.getValue();
-                        if(clusters != null && !clusters.isEmpty()){
-                            clusters = clusters.parallelStream()
-                                    .filter( (cluster) -> filterClusteredPsmReport(cluster, specie) )
-                                    .collect(Collectors.toList());
-                        }
-                        return clusters != null && !clusters.isEmpty();
-                    })
-                    .forEach(e -> SummaryFactory.printPeptideEntry(peptideReport, e, properties));
+                    // The lines of every section are rendered in parallel and written in order
+                    OrderedChunkRenderer renderer = new OrderedChunkRenderer();
 
-            peptideReport.println();
+                    for (ClusteredPSMStore store : segments) {
+                        if (compressed != null && index == null)
+                            index = new PeptideBlockIndex(store.getSequences());
+                        printSection(renderer, peptideReport, evidenceView(store, properties), specieForms(store, specie, false),
+                                PeptideBlockIndex.PEPTIDE_SECTION, properties, compressed, index);
+                    }
 
-            SummaryFactory.printClusterPeptideHeader(peptideReport, properties);
+                    peptideReport.println();
 
-            service.getPeptideReportMap().entrySet().stream()
-                    .filter((a) -> {
-                        List<ClusteredPSMReport> clusters = a.getValue();
-                        if(clusters != null && !clusters.isEmpty()){
-                            clusters = clusters.parallelStream()
-                                    .filter( (cluster) -> filterClusteredPsmReport(cluster, specie) )
-                                    .collect(Collectors.toList());
-                        }
-                        return clusters != null && !clusters.isEmpty();
-                    })
-                    .forEach(e -> SummaryFactory.printClusterPeptideEntry(peptideReport, e, properties));
+                    SummaryFactory.printClusterPeptideHeader(peptideReport, properties);
 
-            peptideReport.println();
+                    for (ClusteredPSMStore store : segments) {
+                        printSection(renderer, peptideReport, evidenceView(store, properties), specieForms(store, specie, false),
+                                PeptideBlockIndex.CLUSTER_PEPTIDE_SECTION, properties, compressed, index);
+                    }
+
+                    peptideReport.println();
+                    peptideReport.close();
+                    if (peptideReport.checkError())
+                        throw new IOException("Error writing the file " + outputPath(filePath));
+                }
+
+                if (compressed != null) {
+                    if (index == null)
+                        index = new PeptideBlockIndex(new StringDictionary());
+                    index.write(new File(outputPath(filePath) + PeptideBlockIndex.EXTENSION), compressed);
+                }
+                written = true;
+            } finally {
+                // An incomplete file is not left behind
+                if (!written) {
+                    for (File output : new File[]{new File(outputPath(filePath)), new File(outputPath(filePath) + PeptideBlockIndex.EXTENSION)}) {
+                        if (output.exists() && !output.delete())
+                            logger.warn("The incomplete file " + output.getAbsolutePath() + " could not be deleted");
+                    }
+                }
+            }
 
             if (ConfigurationService.getService().isIncludePogoExport()) {
                 logger.debug("--- Export to PoGo is SET ---");
-                // TODO - For the PoGo export, we do the same filtering as for printing the CPE entries
-                // TODO - PLEASE, refactor this once the code is working
-                // this code was already pretty awful when I got to touch it, and fixing it would take ages, so I didn't do
-                // it, I just added my patch and that's it
-                logger.debug("[PoGo] Calculating peptide dataset for PoGo export, #{} peptide report map entries",
-                        service.getPeptideReportMap().size());
-                Map<PeptideForm, List<ClusteredPSMReport>> peptideDataset =
-                        service.getPeptideReportMap().entrySet().stream()
-                                .filter((a) -> {
-                                    List<ClusteredPSMReport> clusters = a.getValue();
-                                    if(clusters != null && !clusters.isEmpty()){
-                                        clusters = clusters.parallelStream()
-                                                .filter( (cluster) -> filterClusteredPsmReport(cluster, specie) )
-                                                .filter( cluster -> !isMultitaxonomyClusteredPsmReport(cluster))
-                                                .collect(Collectors.toList());
-                                    }
-                                    return clusters != null && !clusters.isEmpty();
-                                })
-                                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-                logger.debug("Peptide dataset has #{} entries", peptideDataset.size());
-                SummaryFactory.exportPogoData(pogoFilePath, peptideDataset, properties);
+                // For the PoGo export, we do the same filtering as for printing the CPE entries
+                SummaryFactory.exportPogoData(pogoFilePath, segments, specie, properties);
             }
         }
     }
 
-    private static void exportPogoData(String pogoFilePath, Map<PeptideForm, List<ClusteredPSMReport>> peptideDataset, Properties properties) {
-        logger.debug("exportPogoData - Building PoGo entry dataset for exporting, peptide dataset contains #{} entries, destination file '{}'",
-                peptideDataset.size(),
-                pogoFilePath);
-        float filter = Float.parseFloat(properties.getProperty("peptide.rank.filter"));
-        float filterScore = Float.parseFloat(properties.getProperty("peptide.score.filter"));
-        AtomicBoolean filterMultitaxonomy = new AtomicBoolean(false);
-
-        List<PoGoEntry> poGoEntries = new ArrayList<>();
-        // TODO - This is not implemented as a lambda because the original lambda implementation was not working at all
-        for (PeptideForm key : peptideDataset.keySet()) {
-             if (peptideDataset.get(key) != null) {
-                 List<ClusteredPSMReport> peptideReports = peptideDataset.get(key);
-                 TreeSet<ClusteredPSMReport> peptideReportSet = peptideReports.parallelStream().map(c -> (ClusteredPSMReport) c)
-                         .filter(c -> c.getRank() <= filter)
-                         .filter(c -> c.getPsmRatio() > filterScore)
-                         .filter(c -> {
-                             if (isMultitaxonomyClusteredPsmReport(c)) {filterMultitaxonomy.set(true);
-                                 // Filter it out of the output dataset
-                                 return false;
-                             }
-                             // Filter it in, in the output dataset
-                             return true;
-                         })
-                         .collect(Collectors.toCollection(
-                                 () -> new TreeSet<ClusteredPSMReport>((p1, p2) -> p1.getClusterId().compareTo(p2.getClusterId()))
-                         ));
-
-                 for (ClusteredPSMReport clusteredPSMReport : peptideReportSet) {
-                    poGoEntries.add(PoGoEntryFactory.createPoGoEntryWithStrategy(new PoGoEntryVisitorForClusteredPsmReport(clusteredPSMReport)));
-                 }
+    /**
+     * Print the entries of a section of some PeptideForms, the entries are rendered by chunks in parallel
+     * @param renderer the renderer of the chunks
+     * @param stream the file
+     * @param evidences the evidences of the PeptideForms
+     * @param peptideForms the PeptideForms, in the order of the file
+     * @param section PEPTIDE_SECTION or CLUSTER_PEPTIDE_SECTION of {@link PeptideBlockIndex}
+     * @param properties the properties of the file
+     * @param compressed the block gzip output of the stream, null if the output is not compressed
+     * @param index the index of the compressed file, null if the output is not compressed
+     */
+    private static void printSection(OrderedChunkRenderer renderer, PrintStream stream, EvidenceView evidences, int[] peptideForms,
+                                     byte section, Properties properties, BlockGzipOutputStream compressed, PeptideBlockIndex index) throws IOException {
+        ClusteredPSMStore store = evidences.getStore();
+        renderer.render(peptideForms.length, (from, to) -> {
+            RenderedChunk chunk = new RenderedChunk(from, to - from);
+            for (int i = from; i < to; i++) {
+                if (section == PeptideBlockIndex.PEPTIDE_SECTION)
+                    encodePeptideEntry(chunk.getLines(), evidences, peptideForms[i], properties);
+                else
+                    encodeClusterPeptideEntry(chunk.getLines(), evidences, peptideForms[i], properties);
+                chunk.endEntry();
+            }
+            return chunk;
+        }, chunk -> {
+            if (compressed != null) {
+                long position = compressed.getPosition();
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (chunk.getEnd(i) > chunk.getStart(i))
+                        index.add(store.getSequenceId(peptideForms[chunk.getFrom() + i]), section, position + chunk.getStart(i));
+                }
+            }
+            chunk.getLines().writeTo(stream);
+        });
+    }
+
+    /**
+     * Export the PoGo entries of a species, the entries are written to the file as they are created
+     * @param pogoFilePath destination file
+     * @param segments the segments of clustered PSMs
+     * @param specie the species, null for all the species
+     * @param properties the properties with the filters of the evidences
+     */
+    private static void exportPogoData(String pogoFilePath, Iterable<ClusteredPSMStore> segments, Specie specie, Properties properties) {
+        logger.debug("exportPogoData - Streaming PoGo entry dataset, destination file '{}'", pogoFilePath);
+        int peptideDatasetSize = 0;
+        try (PoGoFileWriter poGoFile = new PoGoFileWriter(pogoFilePath)) {
+            for (ClusteredPSMStore store : segments) {
+                EvidenceView evidences = evidenceView(store, properties);
+                PoGoTranslationCache.TranslatedPeptides peptides = PoGoTranslationCache.getInstance().getTranslatedPeptides(store);
+                for (int peptideForm : specieForms(store, specie, true)) {
+                    peptideDatasetSize++;
+                    addPoGoEntries(poGoFile::write, evidences, peptides, peptideForm);
+                }
             }
         }
-        logger.debug("exportPogoData - PoGo entry dataset built, it contains #{} entries, destination file '{}'",
-                poGoEntries.size(),
-                pogoFilePath);
-        try {
-            PoGoExporterFactory.getTabularFileExporter(pogoFilePath).export(poGoEntries);
-            logger.debug("exportPogoData - DONE, destination file '{}'", pogoFilePath);
-        } catch (PoGoExporterException e) {
-            logger.error("exportPogoData - ERROR - destination file '{}', ERROR ---> '{}'", pogoFilePath, e.getMessage());
-        }
+        logger.debug("Peptide dataset has #{} entries", peptideDatasetSize);
     }
 
     private static Object summariseStringValues(Set<String> values) {
@@ -366,13 +440,40 @@ public final class SummaryFactory {
     }
 
 
-    private static Object printValue(Object s) {
+    /**
+     * Encode the comma separated taxonomies of the evidences of a PeptideForm, in the same format as summariseStringValues
+     */
+    private static TsvLineEncoder encodeTaxonomies(TsvLineEncoder encoder, EvidenceView evidences, int peptideForm) {
+        StringDictionary dictionary = evidences.getStore().getTaxonomies();
+        for (int i = 0; i < evidences.getNumberTaxonomies(peptideForm); i++) {
+            if (i > 0)
+                encoder.append(",");
+            encoder.append(dictionary.decode(dictionary.codeAt(evidences.getTaxonomyPosition(peptideForm, i))));
+        }
+        return encoder;
+    }
+
+    /**
+     * Encode the comma separated projects of the evidences of a PeptideForm, in the same format as summariseStringValues
+     */
+    private static TsvLineEncoder encodeProjects(TsvLineEncoder encoder, EvidenceView evidences, int peptideForm) {
+        StringDictionary dictionary = evidences.getStore().getProjects();
+        for (int i = 0; i < evidences.getNumberProjects(peptideForm); i++) {
+            if (i > 0)
+                encoder.append(",");
+            encoder.append(dictionary.decode(dictionary.codeAt(evidences.getProjectPosition(peptideForm, i))));
+        }
+        return encoder;
+    }
+
+    private static String printValue(String s) {
         return (s == null) ? NULL_VALUE:s;
     }
 
-    private static String printFloat(Float s){
-        return (s == null)? NULL_VALUE: String.format("%.02f", s);
+    private static TsvLineEncoder encodeFloat(TsvLineEncoder encoder, Float s){
+        return (s == null)? encoder.append(NULL_VALUE): encoder.appendFixed2(s);
     }
+
     /**
      * This function remove form the String the latest ,
      * @param stringValue the current String
@@ -412,10 +513,10 @@ public final class SummaryFactory {
         assaySummary.setAssayTitle(assay.getTitle());
 
         Collection<AssaySampleCvParam> samples = assay.getSamples();
-        String species = "";
-        String taxonomyIds = "";
-        String disease = "";
-        String tissue = "";
+        StringBuilder species = new StringBuilder();
+        StringBuilder taxonomyIds = new StringBuilder();
+        StringBuilder disease = new StringBuilder();
+        StringBuilder tissue = new StringBuilder();
         int speciesCount = 0;
 
         for (AssaySampleCvParam sample : samples) {
@@ -424,15 +525,15 @@ public final class SummaryFactory {
             String name = sample.getName();
             if (Constants.NEWT.equals(cvLabel)) {
                 // species
-                species += name + Constants.COMMA;
-                taxonomyIds += accession + Constants.COMMA;
+                species.append(name).append(Constants.COMMA);
+                taxonomyIds.append(accession).append(Constants.COMMA);
                 speciesCount++;
             } else if (Constants.BRENDA.equals(cvLabel)) {
                 // tissues
-                tissue += name + Constants.COMMA;
+                tissue.append(name).append(Constants.COMMA);
             } else if (Constants.DISEASE.equals(cvLabel)) {
                 // diseases
-                disease += name + Constants.COMMA;
+                disease.append(name).append(Constants.COMMA);
             }
         }
 
@@ -458,9 +559,9 @@ public final class SummaryFactory {
         // search engine
         Collection<Software> softwares = assay.getSoftwares();
         if (softwares != null && softwares.size() > 0) {
-            String searchEngine = "";
+            StringBuilder searchEngine = new StringBuilder();
             for (Software software : softwares) {
-                searchEngine += software.getName() + Constants.COMMA;
+                searchEngine.append(software.getName()).append(Constants.COMMA);
             }
 
             if (searchEngine.length() > 1)
@@ -470,12 +571,12 @@ public final class SummaryFactory {
         // instrument
         Collection<Instrument> instruments = assay.getInstruments();
         if (instruments != null && instruments.size() > 0) {
-            String instrument = "";
+            StringBuilder instrument = new StringBuilder();
             for (Instrument intru : instruments) {
                 InstrumentModel model = intru.getModel();
                 if (model != null) {
                     String value = model.getValue();
-                    instrument += (value == null ? model.getName() : value) + Constants.COMMA;
+                    instrument.append(value == null ? model.getName() : value).append(Constants.COMMA);
                 }
             }
 
@@ -497,7 +598,7 @@ public final class SummaryFactory {
     }
 
     /**
-     * Create a new summary on PSM
+     * Create a new summary on PSM, with the {@link PSMSummariser} of the thread
      * <p/>
      * NOTE: spectrum id is not set, this needs to be added before persisted into the database
      *
@@ -508,97 +609,7 @@ public final class SummaryFactory {
     public static PSMDetail summarisePSM(PSM psm, String projectAccession,
                                          java.lang.Long assayId, String assayAccession,
                                          int numOfMsRun) {
-        PSMDetail psmSummary = new PSMDetail();
-
-        psmSummary.setAssayId(assayId);
-
-        // archive psm id
-        String archivePSMId = buildArchivePSMId(projectAccession, assayAccession, psm);
-        psmSummary.setArchivePSMId(archivePSMId);
-
-        // peptide sequence
-        psmSummary.setSequence(psm.getSequence());
-
-        // modification
-        SplitList<Modification> modifications = psm.getModifications();
-        if (modifications != null && !modifications.isEmpty()) {
-            Collections.sort(modifications, ModificationComparator.getInstance());
-            psmSummary.setModifications(modifications.toString());
-
-            // standardised modification
-            //todo: this implementation needs to be check with Noe
-        }
-
-        // search engine
-        String searchEngine = "";
-        SplitList<Param> searchEngines = psm.getSearchEngine();
-        if (searchEngines != null) {
-            for (Param param : searchEngines) {
-                searchEngine += param.getName() + Constants.COMMA;
-            }
-        }
-        if (searchEngine.length() > 1)
-            psmSummary.setSearchEngine(searchEngine.substring(0, searchEngine.length() - 1));
-
-        //search engine scores
-        String searchEngineScores = "";
-        for (int i = 0; i < numOfMsRun; i++) {
-            Double searchEngineScore = psm.getSearchEngineScore(i + 1);
-            if (searchEngineScore != null)
-                searchEngineScores += searchEngineScore + Constants.COMMA;
-        }
-        if (searchEngineScores.length() > 1)
-            psmSummary.setSearchEngineScores(searchEngineScores.substring(0, searchEngineScores.length() - 1));
-
-        // search database
-        psmSummary.setSearchDatabase(psm.getDatabase());
-
-        // protein accession
-        psmSummary.setProteinAccession(psm.getAccession());
-
-        // protein group
-        //todo: protein group is at the protein level
-
-        // protein name
-        //todo: protein name are not given at the psm level
-
-        // start position
-        Integer start = psm.getStart();
-        if (start != null)
-            psmSummary.setStartPosition(start);
-
-        // stop position
-        Integer end = psm.getEnd();
-        if (end != null)
-            psmSummary.setStopPosition(end);
-
-        // pre amino acid
-        psmSummary.setPreAminoAcid(psm.getPre());
-
-        // post amino acid
-        psmSummary.setPostAminoAcid(psm.getPost());
-
-        // delta mass
-        Double calcMassToCharge = psm.getCalcMassToCharge();
-        Double expMassToCharge = psm.getExpMassToCharge();
-        if (calcMassToCharge != null && calcMassToCharge > 0 && expMassToCharge != null && expMassToCharge > 0) {
-            psmSummary.setDeltaMZ((float) (calcMassToCharge - expMassToCharge));
-        }
-
-        // quantification label
-        // todo: to be implemented, quantification information is at the peptide level rather than psm level
-
-        return psmSummary;
-    }
-
-
-
-    private static String buildArchivePSMId(String projectAccession, String assayAccession, PSM psm) {
-        return projectAccession + "_"
-                + assayAccession + "_"
-                + psm.getPSM_ID() + "_"
-                + psm.getAccession() + "_"
-                + PeptideUtils.cleanPeptideSequence(psm.getSequence());
+        return PSMSummariser.getThreadSummariser().summarise(psm, projectAccession, assayId, assayAccession, numOfMsRun);
     }
 
     public static SpectrumDetail summariseSpectrum(ISpectrum spectrum, java.lang.Long assayId, boolean identified) {
@@ -614,119 +625,11 @@ public final class SummaryFactory {
     }
 
 
+    /**
+     * Summarise a cluster of a clustering file and decide its quality, see {@link ClusterSummariser}
+     */
     public static ClusterDetail summariseCluster(ICluster cluster, IClusterQualityDecider<ClusterSummary> clusterQualityDecider) throws IOException {
-        ClusterDetail clusterSummary = new ClusterDetail();
-
-        clusterSummary.setUUID(cluster.getId());
-
-        clusterSummary.setAveragePrecursorMz(cluster.getAvPrecursorMz());
-
-        Collection<ISpectrumReference> spectrumReferences = cluster.getSpectrumReferences();
-
-        // remove duplicated spectra
-        UniqueSpectrumFunction uniqueSpectrumFunction = new UniqueSpectrumFunction();
-        spectrumReferences = uniqueSpectrumFunction.apply(spectrumReferences);
-
-        int averagePrecursorCharge = calculateAveragePrecursorCharge(spectrumReferences);
-        clusterSummary.setAveragePrecursorCharge(averagePrecursorCharge);
-
-        List<Float> consensusMzValues = cluster.getConsensusMzValues();
-        String consensusSpectrumMz = convertFloatListToString(consensusMzValues, Constants.COMMA);
-        clusterSummary.setConsensusSpectrumMz(consensusSpectrumMz);
-
-        List<Float> consensusIntensValues = cluster.getConsensusIntensValues();
-        String consensusSpectrumIntensity = convertFloatListToString(consensusIntensValues, Constants.COMMA);
-        clusterSummary.setConsensusSpectrumIntensity(consensusSpectrumIntensity);
-
-        clusterSummary.setMaxPeptideRatio(cluster.getMaxRatio());
-
-        String maxSequence = cluster.getMaxSequence();
-        Set<String> projects = new HashSet<String>();
-        Set<String> totalProjects = new HashSet<String>();
-        Set<String> spectra = new HashSet<String>();
-        Set<String> species = new HashSet<String>();
-        Set<String> totalSpecies = new HashSet<String>();
-        Set<String> ptms = new HashSet<String>();
-        Set<String> totalPtms = new HashSet<String>();
-        int numberOfPsms = 0;
-
-
-        for (ISpectrumReference spectrumReference : spectrumReferences) {
-            ClusteredSpectrumDetail clusteredSpectrumSummary = new ClusteredSpectrumDetail();
-            String spectrumId = spectrumReference.getSpectrumId();
-            clusteredSpectrumSummary.setReferenceId(spectrumId);
-            clusteredSpectrumSummary.setSimilarityScore(spectrumReference.getSimilarityScore());
-            clusterSummary.addClusteredSpectrumDetail(clusteredSpectrumSummary);
-
-            String[] spectrumIdParts = spectrumId.split(";");
-            String spec = spectrumReference.getSpecies();
-            String projectAccession = spectrumIdParts[0];
-            if (hasMaxSequence(spectrumReference, maxSequence)) {
-                // get project accession
-                projects.add(projectAccession);
-
-                // spectra
-                spectra.add(spectrumId);
-
-                // species
-                if (spec != null) {
-                    species.addAll(Arrays.asList(spec.split(",")));
-                }
-
-                // psms
-                HashSet<IPeptideSpectrumMatch> uniquePsms = new HashSet<IPeptideSpectrumMatch>(spectrumReference.getPSMs());
-                numberOfPsms += uniquePsms.size();
-
-                // ptm
-                for (IPeptideSpectrumMatch peptideSpectrumMatch : uniquePsms) {
-                    for (IModification modification : peptideSpectrumMatch.getModifications()) {
-                        ptms.add(modification.getAccession());
-                    }
-                }
-            }
-
-            // total numbers
-            totalProjects.add(projectAccession);
-            if (spec != null) {
-                totalSpecies.addAll(Arrays.asList(spec.split(",")));
-            }
-            for (IPeptideSpectrumMatch peptideSpectrumMatch : spectrumReference.getPSMs()) {
-                for (IModification modification : peptideSpectrumMatch.getModifications()) {
-                    totalPtms.add(modification.getAccession());
-                }
-            }
-        }
-
-        clusterSummary.setNumberOfSpectra(spectra.size());
-        clusterSummary.setTotalNumberOfSpectra(cluster.getSpecCount());
-
-        clusterSummary.setNumberOfPSMs(numberOfPsms);
-        clusterSummary.setTotalNumberOfPSMs(cluster.getPsmCount());
-
-        clusterSummary.setNumberOfProjects(projects.size());
-        clusterSummary.setTotalNumberOfProjects(totalProjects.size());
-
-        clusterSummary.setNumberOfSpecies(species.size());
-        clusterSummary.setTotalNumberOfSpecies(totalSpecies.size());
-
-        clusterSummary.setNumberOfModifications(ptms.size());
-        clusterSummary.setTotalNumberOfModifications(totalPtms.size());
-
-        // cluster quality
-        ClusterQuality clusterQuality = clusterQualityDecider.decideQuality(clusterSummary);
-        clusterSummary.setQuality(clusterQuality);
-
-        return clusterSummary;
-    }
-
-    private static boolean hasMaxSequence(ISpectrumReference spectrumReference, String maxSequence) {
-        for (IPeptideSpectrumMatch peptideSpectrumMatch : spectrumReference.getPSMs()) {
-            if (peptideSpectrumMatch.getSequence().equalsIgnoreCase(maxSequence)) {
-                return true;
-            }
-        }
-
-        return false;
+        return new ClusterSummariser().summarise(cluster, clusterQualityDecider);
     }
 
     /**
@@ -746,19 +649,4 @@ public final class SummaryFactory {
         return chargeSum / spectrumReferences.size();
     }
 
-    private static String convertFloatListToString(List<Float> nums, String delimiter) {
-        if (nums.isEmpty()) {
-            throw new IllegalStateException("List of float number cannot be empty");
-        }
-
-        String concat = "";
-        for (Float num : nums) {
-            concat += num + delimiter;
-        }
-
-        return concat.substring(0, concat.length() - delimiter.length());
-    }
-
-
-
 }
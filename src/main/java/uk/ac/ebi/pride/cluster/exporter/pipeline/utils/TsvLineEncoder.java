@@ -0,0 +1,203 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Encoder of the lines of the TSV files. The fields are written straight into a reusable byte buffer,
+ * that is copied to the output when the lines are complete, so no String is built by field.
+ *
+ * The output is the same as printing the values in a PrintStream:
+ *
+ * - the Strings are encoded with the default charset, ASCII characters are copied directly
+ * - the integers are written as Long.toString
+ * - {@link #appendFloat(float)} writes the value as Float.toString
+ * - {@link #appendFixed2(float)} writes the value as String.format("%.02f"), with HALF_UP rounding. The
+ *   values close to a tie, very large values, and the locales that do not format numbers with ASCII
+ *   digits and a '.' separator are formatted by String.format
+ *
+ * NOTE: the encoder is not thread safe, see {@link #forCurrentThread()}.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class TsvLineEncoder {
+
+    private static final byte TAB = '\t';
+    private static final byte END_LINE = '\n';
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Values formatted by the fast fixed-precision path, and distance to a tie formatted by String.format
+    private static final double MAX_FAST_FIXED = 1e7;
+    private static final double TIE_DISTANCE = 1e-5;
+
+    private static final ThreadLocal<TsvLineEncoder> ENCODERS = ThreadLocal.withInitial(TsvLineEncoder::new);
+
+    private final Charset charset = Charset.defaultCharset();
+
+    // The fast fixed-precision path is only used if the locale formats the numbers as the ROOT locale
+    private final boolean asciiDecimalFormat;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int size = 0;
+
+    public TsvLineEncoder() {
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+        asciiDecimalFormat = symbols.getDecimalSeparator() == '.' && symbols.getZeroDigit() == '0' && symbols.getMinusSign() == '-';
+    }
+
+    /**
+     * Encoder of the current thread, it is empty
+     */
+    public static TsvLineEncoder forCurrentThread() {
+        TsvLineEncoder encoder = ENCODERS.get();
+        encoder.reset();
+        return encoder;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(size + extra, buffer.length * 2));
+    }
+
+    public TsvLineEncoder append(String value) {
+        if (value == null)
+            value = "null";
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // Not ASCII, the whole value is encoded by the charset
+                byte[] bytes = value.getBytes(charset);
+                ensureCapacity(bytes.length);
+                System.arraycopy(bytes, 0, buffer, size, bytes.length);
+                size += bytes.length;
+                return this;
+            }
+        }
+        for (int i = 0; i < length; i++)
+            buffer[size++] = (byte) value.charAt(i);
+        return this;
+    }
+
+    public TsvLineEncoder append(long value) {
+        if (value == Long.MIN_VALUE)
+            return append(Long.toString(value));
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int start = size;
+        do {
+            buffer[size++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        reverse(start, size - 1);
+        return this;
+    }
+
+    private void reverse(int from, int to) {
+        while (from < to) {
+            byte tmp = buffer[from];
+            buffer[from++] = buffer[to];
+            buffer[to--] = tmp;
+        }
+    }
+
+    /**
+     * Append a float as Float.toString, the integer values are written directly
+     */
+    public TsvLineEncoder appendFloat(float value) {
+        if (value == (long) value && Math.abs(value) < MAX_FAST_FIXED && !(value == 0 && 1 / value < 0)) {
+            append((long) value);
+            ensureCapacity(2);
+            buffer[size++] = '.';
+            buffer[size++] = '0';
+            return this;
+        }
+        return append(Float.toString(value));
+    }
+
+    /**
+     * Append a float as String.format("%.02f")
+     */
+    public TsvLineEncoder appendFixed2(float value) {
+        double absolute = Math.abs((double) value);
+        if (!asciiDecimalFormat || !(absolute < MAX_FAST_FIXED))
+            return append(String.format("%.02f", value));
+
+        double scaled = absolute * 100;
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5) < TIE_DISTANCE)
+            return append(String.format("%.02f", value));
+
+        long hundredths = (long) floor + ((fraction > 0.5) ? 1 : 0);
+        ensureCapacity(1);
+        if (Float.floatToRawIntBits(value) < 0)
+            buffer[size++] = '-';
+        append(hundredths / 100);
+        ensureCapacity(3);
+        long decimals = hundredths % 100;
+        buffer[size++] = '.';
+        buffer[size++] = (byte) ('0' + decimals / 10);
+        buffer[size++] = (byte) ('0' + decimals % 10);
+        return this;
+    }
+
+    public TsvLineEncoder tab() {
+        ensureCapacity(1);
+        buffer[size++] = TAB;
+        return this;
+    }
+
+    public TsvLineEncoder endLine() {
+        ensureCapacity(1);
+        buffer[size++] = END_LINE;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * Write the encoded lines, the encoder is not reset
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /**
+     * Write the encoded lines to a PrintStream, the errors are kept by the stream
+     */
+    public void writeTo(PrintStream out) {
+        out.write(buffer, 0, size);
+    }
+
+    /**
+     * Write the encoded bytes [from, to) to a stream
+     */
+    public void writeTo(OutputStream out, int from, int to) throws IOException {
+        out.write(buffer, from, to - from);
+    }
+
+    /**
+     * Write the encoded bytes [from, to) to a PrintStream, the errors are kept by the stream
+     */
+    public void writeTo(PrintStream out, int from, int to) {
+        out.write(buffer, from, to - from);
+    }
+}
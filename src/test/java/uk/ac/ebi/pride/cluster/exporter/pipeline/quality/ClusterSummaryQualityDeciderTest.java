@@ -0,0 +1,78 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.quality;
+
+import org.junit.Test;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterQuality;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterSummary;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The qualities decided in batch, from primitive arrays or from a {@link ClusterQualityTable}, must be the
+ * qualities decided for every cluster summary.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusterSummaryQualityDeciderTest {
+
+    private static final int NUMBER_CLUSTERS = 5000;
+
+    @Test
+    public void testBatchAsSingleCluster() {
+        Random random = new Random(20161018L);
+        ClusterSummaryQualityDecider decider = new ClusterSummaryQualityDecider(10, 3, 0.7f);
+
+        int[] numberOfSpectra = new int[NUMBER_CLUSTERS];
+        int[] numberOfProjects = new int[NUMBER_CLUSTERS];
+        float[] maxPeptideRatios = new float[NUMBER_CLUSTERS];
+        ClusterQuality[] expected = new ClusterQuality[NUMBER_CLUSTERS];
+        ClusterQualityTable table = new ClusterQualityTable();
+        for (int i = 0; i < NUMBER_CLUSTERS; i++) {
+            // The values around the thresholds, the thresholds are inclusive
+            numberOfSpectra[i] = 8 + random.nextInt(5);
+            numberOfProjects[i] = 1 + random.nextInt(4);
+            maxPeptideRatios[i] = (random.nextInt(50) == 0) ? Float.NaN : 0.6f + random.nextInt(3) * 0.1f;
+
+            ClusterSummary summary = new ClusterSummary();
+            summary.setTotalNumberOfSpectra(numberOfSpectra[i]);
+            summary.setNumberOfProjects(numberOfProjects[i]);
+            summary.setMaxPeptideRatio(maxPeptideRatios[i]);
+            expected[i] = decider.decideQuality(summary);
+            table.add(i, numberOfSpectra[i], numberOfProjects[i], maxPeptideRatios[i]);
+        }
+
+        ClusterQuality[] qualities = new ClusterQuality[NUMBER_CLUSTERS];
+        decider.decideQualities(numberOfSpectra, numberOfProjects, maxPeptideRatios, qualities, 0, NUMBER_CLUSTERS);
+        assertArrayEquals(expected, qualities);
+        assertArrayEquals(expected, table.decideQualities(decider));
+
+        // Every quality is decided for some cluster
+        int[] counts = table.countQualities(decider);
+        for (ClusterQuality quality : ClusterQuality.values())
+            assertTrue(counts[quality.ordinal()] > 0);
+
+        // A range of the batch, the other clusters are not decided
+        ClusterQuality[] range = new ClusterQuality[NUMBER_CLUSTERS];
+        decider.decideQualities(numberOfSpectra, numberOfProjects, maxPeptideRatios, range, 100, 200);
+        for (int i = 0; i < NUMBER_CLUSTERS; i++)
+            assertEquals((i >= 100 && i < 200) ? expected[i] : null, range[i]);
+    }
+
+    @Test
+    public void testClusterIdsOfAQuality() {
+        ClusterSummaryQualityDecider decider = new ClusterSummaryQualityDecider(10, 3, 0.7f);
+        ClusterQualityTable table = new ClusterQualityTable();
+        table.add(30L, 10, 3, 0.7f);
+        table.add(10L, 10, 2, 0.9f);
+        table.add(20L, 9, 5, 1f);
+        table.add(40L, 20, 1, 0.5f);
+
+        assertArrayEquals(new long[]{30L}, table.getClusterIds(decider, ClusterQuality.HIGH));
+        assertArrayEquals(new long[]{30L, 10L}, table.getClusterIds(decider, ClusterQuality.MEDIUM));
+        assertArrayEquals(new long[]{30L, 10L, 20L, 40L}, table.getClusterIds(decider, ClusterQuality.LOW));
+    }
+}
@@ -0,0 +1,249 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.archive.dataprovider.param.CvParamProvider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Modification;
+import uk.ac.ebi.pride.spectracluster.repo.model.AssayReport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The ranks and PSM ratios of {@link ClusterRankEngine} must be the ones of the original ranking: the
+ * PSMs of a cluster grouped by PeptideForm, the PeptideForms sorted by number of PSMs and dense ranked.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusterRankEngineTest {
+
+    private static final String[] SEQUENCES = {"PEPTIDE", "PEPTIDER", "ELVISLIVES", "MLSSLK", "AAAK"};
+
+    private static final String MODIFICATION = "MOD:00696";
+
+    private ClusteredPSMStoreBuilder builder;
+    private ClusterRankEngine engine;
+
+    @Before
+    public void setUp() {
+        builder = new ClusteredPSMStoreBuilder(createAssays());
+        engine = new ClusterRankEngine(builder);
+    }
+
+    @Test
+    public void testDenseRank() {
+        // PeptideForms with 3, 3, 2 and 1 PSMs
+        List<TestPSM> psms = new ArrayList<TestPSM>();
+        int id = 0;
+        for (int i = 0; i < 3; i++) psms.add(new TestPSM(id++, "PEPTIDE", null));
+        for (int i = 0; i < 2; i++) psms.add(new TestPSM(id++, "AAAK", null));
+        for (int i = 0; i < 3; i++) psms.add(new TestPSM(id++, "PEPTIDE", modification(3)));
+        psms.add(new TestPSM(id, "MLSSLK", null));
+        Collections.shuffle(psms, new Random(1));
+
+        engine.rank(10L, psms, TestPSM.FIELDS);
+
+        Map<Integer, float[]> ranked = readRanks(builder.build());
+        for (TestPSM psm : psms) {
+            float[] rankRatio = ranked.get(psm.id);
+            if ("AAAK".equals(psm.sequence)) {
+                assertEquals(2f, rankRatio[0], 0f);
+                assertEquals(2f / 9f, rankRatio[1], 0f);
+            } else if ("MLSSLK".equals(psm.sequence)) {
+                assertEquals(3f, rankRatio[0], 0f);
+                assertEquals(1f / 9f, rankRatio[1], 0f);
+            } else {
+                assertEquals(1f, rankRatio[0], 0f);
+                assertEquals(3f / 9f, rankRatio[1], 0f);
+            }
+        }
+        assertEquals(1, engine.getNumberClusters());
+    }
+
+    @Test
+    public void testRandomClustersAsOriginalRanking() {
+        Random random = new Random(20161018L);
+        Map<Integer, float[]> expected = new HashMap<Integer, float[]>();
+        int id = 0;
+        for (long clusterId = 1000; clusterId > 0; clusterId--) {
+            // Few PeptideForms by cluster so there are ties
+            int numberPSMs = 1 + random.nextInt(40);
+            int numberForms = 1 + random.nextInt(6);
+            List<TestPSM> psms = new ArrayList<TestPSM>(numberPSMs);
+            for (int i = 0; i < numberPSMs; i++) {
+                int form = random.nextInt(numberForms);
+                String sequence = SEQUENCES[form % SEQUENCES.length];
+                psms.add(new TestPSM(id++, sequence, (form < SEQUENCES.length) ? null : modification(1 + form % 3)));
+            }
+            expected.putAll(originalRanking(psms));
+            engine.rank(clusterId, psms, TestPSM.FIELDS);
+        }
+
+        Map<Integer, float[]> ranked = readRanks(builder.build());
+        assertEquals(expected.size(), ranked.size());
+        for (Map.Entry<Integer, float[]> psm : expected.entrySet()) {
+            assertEquals("Rank of PSM " + psm.getKey(), psm.getValue()[0], ranked.get(psm.getKey())[0], 0f);
+            assertEquals("PSM ratio of PSM " + psm.getKey(), psm.getValue()[1], ranked.get(psm.getKey())[1], 0f);
+        }
+        assertEquals(1000, engine.getNumberClusters());
+    }
+
+    @Test
+    public void testBlocksAsSingleEngine() {
+        Random random = new Random(7L);
+        ClusteredPSMStoreBuilder blocksBuilder = new ClusteredPSMStoreBuilder(createAssays());
+        RankedPSMBlock block = new RankedPSMBlock();
+        ClusterRankEngine blockEngine = new ClusterRankEngine(block);
+        List<Long> blockClusterIds = new ArrayList<Long>();
+        int id = 0;
+        for (long clusterId = 500; clusterId > 0; clusterId--) {
+            int numberPSMs = random.nextInt(30);
+            List<TestPSM> psms = new ArrayList<TestPSM>(numberPSMs);
+            for (int i = 0; i < numberPSMs; i++) {
+                int form = random.nextInt(8);
+                psms.add(new TestPSM(id++, SEQUENCES[form % SEQUENCES.length], (form < SEQUENCES.length) ? null : modification(1 + form % 3)));
+            }
+            engine.rank(clusterId, psms, TestPSM.FIELDS);
+
+            // Every block ranks its clusters with local codes, the blocks are merged in order
+            blockEngine.rank(blockClusterIds.size(), psms, TestPSM.FIELDS);
+            blockClusterIds.add(clusterId);
+            if (blockClusterIds.size() == 37 || clusterId == 1) {
+                // The assay code of the PSMs is 1, the ID of the assay
+                blocksBuilder.add(block, blockClusterIds.stream().mapToLong(Long::longValue).toArray(), new long[]{0L, 1L});
+                block = new RankedPSMBlock();
+                blockEngine = new ClusterRankEngine(block);
+                blockClusterIds.clear();
+            }
+        }
+
+        TestStores.assertSameRows(builder.build(), Collections.singletonList(blocksBuilder.build()));
+    }
+
+    private static AssayIndex createAssays() {
+        AssayIndex assays = new AssayIndex(Collections.<AssayReport>emptyList());
+        assays.addAssay(1L, "PXD000001", "9606");
+        return assays;
+    }
+
+    /**
+     * Rank and PSM ratio by PSM ID as ranked before the engine: group by PeptideForm, sort the PeptideForms
+     * by number of PSMs and dense rank them
+     */
+    private static Map<Integer, float[]> originalRanking(List<TestPSM> psms) {
+        Map<String, List<TestPSM>> clustered = psms.stream().collect(Collectors.groupingBy(TestPSM::getPeptideForm));
+        clustered = clustered.entrySet().stream()
+                .sorted(Comparator.<Map.Entry<String, List<TestPSM>>>comparingInt(e -> e.getValue().size()).reversed())
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> {
+                    throw new AssertionError();
+                }, LinkedHashMap::new));
+
+        int sum = clustered.values().stream().mapToInt(List::size).sum();
+        Map<Integer, float[]> ranks = new HashMap<Integer, float[]>();
+        int rank = 0;
+        int currentSize = -1;
+        for (List<TestPSM> form : clustered.values()) {
+            for (TestPSM psm : form) {
+                if (currentSize != form.size()) {
+                    rank++;
+                    currentSize = form.size();
+                }
+                ranks.put(psm.id, new float[]{rank, (float) form.size() / (float) sum});
+            }
+        }
+        return ranks;
+    }
+
+    /**
+     * Rank and PSM ratio of every row of the store, by PSM ID
+     */
+    private static Map<Integer, float[]> readRanks(ClusteredPSMStore store) {
+        Map<Integer, float[]> ranks = new HashMap<Integer, float[]>();
+        for (int row = 0; row < store.getNumberPSMs(); row++)
+            ranks.put(store.getNumberOfSpectra(row), new float[]{store.getRank(row), store.getPsmRatio(row)});
+        return ranks;
+    }
+
+    private static List<ModificationProvider> modification(int position) {
+        Modification modification = new Modification();
+        modification.setAccession(MODIFICATION);
+        modification.setMainPosition(position);
+        Map<Integer, CvParamProvider> positionMap = new LinkedHashMap<Integer, CvParamProvider>();
+        positionMap.put(position, null);
+        modification.setPositionMap(positionMap);
+        return Collections.<ModificationProvider>singletonList(modification);
+    }
+
+    /**
+     * Clustered PSM, the ID is stored as its number of spectra so the rows of the store can be matched
+     */
+    private static class TestPSM {
+
+        static final ClusterRankEngine.PSMFields<TestPSM> FIELDS = new ClusterRankEngine.PSMFields<TestPSM>() {
+            @Override
+            public String getSequence(TestPSM psm) {
+                return psm.sequence;
+            }
+
+            @Override
+            public List<ModificationProvider> getModifications(TestPSM psm) {
+                return psm.modifications;
+            }
+
+            @Override
+            public Long getAssayId(TestPSM psm) {
+                return 1L;
+            }
+
+            @Override
+            public Float getDeltaMZ(TestPSM psm) {
+                return null;
+            }
+
+            @Override
+            public int getNumberOfSpectra(TestPSM psm) {
+                return psm.id;
+            }
+
+            @Override
+            public int getClusterNumberSpectra(TestPSM psm) {
+                return 0;
+            }
+
+            @Override
+            public int getClusterNumberProjects(TestPSM psm) {
+                return 0;
+            }
+
+            @Override
+            public int getClusterNumberPSMs(TestPSM psm) {
+                return 0;
+            }
+        };
+
+        final int id;
+        final String sequence;
+        final List<ModificationProvider> modifications;
+
+        TestPSM(int id, String sequence, List<ModificationProvider> modifications) {
+            this.id = id;
+            this.sequence = sequence;
+            this.modifications = modifications;
+        }
+
+        String getPeptideForm() {
+            return (modifications == null) ? sequence : sequence + "+" + modifications.get(0).getMainPosition();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.ClusterQualityTable;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.ClusterSummaryQualityDecider;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterQuality;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A snapshot must be read back with the same rows, PeptideForms, assays and cluster quality table it was
+ * written with, in segments of any size.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusteredPSMSnapshotTest {
+
+    /** Clusters of the random PSMs, see {@link TestStores#addRandomPSMs} */
+    private static final int NUMBER_CLUSTERS = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ClusteredPSMStoreBuilder builder = new ClusteredPSMStoreBuilder(TestStores.createAssays());
+        TestStores.addRandomPSMs(new Random(20161018L), 3000, builder);
+        ClusteredPSMStore store = builder.build();
+
+        // The segments are iterated once, the spilled segments are merged again on every iteration
+        File file = folder.newFile("psms.snapshot");
+        int[] iterations = new int[1];
+        ClusterQualityTable qualityTable = createQualityTable();
+        ClusteredPSMSnapshot.write(file, () -> {
+            iterations[0]++;
+            return Collections.singletonList(store).iterator();
+        }, qualityTable);
+        assertEquals(1, iterations[0]);
+
+        for (int segmentRows : new int[]{1, 50, 1000, Integer.MAX_VALUE}) {
+            SnapshotPSMSegments segments = ClusteredPSMSnapshot.read(file, segmentRows);
+            assertEquals(store.getNumberPSMs(), segments.getNumberPSMs());
+            TestStores.assertSameRows(store, segments);
+        }
+
+        // The missing values survive the snapshot
+        SnapshotPSMSegments segments = ClusteredPSMSnapshot.read(file, Integer.MAX_VALUE);
+        ClusterQualityTable readTable = segments.getQualityTable();
+        assertEquals(qualityTable.size(), readTable.size());
+        for (int cluster = 0; cluster < qualityTable.size(); cluster++) {
+            assertEquals(qualityTable.getClusterId(cluster), readTable.getClusterId(cluster));
+            assertEquals(qualityTable.getNumberOfSpectra(cluster), readTable.getNumberOfSpectra(cluster));
+            assertEquals(qualityTable.getNumberOfProjects(cluster), readTable.getNumberOfProjects(cluster));
+            assertEquals(qualityTable.getMaxPeptideRatio(cluster), readTable.getMaxPeptideRatio(cluster), 0f);
+        }
+        ClusteredPSMStore read = segments.iterator().next();
+        boolean nullDeltaMZ = false;
+        boolean noAssay = false;
+        for (int row = 0; row < read.getNumberPSMs(); row++) {
+            nullDeltaMZ |= read.getDeltaMZ(row) == null;
+            noAssay |= read.getAssaySlot(row) == AssayIndex.NO_SLOT;
+        }
+        boolean nullModifications = false;
+        for (int form = 0; form < read.getNumberPeptideForms(); form++)
+            nullModifications |= read.getModifications(form) == null;
+        assertTrue(nullDeltaMZ);
+        assertTrue(noAssay);
+        assertTrue(nullModifications);
+        assertTrue(read.isMultitaxonomy(findAssay(read, "9606,10090")));
+        assertFalse(read.isMultitaxonomy(findAssay(read, "9606")));
+    }
+
+    @Test
+    public void testSpilledSegmentsRoundTrip() throws IOException {
+        AssayIndex assays = TestStores.createAssays();
+        ClusteredPSMStoreBuilder inMemory = new ClusteredPSMStoreBuilder(assays);
+        ClusteredPSMStoreBuilder spilled = new ClusteredPSMStoreBuilder(assays, folder.newFolder("spill"), 101);
+        TestStores.addRandomPSMs(new Random(7L), 2000, inMemory, spilled);
+
+        File fromStore = folder.newFile("store.snapshot");
+        ClusteredPSMSnapshot.write(fromStore, Collections.singletonList(inMemory.build()), createQualityTable());
+        File fromSegments = folder.newFile("segments.snapshot");
+        try (ExternalPSMSegments segments = (ExternalPSMSegments) spilled.buildSegments()) {
+            ClusteredPSMSnapshot.write(fromSegments, segments, createQualityTable());
+        }
+        assertArrayEquals(Files.readAllBytes(fromStore.toPath()), Files.readAllBytes(fromSegments.toPath()));
+
+        // A snapshot read in segments is written back as the same file
+        File rewritten = folder.newFile("rewritten.snapshot");
+        SnapshotPSMSegments read = ClusteredPSMSnapshot.read(fromSegments, 33);
+        ClusteredPSMSnapshot.write(rewritten, read, read.getQualityTable());
+        assertArrayEquals(Files.readAllBytes(fromStore.toPath()), Files.readAllBytes(rewritten.toPath()));
+
+        // The temporary columns are deleted
+        File[] files = folder.getRoot().listFiles((directory, name) -> name.endsWith(".tmp"));
+        assertEquals(0, files.length);
+    }
+
+    @Test
+    public void testEmptyRelease() throws IOException {
+        File file = folder.newFile("empty.snapshot");
+        ClusteredPSMSnapshot.write(file, Collections.<ClusteredPSMStore>emptyList(), new ClusterQualityTable());
+
+        SnapshotPSMSegments segments = ClusteredPSMSnapshot.read(file, 10);
+        assertEquals(0, segments.getNumberPSMs());
+        assertEquals(0, segments.getQualityTable().size());
+        assertFalse(segments.iterator().hasNext());
+    }
+
+    @Test
+    public void testQualityDecidedAgainFromSnapshot() throws IOException {
+        ClusteredPSMStoreBuilder builder = new ClusteredPSMStoreBuilder(TestStores.createAssays());
+        TestStores.addRandomPSMs(new Random(11L), 3000, builder);
+        ClusteredPSMStore store = builder.build();
+        File file = folder.newFile("psms.snapshot");
+        ClusteredPSMSnapshot.write(file, Collections.singletonList(store), createQualityTable());
+
+        SnapshotPSMSegments segments = ClusteredPSMSnapshot.read(file, 100);
+        ClusterSummaryQualityDecider decider = new ClusterSummaryQualityDecider(10, 3, 0.5f);
+        long[] clusterIds = segments.getQualityTable().getClusterIds(decider, ClusterQuality.MEDIUM);
+        Arrays.sort(clusterIds);
+        assertTrue(clusterIds.length > 0 && clusterIds.length < NUMBER_CLUSTERS);
+
+        // The retained rows are the rows of the store of the retained clusters, in the same order
+        ClusteredPSMStore expected = store.retainClusters(clusterIds);
+        int retainedRows = 0;
+        for (int row = 0; row < store.getNumberPSMs(); row++) {
+            if (Arrays.binarySearch(clusterIds, store.getClusterId(row)) >= 0)
+                retainedRows++;
+        }
+        assertTrue(retainedRows < store.getNumberPSMs());
+        assertEquals(retainedRows, expected.getNumberPSMs());
+        for (int row = 0; row < expected.getNumberPSMs(); row++)
+            assertTrue(Arrays.binarySearch(clusterIds, expected.getClusterId(row)) >= 0);
+        TestStores.assertSameRows(expected, new ClusterFilteredSegments(segments, clusterIds));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotASnapshot() throws IOException {
+        File file = folder.newFile("psms.txt");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("SEQUENCE\tCLUSTER\n".getBytes("UTF-8"));
+        }
+        ClusteredPSMSnapshot.read(file, 10);
+    }
+
+    /**
+     * Quality numbers of the clusters of the random PSMs
+     */
+    private static ClusterQualityTable createQualityTable() {
+        ClusterQualityTable qualityTable = new ClusterQualityTable();
+        for (long cluster = 0; cluster < NUMBER_CLUSTERS; cluster++)
+            qualityTable.add(cluster, (int) (cluster % 30), (int) (cluster % 5), (cluster % 10) / 10f);
+        return qualityTable;
+    }
+
+    private static int findAssay(ClusteredPSMStore store, String taxonomyId) {
+        for (int row = 0; row < store.getNumberPSMs(); row++) {
+            if (taxonomyId.equals(store.getTaxonomyId(row)))
+                return row;
+        }
+        fail("No PSM of taxonomy " + taxonomyId);
+        return -1;
+    }
+}
@@ -0,0 +1,141 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.archive.dataprovider.param.CvParamProvider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Modification;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusteredPSMReport;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The segments merged from the spilled runs must contain the same rows, in the same order, as the
+ * store built in memory from the same PSMs. The PSMs of the same PeptideForm, as grouped by the PeptideForm of
+ * the reports, must have the same key.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusteredPSMStoreBuilderTest {
+
+    @Rule
+    public TemporaryFolder spillDirectory = new TemporaryFolder();
+
+    @Test
+    public void testSpilledSegmentsAsInMemoryStore() {
+        AssayIndex assays = TestStores.createAssays();
+        ClusteredPSMStoreBuilder inMemory = new ClusteredPSMStoreBuilder(assays);
+        ClusteredPSMStoreBuilder spilled = new ClusteredPSMStoreBuilder(assays, spillDirectory.getRoot(), 97);
+        TestStores.addRandomPSMs(new Random(20161018L), 5000, inMemory, spilled);
+
+        ClusteredPSMStore store = inMemory.build();
+        ExternalPSMSegments segments = (ExternalPSMSegments) spilled.buildSegments();
+        assertTrue("Runs spilled: " + segments.getNumberRuns(), segments.getNumberRuns() > 1);
+
+        TestStores.assertSameRows(store, segments);
+        // The segments are merged again every time they are iterated
+        TestStores.assertSameRows(store, segments);
+
+        int numberSegments = 0;
+        for (ClusteredPSMStore segment : segments)
+            numberSegments++;
+        assertTrue("Segments: " + numberSegments, numberSegments > 1);
+
+        segments.close();
+        File[] runs = spillDirectory.getRoot().listFiles();
+        assertEquals(0, (runs == null) ? 0 : runs.length);
+    }
+
+    @Test
+    public void testSingleSegmentWithoutSpill() {
+        AssayIndex assays = TestStores.createAssays();
+        ClusteredPSMStoreBuilder inMemory = new ClusteredPSMStoreBuilder(assays);
+        ClusteredPSMStoreBuilder spillable = new ClusteredPSMStoreBuilder(assays, spillDirectory.getRoot(), 1000);
+        TestStores.addRandomPSMs(new Random(1L), 999, inMemory, spillable);
+
+        assertEquals(0, spillable.getNumberRuns());
+        TestStores.assertSameRows(inMemory.build(), spillable.buildSegments());
+    }
+
+    @Test
+    public void testPeptideFormKeyAsPeptideForm() {
+        List<ModificationProvider> pool = Arrays.asList(
+                modification("MOD:00696", 3), modification("MOD:00696", 3), modification("MOD:00696", 5),
+                modification("MOD:00397", 3), modification("MOD:00696", 3, 5), modification("MOD:00696", 5, 3),
+                modification("MOD:00696"), modification("MOD:00397", 0));
+
+        List<List<ModificationProvider>> modifications = new ArrayList<List<ModificationProvider>>();
+        modifications.add(null);
+        modifications.add(Collections.<ModificationProvider>emptyList());
+        // Other order, two accessions at the same position
+        modifications.add(Arrays.asList(pool.get(0), pool.get(3)));
+        modifications.add(Arrays.asList(pool.get(3), pool.get(0)));
+        // The same modification twice, and once
+        modifications.add(Arrays.asList(pool.get(0), pool.get(1)));
+        modifications.add(Collections.singletonList(pool.get(0)));
+        // A modification at two positions, and one by position
+        modifications.add(Collections.singletonList(pool.get(4)));
+        modifications.add(Collections.singletonList(pool.get(5)));
+        modifications.add(Arrays.asList(pool.get(0), pool.get(2)));
+        modifications.add(Arrays.asList(pool.get(2), pool.get(0)));
+        // Without positions
+        modifications.add(Collections.singletonList(pool.get(6)));
+        modifications.add(Arrays.asList(pool.get(6), pool.get(7)));
+
+        Random random = new Random(20161018L);
+        for (int i = 0; i < 200; i++) {
+            List<ModificationProvider> randomModifications = new ArrayList<ModificationProvider>();
+            for (int j = random.nextInt(4); j > 0; j--)
+                randomModifications.add(pool.get(random.nextInt(pool.size())));
+            modifications.add(randomModifications);
+        }
+
+        List<ClusteredPSMReport> reports = new ArrayList<ClusteredPSMReport>();
+        for (List<ModificationProvider> formModifications : modifications) {
+            for (String sequence : new String[]{"PEPTIDE", "PEPTIDER"})
+                reports.add(report(sequence, formModifications));
+        }
+
+        for (ClusteredPSMReport a : reports) {
+            for (ClusteredPSMReport b : reports) {
+                boolean sameKey = ClusteredPSMStoreBuilder.peptideFormKey(a.getSequence(), a.getModifications())
+                        .equals(ClusteredPSMStoreBuilder.peptideFormKey(b.getSequence(), b.getModifications()));
+                assertEquals(a.getSequence() + a.getModifications() + " " + b.getSequence() + b.getModifications(),
+                        a.getPeptideForm().equals(b.getPeptideForm()), sameKey);
+            }
+        }
+    }
+
+    private static ClusteredPSMReport report(String sequence, List<ModificationProvider> modifications) {
+        ClusteredPSMReport report = new ClusteredPSMReport();
+        report.setSequence(sequence);
+        report.setModifications(modifications);
+        return report;
+    }
+
+    private static Modification modification(String accession, Integer... positions) {
+        Modification modification = new Modification();
+        modification.setAccession(accession);
+        modification.setName(accession);
+        if (positions.length > 0) {
+            modification.setMainPosition(positions[0]);
+            Map<Integer, CvParamProvider> positionMap = new LinkedHashMap<Integer, CvParamProvider>();
+            for (Integer position : positions)
+                positionMap.put(position, null);
+            modification.setPositionMap(positionMap);
+        }
+        return modification;
+    }
+}
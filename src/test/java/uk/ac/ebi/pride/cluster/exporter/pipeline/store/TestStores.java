@@ -0,0 +1,125 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.store;
+
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.archive.dataprovider.param.CvParamProvider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Modification;
+import uk.ac.ebi.pride.spectracluster.repo.model.AssayReport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Random clustered PSMs for the tests of the store, and the comparison of the rows of two stores
+ *
+ * @author agent
+ * @version $Id$
+ */
+final class TestStores {
+
+    private static final String[] SEQUENCES = {"PEPTIDE", "PEPTIDER", "ELVISLIVES", "MLSSLK", "AAAK", "GGGGR"};
+
+    private static final long[] ASSAYS = {11L, 12L, 13L};
+
+    private TestStores() {
+    }
+
+    /**
+     * Assays of the random PSMs, one of them with two taxonomies
+     */
+    static AssayIndex createAssays() {
+        AssayIndex assays = new AssayIndex(Collections.<AssayReport>emptyList());
+        assays.addAssay(ASSAYS[0], "PXD000001", "9606");
+        assays.addAssay(ASSAYS[1], "PXD000002", "10090");
+        assays.addAssay(ASSAYS[2], "PXD000002", "9606,10090");
+        return assays;
+    }
+
+    /**
+     * Add the same random PSMs to the builders, the clusters are given in random order and some PSMs have no
+     * assay, no delta m/z or no modifications
+     */
+    static void addRandomPSMs(Random random, int numberPSMs, ClusteredPSMStoreBuilder... builders) {
+        for (int i = 0; i < numberPSMs; i++) {
+            String sequence = SEQUENCES[random.nextInt(SEQUENCES.length)];
+            List<ModificationProvider> modifications = random.nextBoolean() ? null : modifications(1 + random.nextInt(3));
+            long cluster = random.nextInt(200);
+            long assay = (random.nextInt(10) == 0) ? ClusteredPSMStoreBuilder.UNKNOWN_ASSAY : ASSAYS[random.nextInt(ASSAYS.length)];
+            float rank = 1 + random.nextInt(4);
+            float ratio = random.nextFloat();
+            float delta = (random.nextInt(5) == 0) ? Float.NaN : random.nextFloat() - 0.5f;
+            int spectra = random.nextInt(100);
+            for (ClusteredPSMStoreBuilder builder : builders)
+                builder.add(sequence, modifications, cluster, assay, rank, ratio, delta, spectra, spectra + 1, spectra + 2, i);
+        }
+    }
+
+    static List<ModificationProvider> modifications(int position) {
+        Modification modification = new Modification();
+        modification.setAccession("MOD:00696");
+        modification.setName("phosphorylated residue");
+        modification.setMainPosition(position);
+        Map<Integer, CvParamProvider> positionMap = new LinkedHashMap<Integer, CvParamProvider>();
+        positionMap.put(position, null);
+        modification.setPositionMap(positionMap);
+        List<ModificationProvider> modifications = new ArrayList<ModificationProvider>();
+        modifications.add(modification);
+        return modifications;
+    }
+
+    /**
+     * The segments must contain the rows of the store, in the same order, and every segment must start at
+     * the end of the previous one
+     */
+    static void assertSameRows(ClusteredPSMStore expected, Iterable<ClusteredPSMStore> segments) {
+        int nextForm = 0;
+        for (ClusteredPSMStore segment : segments) {
+            assertEquals("First PeptideForm of the segment", nextForm, segment.getFirstPeptideForm());
+            assertEquals(expected.getNumberPeptideForms(), segment.getNumberPeptideForms());
+            for (int form = segment.getFirstPeptideForm(); form < segment.getEndPeptideForm(); form++) {
+                assertEquals(expected.getSequence(form), segment.getSequence(form));
+                assertModifications(expected.getModifications(form), segment.getModifications(form));
+                assertEquals("Rows of PeptideForm " + form, expected.getEndRow(form) - expected.getFirstRow(form),
+                        segment.getEndRow(form) - segment.getFirstRow(form));
+                for (int row = segment.getFirstRow(form), expectedRow = expected.getFirstRow(form); row < segment.getEndRow(form); row++, expectedRow++)
+                    assertSameRow(expected, expectedRow, segment, row);
+            }
+            nextForm = segment.getEndPeptideForm();
+        }
+        assertEquals("PeptideForms of the segments", expected.getNumberPeptideForms(), nextForm);
+    }
+
+    private static void assertSameRow(ClusteredPSMStore expected, int expectedRow, ClusteredPSMStore actual, int row) {
+        String message = "Row " + expectedRow;
+        assertEquals(message, expected.getClusterId(expectedRow), actual.getClusterId(row));
+        assertEquals(message, expected.getAssaySlot(expectedRow), actual.getAssaySlot(row));
+        assertEquals(message, expected.getProjectAccession(expectedRow), actual.getProjectAccession(row));
+        assertEquals(message, expected.getTaxonomyId(expectedRow), actual.getTaxonomyId(row));
+        assertEquals(message, expected.getRank(expectedRow), actual.getRank(row), 0f);
+        assertEquals(message, expected.getPsmRatio(expectedRow), actual.getPsmRatio(row), 0f);
+        assertEquals(message, expected.getDeltaMZ(expectedRow), actual.getDeltaMZ(row));
+        assertEquals(message, expected.getNumberOfSpectra(expectedRow), actual.getNumberOfSpectra(row));
+        assertEquals(message, expected.getClusterNumberSpectra(expectedRow), actual.getClusterNumberSpectra(row));
+        assertEquals(message, expected.getClusterNumberProjects(expectedRow), actual.getClusterNumberProjects(row));
+        assertEquals(message, expected.getClusterNumberPSMs(expectedRow), actual.getClusterNumberPSMs(row));
+    }
+
+    private static void assertModifications(List<ModificationProvider> expected, List<ModificationProvider> actual) {
+        if (expected == null) {
+            assertEquals(null, actual);
+            return;
+        }
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getAccession(), actual.get(i).getAccession());
+            assertEquals(expected.get(i).getName(), actual.get(i).getName());
+            assertEquals(expected.get(i).getMainPosition(), actual.get(i).getMainPosition());
+            assertEquals(expected.get(i).getPositionMap().keySet(), actual.get(i).getPositionMap().keySet());
+        }
+    }
+}
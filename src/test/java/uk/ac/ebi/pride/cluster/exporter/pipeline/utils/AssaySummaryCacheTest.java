@@ -0,0 +1,66 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.junit.Test;
+import uk.ac.ebi.pride.archive.repo.assay.Assay;
+import uk.ac.ebi.pride.archive.repo.assay.AssaySampleCvParam;
+import uk.ac.ebi.pride.archive.repo.project.Project;
+import uk.ac.ebi.pride.spectracluster.repo.model.AssayDetail;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * An assay is summarised once by (project, assay) accessions.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class AssaySummaryCacheTest {
+
+    @Test
+    public void testSummarisedOnceByProjectAndAssay() {
+        AssaySummaryCache cache = new AssaySummaryCache();
+        Project project = project("PXD000001");
+        Project otherProject = project("PXD000002");
+        Assay assay = assay("12345");
+
+        AssayDetail summary = cache.getAssaySummary(project, assay);
+        assertEquals("12345", summary.getAccession());
+        assertEquals("PXD000001", summary.getProjectAccession());
+        assertSame(summary, cache.getAssaySummary(project, assay));
+        // Other objects with the same accessions, e.g. the project read again
+        assertSame(summary, cache.getAssaySummary(project("PXD000001"), assay("12345")));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // The same assay accession in another project, and another assay of the project
+        AssayDetail otherSummary = cache.getAssaySummary(otherProject, assay);
+        assertNotSame(summary, otherSummary);
+        assertEquals("PXD000002", otherSummary.getProjectAccession());
+        cache.getAssaySummary(project, assay("12346"));
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.getMisses());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNotSame(summary, cache.getAssaySummary(project, assay));
+    }
+
+    private static Project project(String accession) {
+        Project project = new Project();
+        project.setAccession(accession);
+        project.setTitle("Project " + accession);
+        return project;
+    }
+
+    private static Assay assay(String accession) {
+        Assay assay = new Assay();
+        assay.setAccession(accession);
+        assay.setTitle("Assay " + accession);
+        assay.setSamples(Collections.<AssaySampleCvParam>emptyList());
+        return assay;
+    }
+}
@@ -0,0 +1,287 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.junit.Test;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.ClusterSummaryQualityDecider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.IClusterQualityDecider;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.ICluster;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.IModification;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.IPeptideSpectrumMatch;
+import uk.ac.ebi.pride.spectracluster.clusteringfilereader.objects.ISpectrumReference;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterDetail;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterSummary;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusteredSpectrumDetail;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The summary of {@link ClusterSummariser} must be the one of the original summary of the clusters, that
+ * removed the duplicated spectra first and then read the PSMs of every spectrum again for every number, also
+ * for the duplicated spectra, the spectra without charge, the species lists with empty species and the
+ * PSMs given twice. A summariser is reused for all the clusters.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ClusterSummariserTest {
+
+    private static final String[] SEQUENCES = {"PEPTIDE", "peptide", "PEPTIDER", "AAAK"};
+    private static final String[] SPECIES = {null, "", "9606", "10090", "9606,10090", "9606,", "9606,,", ",9606", "9606,,10090", ","};
+    private static final String[] MODIFICATIONS = {"MOD:00696", "MOD:00397", "MOD:00425"};
+
+    private static final IClusterQualityDecider<ClusterSummary> DECIDER = new ClusterSummaryQualityDecider(5, 2, 0.5f);
+
+    @Test
+    public void testRandomClustersAsOriginalSummary() {
+        Random random = new Random(20161018L);
+        ClusterSummariser summariser = new ClusterSummariser();
+        for (int i = 0; i < 2000; i++) {
+            ICluster cluster = randomCluster(random, "cluster-" + i);
+
+            ClusterDetail summary = summariser.summarise(cluster, DECIDER);
+            ClusterDetail expected = originalSummary(cluster, DECIDER);
+            assertSameSummary(expected, summary);
+
+            List<ISpectrumReference> uniqueSpectra = new ArrayList<ISpectrumReference>(
+                    new UniqueSpectrumFunction().apply(cluster.getSpectrumReferences()));
+            assertEquals(uniqueSpectra.size(), summariser.getUniqueSpectra().size());
+            for (int spectrum = 0; spectrum < uniqueSpectra.size(); spectrum++)
+                assertSame(uniqueSpectra.get(spectrum), summariser.getUniqueSpectra().get(spectrum));
+        }
+    }
+
+    @Test
+    public void testUnknownCharge() {
+        ISpectrumReference charged = spectrum("PXD000001;file;1", 2, "9606", psm("PEPTIDE"));
+        ISpectrumReference unknown = spectrum("PXD000001;file;2", 0, "9606", psm("PEPTIDE"));
+        ICluster cluster = cluster("unknown-charge", "PEPTIDE", Arrays.asList(charged, unknown, charged));
+
+        ClusterDetail summary = new ClusterSummariser().summarise(cluster, DECIDER);
+        assertEquals(0f, summary.getAveragePrecursorCharge(), 0f);
+        assertSameSummary(originalSummary(cluster, DECIDER), summary);
+    }
+
+    private static void assertSameSummary(ClusterDetail expected, ClusterDetail actual) {
+        String cluster = expected.getUUID();
+        assertEquals(cluster, expected.getUUID(), actual.getUUID());
+        assertEquals(cluster, expected.getAveragePrecursorMz(), actual.getAveragePrecursorMz(), 0f);
+        assertEquals(cluster, expected.getAveragePrecursorCharge(), actual.getAveragePrecursorCharge(), 0f);
+        assertEquals(cluster, expected.getConsensusSpectrumMz(), actual.getConsensusSpectrumMz());
+        assertEquals(cluster, expected.getConsensusSpectrumIntensity(), actual.getConsensusSpectrumIntensity());
+        assertEquals(cluster, expected.getMaxPeptideRatio(), actual.getMaxPeptideRatio(), 0f);
+        assertEquals(cluster, expected.getNumberOfSpectra(), actual.getNumberOfSpectra());
+        assertEquals(cluster, expected.getTotalNumberOfSpectra(), actual.getTotalNumberOfSpectra());
+        assertEquals(cluster, expected.getNumberOfPSMs(), actual.getNumberOfPSMs());
+        assertEquals(cluster, expected.getTotalNumberOfPSMs(), actual.getTotalNumberOfPSMs());
+        assertEquals(cluster, expected.getNumberOfProjects(), actual.getNumberOfProjects());
+        assertEquals(cluster, expected.getTotalNumberOfProjects(), actual.getTotalNumberOfProjects());
+        assertEquals(cluster, expected.getNumberOfSpecies(), actual.getNumberOfSpecies());
+        assertEquals(cluster, expected.getTotalNumberOfSpecies(), actual.getTotalNumberOfSpecies());
+        assertEquals(cluster, expected.getNumberOfModifications(), actual.getNumberOfModifications());
+        assertEquals(cluster, expected.getTotalNumberOfModifications(), actual.getTotalNumberOfModifications());
+        assertEquals(cluster, expected.getQuality(), actual.getQuality());
+
+        List<ClusteredSpectrumDetail> expectedSpectra = expected.getClusteredSpectrumDetails();
+        List<ClusteredSpectrumDetail> actualSpectra = actual.getClusteredSpectrumDetails();
+        assertEquals(cluster, expectedSpectra.size(), actualSpectra.size());
+        for (int spectrum = 0; spectrum < expectedSpectra.size(); spectrum++) {
+            assertEquals(cluster, expectedSpectra.get(spectrum).getReferenceId(), actualSpectra.get(spectrum).getReferenceId());
+            assertEquals(cluster, expectedSpectra.get(spectrum).getSimilarityScore(), actualSpectra.get(spectrum).getSimilarityScore(), 0f);
+        }
+    }
+
+    /**
+     * The original summary of a cluster, before the single pass summariser
+     */
+    private static ClusterDetail originalSummary(ICluster cluster, IClusterQualityDecider<ClusterSummary> clusterQualityDecider) {
+        ClusterDetail clusterSummary = new ClusterDetail();
+
+        clusterSummary.setUUID(cluster.getId());
+
+        clusterSummary.setAveragePrecursorMz(cluster.getAvPrecursorMz());
+
+        Collection<ISpectrumReference> spectrumReferences = cluster.getSpectrumReferences();
+
+        // remove duplicated spectra
+        UniqueSpectrumFunction uniqueSpectrumFunction = new UniqueSpectrumFunction();
+        spectrumReferences = uniqueSpectrumFunction.apply(spectrumReferences);
+
+        int averagePrecursorCharge = SummaryFactory.calculateAveragePrecursorCharge(spectrumReferences);
+        clusterSummary.setAveragePrecursorCharge(averagePrecursorCharge);
+
+        clusterSummary.setConsensusSpectrumMz(convertFloatListToString(cluster.getConsensusMzValues(), Constants.COMMA));
+        clusterSummary.setConsensusSpectrumIntensity(convertFloatListToString(cluster.getConsensusIntensValues(), Constants.COMMA));
+
+        clusterSummary.setMaxPeptideRatio(cluster.getMaxRatio());
+
+        String maxSequence = cluster.getMaxSequence();
+        Set<String> projects = new HashSet<String>();
+        Set<String> totalProjects = new HashSet<String>();
+        Set<String> spectra = new HashSet<String>();
+        Set<String> species = new HashSet<String>();
+        Set<String> totalSpecies = new HashSet<String>();
+        Set<String> ptms = new HashSet<String>();
+        Set<String> totalPtms = new HashSet<String>();
+        int numberOfPsms = 0;
+
+        for (ISpectrumReference spectrumReference : spectrumReferences) {
+            ClusteredSpectrumDetail clusteredSpectrumSummary = new ClusteredSpectrumDetail();
+            String spectrumId = spectrumReference.getSpectrumId();
+            clusteredSpectrumSummary.setReferenceId(spectrumId);
+            clusteredSpectrumSummary.setSimilarityScore(spectrumReference.getSimilarityScore());
+            clusterSummary.addClusteredSpectrumDetail(clusteredSpectrumSummary);
+
+            String[] spectrumIdParts = spectrumId.split(";");
+            String spec = spectrumReference.getSpecies();
+            String projectAccession = spectrumIdParts[0];
+            if (hasMaxSequence(spectrumReference, maxSequence)) {
+                projects.add(projectAccession);
+                spectra.add(spectrumId);
+                if (spec != null)
+                    species.addAll(Arrays.asList(spec.split(",")));
+
+                HashSet<IPeptideSpectrumMatch> uniquePsms = new HashSet<IPeptideSpectrumMatch>(spectrumReference.getPSMs());
+                numberOfPsms += uniquePsms.size();
+                for (IPeptideSpectrumMatch peptideSpectrumMatch : uniquePsms) {
+                    for (IModification modification : peptideSpectrumMatch.getModifications())
+                        ptms.add(modification.getAccession());
+                }
+            }
+
+            totalProjects.add(projectAccession);
+            if (spec != null)
+                totalSpecies.addAll(Arrays.asList(spec.split(",")));
+            for (IPeptideSpectrumMatch peptideSpectrumMatch : spectrumReference.getPSMs()) {
+                for (IModification modification : peptideSpectrumMatch.getModifications())
+                    totalPtms.add(modification.getAccession());
+            }
+        }
+
+        clusterSummary.setNumberOfSpectra(spectra.size());
+        clusterSummary.setTotalNumberOfSpectra(cluster.getSpecCount());
+        clusterSummary.setNumberOfPSMs(numberOfPsms);
+        clusterSummary.setTotalNumberOfPSMs(cluster.getPsmCount());
+        clusterSummary.setNumberOfProjects(projects.size());
+        clusterSummary.setTotalNumberOfProjects(totalProjects.size());
+        clusterSummary.setNumberOfSpecies(species.size());
+        clusterSummary.setTotalNumberOfSpecies(totalSpecies.size());
+        clusterSummary.setNumberOfModifications(ptms.size());
+        clusterSummary.setTotalNumberOfModifications(totalPtms.size());
+
+        clusterSummary.setQuality(clusterQualityDecider.decideQuality(clusterSummary));
+        return clusterSummary;
+    }
+
+    private static boolean hasMaxSequence(ISpectrumReference spectrumReference, String maxSequence) {
+        for (IPeptideSpectrumMatch peptideSpectrumMatch : spectrumReference.getPSMs()) {
+            if (peptideSpectrumMatch.getSequence().equalsIgnoreCase(maxSequence))
+                return true;
+        }
+        return false;
+    }
+
+    private static String convertFloatListToString(List<Float> nums, String delimiter) {
+        String concat = "";
+        for (Float num : nums)
+            concat += num + delimiter;
+        return concat.substring(0, concat.length() - delimiter.length());
+    }
+
+    /**
+     * Cluster of a few spectra, some of them duplicated, with a few PSMs, some of them given twice
+     */
+    private static ICluster randomCluster(Random random, String id) {
+        List<ISpectrumReference> spectra = new ArrayList<ISpectrumReference>();
+        for (int i = 1 + random.nextInt(12); i > 0; i--) {
+            if (!spectra.isEmpty() && random.nextInt(5) == 0) {
+                spectra.add(spectra.get(random.nextInt(spectra.size())));
+                continue;
+            }
+            List<IPeptideSpectrumMatch> psms = new ArrayList<IPeptideSpectrumMatch>();
+            for (int j = 1 + random.nextInt(3); j > 0; j--) {
+                if (!psms.isEmpty() && random.nextInt(4) == 0) {
+                    psms.add(psms.get(0));
+                    continue;
+                }
+                List<IModification> modifications = new ArrayList<IModification>();
+                for (int k = random.nextInt(3); k > 0; k--)
+                    modifications.add(modification(MODIFICATIONS[random.nextInt(MODIFICATIONS.length)], random.nextInt(8)));
+                psms.add(psm(SEQUENCES[random.nextInt(SEQUENCES.length)], modifications.toArray(new IModification[0])));
+            }
+            String spectrumId = "PXD00000" + random.nextInt(4) + ";file" + random.nextInt(3) + ";" + random.nextInt(20);
+            int charge = (random.nextInt(20) == 0) ? 0 : 1 + random.nextInt(4);
+            spectra.add(spectrum(spectrumId, charge, SPECIES[random.nextInt(SPECIES.length)],
+                    psms.toArray(new IPeptideSpectrumMatch[0])));
+        }
+        return cluster(id, SEQUENCES[random.nextInt(SEQUENCES.length)], spectra);
+    }
+
+    private static ICluster cluster(String id, String maxSequence, List<ISpectrumReference> spectra) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getId", id);
+        values.put("getAvPrecursorMz", 500.25f + spectra.size());
+        values.put("getSpectrumReferences", spectra);
+        values.put("getConsensusMzValues", Arrays.asList(100.1f, 200.25f, 1e-7f));
+        values.put("getConsensusIntensValues", Arrays.asList(1f, 2000.5f, 3.3333333f));
+        values.put("getMaxRatio", 0.25f * (spectra.size() % 4));
+        values.put("getMaxSequence", maxSequence);
+        values.put("getSpecCount", spectra.size());
+        values.put("getPsmCount", 2 * spectra.size());
+        return proxy(ICluster.class, values);
+    }
+
+    private static ISpectrumReference spectrum(String id, int charge, String species, IPeptideSpectrumMatch... psms) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getSpectrumId", id);
+        values.put("getCharge", charge);
+        values.put("getSpecies", species);
+        values.put("getSimilarityScore", id.length() / 10f);
+        values.put("getPSMs", Arrays.asList(psms));
+        return proxy(ISpectrumReference.class, values);
+    }
+
+    private static IPeptideSpectrumMatch psm(String sequence, IModification... modifications) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getSequence", sequence);
+        values.put("getModifications", Arrays.asList(modifications));
+        return proxy(IPeptideSpectrumMatch.class, values);
+    }
+
+    private static IModification modification(String accession, int position) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getAccession", accession);
+        values.put("getPosition", position);
+        return proxy(IModification.class, values);
+    }
+
+    /**
+     * Object of a clustering file interface with the given values, equal only to itself
+     */
+    private static <T> T proxy(Class<T> type, Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + values;
+                default:
+                    if (!values.containsKey(method.getName()))
+                        throw new UnsupportedOperationException(method.getName());
+                    return values.get(method.getName());
+            }
+        }));
+    }
+}
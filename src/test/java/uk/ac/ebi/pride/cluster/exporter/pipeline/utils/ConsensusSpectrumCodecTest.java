@@ -0,0 +1,66 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The consensus spectra encoded in base64 must be decoded to the same floats, bit for bit, and the text
+ * encoding must be the values joined as the original summary of the clusters did.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ConsensusSpectrumCodecTest {
+
+    @Test
+    public void testBase64RoundTrip() {
+        Random random = new Random(20161018L);
+        for (int i = 0; i < 1000; i++) {
+            List<Float> values = new ArrayList<Float>();
+            for (int j = 1 + random.nextInt(200); j > 0; j--)
+                values.add(random.nextBoolean() ? random.nextFloat() * 2000 : Float.intBitsToFloat(random.nextInt()));
+            assertRoundTrip(values);
+        }
+    }
+
+    @Test
+    public void testBase64SpecialValues() {
+        assertRoundTrip(Arrays.asList(0f, -0f, Float.MIN_VALUE, Float.MAX_VALUE, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NaN, 1e-7f));
+        assertRoundTrip(Collections.singletonList(123.456f));
+    }
+
+    @Test
+    public void testText() {
+        assertEquals("100.1,200.25,1.0E-7", ConsensusSpectrumCodec.toText(Arrays.asList(100.1f, 200.25f, 1e-7f), Constants.COMMA));
+        assertEquals("3.3333333", ConsensusSpectrumCodec.toText(Collections.singletonList(3.3333333f), Constants.COMMA));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEmptySpectrum() {
+        ConsensusSpectrumCodec.toBase64(Collections.<Float>emptyList());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotFloats() {
+        ConsensusSpectrumCodec.fromBase64(Base64.getEncoder().encodeToString(new byte[]{1, 2, 3, 4, 5}));
+    }
+
+    private static void assertRoundTrip(List<Float> values) {
+        String base64 = ConsensusSpectrumCodec.toBase64(values);
+        assertEquals(4 * ((values.size() * Float.BYTES + 2) / 3), base64.length());
+
+        float[] decoded = ConsensusSpectrumCodec.fromBase64(base64);
+        assertEquals(values.size(), decoded.length);
+        for (int i = 0; i < decoded.length; i++)
+            assertEquals(Float.floatToRawIntBits(values.get(i)), Float.floatToRawIntBits(decoded[i]));
+    }
+}
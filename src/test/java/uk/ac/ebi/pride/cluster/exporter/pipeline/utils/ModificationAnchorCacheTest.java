@@ -0,0 +1,179 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.junit.Test;
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.archive.dataprovider.param.CvParamProvider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Modification;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The key of {@link ModificationAnchorCache} must tell apart the (sequence, modifications) pairs that can
+ * be anchored differently, and the cache must stay bounded, evicting the least recently used pairs.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class ModificationAnchorCacheTest {
+
+    private static final int NUMBER_STRIPES = 16;
+
+    @Test
+    public void testKeyOfTheSamePair() {
+        // The positions of a modification are sorted
+        assertEquals(ModificationAnchorCache.key(modifications(modification("MOD:00696", "phospho", 3, null, 3, 7)), "PEPTIDE"),
+                ModificationAnchorCache.key(modifications(modification("MOD:00696", "phospho", 3, null, 7, 3)), "PEPTIDE"));
+    }
+
+    @Test
+    public void testKeyOfDifferentPairs() {
+        List<String> keys = new ArrayList<String>();
+        keys.add(ModificationAnchorCache.key(null, "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(Collections.<ModificationProvider>emptyList(), "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(null, "PEPTIDER"));
+        keys.add(ModificationAnchorCache.key(modifications(modification("MOD:00696", "phospho", 3, null, 3)), "PEPTIDE"));
+        // Sequence, accession, name, main position, neutral loss and positions
+        keys.add(ModificationAnchorCache.key(modifications(modification("MOD:00696", "phospho", 3, null, 3)), "PEPTIDER"));
+        keys.add(ModificationAnchorCache.key(modifications(modification("MOD:00397", "phospho", 3, null, 3)), "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(modifications(modification("MOD:00696", "iodoacetamide", 3, null, 3)), "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(modifications(modification("MOD:00696", "phospho", 4, null, 3)), "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(modifications(modification("MOD:00696", "phospho", 3, neutralLoss("-98"), 3)), "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(modifications(modification("MOD:00696", "phospho", 3, neutralLoss("-80"), 3)), "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(modifications(modification("MOD:00696", "phospho", 3, null, 4)), "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(modifications(modification("MOD:00696", "phospho", 3, null, 3, 4)), "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(modifications(modification("MOD:00696", "phospho", 3, null)), "PEPTIDE"));
+        // The order of the modifications is kept
+        ModificationProvider phospho = modification("MOD:00696", "phospho", 3, null, 3);
+        ModificationProvider oxidation = modification("MOD:00719", "oxidation", 1, null, 1);
+        keys.add(ModificationAnchorCache.key(modifications(phospho, oxidation), "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(modifications(oxidation, phospho), "PEPTIDE"));
+        keys.add(ModificationAnchorCache.key(modifications(phospho, phospho), "PEPTIDE"));
+
+        assertEquals(keys.toString(), keys.size(), new HashSet<String>(keys).size());
+    }
+
+    @Test
+    public void testHits() {
+        ModificationAnchorCache cache = new ModificationAnchorCache(1000);
+        ModificationAnchorCache.AnchoredModifications anchored = cache.anchor(Collections.<ModificationProvider>emptyList(), "PEPTIDE");
+        assertSame(anchored, cache.anchor(new ArrayList<ModificationProvider>(), "PEPTIDE"));
+        assertNotSame(anchored, cache.anchor(Collections.<ModificationProvider>emptyList(), "PEPTIDER"));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testBoundedSize() {
+        ModificationAnchorCache cache = new ModificationAnchorCache(NUMBER_STRIPES * 4);
+        for (int i = 0; i < 10000; i++)
+            cache.anchor(Collections.<ModificationProvider>emptyList(), sequence(i));
+
+        assertTrue("Size: " + cache.size(), cache.size() <= NUMBER_STRIPES * 4);
+        assertEquals(10000, cache.getMisses());
+        assertEquals(10000 - cache.size(), cache.getEvictions());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        // Three pairs of the same stripe, the stripes hold two pairs
+        ModificationAnchorCache cache = new ModificationAnchorCache(NUMBER_STRIPES * 2);
+        List<String> sequences = sameStripe(3);
+        ModificationAnchorCache.AnchoredModifications first = cache.anchor(Collections.<ModificationProvider>emptyList(), sequences.get(0));
+        ModificationAnchorCache.AnchoredModifications second = cache.anchor(Collections.<ModificationProvider>emptyList(), sequences.get(1));
+
+        // The first pair is used again, so the second one is evicted by the third
+        assertSame(first, cache.anchor(Collections.<ModificationProvider>emptyList(), sequences.get(0)));
+        cache.anchor(Collections.<ModificationProvider>emptyList(), sequences.get(2));
+        assertEquals(1, cache.getEvictions());
+        assertSame(first, cache.anchor(Collections.<ModificationProvider>emptyList(), sequences.get(0)));
+        assertNotSame(second, cache.anchor(Collections.<ModificationProvider>emptyList(), sequences.get(1)));
+    }
+
+    @Test
+    public void testDisabled() {
+        ModificationAnchorCache cache = new ModificationAnchorCache(0);
+        ModificationAnchorCache.AnchoredModifications anchored = cache.anchor(Collections.<ModificationProvider>emptyList(), "PEPTIDE");
+        assertNotSame(anchored, cache.anchor(Collections.<ModificationProvider>emptyList(), "PEPTIDE"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    /**
+     * Sequences whose pairs without modifications are in the same stripe
+     */
+    private static List<String> sameStripe(int number) {
+        List<String> sequences = new ArrayList<String>();
+        int stripe = stripe(sequence(0));
+        for (int i = 0; sequences.size() < number; i++) {
+            if (stripe(sequence(i)) == stripe)
+                sequences.add(sequence(i));
+        }
+        return sequences;
+    }
+
+    private static int stripe(String sequence) {
+        String key = ModificationAnchorCache.key(Collections.<ModificationProvider>emptyList(), sequence);
+        return (key.hashCode() & Integer.MAX_VALUE) % NUMBER_STRIPES;
+    }
+
+    private static String sequence(int i) {
+        StringBuilder sequence = new StringBuilder("PEPTIDE");
+        for (char residue : Integer.toString(i, 4).toCharArray())
+            sequence.append("ACDE".charAt(residue - '0'));
+        return sequence.toString();
+    }
+
+    private static List<ModificationProvider> modifications(ModificationProvider... modifications) {
+        return Arrays.asList(modifications);
+    }
+
+    private static Modification modification(String accession, String name, Integer mainPosition, CvParamProvider neutralLoss,
+                                             Integer... positions) {
+        Modification modification = new Modification();
+        modification.setAccession(accession);
+        modification.setName(name);
+        modification.setMainPosition(mainPosition);
+        modification.setNeutralLoss(neutralLoss);
+        Map<Integer, CvParamProvider> positionMap = new LinkedHashMap<Integer, CvParamProvider>();
+        for (Integer position : positions)
+            positionMap.put(position, null);
+        modification.setPositionMap(positionMap);
+        return modification;
+    }
+
+    private static CvParamProvider neutralLoss(String value) {
+        return (CvParamProvider) Proxy.newProxyInstance(CvParamProvider.class.getClassLoader(), new Class<?>[]{CvParamProvider.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAccession":
+                            return "MS:1001524";
+                        case "getValue":
+                            return value;
+                        case "getCvLabel":
+                            return "MS";
+                        case "getName":
+                            return "fragment neutral loss";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,109 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The chunks of {@link OrderedChunkRenderer} must be written in order, whatever the number of threads and
+ * the order in which they are rendered, with at most a few chunks by thread rendered ahead.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class OrderedChunkRendererTest {
+
+    @Test
+    public void testChunksWrittenInOrder() throws IOException {
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            for (int numberEntries : new int[]{0, 1, 7, 10, 11, 100, 1003}) {
+                List<int[]> written = new ArrayList<int[]>();
+                // The first chunks are the slowest, so the next ones are rendered first
+                new OrderedChunkRenderer(10, threads).render(numberEntries,
+                        (from, to) -> {
+                            sleep(from < 40 ? 40 - from : 0);
+                            return new int[]{from, to};
+                        },
+                        written::add);
+
+                int expectedFrom = 0;
+                for (int[] chunk : written) {
+                    assertEquals(threads + " threads", expectedFrom, chunk[0]);
+                    assertTrue(chunk[1] - chunk[0] > 0 && chunk[1] - chunk[0] <= 10);
+                    expectedFrom = chunk[1];
+                }
+                assertEquals(threads + " threads", numberEntries, expectedFrom);
+            }
+        }
+    }
+
+    @Test
+    public void testBoundedRenderAhead() throws IOException {
+        int threads = 4;
+        AtomicInteger rendered = new AtomicInteger();
+        int[] written = new int[1];
+        int[] maxAhead = new int[1];
+        new OrderedChunkRenderer(1, threads).render(500,
+                (from, to) -> {
+                    rendered.incrementAndGet();
+                    return from;
+                },
+                chunk -> {
+                    sleep(1);
+                    maxAhead[0] = Math.max(maxAhead[0], rendered.get() - written[0]);
+                    written[0]++;
+                });
+        assertEquals(500, written[0]);
+        assertTrue("Chunks rendered ahead: " + maxAhead[0], maxAhead[0] <= 2 * threads);
+    }
+
+    @Test
+    public void testWriterError() {
+        List<Integer> written = new ArrayList<Integer>();
+        try {
+            new OrderedChunkRenderer(5, 4).render(1000, (from, to) -> from, chunk -> {
+                if (chunk == 50)
+                    throw new IOException("Disk full");
+                written.add(chunk);
+            });
+            fail("The error of the writer must be thrown");
+        } catch (IOException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+        assertEquals(10, written.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEncoderError() throws IOException {
+        new OrderedChunkRenderer(5, 4).render(1000, (from, to) -> {
+            if (from == 500)
+                throw new IllegalStateException("Wrong entry " + from);
+            return from;
+        }, chunk -> {});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongChunkSize() {
+        new OrderedChunkRenderer(0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongThreads() {
+        new OrderedChunkRenderer(10, 0);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
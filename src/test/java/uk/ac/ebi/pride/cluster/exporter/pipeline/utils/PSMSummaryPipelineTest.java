@@ -0,0 +1,136 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.ebi.pride.spectracluster.repo.model.PSMDetail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The PSMs of an mzTab file read incrementally and summarised by batches, with any number of threads, must
+ * be summarised as {@link SummaryFactory#summarisePSM} and handed out in the order of the file.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class PSMSummaryPipelineTest {
+
+    private static final int NUMBER_PSMS = 1000;
+
+    private static final String PSM_HEADER = "PSH\tsequence\tPSM_ID\taccession\tunique\tdatabase\tdatabase_version\tsearch_engine"
+            + "\tsearch_engine_score[1]\tsearch_engine_score[2]\tmodifications\tretention_time\tcharge\texp_mass_to_charge"
+            + "\tcalc_mass_to_charge\tspectra_ref\tpre\tpost\tstart\tend";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSummariesInTheOrderOfTheFile() throws IOException {
+        File file = writeMzTab(new Random(20161018L));
+
+        // Expected: the PSMs summarised one by one
+        List<String> expected = new ArrayList<String>();
+        try (MzTabPSMReader reader = new MzTabPSMReader(file)) {
+            assertEquals(2, reader.getNumberOfMsRuns());
+            while (reader.hasNext())
+                expected.add(toString(SummaryFactory.summarisePSM(reader.next(), "PXD000001", 7L, "12345", reader.getNumberOfMsRuns())));
+        }
+        assertEquals(NUMBER_PSMS, expected.size());
+
+        for (int threads : new int[]{1, 4}) {
+            List<String> summaries = new ArrayList<String>();
+            List<Integer> batchSizes = new ArrayList<Integer>();
+            try (MzTabPSMReader reader = new MzTabPSMReader(file)) {
+                long numberPSMs = new PSMSummaryPipeline(33, threads).summarise(reader, "PXD000001", 7L, "12345",
+                        reader.getNumberOfMsRuns(), batch -> {
+                            batchSizes.add(batch.size());
+                            for (PSMDetail summary : batch)
+                                summaries.add(toString(summary));
+                        });
+                assertEquals(NUMBER_PSMS, numberPSMs);
+            }
+            assertEquals("Threads: " + threads, expected, summaries);
+            assertEquals(NUMBER_PSMS / 33 + 1, batchSizes.size());
+            for (int i = 0; i < batchSizes.size() - 1; i++)
+                assertEquals(33, (int) batchSizes.get(i));
+        }
+    }
+
+    @Test
+    public void testFileWithoutPSMs() throws IOException {
+        File file = folder.newFile("proteins.mzTab");
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("MTD\tmzTab-version\t1.0.0");
+            writer.println("MTD\tms_run[1]-location\tfile://run1.mgf");
+            writer.println();
+            writer.println("PRH\taccession\tdescription");
+            writer.println("PRT\tP12345\tnull");
+        }
+
+        try (MzTabPSMReader reader = new MzTabPSMReader(file)) {
+            assertFalse(reader.hasNext());
+            assertEquals(0, new PSMSummaryPipeline(10, 2).summarise(reader, "PXD000001", 7L, "12345", 1,
+                    batch -> assertTrue("No batch expected", false)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBatchSize() {
+        new PSMSummaryPipeline(0, 1);
+    }
+
+    /**
+     * An mzTab file with metadata, a protein section, a PSM section with comments and empty lines and a
+     * small molecule section. Some PSMs have no search engine, scores, modifications or masses.
+     */
+    private File writeMzTab(Random random) throws IOException {
+        File file = folder.newFile("assay.mzTab");
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("MTD\tmzTab-version\t1.0.0");
+            writer.println("MTD\tmzTab-mode\tSummary");
+            writer.println("MTD\tms_run[1]-location\tfile://run1.mgf");
+            writer.println("MTD\tms_run[2]-location\tfile://run2.mgf");
+            writer.println("COM\tassay of the test");
+            writer.println();
+            writer.println("PRH\taccession\tdescription");
+            writer.println("PRT\tP12345\tnull");
+            writer.println();
+            writer.println(PSM_HEADER);
+            for (int i = 0; i < NUMBER_PSMS; i++) {
+                if (i % 100 == 50) {
+                    writer.println("COM\tPSMs from " + i);
+                    writer.println();
+                }
+                String searchEngine = (i % 7 == 0) ? "null" : "[MS, MS:1001207, Mascot, ]|[MS, MS:1001456, X!Tandem, ]";
+                String score1 = (i % 5 == 0) ? "null" : String.valueOf(random.nextInt(100));
+                String score2 = (i % 3 == 0) ? "null" : String.valueOf(random.nextDouble());
+                String modifications = (i % 4 == 0) ? "null" : (1 + random.nextInt(5)) + "-MOD:00696," + random.nextInt(3) + "-UNIMOD:35";
+                String expMass = (i % 9 == 0) ? "null" : String.valueOf(400 + random.nextDouble());
+                writer.println("PSM\tPEPTIDE" + "ACDEFGHIK".charAt(random.nextInt(9)) + "\t" + i + "\tP" + random.nextInt(100)
+                        + "\tnull\tUniProt\t2016_10\t" + searchEngine + "\t" + score1 + "\t" + score2 + "\t" + modifications
+                        + "\tnull\t2\t" + expMass + "\t" + (400 + random.nextDouble()) + "\tms_run[1]:index=" + i
+                        + "\tK\tR\t" + (1 + i) + "\t" + (8 + i));
+            }
+            writer.println();
+            writer.println("SMH\tidentifier\tchemical_formula");
+            writer.println("SML\tCHEBI:1\tnull");
+        }
+        return file;
+    }
+
+    private static String toString(PSMDetail summary) {
+        return summary.getAssayId() + "|" + summary.getArchivePSMId() + "|" + summary.getSequence() + "|" + summary.getModifications()
+                + "|" + summary.getSearchEngine() + "|" + summary.getSearchEngineScores() + "|" + summary.getSearchDatabase()
+                + "|" + summary.getProteinAccession() + "|" + summary.getDeltaMZ();
+    }
+}
@@ -0,0 +1,168 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.StringDictionary;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The virtual offsets of a {@link PeptideBlockIndex} must point to the line of the entry in the block gzip
+ * file, for the entries written to the file and for the entries of a section spooled apart and appended.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class PeptideBlockIndexTest {
+
+    private static final int NUMBER_FORMS = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testVirtualOffsetsResolveToTheLines() throws IOException {
+        Random random = new Random(20161018L);
+        StringDictionary sequences = new StringDictionary();
+        int[] formSequence = new int[NUMBER_FORMS];
+        for (int form = 0; form < NUMBER_FORMS; form++)
+            formSequence[form] = sequences.encode(randomSequence(random, 1 + random.nextInt(300)));
+
+        File file = folder.newFile("peptides.tsv.gz");
+        BlockGzipOutputStream compressed = new BlockGzipOutputStream(new FileOutputStream(file));
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+        PeptideBlockIndex index = new PeptideBlockIndex(sequences);
+
+        // PEP lines written to the file, CPE lines spooled apart with positions relative to the spool
+        ByteArrayOutputStream clusterPeptideSpool = new ByteArrayOutputStream();
+        write(compressed, uncompressed, "PEH\tsequence\tform\tpadding\n");
+        for (int form = 0; form < NUMBER_FORMS; form++) {
+            String sequence = sequences.decode(formSequence[form]);
+            index.add(formSequence[form], PeptideBlockIndex.PEPTIDE_SECTION, compressed.getPosition());
+            write(compressed, uncompressed, "PEP\t" + sequence + "\t" + form + "\t" + randomSequence(random, random.nextInt(200)) + "\n");
+            index.add(formSequence[form], PeptideBlockIndex.CLUSTER_PEPTIDE_SECTION, clusterPeptideSpool.size());
+            byte[] line = ("CPE\t" + sequence + "\t" + form + "\t" + randomSequence(random, random.nextInt(200)) + "\n").getBytes(StandardCharsets.UTF_8);
+            clusterPeptideSpool.write(line, 0, line.length);
+        }
+        write(compressed, uncompressed, "\nCPH\tsequence\tform\tpadding\n");
+        index.shift(PeptideBlockIndex.CLUSTER_PEPTIDE_SECTION, compressed.getPosition());
+        write(compressed, uncompressed, clusterPeptideSpool.toString("UTF-8"));
+        compressed.close();
+        assertTrue("Blocks: " + (uncompressed.size() / BlockGzipOutputStream.BLOCK_SIZE + 1), uncompressed.size() > 4 * BlockGzipOutputStream.BLOCK_SIZE);
+
+        // Any gzip reader reads the whole file
+        assertArrayEquals(uncompressed.toByteArray(), gunzip(new FileInputStream(file), Integer.MAX_VALUE));
+
+        File indexFile = folder.newFile("peptides.tsv.gz" + PeptideBlockIndex.EXTENSION);
+        index.write(indexFile, compressed);
+        assertEquals(2 * NUMBER_FORMS, index.size());
+
+        List<String[]> entries = readIndex(indexFile);
+        assertEquals(2 * NUMBER_FORMS, entries.size());
+        String previousSequence = null;
+        String previousSection = null;
+        int previousForm = -1;
+        for (String[] entry : entries) {
+            String line = readLine(file, Long.parseLong(entry[2]));
+            String[] fields = line.split("\t");
+            assertEquals(entry[1], fields[0]);
+            assertEquals(entry[0], fields[1]);
+
+            // Sorted by sequence, the entries of a sequence in the order they were added
+            int form = Integer.parseInt(fields[2]);
+            if (previousSequence != null) {
+                int order = previousSequence.compareTo(entry[0]);
+                assertTrue("Index not sorted at " + entry[0], order <= 0);
+                if (order == 0 && previousSection.equals(entry[1]))
+                    assertTrue("Entries of " + entry[0] + " not in order", previousForm < form);
+                else if (order == 0)
+                    assertEquals("PEP", previousSection);
+            }
+            previousSequence = entry[0];
+            previousSection = entry[1];
+            previousForm = form;
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testVirtualOffsetOfOpenStream() throws IOException {
+        BlockGzipOutputStream compressed = new BlockGzipOutputStream(new ByteArrayOutputStream());
+        compressed.write(new byte[10]);
+        compressed.getVirtualOffset(5);
+    }
+
+    private static void write(BlockGzipOutputStream compressed, ByteArrayOutputStream uncompressed, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        compressed.write(bytes);
+        uncompressed.write(bytes, 0, bytes.length);
+    }
+
+    private static String randomSequence(Random random, int length) {
+        StringBuilder sequence = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            sequence.append("ACDEFGHIKLMNPQRSTVWY".charAt(random.nextInt(20)));
+        return sequence.toString();
+    }
+
+    private static List<String[]> readIndex(File file) throws IOException {
+        List<String[]> entries = new ArrayList<String[]>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            assertEquals("#sequence\tsection\tvirtual_offset", reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null)
+                entries.add(line.split("\t"));
+        }
+        return entries;
+    }
+
+    /**
+     * Line at a virtual offset: the compressed offset of the block in the 48 high bits and the offset in
+     * the uncompressed block in the 16 low bits
+     */
+    private static String readLine(File file, long virtualOffset) throws IOException {
+        long blockOffset = virtualOffset >>> 16;
+        int offsetInBlock = (int) (virtualOffset & 0xffff);
+        assertTrue(offsetInBlock < BlockGzipOutputStream.BLOCK_SIZE);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            randomAccessFile.seek(blockOffset);
+            byte[] data = gunzip(Channels.newInputStream(randomAccessFile.getChannel()), offsetInBlock + 1024);
+            int end = offsetInBlock;
+            while (data[end] != '\n')
+                end++;
+            return new String(data, offsetInBlock, end - offsetInBlock, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Decompress the gzip members of a stream, up to a number of bytes
+     */
+    private static byte[] gunzip(InputStream in, int maxBytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream gzip = new GZIPInputStream(in)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while (out.size() < maxBytes && (read = gzip.read(buffer)) >= 0)
+                out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,152 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.ebi.pride.archive.dataprovider.identification.ModificationProvider;
+import uk.ac.ebi.pride.archive.dataprovider.param.CvParamProvider;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.exporter.ConfigurationService;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Modification;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.model.Specie;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.quality.ClusterQualityTable;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.services.ClusterRepositoryServices;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.AssayIndex;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusteredPSMSnapshot;
+import uk.ac.ebi.pride.cluster.exporter.pipeline.store.ClusteredPSMStoreBuilder;
+import uk.ac.ebi.pride.spectracluster.repo.model.AssayReport;
+import uk.ac.ebi.pride.spectracluster.repo.model.ClusterQuality;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The files written in a single pass by {@link SpeciesFanOutWriter} must be the files written one by one by
+ * {@link SummaryFactory#printFile}, with and without the PoGo files, whatever the number of threads.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class SpeciesFanOutWriterTest {
+
+    private static final long[] ASSAYS = {11L, 12L, 13L};
+
+    private static final int NUMBER_CLUSTERS = 300;
+
+    private static final List<Specie> SPECIES = Arrays.asList(new Specie("9606", "Human", "Homo sapiens"),
+            new Specie("10090", "Mouse", "Mus musculus"), new Specie("4932", "Yeast", "Saccharomyces cerevisiae"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ClusterRepositoryServices service;
+    private Properties properties;
+
+    @Before
+    public void setUp() throws Exception {
+        ConfigurationService.getService().setSpillDirectory(folder.getRoot().getAbsolutePath());
+        properties = PropertyUtils.loadProperties("prop/prop.properties");
+
+        // More PeptideForms than a render chunk, so the files are written in several chunks
+        AssayIndex assays = new AssayIndex(Collections.<AssayReport>emptyList());
+        assays.addAssay(ASSAYS[0], "PXD000001", "9606");
+        assays.addAssay(ASSAYS[1], "PXD000002", "10090");
+        assays.addAssay(ASSAYS[2], "PXD000002", "9606,10090");
+        ClusteredPSMStoreBuilder builder = new ClusteredPSMStoreBuilder(assays);
+        Random random = new Random(20161018L);
+        for (int i = 0; i < 20000; i++) {
+            String sequence = randomSequence(random);
+            List<ModificationProvider> modifications = random.nextBoolean() ? null : modifications(1 + random.nextInt(3));
+            long assay = ASSAYS[random.nextInt(ASSAYS.length)];
+            int spectra = 1 + random.nextInt(50);
+            builder.add(sequence, modifications, random.nextInt(NUMBER_CLUSTERS), assay, 1 + random.nextInt(3),
+                    random.nextFloat(), (random.nextInt(5) == 0) ? Float.NaN : random.nextFloat() - 0.5f,
+                    spectra, spectra + 1, 1 + random.nextInt(4), spectra + 2);
+        }
+
+        ClusterQualityTable qualityTable = new ClusterQualityTable();
+        for (long cluster = 0; cluster < NUMBER_CLUSTERS; cluster++)
+            qualityTable.add(cluster, 10, 3, 0.9f);
+        File snapshot = folder.newFile("psms.snapshot");
+        ClusteredPSMSnapshot.write(snapshot, Collections.singletonList(builder.build()), qualityTable);
+
+        service = new ClusterRepositoryServices(null);
+        service.loadSnapshot(snapshot, ClusterQuality.LOW);
+    }
+
+    @After
+    public void tearDown() {
+        ConfigurationService.getService().unsetIncludePogoExport();
+        service.closeSegments();
+    }
+
+    @Test
+    public void testAsPrintFile() throws Exception {
+        assertSameFiles(1);
+        assertSameFiles(3);
+    }
+
+    @Test
+    public void testAsPrintFileWithPoGo() throws Exception {
+        ConfigurationService.getService().setIncludePogoExport();
+        assertSameFiles(1);
+        assertSameFiles(3);
+    }
+
+    private void assertSameFiles(int threads) throws Exception {
+        File printed = folder.newFolder();
+        SummaryFactory.printFile(service, null, printed.getAbsolutePath(), properties, "1.0");
+        for (Specie specie : SPECIES)
+            SummaryFactory.printFile(service, specie, printed.getAbsolutePath(), properties, "1.0");
+
+        File fanOut = folder.newFolder();
+        new SpeciesFanOutWriter(fanOut.getAbsolutePath(), true, SPECIES, properties, "1.0", threads).write(service);
+
+        String[] files = printed.list();
+        Arrays.sort(files);
+        String[] fanOutFiles = fanOut.list();
+        Arrays.sort(fanOutFiles);
+        assertArrayEquals(files, fanOutFiles);
+        int expectedFiles = ConfigurationService.getService().isIncludePogoExport() ? 2 * (SPECIES.size() + 1) : SPECIES.size() + 1;
+        assertTrue(Arrays.toString(files), files.length >= expectedFiles);
+        for (String file : files) {
+            byte[] expected = Files.readAllBytes(new File(printed, file).toPath());
+            // The species without PSMs have an empty PoGo file
+            assertTrue(file, expected.length > 0 || file.endsWith(".pogo"));
+            assertArrayEquals(threads + " threads: " + file, expected, Files.readAllBytes(new File(fanOut, file).toPath()));
+        }
+        // No spooled files are left
+        assertEquals(0, folder.getRoot().listFiles((directory, name) -> !new File(directory, name).isDirectory()
+                && !name.equals("psms.snapshot")).length);
+    }
+
+    private static String randomSequence(Random random) {
+        StringBuilder sequence = new StringBuilder();
+        for (int i = 6 + random.nextInt(3); i > 0; i--)
+            sequence.append("ACDEFGHK".charAt(random.nextInt(8)));
+        return sequence.toString();
+    }
+
+    private static List<ModificationProvider> modifications(int position) {
+        Modification modification = new Modification();
+        modification.setAccession("MOD:00696");
+        modification.setName("phosphorylated residue");
+        modification.setMainPosition(position);
+        Map<Integer, CvParamProvider> positionMap = new LinkedHashMap<Integer, CvParamProvider>();
+        positionMap.put(position, null);
+        modification.setPositionMap(positionMap);
+        return Collections.<ModificationProvider>singletonList(modification);
+    }
+}
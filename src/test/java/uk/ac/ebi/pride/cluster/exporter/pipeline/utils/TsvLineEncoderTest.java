@@ -0,0 +1,121 @@
+package uk.ac.ebi.pride.cluster.exporter.pipeline.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The fast paths of {@link TsvLineEncoder} must write the same text as String.format("%.02f") and
+ * Float.toString, also for the values close to a tie and to the limit of the fast fixed-precision path.
+ *
+ * @author agent
+ * @version $Id$
+ */
+public class TsvLineEncoderTest {
+
+    private static final long SEED = 20161018L;
+
+    private static final int NUMBER_RANDOM_VALUES = 200000;
+
+    @Test
+    public void testFixed2RandomValues() throws IOException {
+        Random random = new Random(SEED);
+        for (int i = 0; i < NUMBER_RANDOM_VALUES; i++) {
+            // Uniform in [-1000, 1000) and spread over all the magnitudes of the fast path
+            assertFixed2((random.nextFloat() - 0.5f) * 2000);
+            assertFixed2((float) ((random.nextBoolean() ? 1 : -1) * Math.pow(10, random.nextDouble() * 14 - 7)));
+        }
+    }
+
+    @Test
+    public void testFixed2NearTies() throws IOException {
+        for (int hundredths = 0; hundredths < 100000; hundredths++) {
+            float tie = (float) ((hundredths + 0.5) / 100);
+            float below = tie;
+            float above = tie;
+            for (int ulp = 0; ulp < 8; ulp++) {
+                assertFixed2(below);
+                assertFixed2(above);
+                assertFixed2(-below);
+                assertFixed2(-above);
+                below = Math.nextDown(below);
+                above = Math.nextUp(above);
+            }
+        }
+    }
+
+    @Test
+    public void testFixed2FastLimit() throws IOException {
+        float limit = 1e7f;
+        float below = limit;
+        float above = limit;
+        for (int ulp = 0; ulp < 64; ulp++) {
+            assertFixed2(below);
+            assertFixed2(above);
+            assertFixed2(-below);
+            below = Math.nextDown(below);
+            above = Math.nextUp(above);
+        }
+    }
+
+    @Test
+    public void testFixed2SpecialValues() throws IOException {
+        float[] values = {0f, -0f, 0.005f, -0.005f, 0.004999f, 0.995f, 1.005f, 2.675f, Float.MIN_VALUE, -Float.MIN_VALUE,
+                Float.MIN_NORMAL, Float.MAX_VALUE, -Float.MAX_VALUE, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NaN};
+        for (float value : values)
+            assertFixed2(value);
+    }
+
+    @Test
+    public void testFloatRandomValues() throws IOException {
+        Random random = new Random(SEED);
+        for (int i = 0; i < NUMBER_RANDOM_VALUES; i++) {
+            assertFloat(Float.intBitsToFloat(random.nextInt()));
+            assertFloat((random.nextFloat() - 0.5f) * 2000);
+            assertFloat((float) random.nextInt(20000000) - 10000000);
+        }
+    }
+
+    @Test
+    public void testFloatFastLimit() throws IOException {
+        float limit = 1e7f;
+        float below = limit;
+        float above = limit;
+        for (int ulp = 0; ulp < 64; ulp++) {
+            assertFloat(below);
+            assertFloat(above);
+            assertFloat(-below);
+            assertFloat(-above);
+            below = Math.nextDown(below);
+            above = Math.nextUp(above);
+        }
+    }
+
+    @Test
+    public void testFloatSpecialValues() throws IOException {
+        float[] values = {0f, -0f, 1f, -1f, 0.1f, 1e-3f, 1e-4f, Float.MIN_VALUE, Float.MIN_NORMAL, Float.MAX_VALUE,
+                -Float.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NaN};
+        for (float value : values)
+            assertFloat(value);
+    }
+
+    private static void assertFixed2(float value) throws IOException {
+        assertEquals("Float bits " + Integer.toHexString(Float.floatToRawIntBits(value)),
+                String.format("%.02f", value), encode(new TsvLineEncoder().appendFixed2(value)));
+    }
+
+    private static void assertFloat(float value) throws IOException {
+        assertEquals("Float bits " + Integer.toHexString(Float.floatToRawIntBits(value)),
+                Float.toString(value), encode(new TsvLineEncoder().appendFloat(value)));
+    }
+
+    private static String encode(TsvLineEncoder encoder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeTo(out);
+        return out.toString();
+    }
+}